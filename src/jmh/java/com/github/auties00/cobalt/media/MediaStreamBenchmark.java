@@ -0,0 +1,96 @@
+package com.github.auties00.cobalt.media;
+
+import com.github.auties00.cobalt.model.sync.ExternalBlobReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Measures encrypting media while it's uploaded and decrypting it while it's downloaded,
+ * as {@link MediaUploadInputStream} and {@link MediaDownloadInputStream} do between the socket of the media host and the caller.
+ * <p>
+ * The media is an external blob of app state mutations, so that the download also inflates it:
+ * the same streams, without the inflater, handle every other media type.
+ * The results are reported in operations per second: multiply by {@link #mediaLength} to get the throughput in bytes.
+ * Run with {@code -prof gc} to compare the bytes allocated per media ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class MediaStreamBenchmark {
+    private static final int MEDIA_KEY_LENGTH = 32;
+
+    @Param({"65536", "1048576"})
+    private int mediaLength;
+
+    private byte[] mediaKey;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private ExternalBlobReference provider;
+    private byte[] readBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var random = new Random(0);
+        this.mediaKey = new byte[MEDIA_KEY_LENGTH];
+        random.nextBytes(mediaKey);
+
+        // Mutations compress well, as most of their fields repeat
+        var inflated = new byte[mediaLength];
+        var words = new byte[64][];
+        for (var i = 0; i < words.length; i++) {
+            words[i] = new byte[4 + random.nextInt(12)];
+            random.nextBytes(words[i]);
+        }
+        for (var offset = 0; offset < mediaLength; ) {
+            var word = words[random.nextInt(words.length)];
+            var length = Math.min(word.length, mediaLength - offset);
+            System.arraycopy(word, 0, inflated, offset, length);
+            offset += length;
+        }
+        var deflated = new ByteArrayOutputStream();
+        try (var deflater = new DeflaterOutputStream(deflated)) {
+            deflater.write(inflated);
+        }
+        this.plaintext = deflated.toByteArray();
+
+        var placeholder = new ExternalBlobReference(mediaKey, null, null, 0, null, null);
+        try (var upload = MediaUploadInputStream.of(placeholder, new ByteArrayInputStream(plaintext), mediaKey)) {
+            this.ciphertext = upload.readAllBytes();
+            this.provider = new ExternalBlobReference(mediaKey, null, null, ciphertext.length, upload.fileSha256(), upload.fileEncSha256().orElseThrow());
+        }
+
+        this.readBuffer = new byte[8192];
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        try (var upload = MediaUploadInputStream.of(provider, new ByteArrayInputStream(plaintext), mediaKey)) {
+            return drain(upload) + upload.fileLength();
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        try (var download = new MediaDownloadInputStream(() -> {}, new ByteArrayInputStream(ciphertext), ciphertext.length, provider)) {
+            return drain(download);
+        }
+    }
+
+    private long drain(MediaInputStream stream) throws IOException {
+        var length = 0L;
+        int read;
+        while ((read = stream.read(readBuffer, 0, readBuffer.length)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.auties00.cobalt.message.signal;
+
+import com.github.auties00.cobalt.client.WhatsAppClientType;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidCompanion;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.model.message.model.MessageContainer;
+import com.github.auties00.cobalt.store.WhatsAppStore;
+import com.github.auties00.cobalt.store.WhatsAppStoreBuilder;
+import com.github.auties00.libsignal.SignalSessionCipher;
+import com.github.auties00.libsignal.groups.SignalGroupCipher;
+import com.github.auties00.libsignal.key.SignalIdentityPublicKey;
+import com.github.auties00.libsignal.key.SignalPreKeyPair;
+import com.github.auties00.libsignal.state.SignalPreKeyBundleBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encrypting a message for every device it's fanned out to, as {@code MessageSenderService} does for each message it sends.
+ * <p>
+ * A session is established, offline, with a prekey bundle of each device, like the ones returned by WhatsApp when the sessions are missing.
+ * The plaintext is encoded and padded once, and then encrypted for every device:
+ * fan-outs of at least eight devices are encrypted in parallel.
+ * Run with {@code -prof gc} to compare the bytes allocated per fan-out ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class SignalMessageEncoderBenchmark {
+    @Param({"1", "8", "64", "256"})
+    private int devices;
+
+    private SignalMessageEncoder encoder;
+    private List<Jid> recipients;
+    private byte[] plaintext;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var store = newStore();
+        var sessionCipher = new SignalSessionCipher(store);
+        this.encoder = new SignalMessageEncoder(sessionCipher, new SignalGroupCipher(store), new SignalSessionLocks());
+        this.recipients = new ArrayList<>(devices);
+        for (var i = 0; i < devices; i++) {
+            var recipient = Jid.of(String.valueOf(393400000000L + i / 4), JidServer.user(), i % 4, 0);
+            var remoteStore = newStore();
+            var preKey = SignalPreKeyPair.random(i + 1);
+            var bundle = new SignalPreKeyBundleBuilder()
+                    .registrationId(remoteStore.registrationId())
+                    .deviceId(recipient.device())
+                    .preKeyId(preKey.id())
+                    .preKeyPublic(SignalIdentityPublicKey.ofDirect(preKey.publicKey().toEncodedPoint()))
+                    .signedPreKeyId(remoteStore.signedKeyPair().id())
+                    .signedPreKeyPublic(SignalIdentityPublicKey.ofDirect(remoteStore.signedKeyPair().publicKey().toEncodedPoint()))
+                    .signedPreKeySignature(remoteStore.signedKeyPair().signature())
+                    .identityKey(SignalIdentityPublicKey.ofDirect(remoteStore.identityKeyPair().publicKey().toEncodedPoint()))
+                    .build();
+            sessionCipher.process(recipient.toSignalAddress(), bundle);
+            recipients.add(recipient);
+        }
+        this.plaintext = encoder.encodePlaintext(MessageContainer.of("The quick brown fox jumps over the lazy dog"));
+    }
+
+    private static WhatsAppStore newStore() {
+        return new WhatsAppStoreBuilder()
+                .uuid(UUID.randomUUID())
+                .clientType(WhatsAppClientType.WEB)
+                .device(JidCompanion.web())
+                .build();
+    }
+
+    @Benchmark
+    public List<SignalMessageEncoder.Result> fanOut() {
+        return encoder.encrypt(recipients, _ -> plaintext);
+    }
+}
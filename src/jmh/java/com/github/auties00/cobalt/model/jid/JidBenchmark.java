@@ -0,0 +1,75 @@
+package com.github.auties00.cobalt.model.jid;
+
+import it.auties.protobuf.model.ProtobufString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing jids, as the decoders of nodes and messages do for every jid they read as a string,
+ * and looking them up in a map, as the store does for every chat and contact.
+ * <p>
+ * The jids cover the shapes that show up in stanzas: users, devices, lids, groups and bare servers.
+ * Run with {@code -prof gc} to compare the bytes allocated per jid ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class JidBenchmark {
+    private static final String[] JIDS = {
+            "393495089819@s.whatsapp.net",
+            "393495089819:12@s.whatsapp.net",
+            "123456789012345@lid",
+            "123456789012345:3@lid",
+            "120363025246125888@g.us",
+            "status@broadcast",
+            "s.whatsapp.net"
+    };
+
+    private Map<Jid, Jid> map;
+    private ProtobufString.Lazy[] encoded;
+
+    @Setup
+    public void setup() {
+        this.map = new HashMap<>();
+        this.encoded = new ProtobufString.Lazy[JIDS.length];
+        for (var i = 0; i < JIDS.length; i++) {
+            var value = Jid.of(JIDS[i]);
+            map.put(value, value);
+            encoded[i] = ProtobufString.lazy(JIDS[i].getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void parse(Blackhole blackhole) {
+        for (var jid : JIDS) {
+            blackhole.consume(Jid.of(jid));
+        }
+    }
+
+    // Parses jids from the bytes of a decoded message: a jid that is already pooled shouldn't allocate its user
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void parseEncoded(Blackhole blackhole) {
+        for (var jid : encoded) {
+            blackhole.consume(Jid.of(jid));
+        }
+    }
+
+    // Parses the key again every time, like a lookup for a jid read from a stanza
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public void parseAndLookup(Blackhole blackhole) {
+        for (var jid : JIDS) {
+            blackhole.consume(map.get(Jid.of(jid)));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.auties00.cobalt.node;
+
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Measures encoding and decoding the stanza of a group message that is fanned out to many devices,
+ * as the write and read paths of the socket do.
+ * <p>
+ * The stanza has a {@code to} node, with an encrypted payload, for each device it's sent to,
+ * so that {@link #participants} scales both the number of nodes and the number of jids in the frame.
+ * {@link #encodeSinglePass()} encodes the stanza with {@link NodeFrameEncoder}, reusing the same buffer like the pool of a connection does,
+ * while {@link #encode()} sizes it with {@link NodeEncoder#sizeOf(Node)} first.
+ * {@link #decodeCompressed()} decodes the same stanza from a frame compressed with DEFLATE, like the ones WhatsApp sends for large payloads.
+ * The {@code decodeSlices} benchmarks decode the same frames with {@link NodeSliceDecoder}, which doesn't copy the payloads
+ * and defers parsing the attributes until they are accessed, so they measure only the work done for every node.
+ * Run with {@code -prof gc} to compare the bytes allocated per stanza ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class NodeCodecBenchmark {
+    private static final int PAYLOAD_LENGTH = 160;
+
+    @Param({"1", "32", "256"})
+    private int participants;
+
+    private Node node;
+    private byte[] output;
+    private byte[] frame;
+    private byte[] compressedFrame;
+    private NodeFrameEncoder frameEncoder;
+    private ByteBuffer pooledFrame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(0);
+        var participantNodes = new ArrayList<Node>(participants);
+        for (var i = 0; i < participants; i++) {
+            var payload = new byte[PAYLOAD_LENGTH];
+            random.nextBytes(payload);
+            var encNode = new NodeBuilder()
+                    .description("enc")
+                    .attribute("v", "2")
+                    .attribute("type", i % 4 == 0 ? "pkmsg" : "msg")
+                    .content(payload)
+                    .build();
+            var toNode = new NodeBuilder()
+                    .description("to")
+                    .attribute("jid", Jid.of(String.valueOf(393400000000L + i / 4), JidServer.user(), i % 4, 0))
+                    .content(encNode)
+                    .build();
+            participantNodes.add(toNode);
+        }
+        var participantsNode = new NodeBuilder()
+                .description("participants")
+                .content(participantNodes)
+                .build();
+        var senderKeyPayload = new byte[PAYLOAD_LENGTH];
+        random.nextBytes(senderKeyPayload);
+        var senderKeyNode = new NodeBuilder()
+                .description("enc")
+                .attribute("v", "2")
+                .attribute("type", "skmsg")
+                .content(senderKeyPayload)
+                .build();
+        this.node = new NodeBuilder()
+                .description("message")
+                .attribute("id", "3EB0C431C26A1916E07A")
+                .attribute("to", Jid.of("120363025246125888", JidServer.groupOrCommunity()))
+                .attribute("type", "text")
+                .attribute("t", 1700000000)
+                .content(participantsNode, senderKeyNode)
+                .build();
+
+        var size = NodeEncoder.sizeOf(node);
+        this.output = new byte[size];
+        this.frame = new byte[size];
+        NodeEncoder.encode(node, frame, 0, size);
+        this.compressedFrame = compress(frame);
+        this.frameEncoder = new NodeFrameEncoder(this::acquireFrame, this::releaseFrame);
+    }
+
+    // A pool that holds a single buffer, as frames are encoded one at a time
+    private ByteBuffer acquireFrame(int length) {
+        var result = pooledFrame;
+        if (result == null || result.capacity() < length) {
+            return ByteBuffer.allocate(length);
+        }
+
+        this.pooledFrame = null;
+        return result.clear()
+                .limit(length);
+    }
+
+    private void releaseFrame(ByteBuffer buffer) {
+        this.pooledFrame = buffer;
+    }
+
+    // The first byte holds the flags of the frame, so only the rest is compressed
+    private static byte[] compress(byte[] frame) {
+        var deflater = new Deflater();
+        try {
+            deflater.setInput(frame, 1, frame.length - 1);
+            deflater.finish();
+            var result = new byte[frame.length + 64];
+            result[0] = 2;
+            var length = 1;
+            while (!deflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                length += deflater.deflate(result, length, result.length - length);
+            }
+            return Arrays.copyOf(result, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Benchmark
+    public int sizeOf() {
+        return NodeEncoder.sizeOf(node);
+    }
+
+    @Benchmark
+    public int encode() {
+        var length = NodeEncoder.sizeOf(node);
+        return NodeEncoder.encode(node, output, 0, length);
+    }
+
+    @Benchmark
+    public int encodeSinglePass() {
+        var result = frameEncoder.encode(node, 0, 0);
+        releaseFrame(result);
+        return result.limit();
+    }
+
+    @Benchmark
+    public Node decodeUncompressed() throws IOException {
+        try (var decoder = new NodeDecoder(ByteBuffer.wrap(frame))) {
+            return decoder.decode();
+        }
+    }
+
+    @Benchmark
+    public Node decodeCompressed() throws IOException {
+        try (var decoder = new NodeDecoder(ByteBuffer.wrap(compressedFrame))) {
+            return decoder.decode();
+        }
+    }
+
+    @Benchmark
+    public Node decodeSlicesUncompressed() throws IOException {
+        try (var decoder = new NodeSliceDecoder(ByteBuffer.wrap(frame))) {
+            return decoder.decode();
+        }
+    }
+
+    @Benchmark
+    public Node decodeSlicesCompressed() throws IOException {
+        try (var decoder = new NodeSliceDecoder(ByteBuffer.wrap(compressedFrame))) {
+            return decoder.decode();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.auties00.cobalt.socket;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sealing a frame and opening it back, as the write and read paths of {@link SocketSession} do.
+ * <p>
+ * {@link #allocating()} reproduces the previous implementation, which looked up a new cipher and allocated new buffers for every frame,
+ * while {@link #pooled()} uses {@link SocketCipher} and {@link SocketBufferPool}.
+ * Run with {@code -prof gc} to compare the bytes allocated per frame ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class SocketFrameBenchmark {
+    private static final int HEADER_LENGTH = Integer.BYTES + Short.BYTES;
+
+    @Param({"256", "4096", "32768"})
+    private int frameLength;
+
+    private SecretKeySpec key;
+    private byte[] plaintext;
+    private long counter;
+    private SocketCipher writeCipher;
+    private SocketCipher readCipher;
+    private SocketBufferPool bufferPool;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        var random = new Random(0);
+        var keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.plaintext = new byte[frameLength];
+        random.nextBytes(plaintext);
+        this.counter = 0;
+        this.writeCipher = SocketCipher.ofWrite(key);
+        this.readCipher = SocketCipher.ofRead(key);
+        this.bufferPool = new SocketBufferPool();
+    }
+
+    @Benchmark
+    public ByteBuffer allocating() throws Exception {
+        var counter = this.counter++;
+
+        var writeCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        writeCipher.init(Cipher.ENCRYPT_MODE, key, createGcmIv(counter));
+        var ciphertextLength = writeCipher.getOutputSize(frameLength);
+        var frame = new byte[HEADER_LENGTH + ciphertextLength];
+        System.arraycopy(plaintext, 0, frame, HEADER_LENGTH, frameLength);
+        writeCipher.doFinal(frame, HEADER_LENGTH, frameLength, frame, HEADER_LENGTH);
+
+        var read = ByteBuffer.allocate(ciphertextLength);
+        read.put(frame, HEADER_LENGTH, ciphertextLength);
+        read.flip();
+        var readCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        readCipher.init(Cipher.DECRYPT_MODE, key, createGcmIv(counter));
+        var output = read.duplicate();
+        readCipher.doFinal(read, output);
+        output.flip();
+        return output;
+    }
+
+    @Benchmark
+    public int pooled() throws Exception {
+        var ciphertextLength = SocketCipher.sealedLength(frameLength);
+        var frame = bufferPool.acquire(HEADER_LENGTH + ciphertextLength);
+        System.arraycopy(plaintext, 0, frame.array(), HEADER_LENGTH, frameLength);
+        writeCipher.seal(frame.array(), HEADER_LENGTH, frameLength);
+
+        var read = bufferPool.acquire(ciphertextLength);
+        read.put(frame.array(), HEADER_LENGTH, ciphertextLength);
+        read.flip();
+        bufferPool.release(frame);
+        readCipher.open(read);
+        var result = read.remaining();
+        bufferPool.release(read);
+        return result;
+    }
+
+    private static GCMParameterSpec createGcmIv(long counter) {
+        var iv = new byte[12];
+        iv[4] = (byte) (counter >> 56);
+        iv[5] = (byte) (counter >> 48);
+        iv[6] = (byte) (counter >> 40);
+        iv[7] = (byte) (counter >> 32);
+        iv[8] = (byte) (counter >> 24);
+        iv[9] = (byte) (counter >> 16);
+        iv[10] = (byte) (counter >> 8);
+        iv[11] = (byte) (counter);
+        return new GCMParameterSpec(128, iv);
+    }
+}
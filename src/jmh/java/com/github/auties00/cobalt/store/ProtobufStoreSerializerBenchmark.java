@@ -0,0 +1,104 @@
+package com.github.auties00.cobalt.store;
+
+import com.github.auties00.cobalt.client.WhatsAppClientType;
+import com.github.auties00.cobalt.model.info.ChatMessageInfoBuilder;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidCompanion;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.model.message.model.ChatMessageKey;
+import com.github.auties00.cobalt.model.message.model.ChatMessageKeyBuilder;
+import com.github.auties00.cobalt.model.message.model.MessageContainer;
+import com.github.auties00.cobalt.model.message.model.MessageStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving a store, with its chats, and loading it back, as {@link ProtobufStoreSerializer} does when a client disconnects and reconnects.
+ * <p>
+ * {@link #save()} rewrites every chat, like the first save of a store after its history was synced,
+ * while {@link #load()} decodes the store and waits for its chats to be attributed.
+ * The files are written to a temporary directory, which is deleted when the benchmark ends.
+ * Run with {@code -prof gc} to compare the bytes allocated per store ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class ProtobufStoreSerializerBenchmark {
+    private static final int MESSAGES_PER_CHAT = 50;
+
+    @Param({"16", "256"})
+    private int chats;
+
+    private Path directory;
+    private WhatsAppStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("cobalt-benchmark");
+        this.store = new WhatsAppStoreBuilder()
+                .uuid(UUID.randomUUID())
+                .clientType(WhatsAppClientType.WEB)
+                .device(JidCompanion.web())
+                .build();
+        var localJid = Jid.of("393400000000", JidServer.user());
+        for (var i = 0; i < chats; i++) {
+            var chat = store.addNewChat(Jid.of(String.valueOf(393400000001L + i), JidServer.user()));
+            for (var j = 0; j < MESSAGES_PER_CHAT; j++) {
+                var fromMe = j % 2 == 0;
+                var senderJid = fromMe ? localJid : chat.jid();
+                var key = new ChatMessageKeyBuilder()
+                        .id(ChatMessageKey.randomId(store.clientType()))
+                        .chatJid(chat.jid())
+                        .fromMe(fromMe)
+                        .senderJid(senderJid)
+                        .build();
+                var info = new ChatMessageInfoBuilder()
+                        .status(MessageStatus.READ)
+                        .senderJid(senderJid)
+                        .key(key)
+                        .message(MessageContainer.of("Message " + j + " of chat " + i))
+                        .timestampSeconds(1700000000L + j)
+                        .build();
+                chat.addMessage(info);
+            }
+        }
+        new ProtobufStoreSerializer(directory).serialize(store);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var walker = Files.walk(directory)) {
+            for (var path : walker.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // A new serializer doesn't know the hash of the store, so the store is written again
+    @Benchmark
+    public WhatsAppStore save() {
+        for (var chat : store.chats()) {
+            chat.changes().markRewriteRequired();
+        }
+        new ProtobufStoreSerializer(directory).serialize(store);
+        return store;
+    }
+
+    @Benchmark
+    public WhatsAppStore load() {
+        var serializer = new ProtobufStoreSerializer(directory);
+        var result = serializer.startDeserialize(WhatsAppClientType.WEB, store.uuid())
+                .orElseThrow();
+        serializer.finishDeserialize(result);
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.auties00.cobalt.sync.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing the LT-Hash of a snapshot, as {@code WebAppStateService} does when it syncs a collection.
+ * <p>
+ * {@link #allocating()} reproduces the previous implementation, which concatenated the macs of every mutation
+ * and allocated a new hash state for every element it added or removed,
+ * while {@link #accumulator()} uses {@link MutationLTHash.Accumulator}.
+ * Both produce the same hash.
+ * Run with {@code -prof gc} to compare the bytes allocated per snapshot ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class MutationLTHashBenchmark {
+    private static final int HASH_LENGTH = 128;
+    private static final int FIELD_SIZE = 127;
+    private static final int MAC_LENGTH = 32;
+
+    @Param({"50000"})
+    private int mutations;
+
+    private byte[] currentHash;
+    private byte[][] indexMacs;
+    private byte[][] valueMacs;
+    private boolean[] removals;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(0);
+        this.currentHash = new byte[HASH_LENGTH];
+        random.nextBytes(currentHash);
+        this.indexMacs = new byte[mutations][MAC_LENGTH];
+        this.valueMacs = new byte[mutations][MAC_LENGTH];
+        this.removals = new boolean[mutations];
+        for (var i = 0; i < mutations; i++) {
+            random.nextBytes(indexMacs[i]);
+            random.nextBytes(valueMacs[i]);
+            removals[i] = random.nextInt(10) == 0;
+        }
+    }
+
+    @Benchmark
+    public byte[] allocating() {
+        var toAdd = new ArrayList<byte[]>();
+        var toRemove = new ArrayList<byte[]>();
+        for (var i = 0; i < mutations; i++) {
+            var mutationHash = new byte[MAC_LENGTH * 2];
+            System.arraycopy(indexMacs[i], 0, mutationHash, 0, MAC_LENGTH);
+            System.arraycopy(valueMacs[i], 0, mutationHash, MAC_LENGTH, MAC_LENGTH);
+            if (removals[i]) {
+                toRemove.add(mutationHash);
+            } else {
+                toAdd.add(mutationHash);
+            }
+        }
+        return subtractThenAdd(currentHash, toAdd, toRemove);
+    }
+
+    @Benchmark
+    public byte[] accumulator() {
+        var accumulator = MutationLTHash.accumulator(currentHash);
+        for (var i = 0; i < mutations; i++) {
+            if (removals[i]) {
+                accumulator.remove(indexMacs[i], valueMacs[i]);
+            }
+        }
+        for (var i = 0; i < mutations; i++) {
+            if (!removals[i]) {
+                accumulator.add(indexMacs[i], valueMacs[i]);
+            }
+        }
+        return accumulator.toHash();
+    }
+
+    private static byte[] subtractThenAdd(byte[] currentHash, List<byte[]> toAdd, List<byte[]> toRemove) {
+        var result = currentHash;
+        for (var element : toRemove) {
+            var next = new byte[HASH_LENGTH];
+            for (var i = 0; i < HASH_LENGTH; i++) {
+                next[i] = (byte) ((result[i] - element[i % element.length] + FIELD_SIZE) % FIELD_SIZE);
+            }
+            result = next;
+        }
+        for (var element : toAdd) {
+            var next = new byte[HASH_LENGTH];
+            for (var i = 0; i < HASH_LENGTH; i++) {
+                next[i] = (byte) ((result[i] + element[i % element.length]) % FIELD_SIZE);
+            }
+            result = next;
+        }
+        return result;
+    }
+}
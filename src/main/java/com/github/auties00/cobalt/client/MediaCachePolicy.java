@@ -0,0 +1,42 @@
+package com.github.auties00.cobalt.client;
+
+import java.nio.file.Path;
+
+/**
+ * A policy that configures the on-disk cache of downloaded media.
+ * <p>
+ * Media is cached by the hash of its content, so the same media is downloaded and decrypted only once,
+ * even if it's received in different messages, and cached media survives restarts.
+ * When the cache is larger than {@link #maxSize()} bytes, the least recently used media is removed.
+ * The cache is disabled by default.
+ *
+ * @param directory the directory where decrypted media is stored, or null to disable the cache
+ * @param maxSize   the number of bytes of media after which the least recently used files are deleted, or zero to disable the cache
+ */
+public record MediaCachePolicy(Path directory, long maxSize) {
+    private static final MediaCachePolicy DISABLED = new MediaCachePolicy(null, 0);
+
+    public MediaCachePolicy {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize cannot be negative");
+        }
+    }
+
+    /**
+     * Returns a policy that doesn't cache media
+     *
+     * @return a non-null policy
+     */
+    public static MediaCachePolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy doesn't cache media
+     *
+     * @return a boolean
+     */
+    public boolean isDisabled() {
+        return directory == null || maxSize == 0;
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.auties00.cobalt.client;
+
+import com.github.auties00.cobalt.model.chat.Chat;
+import com.github.auties00.cobalt.model.info.ChatMessageInfo;
+import com.github.auties00.cobalt.store.WhatsAppStore;
+
+import java.time.Duration;
+import java.util.SequencedCollection;
+
+/**
+ * A policy that bounds how many chat messages a {@link WhatsAppStore} keeps.
+ * <p>
+ * Messages can be bounded per chat, across all chats and by age. When a bound is exceeded, the oldest
+ * messages are deleted from their chat, and from the session the next time it's serialized.
+ * They are not archived anywhere: use an {@link EvictionListener} to keep a copy of them.
+ * <p>
+ * The bound across all chats is checked periodically, so it can be exceeded by a small amount between two checks.
+ *
+ * @param maxMessagesPerChat the number of messages after which the oldest messages of a chat are deleted, or a non-positive value for no limit
+ * @param maxMessages        the number of messages across all chats after which the oldest ones are deleted, or a non-positive value for no limit
+ * @param maxAge             the age after which a message is deleted, or null for no limit
+ * @param evictionListener   the listener that receives the deleted messages, or null
+ */
+public record MessageRetentionPolicy(
+        int maxMessagesPerChat,
+        long maxMessages,
+        Duration maxAge,
+        EvictionListener evictionListener
+) {
+    private static final MessageRetentionPolicy UNBOUNDED = new MessageRetentionPolicy(0, 0, null, null);
+
+    public MessageRetentionPolicy {
+        if (maxAge != null && (maxAge.isNegative() || maxAge.isZero())) {
+            throw new IllegalArgumentException("maxAge must be positive");
+        }
+    }
+
+    /**
+     * Returns a policy that keeps every message, the default
+     *
+     * @return a non-null policy
+     */
+    public static MessageRetentionPolicy unbounded() {
+        return UNBOUNDED;
+    }
+
+    /**
+     * Returns whether this policy never deletes messages
+     *
+     * @return a boolean
+     */
+    public boolean isUnbounded() {
+        return maxMessagesPerChat <= 0 && maxMessages <= 0 && maxAge == null;
+    }
+
+    /**
+     * A listener that is notified when messages are deleted by a {@link MessageRetentionPolicy}
+     */
+    @FunctionalInterface
+    public interface EvictionListener {
+        /**
+         * Called after messages were deleted from a chat
+         *
+         * @param chat     the chat the messages belonged to
+         * @param messages the deleted messages, from the oldest to the newest
+         */
+        void onMessagesEvicted(Chat chat, SequencedCollection<ChatMessageInfo> messages);
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.auties00.cobalt.client;
+
+/**
+ * A policy that chooses how the nodes received from WhatsApp are decoded.
+ * <p>
+ * {@link #COPYING} decodes every node eagerly: its binary content and its attributes are copied out of the frame,
+ * which is then reused by the socket for the next frame.
+ * {@link #SLICING} decodes the binary content of a node as a view of the frame and parses its attributes the first time they are accessed,
+ * which avoids most of the copies on the receive path.
+ * As sliced nodes reference the frame they were decoded from, the frame isn't reused by the socket,
+ * and it's kept alive for as long as any node decoded from it, or any buffer returned by {@code toContentBuffer}, is reachable:
+ * listeners that retain a few nodes for a long time retain their frames too.
+ */
+public enum NodeDecodingPolicy {
+    /**
+     * Copies every node out of its frame, so retained nodes only retain their own content
+     */
+    COPYING,
+
+    /**
+     * Reads binary content in place and parses attributes on first access, which suits clients that don't retain nodes
+     */
+    SLICING;
+
+    /**
+     * Returns the default policy, which copies nodes out of their frames
+     *
+     * @return a non-null policy
+     */
+    public static NodeDecodingPolicy defaults() {
+        return COPYING;
+    }
+}
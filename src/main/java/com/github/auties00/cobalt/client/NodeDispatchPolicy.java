@@ -0,0 +1,35 @@
+package com.github.auties00.cobalt.client;
+
+/**
+ * A policy that bounds how the nodes received from WhatsApp are dispatched to their handlers.
+ * <p>
+ * Nodes that belong to the same chat are handled one at a time, in the order they were received,
+ * while nodes that belong to different chats are handled concurrently by at most {@link #concurrency()} threads.
+ * When {@link #maxQueuedNodes()} nodes are waiting to be handled, the client stops reading from the socket until the backlog shrinks to half of that,
+ * unless a request is waiting for its response, so that the handlers blocked on it can complete.
+ *
+ * @param concurrency    how many chats can have a node handled at the same time, must be positive
+ * @param maxQueuedNodes how many nodes can wait to be handled before the client stops reading from the socket, must be positive
+ */
+public record NodeDispatchPolicy(int concurrency, int maxQueuedNodes) {
+    private static final NodeDispatchPolicy DEFAULT = new NodeDispatchPolicy(64, 10_000);
+
+    public NodeDispatchPolicy {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+
+        if (maxQueuedNodes <= 0) {
+            throw new IllegalArgumentException("maxQueuedNodes must be positive");
+        }
+    }
+
+    /**
+     * Returns the default policy, which handles up to 64 nodes at the same time and queues up to 10000 nodes
+     *
+     * @return a non-null policy
+     */
+    public static NodeDispatchPolicy defaults() {
+        return DEFAULT;
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.auties00.cobalt.client;
+
+/**
+ * A policy that bounds how many one-time pre-keys are generated ahead of time.
+ * <p>
+ * Pre-keys are generated in the background and kept in the store until WhatsApp asks for new ones,
+ * so that uploading them doesn't require generating them first.
+ * When fewer than {@link #lowWaterMark()} pre-keys are ready, the pool is refilled up to {@link #capacity()} pre-keys.
+ * If WhatsApp asks for more pre-keys than are ready, the missing ones are generated when they are uploaded.
+ * A low-water mark of zero disables the pool, so that every pre-key is generated when it's uploaded.
+ *
+ * @param lowWaterMark the number of ready pre-keys below which a refill starts in the background, or zero to disable the pool
+ * @param capacity     the number of ready pre-keys a refill generates up to, must be positive and not less than the low-water mark
+ */
+public record PreKeyPoolPolicy(int lowWaterMark, int capacity) {
+    private static final PreKeyPoolPolicy DEFAULT = new PreKeyPoolPolicy(50, 200);
+
+    public PreKeyPoolPolicy {
+        if (lowWaterMark < 0) {
+            throw new IllegalArgumentException("lowWaterMark cannot be negative");
+        }
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        if (capacity < lowWaterMark) {
+            throw new IllegalArgumentException("capacity cannot be less than lowWaterMark");
+        }
+    }
+
+    /**
+     * Returns the default policy, which refills the pool up to 200 pre-keys when fewer than 50 are ready
+     *
+     * @return a non-null policy
+     */
+    public static PreKeyPoolPolicy defaults() {
+        return DEFAULT;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.auties00.cobalt.client;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * A policy that bounds how long acks and delivery receipts for received messages are held before they are sent.
+ * <p>
+ * Receipts for the same chat, participant and type that are sent within {@link #window()} are merged into a single receipt
+ * that lists all of their message ids, and the acks sent in the same window are written to the socket together.
+ * Pending acks and receipts are sent as soon as {@link #maxPending()} of them are waiting, even if the window hasn't elapsed.
+ *
+ * @param window     how long the first pending ack or receipt waits for others to be sent with it, or zero to send each one immediately
+ * @param maxPending how many acks and receipts can be pending before they are sent without waiting for the window, must be positive
+ */
+public record ReceiptBatchPolicy(Duration window, int maxPending) {
+    private static final ReceiptBatchPolicy DEFAULT = new ReceiptBatchPolicy(Duration.ofMillis(50), 64);
+    private static final ReceiptBatchPolicy DISABLED = new ReceiptBatchPolicy(Duration.ZERO, 1);
+
+    public ReceiptBatchPolicy {
+        Objects.requireNonNull(window, "window cannot be null");
+        if (window.isNegative()) {
+            throw new IllegalArgumentException("window cannot be negative");
+        }
+
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive");
+        }
+    }
+
+    /**
+     * Returns the default policy, which holds up to 64 acks and receipts for up to 50 milliseconds
+     *
+     * @return a non-null policy
+     */
+    public static ReceiptBatchPolicy defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a policy that sends every ack and receipt immediately
+     *
+     * @return a non-null policy
+     */
+    public static ReceiptBatchPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy sends every ack and receipt immediately
+     *
+     * @return a boolean
+     */
+    public boolean isDisabled() {
+        return window.isZero() || maxPending == 1;
+    }
+}
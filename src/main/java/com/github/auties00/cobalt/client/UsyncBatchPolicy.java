@@ -0,0 +1,57 @@
+package com.github.auties00.cobalt.client;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * A policy that bounds how long usync queries are held, so that concurrent queries can be sent together.
+ * <p>
+ * Queries with the same context that are made within {@link #window()} are merged into a single usync query,
+ * which asks for every protocol any of them needs, for every user any of them asked about.
+ * A usync query never lists more than {@link #maxUsers()} users: larger batches are split into more queries, which are sent in parallel.
+ *
+ * @param window   how long the first query waits for others to be merged with it, or zero to send each query on its own
+ * @param maxUsers how many users a usync query can list before the merged query is sent, or split, must be positive
+ */
+public record UsyncBatchPolicy(Duration window, int maxUsers) {
+    private static final UsyncBatchPolicy DEFAULT = new UsyncBatchPolicy(Duration.ofMillis(10), 500);
+    private static final UsyncBatchPolicy DISABLED = new UsyncBatchPolicy(Duration.ZERO, 500);
+
+    public UsyncBatchPolicy {
+        Objects.requireNonNull(window, "window cannot be null");
+        if (window.isNegative()) {
+            throw new IllegalArgumentException("window cannot be negative");
+        }
+
+        if (maxUsers <= 0) {
+            throw new IllegalArgumentException("maxUsers must be positive");
+        }
+    }
+
+    /**
+     * Returns the default policy, which holds queries for up to 10 milliseconds and lists up to 500 users in a query
+     *
+     * @return a non-null policy
+     */
+    public static UsyncBatchPolicy defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a policy that sends every query immediately
+     *
+     * @return a non-null policy
+     */
+    public static UsyncBatchPolicy disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Returns whether this policy sends every query immediately
+     *
+     * @return a boolean
+     */
+    public boolean isDisabled() {
+        return window.isZero();
+    }
+}
@@ -2,8 +2,10 @@ package com.github.auties00.cobalt.client;
 
 import com.alibaba.fastjson2.JSON;
 import com.github.auties00.cobalt.device.DeviceService;
+import com.github.auties00.cobalt.exception.SessionClosedException;
 import com.github.auties00.cobalt.message.MessageReceiverService;
 import com.github.auties00.cobalt.message.MessageSenderService;
+import com.github.auties00.cobalt.message.signal.SignalSessionLocks;
 import com.github.auties00.cobalt.migration.LidMigrationService;
 import com.github.auties00.cobalt.model.action.*;
 import com.github.auties00.cobalt.model.auth.*;
@@ -38,11 +40,15 @@ import com.github.auties00.cobalt.node.mex.json.request.CommunityRequests;
 import com.github.auties00.cobalt.node.mex.json.request.NewsletterRequests;
 import com.github.auties00.cobalt.node.mex.json.request.UserRequests;
 import com.github.auties00.cobalt.node.mex.json.response.*;
+import com.github.auties00.cobalt.prekey.PreKeyService;
 import com.github.auties00.cobalt.socket.SocketRequest;
+import com.github.auties00.cobalt.socket.SocketReceiptBatcher;
 import com.github.auties00.cobalt.socket.SocketSession;
 import com.github.auties00.cobalt.socket.SocketStream;
 import com.github.auties00.cobalt.store.WhatsAppStore;
 import com.github.auties00.cobalt.sync.WebAppStateService;
+import com.github.auties00.cobalt.usync.UsyncProtocol;
+import com.github.auties00.cobalt.usync.UsyncService;
 import com.github.auties00.cobalt.util.Clock;
 import com.github.auties00.cobalt.util.MetaBots;
 import com.github.auties00.cobalt.util.SecureBytes;
@@ -50,7 +56,6 @@ import com.github.auties00.curve25519.Curve25519;
 import com.github.auties00.libsignal.SignalSessionCipher;
 import com.github.auties00.libsignal.groups.SignalGroupCipher;
 import com.github.auties00.libsignal.key.SignalIdentityPublicKey;
-import com.github.auties00.libsignal.key.SignalPreKeyPair;
 
 import javax.crypto.Cipher;
 import javax.crypto.KDF;
@@ -96,43 +101,52 @@ public final class WhatsAppClient {
     private static final byte[] MOBILE_VERSION = new byte[]{5, NodeTokens.DICTIONARY_VERSION};
     private static final byte[] MOBILE_PROLOGUE = SecureBytes.concat(WHATSAPP_VERSION_HEADER, MOBILE_VERSION);
 
-    private static final byte[] SIGNAL_KEY_TYPE = {SignalIdentityPublicKey.type()};
-
     private static final int PROFILE_PIC_SIZE = 64;
     private static final Pattern EMAIL_PATTERN = Pattern.compile("^(.+)@(\\S+)$");
 
-    private static final long MIN_PRE_KEYS_COUNT = 5;
+    private static final String NODE_LISTENERS_LANE = "listener:nodes";
 
     private final WhatsAppStore store;
+    private final WhatsAppClientConfig config;
     private final WhatsAppClientErrorHandler errorHandler;
     private final WhatsAppClientMessagePreviewHandler messagePreviewHandler;
 
     private final WebAppStateService webAppStateService;
+    private final UsyncService usyncService;
     private final DeviceService deviceService;
     private final LidMigrationService lidMigrationService;
+    private final PreKeyService preKeyService;
     private final MessageSenderService messageSenderService;
     private final MessageReceiverService messageReceiverService;
 
     private SocketSession socketSession;
     private final SocketStream socketStream;
+    private final SocketReceiptBatcher receiptBatcher;
     private final ConcurrentMap<String, SocketRequest> pendingSocketRequests;
+    private final Object inboundBackpressureLock;
     private Thread shutdownHook;
 
-    WhatsAppClient(WhatsAppStore store, WhatsAppClientVerificationHandler.Web webVerificationHandler, WhatsAppClientMessagePreviewHandler messagePreviewHandler, WhatsAppClientErrorHandler errorHandler) {
+    WhatsAppClient(WhatsAppStore store, WhatsAppClientConfig config, WhatsAppClientVerificationHandler.Web webVerificationHandler, WhatsAppClientMessagePreviewHandler messagePreviewHandler, WhatsAppClientErrorHandler errorHandler) {
         this.store = Objects.requireNonNull(store, "store cannot be null");
+        this.config = Objects.requireNonNull(config, "config cannot be null");
         this.errorHandler = Objects.requireNonNull(errorHandler, "errorHandler cannot be null");
         if (store.clientType() == WhatsAppClientType.WEB && webVerificationHandler == null && !store.registered()) {
             throw new IllegalArgumentException("webVerificationHandler cannot be null when client type is WEB and session is not registered");
         }
         var sessionCipher = new SignalSessionCipher(store);
         var groupCipher = new SignalGroupCipher(store);
+        var sessionLocks = new SignalSessionLocks();
         this.webAppStateService = new WebAppStateService(this);
-        this.deviceService = new DeviceService(this, sessionCipher, groupCipher);
+        this.usyncService = new UsyncService(config, (query, timeout) -> sendNodeAsync(query, null, timeout));
+        this.deviceService = new DeviceService(this, usyncService, sessionCipher, groupCipher, sessionLocks);
         this.lidMigrationService = new LidMigrationService(this);
-        this.messageSenderService = new MessageSenderService(this, deviceService, sessionCipher, groupCipher);
-        this.messageReceiverService = new MessageReceiverService(this, deviceService, sessionCipher, groupCipher);
+        this.preKeyService = new PreKeyService(this);
+        this.messageSenderService = new MessageSenderService(this, deviceService, sessionCipher, groupCipher, sessionLocks);
+        this.messageReceiverService = new MessageReceiverService(this, deviceService, sessionCipher, groupCipher, sessionLocks);
         this.pendingSocketRequests = new ConcurrentHashMap<>();
-        this.socketStream = new SocketStream(this, deviceService, messageReceiverService, lidMigrationService, webVerificationHandler);
+        this.inboundBackpressureLock = new Object();
+        this.socketStream = new SocketStream(this, deviceService, messageReceiverService, lidMigrationService, webVerificationHandler, this::updateInboundBackpressure);
+        this.receiptBatcher = new SocketReceiptBatcher(config, this::sendNodesWithNoResponse, throwable -> handleFailure(STREAM, throwable));
         this.messagePreviewHandler = messagePreviewHandler;
     }
 
@@ -156,6 +170,16 @@ public final class WhatsAppClient {
         return store;
     }
 
+    /**
+     * Returns the runtime configuration of this session.
+     * Changes to the configuration apply to the operations that start after them.
+     *
+     * @return a non-null configuration
+     */
+    public WhatsAppClientConfig config() {
+        return config;
+    }
+
     public WhatsAppClientMessagePreviewHandler messagePreviewHandler() {
         return messagePreviewHandler;
     }
@@ -185,8 +209,19 @@ public final class WhatsAppClient {
             };
             var handshakePayload = createUserClientPayload();
             var proxy = store.proxy().orElse(null);
-            this.socketSession = SocketSession.of(noiseKeyPair, handshakePrologue, handshakePayload, proxy);
-            socketSession.connect(this::onMessage);
+            this.socketSession = SocketSession.of(noiseKeyPair, handshakePrologue, handshakePayload, proxy, config.socketEventLoopGroup());
+            socketSession.connect(new SocketSession.FrameHandler() {
+                @Override
+                public boolean onFrame(ByteBuffer frame) {
+                    return onMessage(frame);
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    onSocketFailure(cause);
+                }
+            });
+            preKeyService.refill();
         } catch (Throwable throwable) {
             if (reason == WhatsAppClientDisconnectReason.RECONNECTING) {
                 handleFailure(RECONNECT, throwable);
@@ -329,10 +364,17 @@ public final class WhatsAppClient {
         }
 
         if (socketSession != null) {
+            try {
+                receiptBatcher.flush();
+            } catch (Throwable _) {
+                // The messages will be delivered again
+            }
             socketSession.disconnect();
         }
+        receiptBatcher.clear();
 
-        pendingSocketRequests.forEach((ignored, request) -> request.complete(null));
+        // Requests fail like they would have if the session was closed before they were sent
+        pendingSocketRequests.forEach((_, request) -> request.completeExceptionally(new SessionClosedException()));
         pendingSocketRequests.clear();
 
         if (reason == WhatsAppClientDisconnectReason.LOGGED_OUT || reason == WhatsAppClientDisconnectReason.BANNED) {
@@ -361,18 +403,58 @@ public final class WhatsAppClient {
         }
     }
 
-    private void onMessage(ByteBuffer message) {
-        try (var decoder = new NodeDecoder(message)) {
-            while (decoder.hasData()) {
-                var node = decoder.decode();
-                for (var listener : store.listeners()) {
-                    Thread.startVirtualThread(() -> listener.onNodeReceived(this, node));
+    // Returns whether the frame is retained by the decoded nodes, in which case the socket must not recycle it
+    private boolean onMessage(ByteBuffer message) {
+        var slicing = config.nodeDecodingPolicy() == NodeDecodingPolicy.SLICING;
+        try {
+            if (slicing) {
+                try (var decoder = new NodeSliceDecoder(message)) {
+                    while (decoder.hasData()) {
+                        onNode(decoder.decode());
+                    }
+                    return decoder.isSourceRetained();
+                }
+            } else {
+                try (var decoder = new NodeDecoder(message)) {
+                    while (decoder.hasData()) {
+                        onNode(decoder.decode());
+                    }
+                    return false;
                 }
-                resolvePendingRequest(node);
-                socketStream.digest(node);
             }
         } catch (Throwable throwable) {
             handleFailure(STREAM, throwable);
+            // Nodes decoded before the failure might still reference the frame
+            return slicing;
+        }
+    }
+
+    // The socket stopped reading frames, so the session is closed even if the error handler chose to discard the failure
+    private void onSocketFailure(Throwable cause) {
+        var session = socketSession;
+        handleFailure(cause instanceof GeneralSecurityException ? CRYPTOGRAPHY : STREAM, cause);
+        if (socketSession == session && isConnected()) {
+            disconnect(WhatsAppClientDisconnectReason.RECONNECTING);
+        }
+    }
+
+    // Responses are resolved on the inbound thread before anything is dispatched, as the tasks queued before them might be waiting for them
+    private void onNode(Node node) {
+        resolvePendingRequest(node);
+        for (var listener : store.listeners()) {
+            socketStream.dispatch(NODE_LISTENERS_LANE, () -> listener.onNodeReceived(this, node));
+        }
+        socketStream.digest(node);
+    }
+
+    // Reads are held while the stream is saturated, but never while a request is waiting for its response:
+    // the handlers blocked on it would never complete, so the stream would never drain
+    private void updateInboundBackpressure() {
+        synchronized (inboundBackpressureLock) {
+            var session = socketSession;
+            if (session != null) {
+                session.setReadsHeld(socketStream.isSaturated() && pendingSocketRequests.isEmpty());
+            }
         }
     }
 
@@ -384,16 +466,45 @@ public final class WhatsAppClient {
             return;
         }
 
-        var request = pendingSocketRequests.remove(id);
-        if (request != null) {
-            request.complete(node);
+        var request = pendingSocketRequests.get(id);
+        if (request != null && request.complete(node)) {
+            pendingSocketRequests.remove(id, request);
+        }
+    }
+
+    /**
+     * Notifies the listeners of this client of an event that doesn't belong to a chat,
+     * after the notifications previously dispatched for the other events that don't belong to a chat
+     *
+     * @param notification the notification to deliver to each listener
+     */
+    public void notifyListeners(Consumer<WhatsAppClientListener> notification) {
+        Objects.requireNonNull(notification, "notification cannot be null");
+        for (var listener : store.listeners()) {
+            socketStream.dispatch(() -> notification.accept(listener));
         }
     }
 
     public void sendNodeWithNoResponse(Node node) {
         socketSession.sendNode(node);
         for (var listener : store.listeners()) {
-            Thread.startVirtualThread(() -> listener.onNodeSent(this, node));
+            socketStream.dispatch(NODE_LISTENERS_LANE, () -> listener.onNodeSent(this, node));
+        }
+    }
+
+    private void sendNodesWithNoResponse(List<Node> nodes) {
+        if (nodes.size() == 1) {
+            sendNodeWithNoResponse(nodes.getFirst());
+            return;
+        }
+
+        socketSession.sendNodes(nodes);
+        for (var listener : store.listeners()) {
+            socketStream.dispatch(NODE_LISTENERS_LANE, () -> {
+                for (var node : nodes) {
+                    listener.onNodeSent(this, node);
+                }
+            });
         }
     }
 
@@ -406,6 +517,49 @@ public final class WhatsAppClient {
     }
 
     public Node sendNode(NodeBuilder node, Function<Node, Boolean> filter, Duration timeout) {
+        return sendNodeRequest(node, filter, timeout)
+                .waitForResponse();
+    }
+
+    /**
+     * Sends a node and returns a future that completes with its response, without blocking the calling thread.
+     * Many requests can be in flight at the same time over the same connection.
+     *
+     * @param node the node to send
+     * @return a future that completes with the response, or exceptionally with a {@link com.github.auties00.cobalt.exception.NodeTimeoutException} if no response is received in time,
+     * or with a {@link SessionClosedException} if the session is closed first
+     */
+    public CompletableFuture<Node> sendNodeAsync(NodeBuilder node) {
+        return sendNodeAsync(node, null);
+    }
+
+    /**
+     * Sends a node and returns a future that completes with its first response accepted by the filter, without blocking the calling thread.
+     *
+     * @param node   the node to send
+     * @param filter the filter that responses must match, or null to accept any response
+     * @return a future that completes with the response, or exceptionally with a {@link com.github.auties00.cobalt.exception.NodeTimeoutException} if no response is received in time,
+     * or with a {@link SessionClosedException} if the session is closed first
+     */
+    public CompletableFuture<Node> sendNodeAsync(NodeBuilder node, Function<Node, Boolean> filter) {
+        return sendNodeAsync(node, filter, null);
+    }
+
+    /**
+     * Sends a node and returns a future that completes with its first response accepted by the filter, without blocking the calling thread.
+     *
+     * @param node    the node to send
+     * @param filter  the filter that responses must match, or null to accept any response
+     * @param timeout how long to wait for the response, or null to use the default timeout
+     * @return a future that completes with the response, or exceptionally with a {@link com.github.auties00.cobalt.exception.NodeTimeoutException} if no response is received in time,
+     * or with a {@link SessionClosedException} if the session is closed first
+     */
+    public CompletableFuture<Node> sendNodeAsync(NodeBuilder node, Function<Node, Boolean> filter, Duration timeout) {
+        return sendNodeRequest(node, filter, timeout)
+                .future();
+    }
+
+    private SocketRequest sendNodeRequest(NodeBuilder node, Function<Node, Boolean> filter, Duration timeout) {
         if (!node.hasAttribute("id")) {
             node.attribute("id", SecureBytes.randomHex(10));
         }
@@ -413,15 +567,29 @@ public final class WhatsAppClient {
         var outgoing = node.build();
         var outgoingId = outgoing.getRequiredAttribute("id")
                 .toString();
-        socketSession.sendNode(outgoing);
+
+        // The request is registered before it's written, so that a fast response can't be missed
+        var request = new SocketRequest(outgoing, filter, timeout);
+        pendingSocketRequests.put(outgoingId, request);
+        updateInboundBackpressure();
+        request.future()
+                .whenComplete((_, _) -> {
+                    pendingSocketRequests.remove(outgoingId, request);
+                    updateInboundBackpressure();
+                });
+
+        try {
+            socketSession.sendNode(outgoing);
+        } catch (Throwable throwable) {
+            request.completeExceptionally(throwable);
+            return request;
+        }
 
         for (var listener : store.listeners()) {
-            Thread.startVirtualThread(() -> listener.onNodeSent(this, outgoing));
+            socketStream.dispatch(NODE_LISTENERS_LANE, () -> listener.onNodeSent(this, outgoing));
         }
 
-        var request = new SocketRequest(outgoing, filter);
-        pendingSocketRequests.put(outgoingId, request);
-        return timeout != null ? request.waitForResponse(timeout) : request.waitForResponse();
+        return request;
     }
 
     /**
@@ -560,80 +728,22 @@ public final class WhatsAppClient {
             return Set.of();
         }
 
-        var contactNodes = Arrays.stream(contacts)
-                .map(this::createUserNode)
-                .flatMap(Optional::stream)
+        var users = Arrays.stream(contacts)
+                .filter(Objects::nonNull)
+                .map(JidProvider::toJid)
+                .filter(user -> user.hasServer(JidServer.user()))
                 .toList();
-        if (contactNodes.isEmpty()) {
+        if (users.isEmpty()) {
             return Set.of();
         }
 
-        var queryContact = new NodeBuilder()
-                .description("contact")
-                .build();
-
-        var queryNode = new NodeBuilder()
-                .description("query")
-                .content(queryContact)
-                .build();
-        var listNode = new NodeBuilder()
-                .description("list")
-                .content(contactNodes)
-                .build();
-        var sideListNode = new NodeBuilder()
-                .description("side_list")
-                .build();
-        var syncNode = new NodeBuilder()
-                .description("usync")
-                .attribute("sid", SecureBytes.randomSid())
-                .attribute("mode", "query")
-                .attribute("last", "true")
-                .attribute("index", "0")
-                .attribute("context", "interactive")
-                .content(queryNode, listNode, sideListNode)
-                .build();
-        var iqNode = new NodeBuilder()
-                .description("iq")
-                .attribute("xmlns", "usync")
-                .attribute("to", JidServer.user())
-                .attribute("type", "get")
-                .content(syncNode);
-        var result = sendNode(iqNode);
-
-        return result.streamChildren("usync")
-                .flatMap(node -> node.streamChild("list"))
-                .flatMap(node -> node.streamChildren("user"))
+        return usyncService.query("interactive", EnumSet.of(UsyncProtocol.CONTACT), users)
+                .stream()
                 .filter(this::hasWhatsapp)
                 .map(node -> node.getRequiredAttributeAsJid("jid"))
                 .collect(Collectors.toUnmodifiableSet());
     }
 
-    private Optional<Node> createUserNode(JidProvider provider) {
-        if (provider == null) {
-            return Optional.empty();
-        }
-
-        var user = provider.toJid();
-        if (!user.hasServer(JidServer.user())) {
-            return Optional.empty();
-        }
-
-        var phoneNumber = user.toPhoneNumber();
-        if (phoneNumber.isEmpty()) {
-            return Optional.empty();
-        }
-
-        var contactNode = new NodeBuilder()
-                .description("contact")
-                .content(phoneNumber.get())
-                .build();
-        var userNode = new NodeBuilder()
-                .description("user")
-                .content(contactNode)
-                .build();
-        return Optional.of(userNode);
-    }
-
     private boolean hasWhatsapp(Node node) {
         return node.getChild("contact")
                 .orElseThrow(() -> new NoSuchElementException("Missing contact"))
@@ -697,45 +807,8 @@ public final class WhatsAppClient {
      * @return a CompletableFuture that wraps an optional contact status newsletters
      */
     public Optional<String> queryAbout(JidProvider chat) {
-        var statusNode = new NodeBuilder()
-                .description("status")
-                .build();
-        var bodyNode = new NodeBuilder()
-                .description("user")
-                .attribute("jid", chat)
-                .build();
-
-        var queryNode = new NodeBuilder()
-                .description("query")
-                .content(statusNode)
-                .build();
-        var listNode = new NodeBuilder()
-                .description("list")
-                .content(bodyNode)
-                .build();
-        var sideListNode = new NodeBuilder()
-                .description("side_list")
-                .build();
-        var syncNode = new NodeBuilder()
-                .description("usync")
-                .attribute("sid", SecureBytes.randomSid())
-                .attribute("mode", "query")
-                .attribute("last", "true")
-                .attribute("index", "0")
-                .attribute("context", "interactive")
-                .content(queryNode, listNode, sideListNode)
-                .build();
-        var iqNode = new NodeBuilder()
-                .description("iq")
-                .attribute("xmlns", "usync")
-                .attribute("to", JidServer.user())
-                .attribute("type", "get")
-                .content(syncNode);
-        var result = sendNode(iqNode);
-
-        return result.streamChildren("usync")
-                .flatMap(node -> node.streamChild("list"))
-                .flatMap(node -> node.streamChildren("user"))
+        return usyncService.query("interactive", EnumSet.of(UsyncProtocol.STATUS), List.of(chat.toJid()))
+                .stream()
                 .flatMap(entry -> entry.streamChild("status"))
                 .findFirst()
                 .flatMap(Node::toContentString);
@@ -754,7 +827,7 @@ public final class WhatsAppClient {
                 .attribute("type", "image")
                 .build();
         var community = chat.toJid().hasServer(JidServer.groupOrCommunity())
-                        && queryGroupOrCommunityMetadata(chat.toJid()).isCommunity();
+                        && findOrQueryGroupOrCommunityMetadata(chat).isCommunity();
         var iqNode = new NodeBuilder()
                 .description("iq")
                 .attribute("xmlns", "w:profile:picture")
@@ -821,7 +894,7 @@ public final class WhatsAppClient {
                 .orElse(null);
         store.addPrivacySetting(newEntry);
         for (var listener : store.listeners()) {
-            Thread.startVirtualThread(() -> listener.onPrivacySettingChanged(this, newEntry));
+            socketStream.dispatch(() -> listener.onPrivacySettingChanged(this, newEntry));
         }
     }
 
@@ -862,7 +935,7 @@ public final class WhatsAppClient {
                     updateBusinessCertificate(newName);
                     store.setName(newName);
                     for (var listener : store.listeners()) {
-                        Thread.startVirtualThread(() -> listener.onNameChanged(this, oldName, newName));
+                        socketStream.dispatch(() -> listener.onNameChanged(this, oldName, newName));
                     }
                 }
             }
@@ -876,7 +949,7 @@ public final class WhatsAppClient {
             sendNodeWithNoResponse(presenceNode);
             store.setName(newName);
             for (var listener : store.listeners()) {
-                Thread.startVirtualThread(() -> listener.onNameChanged(this, oldName, newName));
+                socketStream.dispatch(() -> listener.onNameChanged(this, oldName, newName));
             }
         }
     }
@@ -2431,7 +2504,9 @@ public final class WhatsAppClient {
     //<editor-fold desc="Groups and communities">
 
     /**
-     * Queries the metadata of a group
+     * Queries the metadata of a group and caches it in the store
+     * <p>
+     * The cached metadata is kept up to date by the group notifications, see {@link WhatsAppStore#findGroupOrCommunityMetadata(Jid)}
      *
      * @param chat the target group
      * @return a CompletableFuture
@@ -2461,12 +2536,19 @@ public final class WhatsAppClient {
                 .or(() -> response.getChild("group"))
                 .orElseThrow(() -> new NoSuchElementException("Erroneous response: %s".formatted(response)));
         var metadata = parseGroupMetadata(metadataNode);
+        store.addGroupOrCommunityMetadata(metadata);
         var chat = store.findChatByJid(metadata.jid())
                 .orElseGet(() -> store().addNewChat(metadata.jid()));
         chat.setName(metadata.subject());
         return metadata;
     }
 
+    // Notifications keep the cached metadata up to date, so it's only queried if it's not cached yet
+    private GroupOrCommunityMetadata findOrQueryGroupOrCommunityMetadata(JidProvider chat) {
+        return store.findGroupOrCommunityMetadata(chat.toJid())
+                .orElseGet(() -> queryGroupOrCommunityMetadata(chat));
+    }
+
     private GroupOrCommunityMetadata parseGroupMetadata(Node node) {
         var groupIdUser = node.getRequiredAttributeAsString("id");
         var groupId = Jid.of(groupIdUser, JidServer.groupOrCommunity());
@@ -2764,7 +2846,7 @@ public final class WhatsAppClient {
             throw new IllegalArgumentException("Expected a group/community");
         }
 
-        var metadata = queryGroupOrCommunityMetadata(chat.toJid());
+        var metadata = findOrQueryGroupOrCommunityMetadata(chat.toJid());
         var participantsSet = metadata.participants()
                 .stream()
                 .map(ChatParticipant::jid)
@@ -2787,7 +2869,7 @@ public final class WhatsAppClient {
         if (!chat.toJid().hasServer(JidServer.groupOrCommunity())) {
             throw new IllegalArgumentException("Expected a group/community");
         }
-        var metadata = queryGroupOrCommunityMetadata(chat.toJid());
+        var metadata = findOrQueryGroupOrCommunityMetadata(chat.toJid());
         var participantsSet = metadata.participants()
                 .stream()
                 .map(ChatParticipant::jid)
@@ -2810,7 +2892,7 @@ public final class WhatsAppClient {
         if (!chat.toJid().hasServer(JidServer.groupOrCommunity())) {
             throw new IllegalArgumentException("Expected a group/community");
         }
-        var metadata = queryGroupOrCommunityMetadata(chat.toJid());
+        var metadata = findOrQueryGroupOrCommunityMetadata(chat.toJid());
         var participantsSet = metadata.participants()
                 .stream()
                 .map(ChatParticipant::jid)
@@ -2833,7 +2915,7 @@ public final class WhatsAppClient {
         if (!chat.toJid().hasServer(JidServer.groupOrCommunity())) {
             throw new IllegalArgumentException("Expected a group/community");
         }
-        var metadata = queryGroupOrCommunityMetadata(chat.toJid());
+        var metadata = findOrQueryGroupOrCommunityMetadata(chat.toJid());
         var participantsSet = metadata.participants()
                 .stream()
                 .map(ChatParticipant::jid)
@@ -3095,7 +3177,7 @@ public final class WhatsAppClient {
             throw new IllegalArgumentException("Expected a group/community");
         }
 
-        var metadata = queryGroupOrCommunityMetadata(group);
+        var metadata = findOrQueryGroupOrCommunityMetadata(group);
         if (metadata.isCommunity()) {
             var communityJid = metadata.parentCommunityJid().orElse(metadata.jid());
             var linkedGroupsNode = new NodeBuilder()
@@ -3254,7 +3336,7 @@ public final class WhatsAppClient {
         if (!chat.toJid().hasServer(JidServer.groupOrCommunity())) {
             throw new IllegalArgumentException("This method only accepts groups");
         }
-        var metadata = queryGroupOrCommunityMetadata(chat);
+        var metadata = findOrQueryGroupOrCommunityMetadata(chat);
         switch (setting) {
             case GroupSetting groupSetting -> {
                 if (metadata.isCommunity()) {
@@ -4046,7 +4128,7 @@ public final class WhatsAppClient {
                 .build();
         store.addCall(call);
         for (var listener : store.listeners()) {
-            Thread.startVirtualThread(() -> listener.onCall(this, call));
+            socketStream.dispatch(call.chatJid(), () -> listener.onCall(this, call));
         }
         return call;
     }
@@ -4608,73 +4690,17 @@ public final class WhatsAppClient {
                     .ifPresent(type -> ackBuilder.attribute("type", type));
         }
 
-        sendNodeWithNoResponse(ackBuilder.build());
+        receiptBatcher.ack(ackBuilder.build());
     }
 
+    /**
+     * Uploads new one-time pre-keys to WhatsApp, and waits for the upload to complete.
+     * The pre-keys are taken from the pool that is generated ahead of time, see {@link WhatsAppClientConfig#preKeyPoolPolicy()}
+     *
+     * @param keysCount the number of pre-keys to upload
+     */
     public void sendPreKeys(long keysCount) {
-        keysCount = Math.max(keysCount, MIN_PRE_KEYS_COUNT);
-        var startId = store.hasPreKeys() ? store.preKeys().getLast().id() + 1 : 1;
-        var listBody = new ArrayList<Node>();
-        var preKeys = new ArrayList<SignalPreKeyPair>();
-        while (keysCount-- > 0) {
-            var preKeyPair = SignalPreKeyPair.random(startId++);
-            preKeys.add(preKeyPair);
-            var id = new NodeBuilder()
-                    .description("id")
-                    .content(SecureBytes.intToBytes(preKeyPair.id(), 3))
-                    .build();
-            var value = new NodeBuilder()
-                    .description("value")
-                    .content(preKeyPair.publicKey().toEncodedPoint())
-                    .build();
-            var preKayNode = new NodeBuilder()
-                    .description("key")
-                    .content(id, value)
-                    .build();
-            listBody.add(preKayNode);
-        }
-        var registration = new NodeBuilder()
-                .description("registration")
-                .content(SecureBytes.intToBytes(store.registrationId(), 4))
-                .build();
-        var type = new NodeBuilder()
-                .description("type")
-                .content(SIGNAL_KEY_TYPE)
-                .build();
-        var identity = new NodeBuilder()
-                .description("identity")
-                .content(store.identityKeyPair().publicKey().toEncodedPoint())
-                .build();
-        var list = new NodeBuilder()
-                .description("list")
-                .content(listBody)
-                .build();
-        var skeyId = new NodeBuilder()
-                .description("id")
-                .content(SecureBytes.intToBytes(store.signedKeyPair().id(), 3))
-                .build();
-        var skeyValue = new NodeBuilder()
-                .description("value")
-                .content(store.signedKeyPair().publicKey().toEncodedPoint())
-                .build();
-        var skeySignature = new NodeBuilder()
-                .description("signature")
-                .content(store.signedKeyPair().signature())
-                .build();
-        var skey = new NodeBuilder()
-                .description("skey")
-                .content(skeyId, skeyValue, skeySignature)
-                .build();
-        var queryRequest = new NodeBuilder()
-                .description("iq")
-                .attribute("to", JidServer.user())
-                .attribute("type", "set")
-                .attribute("xmlns", "encrypt")
-                .content(registration, type, identity, list, skey);
-        sendNode(queryRequest);
-        for (var preKey : preKeys) {
-            store.addPreKey(preKey);
-        }
+        preKeyService.upload(keysCount);
     }
 
     public void sendReceipt(String id, Jid parentJid, Jid senderJid, boolean peer) {
@@ -4682,29 +4708,25 @@ public final class WhatsAppClient {
                 .orElseThrow(() -> new IllegalStateException("No jid"));
         var fromMe = Objects.equals(me, senderJid);
 
-        var receiptBuilder = new NodeBuilder()
-                .description("receipt")
-                .attribute("id", id);
-
+        String type;
         if(peer) {
-            receiptBuilder.attribute("type", "peer_msg");
+            type = "peer_msg";
         } else if (fromMe) {
-            receiptBuilder.attribute("type", "sender");
+            type = "sender";
         } else if (!store.automaticMessageReceipts()) {
-            receiptBuilder.attribute("type", "inactive");
+            type = "inactive";
+        } else {
+            type = null;
         }
 
+        // Receipts for the same chat are merged into a single list receipt, see SocketReceiptBatcher
         if (parentJid.hasServer(JidServer.groupOrCommunity())) {
-            receiptBuilder.attribute("to", parentJid);
-            receiptBuilder.attribute("participant", senderJid);
+            receiptBatcher.receipt(id, parentJid, senderJid, null, type);
         } else if (fromMe) {
-            receiptBuilder.attribute("to", parentJid);
-            receiptBuilder.attribute("recipient", senderJid);
+            receiptBatcher.receipt(id, parentJid, null, senderJid, type);
         } else {
-            receiptBuilder.attribute("to", senderJid);
+            receiptBatcher.receipt(id, senderJid, null, null, type);
         }
-
-        sendNodeWithNoResponse(receiptBuilder.build());
     }
 
     public void sendReceipt(String id, Jid from, String type) {
@@ -422,11 +422,13 @@ public sealed class WhatsAppClientBuilder {
 
     public static sealed class Options extends WhatsAppClientBuilder {
         final WhatsAppStore store;
+        WhatsAppClientConfig config;
         WhatsAppClientMessagePreviewHandler messagePreviewHandler;
         WhatsAppClientErrorHandler errorHandler;
 
         private Options(WhatsAppStore store) {
             this.store = Objects.requireNonNull(store, "store must not be null");
+            this.config = new WhatsAppClientConfig();
         }
 
         /**
@@ -489,6 +491,18 @@ public sealed class WhatsAppClientBuilder {
             return this;
         }
 
+        /**
+         * Sets the runtime configuration, like how many messages are kept in memory and how acks and receipts are batched
+         * The configuration isn't serialized with the session, and can be changed after the client is built using {@link WhatsAppClient#config()}
+         *
+         * @param config the configuration to use, can be null to use the default configuration
+         * @return the same instance for chaining
+         */
+        public Options config(WhatsAppClientConfig config) {
+            this.config = Objects.requireNonNullElseGet(config, WhatsAppClientConfig::new);
+            return this;
+        }
+
         /**
          * Sets a handler for message previews
          *
@@ -596,6 +610,18 @@ public sealed class WhatsAppClientBuilder {
                 return (Web) super.clientVersion(clientVersion);
             }
 
+            /**
+             * Sets the runtime configuration, like how many messages are kept in memory and how acks and receipts are batched
+             * The configuration isn't serialized with the session, and can be changed after the client is built using {@link WhatsAppClient#config()}
+             *
+             * @param config the configuration to use, can be null to use the default configuration
+             * @return the same instance for chaining
+             */
+            @Override
+            public Web config(WhatsAppClientConfig config) {
+                return (Web) super.config(config);
+            }
+
             /**
              * Sets how much chat history WhatsApp should send when the QR is first scanned
              * By default, one year
@@ -621,7 +647,7 @@ public sealed class WhatsAppClientBuilder {
                 Objects.requireNonNull(qrHandler, "qrHandler must not be null");
                 var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
                 var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-                return new WhatsAppClient(store, qrHandler, messagePreviewHandler, errorHandler);
+                return new WhatsAppClient(store, config, qrHandler, messagePreviewHandler, errorHandler);
             }
 
             /**
@@ -637,7 +663,7 @@ public sealed class WhatsAppClientBuilder {
                 store.setPhoneNumber(phoneNumber);
                 var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
                 var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-                return new WhatsAppClient(store, pairingCodeHandler, messagePreviewHandler, errorHandler);
+                return new WhatsAppClient(store, config, pairingCodeHandler, messagePreviewHandler, errorHandler);
             }
 
             /**
@@ -654,7 +680,7 @@ public sealed class WhatsAppClientBuilder {
 
                 var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
                 var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-                var result = new WhatsAppClient(store, null, messagePreviewHandler, errorHandler);
+                var result = new WhatsAppClient(store, config, null, messagePreviewHandler, errorHandler);
                 return Optional.of(result);
             }
         }
@@ -726,6 +752,18 @@ public sealed class WhatsAppClientBuilder {
                 return (Mobile) super.clientVersion(clientVersion);
             }
 
+            /**
+             * Sets the runtime configuration, like how many messages are kept in memory and how acks and receipts are batched
+             * The configuration isn't serialized with the session, and can be changed after the client is built using {@link WhatsAppClient#config()}
+             *
+             * @param config the configuration to use, can be null to use the default configuration
+             * @return the same instance for chaining
+             */
+            @Override
+            public Mobile config(WhatsAppClientConfig config) {
+                return (Mobile) super.config(config);
+            }
+
             /**
              * Sets the display name for the WhatsApp account
              * This is the preferred name that contacts that haven't saved you yet see next to your phone number.
@@ -839,7 +877,7 @@ public sealed class WhatsAppClientBuilder {
 
                 var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
                 var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-                var result = new WhatsAppClient(store, null, messagePreviewHandler, errorHandler);
+                var result = new WhatsAppClient(store, config, null, messagePreviewHandler, errorHandler);
                 return Optional.of(result);
             }
 
@@ -871,13 +909,14 @@ public sealed class WhatsAppClientBuilder {
 
                 var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
                 var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-                return new WhatsAppClient(store, null, messagePreviewHandler, errorHandler);
+                return new WhatsAppClient(store, config, null, messagePreviewHandler, errorHandler);
             }
         }
     }
 
     public static final class Custom extends WhatsAppClientBuilder {
         private WhatsAppStore store;
+        private WhatsAppClientConfig config;
         private WhatsAppClientMessagePreviewHandler messagePreviewHandler;
         private WhatsAppClientErrorHandler errorHandler;
         private WhatsAppClientVerificationHandler.Web webVerificationHandler;
@@ -897,6 +936,17 @@ public sealed class WhatsAppClientBuilder {
             return this;
         }
 
+        /**
+         * Sets the runtime configuration for the connection
+         *
+         * @param config the configuration to use, can be null to use the default configuration
+         * @return the same instance for chaining
+         */
+        public Custom config(WhatsAppClientConfig config) {
+            this.config = config;
+            return this;
+        }
+
         /**
          * Sets an error handler for the connection
          *
@@ -945,7 +995,8 @@ public sealed class WhatsAppClientBuilder {
             };
             var messagePreviewHandler = Objects.requireNonNullElse(this.messagePreviewHandler, DEFAULT_MESSAGE_PREVIEW_HANDLER);
             var errorHandler = Objects.requireNonNullElse(this.errorHandler, DEFAULT_ERROR_HANDLER);
-            return new WhatsAppClient(store, webVerificationHandler, messagePreviewHandler, errorHandler);
+            var config = Objects.requireNonNullElseGet(this.config, WhatsAppClientConfig::new);
+            return new WhatsAppClient(store, config, webVerificationHandler, messagePreviewHandler, errorHandler);
         }
     }
 }
@@ -0,0 +1,241 @@
+package com.github.auties00.cobalt.client;
+
+import com.github.auties00.cobalt.socket.SocketEventLoopGroup;
+import com.github.auties00.cobalt.store.WhatsAppStore;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * The runtime configuration of a {@link WhatsAppClient}.
+ * <p>
+ * Unlike the {@link WhatsAppStore}, the configuration is not serialized: it's configured when the client is built,
+ * and can be changed afterwards through {@link WhatsAppClient#config()}.
+ * The services of a client read the configuration every time they use it, so a change applies to their next operation:
+ * for example, a new {@link MessageRetentionPolicy} applies the next time a message is added to a chat, and a new {@link SocketEventLoopGroup} to the next connection.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class WhatsAppClientConfig {
+    private static final Duration DEFAULT_DEVICE_LIST_TTL = Duration.ofHours(1);
+
+    private volatile MessageRetentionPolicy messageRetentionPolicy;
+    private volatile Duration deviceListTtl;
+    private volatile NodeDispatchPolicy nodeDispatchPolicy;
+    private volatile ReceiptBatchPolicy receiptBatchPolicy;
+    private volatile PreKeyPoolPolicy preKeyPoolPolicy;
+    private volatile MediaCachePolicy mediaCachePolicy;
+    private volatile UsyncBatchPolicy usyncBatchPolicy;
+    private volatile NodeDecodingPolicy nodeDecodingPolicy;
+    private volatile SocketEventLoopGroup socketEventLoopGroup;
+
+    /**
+     * Constructs a configuration that uses the default value of every setting
+     */
+    public WhatsAppClientConfig() {
+        this.messageRetentionPolicy = MessageRetentionPolicy.unbounded();
+        this.deviceListTtl = DEFAULT_DEVICE_LIST_TTL;
+        this.nodeDispatchPolicy = NodeDispatchPolicy.defaults();
+        this.receiptBatchPolicy = ReceiptBatchPolicy.defaults();
+        this.preKeyPoolPolicy = PreKeyPoolPolicy.defaults();
+        this.mediaCachePolicy = MediaCachePolicy.disabled();
+        this.usyncBatchPolicy = UsyncBatchPolicy.defaults();
+        this.nodeDecodingPolicy = NodeDecodingPolicy.defaults();
+        this.socketEventLoopGroup = SocketEventLoopGroup.shared();
+    }
+
+    /**
+     * Returns the policy that bounds how many chat messages are kept
+     *
+     * @return the current policy, never null
+     */
+    public MessageRetentionPolicy messageRetentionPolicy() {
+        return messageRetentionPolicy;
+    }
+
+    /**
+     * Sets the policy that bounds how many chat messages are kept.
+     * By default, every message is kept.
+     *
+     * @param messageRetentionPolicy the new policy, null to keep every message
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setMessageRetentionPolicy(MessageRetentionPolicy messageRetentionPolicy) {
+        this.messageRetentionPolicy = Objects.requireNonNullElse(messageRetentionPolicy, MessageRetentionPolicy.unbounded());
+        return this;
+    }
+
+    /**
+     * Returns how long a cached device list is used before it is refreshed
+     *
+     * @return the current time to live, never null
+     */
+    public Duration deviceListTtl() {
+        return deviceListTtl;
+    }
+
+    /**
+     * Sets how long a cached device list is used before it is refreshed.
+     * By default, device lists are cached for one hour, and are invalidated early when the server reports a change.
+     * A zero duration disables the cache, so that device lists are queried every time a message is sent.
+     *
+     * @param deviceListTtl the new time to live, null to use the default
+     * @return this configuration for method chaining
+     * @throws IllegalArgumentException if the duration is negative
+     */
+    public WhatsAppClientConfig setDeviceListTtl(Duration deviceListTtl) {
+        if (deviceListTtl != null && deviceListTtl.isNegative()) {
+            throw new IllegalArgumentException("deviceListTtl cannot be negative");
+        }
+
+        this.deviceListTtl = Objects.requireNonNullElse(deviceListTtl, DEFAULT_DEVICE_LIST_TTL);
+        return this;
+    }
+
+    /**
+     * Returns the policy that bounds how inbound nodes are dispatched to their handlers
+     *
+     * @return the current policy, never null
+     */
+    public NodeDispatchPolicy nodeDispatchPolicy() {
+        return nodeDispatchPolicy;
+    }
+
+    /**
+     * Sets the policy that bounds how inbound nodes are dispatched to their handlers.
+     * By default, up to 64 nodes are handled at the same time and up to 10000 nodes are queued before reads are paused.
+     *
+     * @param nodeDispatchPolicy the new policy, null to use the default
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setNodeDispatchPolicy(NodeDispatchPolicy nodeDispatchPolicy) {
+        this.nodeDispatchPolicy = Objects.requireNonNullElse(nodeDispatchPolicy, NodeDispatchPolicy.defaults());
+        return this;
+    }
+
+    /**
+     * Returns the policy that bounds how long acks and receipts for received messages are held before they are sent
+     *
+     * @return the current policy, never null
+     */
+    public ReceiptBatchPolicy receiptBatchPolicy() {
+        return receiptBatchPolicy;
+    }
+
+    /**
+     * Sets the policy that bounds how long acks and receipts for received messages are held, so that they can be sent together.
+     * By default, up to 64 acks and receipts are held for up to 50 milliseconds.
+     *
+     * @param receiptBatchPolicy the new policy, null to use the default
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setReceiptBatchPolicy(ReceiptBatchPolicy receiptBatchPolicy) {
+        this.receiptBatchPolicy = Objects.requireNonNullElse(receiptBatchPolicy, ReceiptBatchPolicy.defaults());
+        return this;
+    }
+
+    /**
+     * Returns the policy that bounds how many one-time pre-keys are generated ahead of time
+     *
+     * @return the current policy, never null
+     */
+    public PreKeyPoolPolicy preKeyPoolPolicy() {
+        return preKeyPoolPolicy;
+    }
+
+    /**
+     * Sets the policy that bounds how many one-time pre-keys are generated in the background before WhatsApp asks for them.
+     * By default, the pool is refilled up to 200 pre-keys when fewer than 50 are ready.
+     *
+     * @param preKeyPoolPolicy the new policy, null to use the default
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setPreKeyPoolPolicy(PreKeyPoolPolicy preKeyPoolPolicy) {
+        this.preKeyPoolPolicy = Objects.requireNonNullElse(preKeyPoolPolicy, PreKeyPoolPolicy.defaults());
+        return this;
+    }
+
+    /**
+     * Returns the policy that configures the on-disk cache of downloaded media
+     *
+     * @return the current policy, never null
+     */
+    public MediaCachePolicy mediaCachePolicy() {
+        return mediaCachePolicy;
+    }
+
+    /**
+     * Sets where and how much downloaded media is cached, so that the same media is downloaded only once.
+     * By default, downloaded media isn't cached.
+     *
+     * @param mediaCachePolicy the new policy, null to disable the cache
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setMediaCachePolicy(MediaCachePolicy mediaCachePolicy) {
+        this.mediaCachePolicy = Objects.requireNonNullElse(mediaCachePolicy, MediaCachePolicy.disabled());
+        return this;
+    }
+
+    /**
+     * Returns the policy that bounds how long usync queries are held, so that concurrent queries can be sent together
+     *
+     * @return the current policy, never null
+     */
+    public UsyncBatchPolicy usyncBatchPolicy() {
+        return usyncBatchPolicy;
+    }
+
+    /**
+     * Sets how long usync queries, like device list and contact lookups, are held so that concurrent queries can be sent together.
+     * By default, queries are held for up to 10 milliseconds and up to 500 users are listed in a query.
+     *
+     * @param usyncBatchPolicy the new policy, null to use the default
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setUsyncBatchPolicy(UsyncBatchPolicy usyncBatchPolicy) {
+        this.usyncBatchPolicy = Objects.requireNonNullElse(usyncBatchPolicy, UsyncBatchPolicy.defaults());
+        return this;
+    }
+
+    /**
+     * Returns the policy that chooses whether received nodes are copied out of their frames or decoded as views of them
+     *
+     * @return the current policy, never null
+     */
+    public NodeDecodingPolicy nodeDecodingPolicy() {
+        return nodeDecodingPolicy;
+    }
+
+    /**
+     * Sets whether received nodes are copied out of their frames or decoded as views of them.
+     * By default, nodes are copied: sliced nodes avoid most copies, but keep their frames alive while they are reachable.
+     *
+     * @param nodeDecodingPolicy the new policy, null to use the default
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setNodeDecodingPolicy(NodeDecodingPolicy nodeDecodingPolicy) {
+        this.nodeDecodingPolicy = Objects.requireNonNullElse(nodeDecodingPolicy, NodeDecodingPolicy.defaults());
+        return this;
+    }
+
+    /**
+     * Returns the group of event loops that services the connection of the client
+     *
+     * @return the current group, never null
+     */
+    public SocketEventLoopGroup socketEventLoopGroup() {
+        return socketEventLoopGroup;
+    }
+
+    /**
+     * Sets the group of event loops that services the connection of the client.
+     * By default, every client uses a shared group with a loop for each available processor.
+     *
+     * @param socketEventLoopGroup the new group, null to use the shared group
+     * @return this configuration for method chaining
+     */
+    public WhatsAppClientConfig setSocketEventLoopGroup(SocketEventLoopGroup socketEventLoopGroup) {
+        this.socketEventLoopGroup = Objects.requireNonNullElse(socketEventLoopGroup, SocketEventLoopGroup.shared());
+        return this;
+    }
+}
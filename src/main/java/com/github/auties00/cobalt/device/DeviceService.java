@@ -2,10 +2,13 @@ package com.github.auties00.cobalt.device;
 
 import com.github.auties00.cobalt.client.WhatsAppClient;
 import com.github.auties00.cobalt.device.adv.DeviceADVValidator;
+import com.github.auties00.cobalt.message.signal.SignalSessionLocks;
 import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.model.jid.JidServer;
 import com.github.auties00.cobalt.node.Node;
 import com.github.auties00.cobalt.node.NodeBuilder;
+import com.github.auties00.cobalt.usync.UsyncProtocol;
+import com.github.auties00.cobalt.usync.UsyncService;
 import com.github.auties00.cobalt.util.SecureBytes;
 import com.github.auties00.libsignal.SignalSessionCipher;
 import com.github.auties00.libsignal.groups.SignalGroupCipher;
@@ -14,26 +17,43 @@ import com.github.auties00.libsignal.key.SignalIdentityPublicKey;
 import com.github.auties00.libsignal.protocol.SignalSenderKeyDistributionMessage;
 import com.github.auties00.libsignal.state.SignalPreKeyBundleBuilder;
 
-import java.util.Collection;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentHashMap.KeySetView;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public final class DeviceService {
     private final WhatsAppClient client;
+    private final UsyncService usyncService;
     private final SignalSessionCipher sessionCipher;
     private final SignalGroupCipher groupCipher;
+    private final SignalSessionLocks sessionLocks;
+    private final ConcurrentMap<Jid, Long> deviceListTimestamps;
+    private final KeySetView<Jid, Boolean> refreshingDeviceLists;
+    private final LongAdder cacheHits;
+    private final LongAdder cacheMisses;
 
-    public DeviceService(WhatsAppClient client, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher) {
+    public DeviceService(WhatsAppClient client, UsyncService usyncService, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher, SignalSessionLocks sessionLocks) {
         this.client = client;
+        this.usyncService = usyncService;
         this.sessionCipher = sessionCipher;
         this.groupCipher = groupCipher;
+        this.sessionLocks = sessionLocks;
+        this.deviceListTimestamps = new ConcurrentHashMap<>();
+        this.refreshingDeviceLists = ConcurrentHashMap.newKeySet();
+        this.cacheHits = new LongAdder();
+        this.cacheMisses = new LongAdder();
     }
 
     /**
      * Queries the device list for message sending and ensures Signal sessions exist.
      * This includes querying the device list via usync and fetching pre-keys for devices
      * that messages should be encrypted for.
+     * Device lists are cached for {@link com.github.auties00.cobalt.client.WhatsAppClientConfig#deviceListTtl()}:
+     * only users whose device list isn't cached are queried synchronously,
+     * while expired device lists are used as they are and refreshed in the background.
      *
      * @param jids the list of user JIDs to query devices for
      * @return the swr of device JIDs that should receive the encrypted message
@@ -62,65 +82,155 @@ public final class DeviceService {
         return devices;
     }
 
+    /**
+     * Invalidates the cached device list of a user, so that it's queried again the next time it's needed.
+     * Should be called when the server reports that the devices of the user changed.
+     *
+     * @param userJid the user whose device list changed
+     */
+    public void invalidateDevices(Jid userJid) {
+        if (userJid == null) {
+            return;
+        }
+
+        var key = userJid.toUserJid();
+        deviceListTimestamps.remove(key);
+        client.store()
+                .removeDevices(key);
+    }
+
+    /**
+     * Invalidates the cached device lists of the provided users
+     *
+     * @param userJids the users whose device lists changed
+     * @see #invalidateDevices(Jid)
+     */
+    public void invalidateDevices(Collection<? extends Jid> userJids) {
+        if (userJids == null) {
+            return;
+        }
+
+        for (var userJid : userJids) {
+            invalidateDevices(userJid);
+        }
+    }
+
+    /**
+     * Returns how many device lists were served from the cache
+     *
+     * @return a non-negative number
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Returns how many device lists had to be queried from the server before they could be used
+     *
+     * @return a non-negative number
+     */
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
     private Set<? extends Jid> queryDevicesForJids(Collection<? extends Jid> jids) {
-        var userNodes = jids.stream()
-                .distinct()
-                .map(this::buildUserNode)
-                .toList();
+        var ttl = client.config()
+                .deviceListTtl()
+                .toNanos();
+        var now = System.nanoTime();
+        var results = new HashSet<Jid>();
+        var missing = new ArrayList<Jid>();
+        var stale = new ArrayList<Jid>();
+        for (var jid : new LinkedHashSet<>(jids)) {
+            var key = jid.toUserJid();
+            var cached = ttl == 0 ? List.<Jid>of() : client.store().findDeviceList(key);
+            if (cached.isEmpty()) {
+                cacheMisses.increment();
+                missing.add(key);
+                continue;
+            }
 
-        var devicesNode = new NodeBuilder()
-                .description("devices")
-                .attribute("version", "2")
-                .build();
-        var queryNode = new NodeBuilder()
-                .description("query")
-                .content(devicesNode)
-                .build();
-        var listNode = new NodeBuilder()
-                .description("list")
-                .content(userNodes.toArray(Node[]::new))
-                .build();
-        var sideListNode = new NodeBuilder()
-                .description("side_list")
-                .build();
-        var syncNode = new NodeBuilder()
-                .description("usync")
-                .attribute("sid", SecureBytes.randomSid())
-                .attribute("mode", "query")
-                .attribute("last", "true")
-                .attribute("index", "0")
-                .attribute("context", "message")
-                .content(queryNode, listNode, sideListNode)
-                .build();
-        var iqNode = new NodeBuilder()
-                .description("iq")
-                .attribute("xmlns", "usync")
-                .attribute("to", JidServer.user())
-                .attribute("type", "get")
-                .content(syncNode);
+            cacheHits.increment();
+            results.addAll(cached);
+            var timestamp = deviceListTimestamps.get(key);
+            if (timestamp == null || now - timestamp >= ttl) {
+                stale.add(key);
+            }
+        }
 
-        var response = client.sendNode(iqNode);
+        if (!missing.isEmpty()) {
+            results.addAll(fetchDevices(missing));
+        }
 
-        return response.streamChildren("usync")
-                .flatMap(node -> node.streamChild("list"))
-                .flatMap(node -> node.streamChildren("user"))
-                .flatMap(this::parseDevice)
-                .collect(Collectors.toUnmodifiableSet());
+        if (!stale.isEmpty()) {
+            refreshDevices(stale);
+        }
+
+        return Collections.unmodifiableSet(results);
     }
 
-    private Stream<Jid> parseDevice(Node user) {
-        var userJid = user.getAttributeAsJid("jid");
-        if (userJid.isEmpty()) {
-            return Stream.empty();
-        } else {
-            return user.streamChild("devices")
-                    .flatMap(devices -> devices.streamChild("device-list"))
-                    .flatMap(deviceList -> deviceList.streamChildren("device"))
-                    .map(device -> {
-                        var deviceId = (int) device.getAttributeAsLong("id", 0L);
-                        return userJid.get().withDevice(deviceId);
-                    });
+    // Stale device lists are still served, as a phash mismatch will make the sender resend the message to any device that was added since
+    private void refreshDevices(Collection<Jid> userJids) {
+        var refreshable = userJids.stream()
+                .filter(refreshingDeviceLists::add)
+                .toList();
+        if (refreshable.isEmpty()) {
+            return;
+        }
+
+        Thread.startVirtualThread(() -> {
+            try {
+                fetchDevices(refreshable);
+            } catch (Throwable _) {
+                // The stale device lists are kept and will be refreshed again the next time they're used
+            } finally {
+                refreshable.forEach(refreshingDeviceLists::remove);
+            }
+        });
+    }
+
+    // The lid of each user is queried along with its devices, as it's needed to send messages to users that migrated to lids
+    private Set<Jid> fetchDevices(Collection<Jid> userJids) {
+        var timestamp = System.nanoTime();
+        var users = usyncService.query("message", EnumSet.of(UsyncProtocol.DEVICES, UsyncProtocol.LID), userJids);
+
+        var results = new HashSet<Jid>();
+        for (var user : users) {
+            var userJid = user.getAttributeAsJid("jid")
+                    .orElse(null);
+            if (userJid == null) {
+                continue;
+            }
+
+            if (userJid.hasServer(JidServer.user())) {
+                user.getChild("lid")
+                        .flatMap(lid -> lid.getAttributeAsJid("val"))
+                        .ifPresent(lid -> client.store().registerLidMapping(userJid, lid));
+            }
+
+            var devices = parseDevices(userJid, user);
+            if (devices.isEmpty()) {
+                continue;
+            }
+
+            var key = userJid.toUserJid();
+            client.store()
+                    .addDeviceList(key, new ArrayList<>(devices));
+            deviceListTimestamps.put(key, timestamp);
+            results.addAll(devices);
         }
+        return results;
+    }
+
+    private List<Jid> parseDevices(Jid userJid, Node user) {
+        return user.streamChild("devices")
+                .flatMap(devices -> devices.streamChild("device-list"))
+                .flatMap(deviceList -> deviceList.streamChildren("device"))
+                .map(device -> {
+                    var deviceId = (int) device.getAttributeAsLong("id", 0L);
+                    return userJid.withDevice(deviceId);
+                })
+                .toList();
     }
 
     private void fetchPreKeysAndCreateSessions(Set<? extends Jid> devices) {
@@ -222,7 +332,14 @@ public final class DeviceService {
                 .identityKey(identityKey)
                 .build();
 
-        sessionCipher.process(remoteJid.toSignalAddress(), bundle);
+        var signalAddress = remoteJid.toSignalAddress();
+        var lock = sessionLocks.get(signalAddress);
+        lock.lock();
+        try {
+            sessionCipher.process(signalAddress, bundle);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void processDistributionMessage(SignalSenderKeyName groupName, SignalSenderKeyDistributionMessage signalDistributionMessage) {
@@ -0,0 +1,287 @@
+package com.github.auties00.cobalt.media;
+
+import com.github.auties00.cobalt.client.MediaCachePolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.exception.MediaDownloadException;
+import com.github.auties00.cobalt.exception.MediaException;
+import com.github.auties00.cobalt.model.media.MediaProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An on-disk cache of downloaded media, keyed by the hash of its content.
+ * <p>
+ * Media is keyed by {@link MediaProvider#mediaSha256()}, or by {@link MediaProvider#mediaEncryptedSha256()} if the former is missing,
+ * so the same media is downloaded and decrypted only once even if it's received in many messages.
+ * An entry is added only after its download was read to the end, that is after {@link MediaDownloadInputStream}
+ * checked the hash and the mac of the media: cached media is trusted, and isn't checked again when it's read.
+ * <p>
+ * When the cache is larger than {@link MediaCachePolicy#maxSize()}, the least recently used entries are removed.
+ * The last access of an entry is stored as its last modified time, so that the order survives restarts.
+ * Concurrent downloads of the same media are deduplicated: the first one downloads the media, and the others wait for it.
+ * <p>
+ * The policy is read from the configuration every time a media is opened, so a new policy applies to the next download:
+ * if its directory is different, the entries of the new directory are loaded, and the old directory is left as it is.
+ */
+public final class MediaCache {
+    private static final String ENTRY_EXTENSION = ".media";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final WhatsAppClientConfig config;
+    private final LinkedHashMap<String, Long> entries;
+    private final ConcurrentMap<String, CompletableFuture<Path>> inFlight;
+    private long size;
+    private Path directory;
+
+    public MediaCache(WhatsAppClientConfig config) {
+        this.config = Objects.requireNonNull(config, "config cannot be null");
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens a media, from the cache if it's cached, or by downloading it otherwise
+     *
+     * @param provider the media to open
+     * @param loader   the function that downloads the media
+     * @return a non-null input stream
+     * @throws MediaException if the media cannot be downloaded
+     */
+    InputStream open(MediaProvider provider, Loader loader) throws MediaException {
+        var policy = config.mediaCachePolicy();
+        var key = key(provider, policy);
+        if (key == null || !load(policy)) {
+            return loader.load();
+        }
+
+        var cached = lookup(key, policy);
+        if (cached.isPresent()) {
+            try {
+                return Files.newInputStream(cached.get());
+            } catch (IOException _) {
+                remove(key);
+            }
+        }
+
+        var download = new CompletableFuture<Path>();
+        var existing = inFlight.putIfAbsent(key, download);
+        if (existing != null) {
+            return awaitDownload(existing, loader);
+        }
+
+        try {
+            var temp = write(key, loader.load(), policy);
+            if (Files.size(temp) > policy.maxSize()) {
+                download.completeExceptionally(new MediaDownloadException("Media is larger than the cache"));
+                return Files.newInputStream(temp, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+
+            var path = commit(key, temp, policy);
+            download.complete(path);
+            return Files.newInputStream(path);
+        } catch (IOException exception) {
+            download.completeExceptionally(exception);
+            throw new MediaDownloadException("Cannot cache media", exception);
+        } catch (Throwable throwable) {
+            download.completeExceptionally(throwable);
+            throw throwable;
+        } finally {
+            inFlight.remove(key, download);
+        }
+    }
+
+    private InputStream awaitDownload(CompletableFuture<Path> download, Loader loader) throws MediaException {
+        try {
+            return Files.newInputStream(download.get());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MediaDownloadException("Cannot download media: interrupted", exception);
+        } catch (ExecutionException | IOException _) {
+            // The other download failed, or its entry was already evicted
+            return loader.load();
+        }
+    }
+
+    // The download is read to the end, so that its hash and mac are checked, before it's added to the cache
+    private Path write(String key, InputStream download, MediaCachePolicy policy) throws IOException {
+        var temp = policy.directory().resolve(key + "." + UUID.randomUUID() + TEMP_EXTENSION);
+        try (download) {
+            Files.copy(download, temp);
+            return temp;
+        } catch (Throwable throwable) {
+            Files.deleteIfExists(temp);
+            throw throwable;
+        }
+    }
+
+    private Path commit(String key, Path temp, MediaCachePolicy policy) throws IOException {
+        var path = policy.directory().resolve(key + ENTRY_EXTENSION);
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Throwable throwable) {
+            Files.deleteIfExists(temp);
+            throw throwable;
+        }
+        add(key, Files.size(path), policy);
+        return path;
+    }
+
+    private String key(MediaProvider provider, MediaCachePolicy policy) {
+        var maxSize = policy.maxSize();
+        var mediaSize = provider.mediaSize();
+        if (mediaSize.isPresent() && mediaSize.getAsLong() > maxSize) {
+            return null;
+        }
+
+        return provider.mediaSha256()
+                .map(sha256 -> "p" + HEX.formatHex(sha256))
+                .or(() -> provider.mediaEncryptedSha256().map(encSha256 -> "e" + HEX.formatHex(encSha256)))
+                .orElse(null);
+    }
+
+    // File system calls are made outside the monitor, so that a slow disk doesn't serialize every download
+    private boolean load(MediaCachePolicy policy) {
+        if (policy.isDisabled()) {
+            return false;
+        }
+
+        List<Path> evicted;
+        synchronized (this) {
+            // The maximum size could have been lowered
+            evicted = policy.directory().equals(directory) ? evict(policy) : null;
+        }
+        if (evicted != null) {
+            delete(evicted);
+            return true;
+        }
+
+        List<Map.Entry<String, BasicFileAttributes>> found;
+        try {
+            found = scan(policy.directory());
+        } catch (IOException | UncheckedIOException _) {
+            // The cache can't be used, so media is downloaded as if it was disabled
+            return false;
+        }
+
+        synchronized (this) {
+            // Another download could have loaded the same directory in the meantime
+            if (!policy.directory().equals(directory)) {
+                entries.clear();
+                this.size = 0;
+                for (var entry : found) {
+                    entries.put(entry.getKey(), entry.getValue().size());
+                    size += entry.getValue().size();
+                }
+                this.directory = policy.directory();
+            }
+            evicted = evict(policy);
+        }
+        delete(evicted);
+        return true;
+    }
+
+    // Returns the entries of a directory, from the least to the most recently used
+    private static List<Map.Entry<String, BasicFileAttributes>> scan(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        var found = new ArrayList<Map.Entry<String, BasicFileAttributes>>();
+        try (var files = Files.newDirectoryStream(directory)) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(TEMP_EXTENSION)) {
+                    // Left over by a download that was interrupted by a crash
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(ENTRY_EXTENSION)) {
+                    var key = name.substring(0, name.length() - ENTRY_EXTENSION.length());
+                    found.add(Map.entry(key, Files.readAttributes(file, BasicFileAttributes.class)));
+                }
+            }
+        }
+        found.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        return found;
+    }
+
+    private Optional<Path> lookup(String key, MediaCachePolicy policy) {
+        synchronized (this) {
+            // Reading the entry also makes it the most recently used one
+            if (!policy.directory().equals(directory) || entries.get(key) == null) {
+                return Optional.empty();
+            }
+        }
+
+        var path = policy.directory().resolve(key + ENTRY_EXTENSION);
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(path);
+        } catch (IOException _) {
+            remove(key);
+            return Optional.empty();
+        }
+    }
+
+    // An entry written to a directory that is no longer the current one is found when that directory is loaded again
+    private void add(String key, long length, MediaCachePolicy policy) {
+        List<Path> evicted;
+        synchronized (this) {
+            if (!policy.directory().equals(directory)) {
+                return;
+            }
+
+            var previous = entries.put(key, length);
+            if (previous != null) {
+                size -= previous;
+            }
+            size += length;
+            evicted = evict(policy);
+        }
+        delete(evicted);
+    }
+
+    private synchronized void remove(String key) {
+        var length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+        }
+    }
+
+    // Must be called while holding the monitor, the returned files should be deleted after releasing it
+    private List<Path> evict(MediaCachePolicy policy) {
+        var evicted = new ArrayList<Path>();
+        var iterator = entries.entrySet().iterator();
+        while (size > policy.maxSize() && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            evicted.add(policy.directory().resolve(eldest.getKey() + ENTRY_EXTENSION));
+        }
+        return evicted;
+    }
+
+    private static void delete(List<Path> evicted) {
+        for (var path : evicted) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException _) {
+                // The entry is open, it will be replaced the next time it's downloaded
+            }
+        }
+    }
+
+    /**
+     * Downloads a media that isn't cached
+     */
+    @FunctionalInterface
+    interface Loader {
+        InputStream load() throws MediaException;
+    }
+}
@@ -12,30 +12,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.SequencedCollection;
 
 public final class MediaConnection {
+    private static final long MIN_RESUMABLE_UPLOAD_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_RESUMABLE_UPLOAD_ATTEMPTS = 3;
+
     private final String auth;
     private final int ttl;
     private final int maxBuckets;
     private final long timestamp;
     private final SequencedCollection<? extends MediaHost> hosts;
+    private final MediaTransport transport;
+    private final MediaCache cache;
 
-    public MediaConnection(String auth, int ttl, int maxBuckets, long timestamp, SequencedCollection<? extends MediaHost> hosts) {
+    public MediaConnection(String auth, int ttl, int maxBuckets, long timestamp, SequencedCollection<? extends MediaHost> hosts, MediaTransport transport, MediaCache cache) {
         this.auth = auth;
         this.ttl = ttl;
         this.maxBuckets = maxBuckets;
         this.timestamp = timestamp;
         this.hosts = hosts;
+        this.transport = Objects.requireNonNull(transport, "transport cannot be null");
+        this.cache = Objects.requireNonNull(cache, "cache cannot be null");
     }
 
     public boolean upload(MediaProvider provider, InputStream inputStream) throws MediaException {
@@ -48,75 +55,152 @@ public final class MediaConnection {
             return false;
         }
 
-        try(var client = HttpClient.newBuilder()
-                .followRedirects(HttpClient.Redirect.ALWAYS)
-                .build()) {
+        try {
             var uploadStream = MediaUploadInputStream.of(provider, inputStream);
-            var tempFile = Files.createTempFile("upload", ".tmp");
-            try (uploadStream; var outputStream = Files.newOutputStream(tempFile)) {
-                uploadStream.transferTo(outputStream);
+            try (var body = MediaUploadBody.stage(uploadStream)) {
+                return upload(provider, path.get(), uploadStream, body);
             }
-            var timestamp = Clock.nowSeconds();
-            var fileSha256 = uploadStream.fileSha256();
-            var fileEncSha256 = uploadStream.fileEncSha256()
-                    .orElse(null);
-            var mediaKey = uploadStream.fileKey()
-                    .orElse(null);
-            var fileLength = uploadStream.fileLength();
+        }catch (IOException exception) {
+            throw new MediaUploadException("Cannot upload media", exception);
+        }catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MediaUploadException("Cannot upload media: interrupted", exception);
+        }
+    }
 
-            for (var host : hosts) {
-                if(!host.canUpload(provider)) {
-                    continue;
+    /**
+     * Uploads the media stored in a file
+     * Unlike {@link #upload(MediaProvider, InputStream)}, the encrypted media is never staged:
+     * the file is read once to hash the encrypted media, and once more while it's uploaded.
+     *
+     * @param provider the media to upload
+     * @param file     the file that holds the media
+     * @return whether the media was uploaded, or false if the media cannot be uploaded
+     * @throws MediaException if the media cannot be uploaded
+     */
+    public boolean upload(MediaProvider provider, Path file) throws MediaException {
+        Objects.requireNonNull(provider, "provider cannot be null");
+        Objects.requireNonNull(file, "file cannot be null");
+
+        var path = provider.mediaPath()
+                .path();
+        if (path.isEmpty()) {
+            return false;
+        }
+
+        try {
+            var uploadStream = MediaUploadInputStream.of(provider, Files.newInputStream(file));
+            try (var body = MediaUploadBody.replay(provider, file, uploadStream)) {
+                return upload(provider, path.get(), uploadStream, body);
+            }
+        }catch (IOException exception) {
+            throw new MediaUploadException("Cannot upload media", exception);
+        }catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MediaUploadException("Cannot upload media: interrupted", exception);
+        }
+    }
+
+    private boolean upload(MediaProvider provider, String path, MediaUploadInputStream uploadStream, MediaUploadBody body) throws InterruptedException {
+        var timestamp = Clock.nowSeconds();
+        var fileSha256 = uploadStream.fileSha256();
+        var fileEncSha256 = uploadStream.fileEncSha256()
+                .orElse(null);
+        var mediaKey = uploadStream.fileKey()
+                .orElse(null);
+        var fileLength = uploadStream.fileLength();
+
+        var candidates = new ArrayList<URI>();
+        for (var host : hosts) {
+            if(!host.canUpload(provider)) {
+                continue;
+            }
+
+            candidates.add(createUploadUri(host.hostname(), path, fileEncSha256, fileSha256));
+            host.fallbackHostname()
+                    .ifPresent(fallbackHostname -> candidates.add(createUploadUri(fallbackHostname, path, fileEncSha256, fileSha256)));
+        }
+
+        // Uploads aren't hedged, as that would send the same body to more than one host
+        for (var candidate : transport.rank(candidates)) {
+            var uploadResult = body.length() >= MIN_RESUMABLE_UPLOAD_LENGTH
+                    ? tryResumableUpload(candidate, body)
+                    : tryUpload(candidate, body, 0);
+            if(uploadResult.isPresent()) {
+                var directPath = uploadResult.get()
+                        .getString("direct_path");
+                var url = uploadResult.get()
+                        .getString("url");
+                // var handle = jsonObject.getString("handle");
+
+                provider.setMediaSha256(fileSha256);
+                provider.setMediaEncryptedSha256(fileEncSha256);
+                provider.setMediaKey(mediaKey);
+                provider.setMediaSize(fileLength);
+                provider.setMediaDirectPath(directPath);
+                provider.setMediaUrl(url);
+                provider.setMediaKeyTimestamp(timestamp);
+
+                return true;
+            }
+        }
+
+        throw new MediaUploadException("Cannot upload media: no hosts available");
+    }
+
+    private URI createUploadUri(String hostname, String path, byte[] fileEncSha256, byte[] fileSha256) {
+        var auth = URLEncoder.encode(this.auth, StandardCharsets.UTF_8);
+        var token = Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString(Objects.requireNonNullElse(fileEncSha256, fileSha256));
+        return URI.create("https://%s/%s/%s?auth=%s&token=%s".formatted(hostname, path, token, auth, token));
+    }
+
+    // Large uploads ask the host how much of the media it already has, and only send the rest
+    // If the upload fails halfway, the host is asked again, so that the bytes it received aren't sent twice
+    private Optional<JSONObject> tryResumableUpload(URI uri, MediaUploadBody body) throws InterruptedException {
+        for (var attempt = 0; attempt < MAX_RESUMABLE_UPLOAD_ATTEMPTS; attempt++) {
+            var offset = 0L;
+            var resumeState = tryPost(URI.create(uri + "&resume=1"), HttpRequest.BodyPublishers.noBody(), 0);
+            if (resumeState.isPresent()) {
+                var resume = resumeState.get()
+                        .get("resume");
+                if ("complete".equals(resume)) {
+                    return resumeState;
                 }
 
-                var uploadResult = tryUpload(client, host.hostname(), path.get(), fileEncSha256, fileSha256, tempFile)
-                        .or(() -> host.fallbackHostname().flatMap(fallbackHostname -> tryUpload(client, fallbackHostname, path.get(), fileEncSha256, fileSha256, tempFile)));
-                if(uploadResult.isPresent()) {
-                    var directPath = uploadResult.get()
-                            .getString("direct_path");
-                    var url = uploadResult.get()
-                            .getString("url");
-                    // var handle = jsonObject.getString("handle");
-
-                    provider.setMediaSha256(fileSha256);
-                    provider.setMediaEncryptedSha256(fileEncSha256);
-                    provider.setMediaKey(mediaKey);
-                    provider.setMediaSize(fileLength);
-                    provider.setMediaDirectPath(directPath);
-                    provider.setMediaUrl(url);
-                    provider.setMediaKeyTimestamp(timestamp);
-
-                    return true;
+                if (resume instanceof Number byteOffset && byteOffset.longValue() > 0 && byteOffset.longValue() < body.length()) {
+                    offset = byteOffset.longValue();
                 }
             }
 
-            throw new MediaUploadException("Cannot upload media: no hosts available");
-        }catch (IOException exception) {
-            throw new MediaUploadException("Cannot upload media", exception);
+            var result = tryUpload(uri, body, offset);
+            if (result.isPresent()) {
+                return result;
+            }
         }
+
+        return Optional.empty();
     }
 
-    private Optional<JSONObject> tryUpload(HttpClient client, String hostname, String path, byte[] fileEncSha256, byte[] fileSha256, Path body) {
+    private Optional<JSONObject> tryUpload(URI uri, MediaUploadBody body, long offset) throws InterruptedException {
+        var target = offset == 0 ? uri : URI.create(uri + "&file_offset=" + offset);
+        return tryPost(target, body.publisher(offset), body.length() - offset);
+    }
+
+    private Optional<JSONObject> tryPost(URI uri, HttpRequest.BodyPublisher publisher, long length) throws InterruptedException {
         try {
-            var auth = URLEncoder.encode(this.auth, StandardCharsets.UTF_8);
-            var token = Base64.getUrlEncoder()
-                    .withoutPadding()
-                    .encodeToString(Objects.requireNonNullElse(fileEncSha256, fileSha256));
-            var uri = URI.create("https://%s/%s/%s?auth=%s&token=%s".formatted(hostname, path, token, auth, token));
-            var requestBuilder = HttpRequest.newBuilder()
+            var request = HttpRequest.newBuilder()
                     .uri(uri)
-                    .POST(HttpRequest.BodyPublishers.ofFile(body));
-            var request = requestBuilder.header("Content-Type", "application/octet-stream")
+                    .POST(publisher)
+                    .header("Content-Type", "application/octet-stream")
                     .header("Accept", "application/json")
                     .headers("Origin", "https://web.whatsapp.com")
                     .build();
-            var response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            if (response.statusCode() != 200) {
-                throw new MediaUploadException("Cannot upload media: status code " + response.statusCode());
-            }
-
-            var jsonObject = JSON.parseObject(response.body());
-            return Optional.ofNullable(jsonObject);
+            return transport.upload(request, length, maxBuckets)
+                    .map(JSON::parseObject);
+        }catch (InterruptedException exception) {
+            throw exception;
         }catch (Throwable _) {
             return Optional.empty();
         }
@@ -124,54 +208,62 @@ public final class MediaConnection {
 
     public InputStream download(MediaProvider provider) throws MediaException {
         Objects.requireNonNull(provider, "provider cannot be null");
+        return cache.open(provider, () -> downloadUncached(provider));
+    }
 
-        var defaultUploadUrl = provider.mediaUrl();
-        if(defaultUploadUrl.isPresent()) {
-            var result = tryDownload(provider, defaultUploadUrl.get());
-            if(result.isPresent()) {
-                return result.get();
-            }
-        }
-
-        var defaultDirectPath = provider.mediaDirectPath()
-                .orElseThrow(() -> new MediaDownloadException("Missing direct path from media"));
-        for(var host : hosts) {
-            if(!host.canDownload(provider)) {
-                continue;
-            }
-
-            var uploadUrl = "https://" + host.hostname() + defaultDirectPath;
-            var result = tryDownload(provider, uploadUrl);
-            if(result.isPresent()) {
-                return result.get();
+    private InputStream downloadUncached(MediaProvider provider) throws MediaException {
+        var candidates = new ArrayList<URI>();
+        provider.mediaUrl()
+                .ifPresent(mediaUrl -> candidates.add(URI.create(mediaUrl)));
+        var defaultDirectPath = provider.mediaDirectPath();
+        if(defaultDirectPath.isPresent()) {
+            for (var host : hosts) {
+                if (host.canDownload(provider)) {
+                    candidates.add(URI.create("https://" + host.hostname() + defaultDirectPath.get()));
+                }
             }
+        }else if(candidates.isEmpty()) {
+            throw new MediaDownloadException("Missing direct path from media");
         }
 
-        throw new MediaDownloadException("Cannot download media: no hosts available");
+        return tryDownload(provider, candidates)
+                .orElseThrow(() -> new MediaDownloadException("Cannot download media: no hosts available"));
     }
 
     public Optional<InputStream> tryDownload(MediaProvider provider, String uploadUrl) throws MediaException {
-        var client = HttpClient.newBuilder()
-                .followRedirects(HttpClient.Redirect.ALWAYS)
-                .build();
-        var request = HttpRequest.newBuilder()
-                .uri(URI.create(uploadUrl))
-                .build();
+        return tryDownload(provider, List.of(URI.create(uploadUrl)));
+    }
+
+    private Optional<InputStream> tryDownload(MediaProvider provider, List<URI> candidates) throws MediaException {
+        MediaTransport.Exchange exchange;
         try {
-            var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-            if (response.statusCode() != 200) {
-                throw new MediaDownloadException("Cannot download media: status code " + response.statusCode());
-            }
+            exchange = transport.download(candidates, maxBuckets, uri -> HttpRequest.newBuilder()
+                            .uri(uri)
+                            .build())
+                    .orElse(null);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MediaDownloadException("Cannot download media: interrupted", exception);
+        }
+
+        if (exchange == null) {
+            return Optional.empty();
+        }
 
-            var payloadLength = response.headers()
+        try {
+            var payloadLength = exchange.response()
+                    .headers()
                     .firstValueAsLong("Content-Length")
                     .orElseThrow(() -> new MediaDownloadException("Unknown content length"));
-
-            var rawInputStream = response.body();
-            return Optional.of(new MediaDownloadInputStream(client, rawInputStream, payloadLength, provider));
+            var rawInputStream = exchange.response().body();
+            return Optional.of(new MediaDownloadInputStream(exchange, rawInputStream, payloadLength, provider));
         } catch (Throwable throwable) {
-            client.close();
-            return Optional.empty();
+            try {
+                exchange.close();
+            } catch (IOException exception) {
+                throwable.addSuppressed(exception);
+            }
+            throw throwable;
         }
     }
 
@@ -0,0 +1,361 @@
+package com.github.auties00.cobalt.media;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * The HTTP transport shared by the media connections of a client.
+ * <p>
+ * A single {@link HttpClient} is used for every upload and download, so that the HTTP/2 connections
+ * to the media hosts, and their TLS sessions, are reused across transfers instead of being opened for each one.
+ * <p>
+ * The transport keeps track of how long each host takes to answer, and tries the fastest hosts first.
+ * Downloads are hedged: if the fastest host doesn't answer in time, the next one is tried as well,
+ * and the first host that answers wins, while the others are cancelled.
+ * At most {@link MediaConnection#maxBuckets()} transfers are run at the same time on each host.
+ */
+public final class MediaTransport {
+    /**
+     * The weight of the latest latency in the moving average of a host.
+     */
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    /**
+     * The latency recorded when a transfer fails, so that a failing host is tried after the ones that work.
+     */
+    private static final long FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * How long to wait for a host whose latency is unknown before trying the next one.
+     */
+    private static final long DEFAULT_HEDGE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long MAX_HEDGE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    /**
+     * The size that upload latencies are normalized to, so that large uploads don't make a host look slow.
+     */
+    private static final long UPLOAD_LATENCY_UNIT = 64 * 1024;
+
+    private static final int DEFAULT_MAX_BUCKETS = 12;
+
+    private final HttpClient client;
+    private final ConcurrentMap<String, Host> hosts;
+
+    public MediaTransport() {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .build();
+        this.hosts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sorts the candidate uris of a transfer so that the hosts with the lowest latency come first.
+     * Hosts whose latency isn't known yet come first, so that they are measured,
+     * and candidates with the same latency keep their order.
+     *
+     * @param candidates the candidate uris
+     * @return a new list
+     */
+    List<URI> rank(Collection<URI> candidates) {
+        var result = new ArrayList<>(new LinkedHashSet<>(candidates));
+        result.sort(Comparator.comparingLong(candidate -> {
+            var host = hosts.get(candidate.getHost());
+            return host == null ? 0 : host.latencyNanos;
+        }));
+        return result;
+    }
+
+    /**
+     * Sends an upload to a host
+     *
+     * @param request    the request
+     * @param length     the length of the body of the request
+     * @param maxBuckets the maximum number of concurrent transfers on the host of the request
+     * @return the response if the host answered with status code 200, otherwise an empty optional
+     * @throws InterruptedException if the thread is interrupted
+     */
+    Optional<byte[]> upload(HttpRequest request, long length, int maxBuckets) throws InterruptedException {
+        var host = host(request.uri(), maxBuckets);
+        host.permits.acquire();
+        try {
+            var start = System.nanoTime();
+            var response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                host.onFailure();
+                return Optional.empty();
+            }
+
+            var elapsed = System.nanoTime() - start;
+            host.onSuccess(elapsed * UPLOAD_LATENCY_UNIT / Math.max(length, UPLOAD_LATENCY_UNIT));
+            return Optional.of(response.body());
+        } catch (IOException _) {
+            host.onFailure();
+            return Optional.empty();
+        } finally {
+            host.permits.release();
+        }
+    }
+
+    /**
+     * Sends a download to the candidate uris, starting from the one with the lowest latency.
+     * If a host doesn't answer in time, the next candidate is tried as well, and the first one that answers with status code 200 wins.
+     * <p>
+     * The returned exchange holds a transfer slot on its host until it's closed.
+     *
+     * @param candidates     the candidate uris
+     * @param maxBuckets     the maximum number of concurrent transfers on each host
+     * @param requestFactory the function that creates the request for a candidate
+     * @return the exchange of the first host that answered, or an empty optional if no host answered
+     * @throws InterruptedException if the thread is interrupted
+     */
+    Optional<Exchange> download(Collection<URI> candidates, int maxBuckets, Function<URI, HttpRequest> requestFactory) throws InterruptedException {
+        var ranked = rank(candidates);
+        if (ranked.isEmpty()) {
+            return Optional.empty();
+        }
+
+        var hedge = new Hedge();
+        var attempts = new ArrayList<Thread>(ranked.size());
+        var next = 0;
+        var running = 0;
+        try {
+            while (next < ranked.size() || running > 0) {
+                if (running == 0) {
+                    attempts.add(startDownload(hedge, ranked.get(next++), maxBuckets, requestFactory));
+                    running++;
+                    continue;
+                }
+
+                Optional<Exchange> result;
+                if (next < ranked.size()) {
+                    result = hedge.results.poll(hedgeDelayNanos(ranked.get(next - 1)), TimeUnit.NANOSECONDS);
+                    if (result == null) {
+                        attempts.add(startDownload(hedge, ranked.get(next++), maxBuckets, requestFactory));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    result = hedge.results.take();
+                }
+
+                running--;
+                hedge.checkFailure();
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+
+            return Optional.empty();
+        } finally {
+            hedge.close();
+            for (var attempt : attempts) {
+                attempt.interrupt();
+            }
+        }
+    }
+
+    private Thread startDownload(Hedge hedge, URI uri, int maxBuckets, Function<URI, HttpRequest> requestFactory) {
+        return Thread.ofVirtual()
+                .name("media-download")
+                .start(() -> {
+                    try {
+                        hedge.offer(tryDownload(uri, maxBuckets, requestFactory));
+                    } catch (RuntimeException | Error throwable) {
+                        hedge.fail(throwable);
+                    }
+                });
+    }
+
+    private Optional<Exchange> tryDownload(URI uri, int maxBuckets, Function<URI, HttpRequest> requestFactory) {
+        var host = host(uri, maxBuckets);
+        try {
+            host.permits.acquire();
+        } catch (InterruptedException _) {
+            return Optional.empty();
+        }
+
+        try {
+            var start = System.nanoTime();
+            var response = client.send(requestFactory.apply(uri), HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != 200) {
+                response.body().close();
+                host.onFailure();
+                host.permits.release();
+                return Optional.empty();
+            }
+
+            host.onSuccess(System.nanoTime() - start);
+            return Optional.of(new Exchange(response, host.permits));
+        } catch (InterruptedException _) {
+            // The download was cancelled because another host answered first
+            host.permits.release();
+            return Optional.empty();
+        } catch (IOException | UncheckedIOException _) {
+            host.onFailure();
+            host.permits.release();
+            return Optional.empty();
+        } catch (RuntimeException | Error throwable) {
+            // Not a failure of the host, so it's reported to the caller of download instead of trying the next host
+            host.permits.release();
+            throw throwable;
+        }
+    }
+
+    private long hedgeDelayNanos(URI uri) {
+        var host = hosts.get(uri.getHost());
+        if (host == null || host.latencyNanos == 0) {
+            return DEFAULT_HEDGE_DELAY_NANOS;
+        }
+
+        return Math.clamp(host.latencyNanos * 2, MIN_HEDGE_DELAY_NANOS, MAX_HEDGE_DELAY_NANOS);
+    }
+
+    private Host host(URI uri, int maxBuckets) {
+        var limit = maxBuckets > 0 ? maxBuckets : DEFAULT_MAX_BUCKETS;
+        var host = hosts.computeIfAbsent(uri.getHost(), _ -> new Host(limit));
+        host.permits.resize(limit);
+        return host;
+    }
+
+    /**
+     * A response to a download, that holds a transfer slot on its host until it's closed
+     */
+    static final class Exchange implements Closeable {
+        private final HttpResponse<InputStream> response;
+        private final Semaphore permits;
+        private final AtomicBoolean closed;
+
+        private Exchange(HttpResponse<InputStream> response, Semaphore permits) {
+            this.response = response;
+            this.permits = permits;
+            this.closed = new AtomicBoolean(false);
+        }
+
+        HttpResponse<InputStream> response() {
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                response.body().close();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Collects the results of the attempts of a hedged download, and closes the ones that lost
+     */
+    private static final class Hedge {
+        private final LinkedBlockingQueue<Optional<Exchange>> results;
+        private boolean closed;
+        private volatile Throwable failure;
+
+        private Hedge() {
+            this.results = new LinkedBlockingQueue<>();
+        }
+
+        private synchronized void offer(Optional<Exchange> result) {
+            if (closed) {
+                result.ifPresent(Hedge::closeQuietly);
+            } else {
+                results.add(result);
+            }
+        }
+
+        private synchronized void fail(Throwable throwable) {
+            if (!closed) {
+                this.failure = throwable;
+                results.add(Optional.empty());
+            }
+        }
+
+        private void checkFailure() {
+            switch (failure) {
+                case null -> {}
+                case RuntimeException runtimeException -> throw runtimeException;
+                case Error error -> throw error;
+                default -> throw new IllegalStateException("Cannot download media", failure);
+            }
+        }
+
+        private synchronized void close() {
+            this.closed = true;
+            Optional<Exchange> result;
+            while ((result = results.poll()) != null) {
+                result.ifPresent(Hedge::closeQuietly);
+            }
+        }
+
+        private static void closeQuietly(Exchange exchange) {
+            try {
+                exchange.close();
+            } catch (IOException _) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private static final class Host {
+        private final ResizableSemaphore permits;
+        private volatile long latencyNanos;
+
+        private Host(int maxBuckets) {
+            this.permits = new ResizableSemaphore(maxBuckets);
+        }
+
+        private void onSuccess(long elapsedNanos) {
+            record(Math.max(elapsedNanos, 1));
+        }
+
+        private void onFailure() {
+            record(FAILURE_LATENCY_NANOS);
+        }
+
+        private synchronized void record(long elapsedNanos) {
+            var current = latencyNanos;
+            this.latencyNanos = current == 0 ? elapsedNanos : (long) (current * (1 - LATENCY_WEIGHT) + elapsedNanos * LATENCY_WEIGHT);
+        }
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private int limit;
+
+        private ResizableSemaphore(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        private synchronized void resize(int limit) {
+            var delta = limit - this.limit;
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                reducePermits(-delta);
+            }
+            this.limit = limit;
+        }
+    }
+}
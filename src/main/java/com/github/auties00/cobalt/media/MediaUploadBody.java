@@ -0,0 +1,157 @@
+package com.github.auties00.cobalt.media;
+
+import com.github.auties00.cobalt.model.media.MediaProvider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * The body of a media upload, which can be read more than once so that an interrupted upload can be resumed.
+ * <p>
+ * The body must be fully read once before the upload starts, as the hash of the encrypted media is part of the upload url:
+ * <ul>
+ *     <li>{@link Replay} reads a file twice, the second time while uploading it, so that the encrypted media is never staged</li>
+ *     <li>{@link Memory} holds the encrypted media of a stream that isn't larger than {@link #MAX_MEMORY_LENGTH}</li>
+ *     <li>{@link TempFile} stages the encrypted media of a larger stream in a temporary file</li>
+ * </ul>
+ */
+sealed interface MediaUploadBody extends Closeable {
+    /**
+     * The maximum length of the encrypted media of a stream that is held in memory.
+     */
+    int MAX_MEMORY_LENGTH = 8 * 1024 * 1024;
+
+    /**
+     * Reads an upload stream, holding it in memory if it's small enough, or staging it in a temporary file otherwise
+     *
+     * @param uploadStream the upload stream, which is closed by this method
+     * @return a new body
+     * @throws IOException if the stream cannot be read or staged
+     */
+    static MediaUploadBody stage(MediaUploadInputStream uploadStream) throws IOException {
+        try (uploadStream) {
+            var head = uploadStream.readNBytes(MAX_MEMORY_LENGTH + 1);
+            if (head.length <= MAX_MEMORY_LENGTH) {
+                return new Memory(head);
+            }
+
+            var tempFile = Files.createTempFile("upload", ".tmp");
+            try (var outputStream = Files.newOutputStream(tempFile)) {
+                outputStream.write(head);
+                uploadStream.transferTo(outputStream);
+            } catch (Throwable throwable) {
+                Files.deleteIfExists(tempFile);
+                throw throwable;
+            }
+            return new TempFile(tempFile, Files.size(tempFile));
+        }
+    }
+
+    /**
+     * Reads an upload stream over a file to compute its hashes, without keeping the encrypted media
+     *
+     * @param provider     the media
+     * @param file         the file that holds the plaintext of the media
+     * @param uploadStream the upload stream over the file, which is closed by this method
+     * @return a new body
+     * @throws IOException if the file cannot be read
+     */
+    static MediaUploadBody replay(MediaProvider provider, Path file, MediaUploadInputStream uploadStream) throws IOException {
+        try (uploadStream) {
+            var length = uploadStream.transferTo(OutputStream.nullOutputStream());
+            return new Replay(provider, file, uploadStream.fileKey().orElse(null), length);
+        }
+    }
+
+    /**
+     * Returns the length of the body
+     *
+     * @return a non-negative length
+     */
+    long length();
+
+    /**
+     * Returns a publisher for the body, starting from an offset
+     *
+     * @param offset the number of bytes to skip
+     * @return a new publisher
+     */
+    HttpRequest.BodyPublisher publisher(long offset);
+
+    record Memory(byte[] data) implements MediaUploadBody {
+        @Override
+        public long length() {
+            return data.length;
+        }
+
+        @Override
+        public HttpRequest.BodyPublisher publisher(long offset) {
+            return HttpRequest.BodyPublishers.ofByteArray(data, Math.toIntExact(offset), data.length - Math.toIntExact(offset));
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+
+    record TempFile(Path file, long length) implements MediaUploadBody {
+        @Override
+        public HttpRequest.BodyPublisher publisher(long offset) {
+            if (offset == 0) {
+                try {
+                    return HttpRequest.BodyPublishers.ofFile(file);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }
+
+            return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                try {
+                    var inputStream = Files.newInputStream(file);
+                    inputStream.skipNBytes(offset);
+                    return inputStream;
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }), length - offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    record Replay(MediaProvider provider, Path file, byte[] mediaKey, long length) implements MediaUploadBody {
+        public Replay {
+            Objects.requireNonNull(provider, "provider cannot be null");
+            Objects.requireNonNull(file, "file cannot be null");
+        }
+
+        @Override
+        public HttpRequest.BodyPublisher publisher(long offset) {
+            return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                try {
+                    InputStream inputStream = MediaUploadInputStream.of(provider, Files.newInputStream(file), mediaKey);
+                    inputStream.skipNBytes(offset);
+                    return inputStream;
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }), length - offset);
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+}
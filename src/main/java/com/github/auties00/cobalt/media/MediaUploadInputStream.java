@@ -31,10 +31,25 @@ public abstract sealed class MediaUploadInputStream extends MediaInputStream {
     public abstract Optional<byte[]> fileKey();
 
     static MediaUploadInputStream of(MediaProvider provider, InputStream inputStream) throws MediaException {
+        return of(provider, inputStream, SecureBytes.random(32));
+    }
+
+    /**
+     * Creates an upload stream that encrypts the media with a known key, if the media is encrypted.
+     * Two streams created with the same key over the same data produce the same bytes,
+     * so the upload can be read again without being staged.
+     *
+     * @param provider    the media
+     * @param inputStream the plaintext of the media
+     * @param mediaKey    the key used to encrypt the media
+     * @return a new upload stream
+     * @throws MediaException if the cipher cannot be created
+     */
+    static MediaUploadInputStream of(MediaProvider provider, InputStream inputStream, byte[] mediaKey) throws MediaException {
         var keyName = provider.mediaPath()
                 .keyName();
         if(keyName.isPresent()) {
-            return new Ciphertext(inputStream, keyName.get());
+            return new Ciphertext(inputStream, keyName.get(), mediaKey);
         }else {
             return new Plaintext(inputStream);
         }
@@ -59,13 +74,13 @@ public abstract sealed class MediaUploadInputStream extends MediaInputStream {
         private int outputPosition;
         private int outputLimit;
     
-        public Ciphertext(InputStream rawInputStream, String keyName) throws MediaException {
+        public Ciphertext(InputStream rawInputStream, String keyName, byte[] mediaKey) throws MediaException {
             super(rawInputStream);
 
             this.plaintextDigest = newHash();
             this.ciphertextDigest = newHash();
 
-            this.mediaKey = SecureBytes.random(32);
+            this.mediaKey = mediaKey;
             var expanded = deriveMediaKeyData(mediaKey, keyName);
             var iv = new IvParameterSpec(expanded, 0, IV_LENGTH);
             var cipherKey = new SecretKeySpec(expanded, IV_LENGTH, KEY_LENGTH, "AES");
@@ -3,6 +3,7 @@ package com.github.auties00.cobalt.message;
 import com.github.auties00.cobalt.client.WhatsAppClient;
 import com.github.auties00.cobalt.device.DeviceService;
 import com.github.auties00.cobalt.message.signal.SignalMessageDecoder;
+import com.github.auties00.cobalt.message.signal.SignalSessionLocks;
 import com.github.auties00.cobalt.model.business.BusinessVerifiedNameCertificateSpec;
 import com.github.auties00.cobalt.model.chat.Chat;
 import com.github.auties00.cobalt.model.info.*;
@@ -42,9 +43,9 @@ public final class MessageReceiverService {
     private final SignalMessageDecoder signalMessageDecoder;
     private final DeviceService deviceService;
 
-    public MessageReceiverService(WhatsAppClient whatsapp, DeviceService deviceService, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher) {
+    public MessageReceiverService(WhatsAppClient whatsapp, DeviceService deviceService, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher, SignalSessionLocks sessionLocks) {
         this.whatsapp = whatsapp;
-        this.signalMessageDecoder = new SignalMessageDecoder(sessionCipher, groupCipher);
+        this.signalMessageDecoder = new SignalMessageDecoder(sessionCipher, groupCipher, sessionLocks);
         this.deviceService = deviceService;
     }
     
@@ -441,14 +442,14 @@ public final class MessageReceiverService {
                     .flatMap(Optional::stream)
                     .toList();
             originalPollMessage.addSelectedOptions(modificationSenderJid, selectedOptions);
+            originalPollInfo.get().markUpdated();
             pollUpdateMessage.setVotes(selectedOptions);
             var update = new PollUpdateBuilder()
                     .pollUpdateMessageKey(info.key())
                     .vote(pollVoteMessage)
                     .senderTimestampMilliseconds(Clock.nowMilliseconds())
                     .build();
-            info.pollUpdates()
-                    .add(update);
+            info.addPollUpdate(update);
         } catch (GeneralSecurityException exception) {
             throw new RuntimeException("Cannot decrypt poll update", exception);
         }
@@ -458,7 +459,7 @@ public final class MessageReceiverService {
         info.setIgnore(true);
         whatsapp.store()
                 .findChatMessageByKey(reactionMessage.key())
-                .ifPresent(message -> message.reactions().add(reactionMessage));
+                .ifPresent(message -> message.addReaction(reactionMessage));
     }
 
     private void attributeSender(ChatMessageInfo info, Jid senderJid) {
@@ -504,6 +505,7 @@ public final class MessageReceiverService {
         info.receipt().setReadTimestampSeconds(info.timestampSeconds().orElse(0L));
         info.receipt().addDeliveredJid(self);
         info.receipt().addReadJid(self);
+        info.markUpdated();
         info.setStatus(MessageStatus.READ);
     }
 }
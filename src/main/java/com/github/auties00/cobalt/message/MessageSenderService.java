@@ -2,6 +2,7 @@ package com.github.auties00.cobalt.message;
 
 import com.github.auties00.cobalt.client.WhatsAppClient;
 import com.github.auties00.cobalt.message.signal.SignalMessageEncoder;
+import com.github.auties00.cobalt.message.signal.SignalSessionLocks;
 import com.github.auties00.cobalt.message.rcat.MessageRcatEncoder;
 import com.github.auties00.cobalt.device.hash.DevicePhashEncoder;
 import com.github.auties00.cobalt.device.DeviceService;
@@ -28,6 +29,7 @@ import com.github.auties00.libsignal.groups.SignalGroupCipher;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -51,10 +53,10 @@ public final class MessageSenderService {
      */
     private final ConcurrentMap<String, Set<String>> senderKeyDistributedDevices;
 
-    public MessageSenderService(WhatsAppClient whatsapp, DeviceService deviceService, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher) {
+    public MessageSenderService(WhatsAppClient whatsapp, DeviceService deviceService, SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher, SignalSessionLocks sessionLocks) {
         this.whatsapp = Objects.requireNonNull(whatsapp, "whatsapp cannot be null");
         this.store = whatsapp.store();
-        this.signalMessageEncoder = new SignalMessageEncoder(sessionCipher, groupCipher);
+        this.signalMessageEncoder = new SignalMessageEncoder(sessionCipher, groupCipher, sessionLocks);
         this.deviceService = deviceService;
         this.senderKeyDistributedDevices = new ConcurrentHashMap<>();
     }
@@ -160,31 +162,16 @@ public final class MessageSenderService {
             throw new IllegalArgumentException("Cannot send message to " + recipientJid + ": no devices found");
         }
 
-        // Build encrypted message nodes for each device
-        var participantNodes = new ArrayList<Node>();
-        var hasPreKeyMessage = false;
+        // Encode the message once, and once more wrapped in a DeviceSentMessage for own devices
+        var plaintext = signalMessageEncoder.encodePlaintext(info.message());
+        var deviceSentPlaintext = ownDevices.isEmpty() ? null : signalMessageEncoder.encodePlaintext(MessageContainer.of(createDeviceSentMessage(recipientJid, info.message())));
 
-        for (var device : devices) {
-            var messageToEncrypt = info.message();
-
-            // For own devices, wrap in DeviceSentMessage
-            if (ownDevices.contains(device)) {
-                messageToEncrypt = MessageContainer.of(createDeviceSentMessage(recipientJid, info.message()));
-            }
-
-            // Encrypt the message
-            var result = signalMessageEncoder.encode(device, messageToEncrypt);
-            hasPreKeyMessage |= result.isPreKeyMessage();
-
-            // Build the participant node
-            var encNode = buildEncNode(result, getMediaType(info.message()));
-            var toNode = new NodeBuilder()
-                    .description("to")
-                    .attribute("jid", device)
-                    .content(encNode)
-                    .build();
-            participantNodes.add(toNode);
-        }
+        // Build encrypted message nodes for each device
+        var participants = encryptForDevices(
+                List.copyOf(devices),
+                device -> ownDevices.contains(device) ? deviceSentPlaintext : plaintext,
+                getMediaType(info.message())
+        );
 
         // Build the message stanza
         var messageId = info.id();
@@ -212,12 +199,12 @@ public final class MessageSenderService {
         // Add participants
         var participantsNode = new NodeBuilder()
                 .description("participants")
-                .content(participantNodes)
+                .content(participants.nodes())
                 .build();
         messageBuilder.content(participantsNode);
 
         // Add device identity if any pre-key messages
-        if (hasPreKeyMessage) {
+        if (participants.hasPreKeyMessage()) {
             buildDeviceIdentityNode()
                     .ifPresent(messageBuilder::content);
         }
@@ -274,23 +261,13 @@ public final class MessageSenderService {
         var groupEncResult = signalMessageEncoder.encodeForGroup(groupJid, senderDevice, info.message());
 
         // Build participant nodes for devices needing sender key distribution
-        var participantNodes = new ArrayList<Node>();
-        var hasPreKeyMessage = false;
-        var distributedDevices = new ArrayList<Jid>();
-
-        for (var device : devicesNeedingKey) {
-            // Wrap sender key distribution in Signal session encryption
-            var skdmResult = signalMessageEncoder.wrapSenderKeyDistribution(device.toSignalAddress(), groupJid, senderDevice);
-            hasPreKeyMessage |= skdmResult.isPreKeyMessage();
-
-            var encNode = buildEncNode(skdmResult, null);
-            var toNode = new NodeBuilder()
-                    .description("to")
-                    .attribute("jid", device)
-                    .content(encNode)
-                    .build();
-            participantNodes.add(toNode);
-            distributedDevices.add(device);
+        // The distribution message is encoded once, then wrapped in Signal session encryption for each device
+        EncryptedParticipants participants;
+        if (devicesNeedingKey.isEmpty()) {
+            participants = EncryptedParticipants.EMPTY;
+        } else {
+            var distributionPlaintext = signalMessageEncoder.encodeSenderKeyDistribution(groupJid, senderDevice);
+            participants = encryptForDevices(devicesNeedingKey, _ -> distributionPlaintext, null);
         }
 
         // Build the message stanza
@@ -313,10 +290,10 @@ public final class MessageSenderService {
         });
 
         // Add participants node if there are devices needing sender key
-        if (!participantNodes.isEmpty()) {
+        if (!participants.nodes().isEmpty()) {
             var participantsNode = new NodeBuilder()
                     .description("participants")
-                    .content(participantNodes)
+                    .content(participants.nodes())
                     .build();
             messageBuilder.content(participantsNode);
         }
@@ -326,7 +303,7 @@ public final class MessageSenderService {
         messageBuilder.content(skmsgNode);
 
         // Add device identity if any pre-key messages
-        if (hasPreKeyMessage) {
+        if (participants.hasPreKeyMessage()) {
             buildDeviceIdentityNode()
                     .ifPresent(messageBuilder::content);
         }
@@ -338,7 +315,7 @@ public final class MessageSenderService {
         handleGroupMessageResponse(response, info, attributes, phash, devices, Clock.nowSeconds());
 
         // Mark sender key as distributed to these devices
-        markSenderKeyDistributed(groupJid, distributedDevices);
+        markSenderKeyDistributed(groupJid, devicesNeedingKey);
     }
 
     /**
@@ -379,49 +356,25 @@ public final class MessageSenderService {
                 .filter(d -> !d.user().equals(senderJid.user()))
                 .toList();
 
-        // Build encrypted message nodes for each device
-        var participantNodes = new ArrayList<Node>();
-        var hasPreKeyMessage = false;
-
-        // First, encrypt for own devices (wrapped in DeviceSentMessage with broadcast destination)
-        for (var device : ownDevices) {
-            var deviceSentMessage = new DeviceSentMessageBuilder()
-                    .destinationJid(broadcastJid)
-                    .message(info.message())
-                    .build();
-            var messageToEncrypt = MessageContainer.of(deviceSentMessage);
-
-            var result = signalMessageEncoder.encode(device, messageToEncrypt);
-            hasPreKeyMessage |= result.isPreKeyMessage();
-
-            var encNode = buildEncNode(result, getMediaType(info.message()));
-            var toNode = new NodeBuilder()
-                    .description("to")
-                    .attribute("jid", device)
-                    .content(encNode)
-                    .build();
-            participantNodes.add(toNode);
-        }
-
-        // Then, encrypt for recipient devices (normal message)
-        for (var device : recipientDevices) {
-            var result = signalMessageEncoder.encode(device, info.message());
-            hasPreKeyMessage |= result.isPreKeyMessage();
-
-            var encNode = buildEncNode(result, getMediaType(info.message()));
-            var toNode = new NodeBuilder()
-                    .description("to")
-                    .attribute("jid", device)
-                    .content(encNode)
-                    .build();
-            participantNodes.add(toNode);
-        }
+        // Encode the message once, and once more wrapped in a DeviceSentMessage with broadcast destination for own devices
+        var plaintext = signalMessageEncoder.encodePlaintext(info.message());
+        var deviceSentPlaintext = ownDevices.isEmpty() ? null : signalMessageEncoder.encodePlaintext(MessageContainer.of(createDeviceSentMessage(broadcastJid, info.message())));
+
+        // Encrypt for own devices first, then for recipient devices
+        var devices = new ArrayList<Jid>(ownDevices.size() + recipientDevices.size());
+        devices.addAll(ownDevices);
+        devices.addAll(recipientDevices);
+        var participants = encryptForDevices(
+                devices,
+                device -> device.user().equals(senderJid.user()) ? deviceSentPlaintext : plaintext,
+                getMediaType(info.message())
+        );
 
         // Build the message stanza
         var messageId = info.id();
         var participantsNode = new NodeBuilder()
                 .description("participants")
-                .content(participantNodes)
+                .content(participants.nodes())
                 .build();
 
         var messageBuilder = new NodeBuilder()
@@ -442,7 +395,7 @@ public final class MessageSenderService {
 
 
         // Add device identity if any pre-key messages
-        if (hasPreKeyMessage) {
+        if (participants.hasPreKeyMessage()) {
             buildDeviceIdentityNode()
                     .ifPresent(messageBuilder::content);
         }
@@ -474,6 +427,42 @@ public final class MessageSenderService {
                 .build();
     }
 
+    /**
+     * Encrypts a plaintext for each device, in parallel for large fan-outs, and builds the matching participant nodes.
+     *
+     * @param devices    the devices to encrypt for
+     * @param plaintexts a function that returns the padded plaintext to encrypt for each device
+     * @param mediaType  the media type of the message, or null
+     * @return the participant nodes, in the same order as the devices
+     */
+    private EncryptedParticipants encryptForDevices(List<? extends Jid> devices, Function<? super Jid, byte[]> plaintexts, String mediaType) {
+        var results = signalMessageEncoder.encrypt(devices, plaintexts);
+        var nodes = new ArrayList<Node>(results.size());
+        var hasPreKeyMessage = false;
+        for (var i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            hasPreKeyMessage |= result.isPreKeyMessage();
+            var encNode = buildEncNode(result, mediaType);
+            var toNode = new NodeBuilder()
+                    .description("to")
+                    .attribute("jid", devices.get(i))
+                    .content(encNode)
+                    .build();
+            nodes.add(toNode);
+        }
+        return new EncryptedParticipants(nodes, hasPreKeyMessage);
+    }
+
+    /**
+     * The participant nodes of an encrypted message.
+     *
+     * @param nodes            the participant nodes
+     * @param hasPreKeyMessage whether any of the nodes holds a pre-key message, in which case the device identity must be sent
+     */
+    private record EncryptedParticipants(List<Node> nodes, boolean hasPreKeyMessage) {
+        private static final EncryptedParticipants EMPTY = new EncryptedParticipants(List.of(), false);
+    }
+
     /**
      * Builds an encryption node for the message.
      */
@@ -572,7 +561,9 @@ public final class MessageSenderService {
         var recipientJid = info.parentJid()
                 .toUserJid();
 
+        // The cached device lists are outdated, so they must be queried again
         var jidsToQuery = List.of(recipientJid, senderJid.toUserJid());
+        deviceService.invalidateDevices(jidsToQuery);
         var newDevices = deviceService.queryDevices(jidsToQuery);
 
         var missingDevices = newDevices.stream()
@@ -636,6 +627,8 @@ public final class MessageSenderService {
                 .map(ChatParticipant::jid)
                 .toList();
 
+        // The cached device lists are outdated, so they must be queried again
+        deviceService.invalidateDevices(participants);
         var newDevices = deviceService.queryDevices(participants);
 
         var oldDevicesSet = new HashSet<>(oldDevices);
@@ -654,26 +647,14 @@ public final class MessageSenderService {
      * This is used for phash mismatch recovery.
      */
     private void sendGroupMessageDirect(MessageInfo info, Map<String, ?> attributes, GroupOrCommunityMetadata metadata, Collection<? extends Jid> devices, boolean isResend) {
-        var participantNodes = new ArrayList<Node>();
-
-        var hasPreKeyMessage = false;
-        for (var device : devices) {
-            var result = signalMessageEncoder.encode(device, info.message());
-            hasPreKeyMessage |= result.isPreKeyMessage();
-            var encNode = buildEncNode(result, getMediaType(info.message()));
-            var toNode = new NodeBuilder()
-                    .description("to")
-                    .attribute("jid", device)
-                    .content(encNode)
-                    .build();
-            participantNodes.add(toNode);
-        }
+        var plaintext = signalMessageEncoder.encodePlaintext(info.message());
+        var participants = encryptForDevices(List.copyOf(devices), _ -> plaintext, getMediaType(info.message()));
 
         // Build the stanza
         var messageId = info.id();
         var participantsNode = new NodeBuilder()
                 .description("participants")
-                .content(participantNodes)
+                .content(participants.nodes())
                 .build();
 
         var messageBuilder = new NodeBuilder()
@@ -697,7 +678,7 @@ public final class MessageSenderService {
             }
         });
 
-        if (hasPreKeyMessage) {
+        if (participants.hasPreKeyMessage()) {
             buildDeviceIdentityNode()
                     .ifPresent(messageBuilder::content);
         }
@@ -720,7 +701,7 @@ public final class MessageSenderService {
     /**
      * Marks that we have distributed our sender key to the specified devices.
      */
-    private void markSenderKeyDistributed(Jid groupJid, List<Jid> devices) {
+    private void markSenderKeyDistributed(Jid groupJid, List<? extends Jid> devices) {
         var distributedDevices = senderKeyDistributedDevices.computeIfAbsent(
                 groupJid.toString(),
                 _ -> ConcurrentHashMap.newKeySet()
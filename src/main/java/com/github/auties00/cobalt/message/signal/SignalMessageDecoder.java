@@ -12,6 +12,7 @@ import it.auties.protobuf.stream.ProtobufInputStream;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
 
 import static com.github.auties00.cobalt.message.signal.SignalMessageConstants.*;
 
@@ -22,10 +23,12 @@ import static com.github.auties00.cobalt.message.signal.SignalMessageConstants.*
 public final class SignalMessageDecoder {
     private final SignalSessionCipher sessionCipher;
     private final SignalGroupCipher groupCipher;
+    private final SignalSessionLocks sessionLocks;
 
-    public SignalMessageDecoder(SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher) {
+    public SignalMessageDecoder(SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher, SignalSessionLocks sessionLocks) {
         this.sessionCipher = sessionCipher;
         this.groupCipher = groupCipher;
+        this.sessionLocks = Objects.requireNonNull(sessionLocks, "sessionLocks cannot be null");
     }
 
 
@@ -37,12 +40,24 @@ public final class SignalMessageDecoder {
                 case MSG -> {
                     var signalAddress = signalSenderJid.toSignalAddress();
                     var signalMessage = SignalMessage.ofSerialized(encodedMessage);
-                    yield sessionCipher.decrypt(signalAddress, signalMessage);
+                    var lock = sessionLocks.get(signalAddress);
+                    lock.lock();
+                    try {
+                        yield sessionCipher.decrypt(signalAddress, signalMessage);
+                    } finally {
+                        lock.unlock();
+                    }
                 }
                 case PKMSG -> {
                     var signalAddress = signalSenderJid.toSignalAddress();
                     var preKey = SignalPreKeyMessage.ofSerialized(encodedMessage);
-                    yield sessionCipher.decrypt(signalAddress, preKey);
+                    var lock = sessionLocks.get(signalAddress);
+                    lock.lock();
+                    try {
+                        yield sessionCipher.decrypt(signalAddress, preKey);
+                    } finally {
+                        lock.unlock();
+                    }
                 }
                 case SKMSG -> {
                     var signalAddress = signalSenderJid.toSignalAddress();
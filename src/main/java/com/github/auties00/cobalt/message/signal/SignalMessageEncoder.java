@@ -12,8 +12,14 @@ import com.github.auties00.libsignal.groups.SignalSenderKeyName;
 import com.github.auties00.libsignal.protocol.SignalPreKeyMessage;
 import it.auties.protobuf.stream.ProtobufOutputStream;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import static com.github.auties00.cobalt.message.signal.SignalMessageConstants.*;
 
@@ -22,12 +28,16 @@ import static com.github.auties00.cobalt.message.signal.SignalMessageConstants.*
  * This is the counterpart to MessageDecoder for outgoing messages.
  */
 public final class SignalMessageEncoder {
+    private static final int PARALLEL_ENCRYPTION_THRESHOLD = 8;
+
     private final SignalSessionCipher sessionCipher;
     private final SignalGroupCipher groupCipher;
+    private final SignalSessionLocks sessionLocks;
 
-    public SignalMessageEncoder(SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher) {
+    public SignalMessageEncoder(SignalSessionCipher sessionCipher, SignalGroupCipher groupCipher, SignalSessionLocks sessionLocks) {
         this.sessionCipher = sessionCipher;
         this.groupCipher = groupCipher;
+        this.sessionLocks = Objects.requireNonNull(sessionLocks, "sessionLocks cannot be null");
     }
 
     /**
@@ -41,13 +51,77 @@ public final class SignalMessageEncoder {
         Objects.requireNonNull(recipientAddress, "recipientAddress cannot be null");
         Objects.requireNonNull(message, "message cannot be null");
 
-        var paddedPlaintext = encodeAndPad(message);
-        var ciphertextMessage = sessionCipher.encrypt(recipientAddress, paddedPlaintext);
+        return encrypt(recipientAddress, encodeAndPad(message));
+    }
 
-        var ciphertext = ciphertextMessage.toSerialized();
-        var type = ciphertextMessage instanceof SignalPreKeyMessage ? PKMSG : MSG;
+    /**
+     * Encrypts an already encoded and padded message for a 1:1 chat recipient.
+     * The session of the recipient is locked while it's used, so that concurrent encryptions and decryptions for the same device don't race.
+     *
+     * @param recipientAddress the Signal protocol address of the recipient
+     * @param paddedPlaintext  the plaintext returned by {@link #encodePlaintext(MessageContainer)}, which is not modified
+     * @return the encryption result containing ciphertext and message type
+     */
+    public Result encrypt(SignalProtocolAddress recipientAddress, byte[] paddedPlaintext) {
+        Objects.requireNonNull(recipientAddress, "recipientAddress cannot be null");
+        Objects.requireNonNull(paddedPlaintext, "paddedPlaintext cannot be null");
+
+        var lock = sessionLocks.get(recipientAddress);
+        lock.lock();
+        try {
+            var ciphertextMessage = sessionCipher.encrypt(recipientAddress, paddedPlaintext);
+
+            var ciphertext = ciphertextMessage.toSerialized();
+            var type = ciphertextMessage instanceof SignalPreKeyMessage ? PKMSG : MSG;
+
+            return Result.ofSession(ciphertext, type);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts already encoded and padded messages for many 1:1 chat recipients.
+     * Each plaintext is usually shared by many devices, so it should be encoded once with {@link #encodePlaintext(MessageContainer)}.
+     * Large fan-outs are encrypted in parallel on virtual threads.
+     *
+     * @param recipientJids the JIDs of the recipient devices
+     * @param plaintexts    a function that returns the padded plaintext to encrypt for each device
+     * @return the encryption results, in the same order as the recipients
+     */
+    public List<Result> encrypt(List<? extends Jid> recipientJids, Function<? super Jid, byte[]> plaintexts) {
+        Objects.requireNonNull(recipientJids, "recipientJids cannot be null");
+        Objects.requireNonNull(plaintexts, "plaintexts cannot be null");
+
+        if (recipientJids.size() < PARALLEL_ENCRYPTION_THRESHOLD) {
+            var results = new ArrayList<Result>(recipientJids.size());
+            for (var recipientJid : recipientJids) {
+                results.add(encrypt(recipientJid.toSignalAddress(), plaintexts.apply(recipientJid)));
+            }
+            return results;
+        }
 
-        return Result.ofSession(ciphertext, type);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var futures = new ArrayList<Future<Result>>(recipientJids.size());
+            for (var recipientJid : recipientJids) {
+                futures.add(executor.submit(() -> encrypt(recipientJid.toSignalAddress(), plaintexts.apply(recipientJid))));
+            }
+
+            var results = new ArrayList<Result>(futures.size());
+            for (var future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+
+            throw new IllegalStateException("Cannot encrypt message", exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encrypting message", exception);
+        }
     }
 
     /**
@@ -141,14 +215,36 @@ public final class SignalMessageEncoder {
         Objects.requireNonNull(groupJid, "groupJid cannot be null");
         Objects.requireNonNull(senderDevice, "senderDevice cannot be null");
 
+        // Encrypt with Signal session
+        return encrypt(recipientAddress, encodeSenderKeyDistribution(groupJid, senderDevice));
+    }
+
+    /**
+     * Encodes and pads a sender key distribution message for a group, so that it can be encrypted for many recipients
+     * with {@link #encrypt(List, Function)}.
+     *
+     * @param groupJid     the JID of the group
+     * @param senderDevice the JID of the sender's device
+     * @return the padded plaintext bytes
+     */
+    public byte[] encodeSenderKeyDistribution(Jid groupJid, Jid senderDevice) {
         // Create the sender key distribution message
         var distributionMessage = createSenderKeyDistributionMessage(groupJid, senderDevice);
 
         // Wrap it in a MessageContainer
-        var container = MessageContainer.of(distributionMessage);
+        return encodeAndPad(MessageContainer.of(distributionMessage));
+    }
 
-        // Encrypt with Signal session
-        return encode(recipientAddress, container);
+    /**
+     * Encodes a message container to protobuf and adds WhatsApp-specific padding, so that it can be encrypted for many recipients
+     * with {@link #encrypt(List, Function)}.
+     *
+     * @param message the message container to encode
+     * @return the padded plaintext bytes
+     */
+    public byte[] encodePlaintext(MessageContainer message) {
+        Objects.requireNonNull(message, "message cannot be null");
+        return encodeAndPad(message);
     }
 
 
@@ -0,0 +1,42 @@
+package com.github.auties00.cobalt.message.signal;
+
+import com.github.auties00.libsignal.SignalProtocolAddress;
+
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that serializes the use of Signal sessions.
+ * <p>
+ * Encrypting or decrypting a message advances the ratchet of the session with the remote device,
+ * so two threads that use the same session at the same time would both read the old state and one of the updates would be lost.
+ * Each address is mapped to one of a fixed number of locks by its hash: the number of locks doesn't grow with the number of devices,
+ * at the cost of sessions that share a lock not being used in parallel.
+ * <p>
+ * The same instance must be shared by everything that uses the sessions of a client, like its {@link SignalMessageEncoder} and {@link SignalMessageDecoder},
+ * so that a message that is received while another one is being sent to the same device doesn't race with it.
+ */
+public final class SignalSessionLocks {
+    private static final int STRIPES = 64;
+
+    private final ReentrantLock[] locks;
+
+    public SignalSessionLocks() {
+        this.locks = new ReentrantLock[STRIPES];
+        for (var i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the lock that guards the session with an address
+     *
+     * @param address the address of the remote device
+     * @return a non-null lock
+     */
+    public ReentrantLock get(SignalProtocolAddress address) {
+        Objects.requireNonNull(address, "address cannot be null");
+        var hash = address.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -8,8 +8,10 @@ import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.model.sync.HistorySync;
 import com.github.auties00.cobalt.model.sync.LIDMigrationMapping;
 import com.github.auties00.cobalt.model.sync.LIDMigrationMappingSyncPayload;
+import com.github.auties00.cobalt.model.sync.PhoneNumberToLidMapping;
 import com.github.auties00.cobalt.node.mex.json.response.LidChangeNotificationResponse;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -179,8 +181,10 @@ public final class LidMigrationService {
 
     public void handleHistorySync(HistorySync history) {
         Objects.requireNonNull(history, "history cannot be null");
+        handleLidMappings(history.phoneNumberToLidMappings());
+    }
 
-        var mappings = history.phoneNumberToLidMappings();
+    public void handleLidMappings(Collection<PhoneNumberToLidMapping> mappings) {
         if (mappings == null || mappings.isEmpty()) {
             return;
         }
@@ -3,6 +3,7 @@ package com.github.auties00.cobalt.model.chat;
 import com.github.auties00.cobalt.model.contact.ContactStatus;
 import com.github.auties00.cobalt.model.info.ChatMessageInfo;
 import com.github.auties00.cobalt.model.info.MessageInfoParent;
+import com.github.auties00.cobalt.model.info.MessageInfoParentChanges;
 import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.model.jid.JidProvider;
 import com.github.auties00.cobalt.model.jid.JidServer;
@@ -16,10 +17,12 @@ import it.auties.protobuf.annotation.ProtobufMessage;
 import it.auties.protobuf.annotation.ProtobufProperty;
 import it.auties.protobuf.model.ProtobufType;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 /**
@@ -114,6 +117,8 @@ public final class Chat implements MessageInfoParent {
     @ProtobufProperty(index = 999, type = ProtobufType.MAP, mapKeyType = ProtobufType.STRING, mapValueType = ProtobufType.ENUM)
     final ConcurrentHashMap<Jid, ContactStatus> presences;
 
+    private final MessageInfoParentChanges changes;
+
     Chat(Jid jid, Messages messages, Jid newJid, Jid oldJid, int unreadMessagesCount, boolean endOfHistoryTransfer, ChatEphemeralTimer ephemeralMessageDuration, long ephemeralMessagesToggleTimeSeconds, EndOfHistoryTransferType endOfHistoryTransferType, long timestampSeconds, String name, boolean notSpam, boolean archived, ChatDisappear disappearInitiator, boolean markedAsUnread, int pinnedTimestampSeconds, ChatMute mute, ChatWallpaper wallpaper, MediaVisibility mediaVisibility, boolean suspended, boolean terminated, boolean support, String displayName, Jid phoneJid, boolean shareOwnPhoneNumber, boolean phoneDuplicateLidThread, Jid lid, ConcurrentHashMap<Jid, ContactStatus> presences) {
         this.jid = jid;
         this.messages = messages;
@@ -143,6 +148,7 @@ public final class Chat implements MessageInfoParent {
         this.phoneDuplicateLidThread = phoneDuplicateLidThread;
         this.lid = lid;
         this.presences = presences;
+        this.changes = new MessageInfoParentChanges();
     }
 
     /**
@@ -248,10 +254,16 @@ public final class Chat implements MessageInfoParent {
 
     public void addPresence(JidProvider jid, ContactStatus status) {
         presences.put(jid.toJid(), status);
+        changes.markMetadataUpdated();
     }
 
     public boolean removePresence(JidProvider jid) {
-        return presences.remove(jid.toJid()) != null;
+        if(presences.remove(jid.toJid()) == null) {
+            return false;
+        }
+
+        changes.markMetadataUpdated();
+        return true;
     }
 
     public boolean hasName() {
@@ -264,90 +276,112 @@ public final class Chat implements MessageInfoParent {
 
     public void setUnreadMessagesCount(int unreadMessagesCount) {
         this.unreadMessagesCount = unreadMessagesCount;
+        changes.markMetadataUpdated();
     }
 
     public void setEndOfHistoryTransfer(boolean endOfHistoryTransfer) {
         this.endOfHistoryTransfer = endOfHistoryTransfer;
+        changes.markMetadataUpdated();
     }
 
     public void setEphemeralMessageDuration(ChatEphemeralTimer ephemeralMessageDuration) {
         this.ephemeralMessageDuration = ephemeralMessageDuration;
+        changes.markMetadataUpdated();
     }
 
     public void setEphemeralMessagesToggleTimeSeconds(long ephemeralMessagesToggleTimeSeconds) {
         this.ephemeralMessagesToggleTimeSeconds = ephemeralMessagesToggleTimeSeconds;
+        changes.markMetadataUpdated();
     }
 
     public void setEndOfHistoryTransferType(EndOfHistoryTransferType endOfHistoryTransferType) {
         this.endOfHistoryTransferType = endOfHistoryTransferType;
+        changes.markMetadataUpdated();
     }
 
     public void setTimestampSeconds(long timestampSeconds) {
         this.timestampSeconds = timestampSeconds;
+        changes.markMetadataUpdated();
     }
 
     public void setName(String name) {
         this.name = name;
+        changes.markMetadataUpdated();
     }
 
     public void setNotSpam(boolean notSpam) {
         this.notSpam = notSpam;
+        changes.markMetadataUpdated();
     }
 
     public void setArchived(boolean archived) {
         this.archived = archived;
+        changes.markMetadataUpdated();
     }
 
     public void setDisappearInitiator(ChatDisappear disappearInitiator) {
         this.disappearInitiator = disappearInitiator;
+        changes.markMetadataUpdated();
     }
 
     public void setMarkedAsUnread(boolean markedAsUnread) {
         this.markedAsUnread = markedAsUnread;
+        changes.markMetadataUpdated();
     }
 
     public void setPinnedTimestampSeconds(int pinnedTimestampSeconds) {
         this.pinnedTimestampSeconds = pinnedTimestampSeconds;
+        changes.markMetadataUpdated();
     }
 
     public void setMute(ChatMute mute) {
         this.mute = mute;
+        changes.markMetadataUpdated();
     }
 
     public void setWallpaper(ChatWallpaper wallpaper) {
         this.wallpaper = wallpaper;
+        changes.markMetadataUpdated();
     }
 
     public void setMediaVisibility(MediaVisibility mediaVisibility) {
         this.mediaVisibility = mediaVisibility;
+        changes.markMetadataUpdated();
     }
 
     public void setSuspended(boolean suspended) {
         this.suspended = suspended;
+        changes.markMetadataUpdated();
     }
 
     public void setTerminated(boolean terminated) {
         this.terminated = terminated;
+        changes.markMetadataUpdated();
     }
 
     public void setSupport(boolean support) {
         this.support = support;
+        changes.markMetadataUpdated();
     }
 
     public void setPhoneJid(Jid phoneJid) {
         this.phoneJid = phoneJid;
+        changes.markMetadataUpdated();
     }
 
     public void setShareOwnPhoneNumber(boolean shareOwnPhoneNumber) {
         this.shareOwnPhoneNumber = shareOwnPhoneNumber;
+        changes.markMetadataUpdated();
     }
 
     public void setPhoneDuplicateLidThread(boolean phoneDuplicateLidThread) {
         this.phoneDuplicateLidThread = phoneDuplicateLidThread;
+        changes.markMetadataUpdated();
     }
 
     public void setLid(Jid lid) {
         this.lid = lid;
+        changes.markMetadataUpdated();
     }
 
     /**
@@ -485,7 +519,11 @@ public final class Chat implements MessageInfoParent {
      */
     public void addMessage(ChatMessageInfo info) {
         Objects.requireNonNull(info, "info cannot be null");
-        messages.addMessageInfo(info);
+        // The change is recorded while holding the messages, so that they can't be unloaded before it's persisted
+        synchronized (messages) {
+            messages.addMessageInfo(info);
+            changes.markMessageUpdated(info.id());
+        }
         updateChatTimestamp(info);
     }
 
@@ -497,10 +535,13 @@ public final class Chat implements MessageInfoParent {
      */
     @Override
     public boolean removeMessage(String info) {
-        if(!messages.removeMessageInfoById(info)) {
-            return false;
-        }
+        synchronized (messages) {
+            if(!messages.removeMessageInfoById(info)) {
+                return false;
+            }
 
+            changes.markMessageRemoved(info);
+        }
         refreshChatTimestamp();
         return true;
     }
@@ -509,11 +550,15 @@ public final class Chat implements MessageInfoParent {
         var message = newestMessage();
         if (message.isEmpty()) {
             this.timestampSeconds = 0L;
-        }else {
-            updateChatTimestamp(message.get());
+            changes.markMetadataUpdated();
+        }else if (message.get().timestampSeconds().isPresent()) {
+            this.timestampSeconds = message.get().timestampSeconds().getAsLong();
+            changes.markMetadataUpdated();
         }
     }
 
+    // The timestamp of the chat is the one of its newest message:
+    // comparing against it, instead of looking up the newest message, doesn't load the history of the chat
     private void updateChatTimestamp(ChatMessageInfo info) {
         if (info.timestampSeconds().isEmpty()) {
             return;
@@ -521,14 +566,12 @@ public final class Chat implements MessageInfoParent {
 
         var newTimestamp = info.timestampSeconds()
                 .getAsLong();
-        var oldTimeStamp = newestMessage()
-                .map(value -> value.timestampSeconds().orElse(0L))
-                .orElse(0L);
-        if (oldTimeStamp > newTimestamp) {
+        if (timestampSeconds > newTimestamp) {
             return;
         }
 
         this.timestampSeconds = newTimestamp;
+        changes.markMetadataUpdated();
     }
 
     /**
@@ -537,6 +580,7 @@ public final class Chat implements MessageInfoParent {
     @Override
     public void removeMessages() {
         messages.clear();
+        changes.markRewriteRequired();
     }
 
     /**
@@ -607,6 +651,75 @@ public final class Chat implements MessageInfoParent {
         return messages.getMessageInfoById(id);
     }
 
+    /**
+     * Returns the changes applied to this chat since it was last persisted
+     *
+     * @return a non-null tracker
+     */
+    @Override
+    public MessageInfoParentChanges changes() {
+        return changes;
+    }
+
+    /**
+     * Defers loading the messages of this chat until they are first accessed.
+     * <p>
+     * Store serializers can use this method to load the metadata of a chat eagerly,
+     * while decoding its history only if the chat is actually used.
+     * The loader is invoked at most once and its result is not tracked as a change.
+     * Messages that are added before the history is loaded are kept in memory and applied on top of it.
+     *
+     * @param loader a supplier of the messages of this chat, in chronological order
+     */
+    public void setMessagesLoader(Supplier<? extends Collection<HistorySyncMessage>> loader) {
+        Objects.requireNonNull(loader, "loader cannot be null");
+        messages.setLoader(loader);
+    }
+
+    /**
+     * Drops the messages of this chat from memory, if they weren't accessed recently, and defers loading them again until they are next accessed.
+     * <p>
+     * Store serializers can use this method to release the history of chats that are no longer used.
+     * The messages are only dropped if every change to this chat was persisted, so the loader must return the messages as they were last persisted.
+     * Messages that were obtained before they were dropped are no longer tracked: changes made to them afterwards are not persisted.
+     *
+     * @param loader   a supplier of the messages of this chat, in chronological order
+     * @param idleTime the minimum time since the messages were last accessed
+     * @return whether the messages were dropped
+     */
+    public boolean unloadMessages(Supplier<? extends Collection<HistorySyncMessage>> loader, Duration idleTime) {
+        Objects.requireNonNull(loader, "loader cannot be null");
+        Objects.requireNonNull(idleTime, "idleTime cannot be null");
+        synchronized (messages) {
+            return !changes.hasChanges() && messages.unload(loader, idleTime);
+        }
+    }
+
+    /**
+     * Returns whether the messages of this chat were loaded in memory
+     *
+     * @return a boolean
+     */
+    public boolean hasLoadedMessages() {
+        return messages.isLoaded();
+    }
+
+    /**
+     * Returns a copy of this chat that holds the same metadata, but only the provided messages.
+     * Store serializers can encode the result to persist a change without encoding the whole history.
+     *
+     * @param messages the messages that the copy should hold
+     * @return a non-null chat
+     */
+    public Chat withMessages(Collection<ChatMessageInfo> messages) {
+        Objects.requireNonNull(messages, "messages cannot be null");
+        var copiedMessages = new Messages();
+        for (var message : messages) {
+            copiedMessages.addMessageInfo(message);
+        }
+        return new Chat(jid, copiedMessages, newJid, oldJid, unreadMessagesCount, endOfHistoryTransfer, ephemeralMessageDuration, ephemeralMessagesToggleTimeSeconds, endOfHistoryTransferType, timestampSeconds, name, notSpam, archived, disappearInitiator, markedAsUnread, pinnedTimestampSeconds, mute, wallpaper, mediaVisibility, suspended, terminated, support, displayName, phoneJid, shareOwnPhoneNumber, phoneDuplicateLidThread, lid, new ConcurrentHashMap<>(presences));
+    }
+
     /**
      * The constants of this enumerated type describe the various types of transfers that can regard a
      * chat history sync
@@ -631,11 +744,87 @@ public final class Chat implements MessageInfoParent {
 
     }
     
+    // While a loader is set, the history of the chat is on disk and backing is null:
+    // the messages that are added in the meantime are kept in pending, and applied on top of the history when it's loaded,
+    // so that adding a message, or looking up one that was just added, doesn't load the whole history.
+    // Writes hold the monitor, so that they can't race with the history being loaded or unloaded,
+    // while reads only go through the monitor if the history must be loaded.
     static final class Messages extends AbstractCollection<HistorySyncMessage> {
-        private final ConcurrentLinkedHashMap<String, HistorySyncMessage> backing;
+        private volatile ConcurrentLinkedHashMap<String, HistorySyncMessage> backing;
+        private final LinkedHashMap<String, HistorySyncMessage> pending;
+        private Supplier<? extends Collection<HistorySyncMessage>> loader;
+        private volatile long lastAccessNanos;
 
         Messages() {
             this.backing = new ConcurrentLinkedHashMap<>();
+            this.pending = new LinkedHashMap<>();
+            this.lastAccessNanos = System.nanoTime();
+        }
+
+        synchronized void setLoader(Supplier<? extends Collection<HistorySyncMessage>> loader) {
+            var backing = this.backing;
+            if(backing != null) {
+                for(var historySyncMessage : backing.sequencedValues()) {
+                    pending.put(historySyncMessage.messageInfo().id(), historySyncMessage);
+                }
+                this.backing = null;
+            }
+            this.loader = loader;
+        }
+
+        // The caller guarantees that every message held in memory can be loaded back by the loader
+        synchronized boolean unload(Supplier<? extends Collection<HistorySyncMessage>> loader, Duration idleTime) {
+            if(backing == null || System.nanoTime() - lastAccessNanos < idleTime.toNanos()) {
+                return false;
+            }
+
+            pending.clear();
+            this.backing = null;
+            this.loader = loader;
+            return true;
+        }
+
+        boolean isLoaded() {
+            return backing != null;
+        }
+
+        private ConcurrentLinkedHashMap<String, HistorySyncMessage> backing() {
+            lastAccessNanos = System.nanoTime();
+            var backing = this.backing;
+            if(backing != null) {
+                return backing;
+            }
+
+            synchronized (this) {
+                backing = this.backing;
+                if(backing != null) {
+                    return backing;
+                }
+
+                var loaded = new ConcurrentLinkedHashMap<String, HistorySyncMessage>();
+                for(var historySyncMessage : loader.get()) {
+                    if(historySyncMessage != null && historySyncMessage.messageInfo() != null) {
+                        loaded.put(historySyncMessage.messageInfo().id(), historySyncMessage);
+                    }
+                }
+                for(var historySyncMessage : pending.sequencedValues()) {
+                    loaded.put(historySyncMessage.messageInfo().id(), historySyncMessage);
+                }
+                pending.clear();
+                this.loader = null;
+                this.backing = loaded;
+                return loaded;
+            }
+        }
+
+        private synchronized void put(HistorySyncMessage historySyncMessage) {
+            var id = historySyncMessage.messageInfo().id();
+            var backing = this.backing;
+            if(backing != null) {
+                backing.put(id, historySyncMessage);
+            }else {
+                pending.put(id, historySyncMessage);
+            }
         }
 
         @Override
@@ -643,7 +832,7 @@ public final class Chat implements MessageInfoParent {
             if(historySyncMessage == null || historySyncMessage.messageInfo() == null) {
                 return false;
             }else {
-                backing.put(historySyncMessage.messageInfo().id(), historySyncMessage);
+                put(historySyncMessage);
                 return true;
             }
         }
@@ -652,55 +841,71 @@ public final class Chat implements MessageInfoParent {
             if(messageInfo == null) {
                 return false;
             }else {
-                backing.put(messageInfo.id(), new HistorySyncMessage(messageInfo, -1));
+                put(new HistorySyncMessage(messageInfo, -1));
                 return true;
             }
         }
 
         public Optional<ChatMessageInfo> getMessageInfoById(String id) {
-            return Optional.ofNullable(backing.get(id))
+            if(backing == null) {
+                synchronized (this) {
+                    var pendingMessage = backing == null ? pending.get(id) : null;
+                    if(pendingMessage != null) {
+                        return Optional.of(pendingMessage.messageInfo());
+                    }
+                }
+            }
+            return Optional.ofNullable(backing().get(id))
                     .map(HistorySyncMessage::messageInfo);
         }
         
         public Optional<ChatMessageInfo> getOldestMessageInfo() {
-            return Optional.ofNullable(backing.firstEntry())
+            return Optional.ofNullable(backing().firstEntry())
                     .map(entry -> entry.getValue().messageInfo());
         }
         
         public Optional<ChatMessageInfo> getNewestMessageInfo() {
-            return Optional.ofNullable(backing.lastEntry())
+            return Optional.ofNullable(backing().lastEntry())
                     .map(entry -> entry.getValue().messageInfo());
         }
 
-        public boolean removeMessageInfoById(String id) {
-            return backing.remove(id) != null;
+        public synchronized boolean removeMessageInfoById(String id) {
+            return backing().remove(id) != null;
         }
         
         public Stream<ChatMessageInfo> getMessageInfosAsStream() {
-            return backing.sequencedValues()
+            return backing().sequencedValues()
                     .stream()
                     .map(HistorySyncMessage::messageInfo);
         }
 
         @Override
         public Iterator<HistorySyncMessage> iterator() {
-            return backing.sequencedValues().iterator();
+            return backing().sequencedValues().iterator();
         }
         
         @Override
         public int size() {
-            return backing.size();
+            return backing().size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            this.loader = null;
+            pending.clear();
+            this.backing = new ConcurrentLinkedHashMap<>();
         }
 
         public SequencedCollection<ChatMessageInfo> getMessageInfosAsSequencedCollection() {
-            return getMessageInfosAsSequencedCollection(backing.sequencedValues());
+            var backing = backing();
+            return getMessageInfosAsSequencedCollection(backing, backing.sequencedValues());
         }
 
-        private SequencedCollection<ChatMessageInfo> getMessageInfosAsSequencedCollection(SequencedCollection<HistorySyncMessage> data) {
+        private SequencedCollection<ChatMessageInfo> getMessageInfosAsSequencedCollection(ConcurrentLinkedHashMap<String, HistorySyncMessage> backing, SequencedCollection<HistorySyncMessage> data) {
             return new SequencedCollection<>() {
                 @Override
                 public SequencedCollection<ChatMessageInfo> reversed() {
-                    return getMessageInfosAsSequencedCollection(data.reversed());
+                    return getMessageInfosAsSequencedCollection(backing, data.reversed());
                 }
 
                 @Override
@@ -181,6 +181,39 @@ public final class GroupOrCommunityMetadata {
         return isIncognito;
     }
 
+    /**
+     * Returns a copy of this metadata with a different subject
+     *
+     * @param subject                 the new subject
+     * @param subjectAuthorJid        the participant who changed the subject, or null
+     * @param subjectTimestampSeconds when the subject was changed, in seconds
+     * @return a non-null metadata
+     */
+    public GroupOrCommunityMetadata withSubject(String subject, Jid subjectAuthorJid, long subjectTimestampSeconds) {
+        return new GroupOrCommunityMetadata(jid, subject, subjectAuthorJid, subjectTimestampSeconds, foundationTimestampSeconds, founderJid, description, descriptionId, settings, new LinkedHashSet<>(participants), ephemeralExpirationSeconds, parentCommunityJid, isCommunity, new LinkedHashSet<>(communityGroups), isLidAddressingMode, isIncognito);
+    }
+
+    /**
+     * Returns a copy of this metadata with a different description
+     *
+     * @param description   the new description, or null if it was removed
+     * @param descriptionId the id of the new description, or null
+     * @return a non-null metadata
+     */
+    public GroupOrCommunityMetadata withDescription(String description, String descriptionId) {
+        return new GroupOrCommunityMetadata(jid, subject, subjectAuthorJid, subjectTimestampSeconds, foundationTimestampSeconds, founderJid, description, descriptionId, settings, new LinkedHashSet<>(participants), ephemeralExpirationSeconds, parentCommunityJid, isCommunity, new LinkedHashSet<>(communityGroups), isLidAddressingMode, isIncognito);
+    }
+
+    /**
+     * Returns a copy of this metadata with different participants
+     *
+     * @param participants the new participants
+     * @return a non-null metadata
+     */
+    public GroupOrCommunityMetadata withParticipants(SequencedSet<ChatParticipant> participants) {
+        return new GroupOrCommunityMetadata(jid, subject, subjectAuthorJid, subjectTimestampSeconds, foundationTimestampSeconds, founderJid, description, descriptionId, settings, new LinkedHashSet<>(participants), ephemeralExpirationSeconds, parentCommunityJid, isCommunity, new LinkedHashSet<>(communityGroups), isLidAddressingMode, isIncognito);
+    }
+
     @Override
     public boolean equals(Object o) {
         return o instanceof GroupOrCommunityMetadata that
@@ -351,6 +351,7 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
     @Override
     public void setMessage(MessageContainer message) {
         this.message = message;
+        markUpdated();
     }
 
     public OptionalLong timestampSeconds() {
@@ -372,6 +373,7 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
 
     public void setIgnore(boolean ignore) {
         this.ignore = ignore;
+        markUpdated();
     }
 
     public boolean starred() {
@@ -474,6 +476,11 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
         return reactions;
     }
 
+    public void addReaction(ReactionMessage reaction) {
+        reactions.add(reaction);
+        markUpdated();
+    }
+
     public Optional<MediaData> quotedStickerData() {
         return Optional.ofNullable(quotedStickerData);
     }
@@ -490,12 +497,18 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
         return pollUpdates;
     }
 
+    public void addPollUpdate(PollUpdate pollUpdate) {
+        pollUpdates.add(pollUpdate);
+        markUpdated();
+    }
+
     public Optional<PollAdditionalMetadata> pollAdditionalMetadata() {
         return Optional.ofNullable(pollAdditionalMetadata);
     }
 
     public void setPollAdditionalMetadata(PollAdditionalMetadata pollAdditionalMetadata) {
         this.pollAdditionalMetadata = pollAdditionalMetadata;
+        markUpdated();
     }
 
     public Optional<String> agentId() {
@@ -512,6 +525,7 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
 
     public void setMessageSecret(byte[] messageSecret) {
         this.messageSecret = messageSecret;
+        markUpdated();
     }
 
     public Optional<KeepInChat> keepInChat() {
@@ -563,13 +577,29 @@ public final class ChatMessageInfo implements MessageInfo { // TODO: Check me
     @Override
     public void setStatus(MessageStatus status) {
         this.status = status;
+        markUpdated();
     }
 
     public void setStarred(boolean starred) {
         this.starred = starred;
+        markUpdated();
     }
 
     public void setRevokeTimestampSeconds(long revokeTimestampSeconds) {
         this.revokeTimestampSeconds = revokeTimestampSeconds;
+        markUpdated();
+    }
+
+    /**
+     * Marks this message as updated, so that it's persisted again with the next save of its chat.
+     * <p>
+     * Setters call this method on their own: it only needs to be called after mutating an object owned by this message,
+     * like its {@link #receipt()} or its content, which can't report the change.
+     */
+    public void markUpdated() {
+        var chat = this.chat;
+        if (chat != null) {
+            chat.changes().markMessageUpdated(id());
+        }
     }
-}
\ No newline at end of file
+}
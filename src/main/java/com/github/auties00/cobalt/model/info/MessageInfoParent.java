@@ -16,4 +16,5 @@ public sealed interface MessageInfoParent
     void removeMessages();
     Optional<? extends MessageInfo> newestMessage();
     Optional<? extends MessageInfo> oldestMessage();
+    MessageInfoParentChanges changes();
 }
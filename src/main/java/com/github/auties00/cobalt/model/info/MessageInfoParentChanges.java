@@ -0,0 +1,142 @@
+package com.github.auties00.cobalt.model.info;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.SequencedSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the changes applied to a {@link MessageInfoParent} since it was last persisted.
+ * <p>
+ * Store serializers use this information to write only the messages that were added, updated or removed,
+ * instead of re-encoding the whole history of a chat or newsletter on every save.
+ * A fresh instance requires a full rewrite, as nothing has been persisted yet.
+ * <p>
+ * Ids are kept in the order they were first marked, which is the order messages are added to their parent:
+ * serializers that replay the changes on top of the last full write rely on it to restore the messages in order.
+ */
+public final class MessageInfoParentChanges {
+    private final ReentrantLock lock;
+    private SequencedSet<String> updatedMessageIds;
+    private SequencedSet<String> removedMessageIds;
+    private final AtomicBoolean metadataUpdated;
+    private final AtomicBoolean rewriteRequired;
+
+    public MessageInfoParentChanges() {
+        this.lock = new ReentrantLock();
+        this.updatedMessageIds = new LinkedHashSet<>();
+        this.removedMessageIds = new LinkedHashSet<>();
+        this.metadataUpdated = new AtomicBoolean(false);
+        this.rewriteRequired = new AtomicBoolean(true);
+    }
+
+    /**
+     * Marks a message as added or updated
+     *
+     * @param messageId the id of the message
+     */
+    public void markMessageUpdated(String messageId) {
+        if (messageId == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            removedMessageIds.remove(messageId);
+            updatedMessageIds.add(messageId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a message as removed
+     *
+     * @param messageId the id of the message
+     */
+    public void markMessageRemoved(String messageId) {
+        if (messageId == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            updatedMessageIds.remove(messageId);
+            removedMessageIds.add(messageId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the metadata of the parent, that is every field except its messages, as updated
+     */
+    public void markMetadataUpdated() {
+        metadataUpdated.set(true);
+    }
+
+    /**
+     * Marks the parent as requiring a full rewrite, for example because all of its messages were removed
+     */
+    public void markRewriteRequired() {
+        rewriteRequired.set(true);
+    }
+
+    /**
+     * Returns whether any change was recorded since the last call to {@link #drain()}
+     *
+     * @return a boolean
+     */
+    public boolean hasChanges() {
+        if (rewriteRequired.get() || metadataUpdated.get()) {
+            return true;
+        }
+
+        lock.lock();
+        try {
+            return !updatedMessageIds.isEmpty() || !removedMessageIds.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the changes recorded since the last call to this method and resets them.
+     * <p>
+     * The ids are swapped out atomically, so that a message updated concurrently is either part of this snapshot
+     * or will be part of the next one: callers should mark a message only after the update is visible.
+     *
+     * @return a non-null snapshot
+     */
+    public Snapshot drain() {
+        var rewriteRequired = this.rewriteRequired.getAndSet(false);
+        var metadataUpdated = this.metadataUpdated.getAndSet(false);
+        SequencedSet<String> removedMessageIds;
+        SequencedSet<String> updatedMessageIds;
+        lock.lock();
+        try {
+            removedMessageIds = this.removedMessageIds;
+            updatedMessageIds = this.updatedMessageIds;
+            this.removedMessageIds = new LinkedHashSet<>();
+            this.updatedMessageIds = new LinkedHashSet<>();
+        } finally {
+            lock.unlock();
+        }
+        return new Snapshot(Collections.unmodifiableSequencedSet(updatedMessageIds), Collections.unmodifiableSequencedSet(removedMessageIds), metadataUpdated, rewriteRequired);
+    }
+
+    /**
+     * A snapshot of the changes applied to a parent
+     *
+     * @param updatedMessageIds the ids of the messages that were added or updated, in the order they were first marked
+     * @param removedMessageIds the ids of the messages that were removed
+     * @param metadataUpdated   whether the metadata of the parent was updated
+     * @param rewriteRequired   whether the parent must be rewritten entirely
+     */
+    public record Snapshot(SequencedSet<String> updatedMessageIds, SequencedSet<String> removedMessageIds, boolean metadataUpdated, boolean rewriteRequired) {
+        public boolean isEmpty() {
+            return !rewriteRequired && !metadataUpdated && updatedMessageIds.isEmpty() && removedMessageIds.isEmpty();
+        }
+    }
+}
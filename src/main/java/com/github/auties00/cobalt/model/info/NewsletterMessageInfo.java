@@ -164,6 +164,7 @@ public final class NewsletterMessageInfo implements MessageInfo {
     @Override
     public void setMessage(MessageContainer message) {
         this.message = message;
+        markUpdated();
     }
 
     public Optional<ZonedDateTime> timestamp() {
@@ -178,6 +179,7 @@ public final class NewsletterMessageInfo implements MessageInfo {
     @Override
     public void setStatus(MessageStatus status) {
         this.status = status;
+        markUpdated();
     }
 
     public Collection<NewsletterReaction> reactions() {
@@ -189,17 +191,22 @@ public final class NewsletterMessageInfo implements MessageInfo {
     }
 
     public Optional<NewsletterReaction> addReaction(NewsletterReaction reaction) {
-        return Optional.ofNullable(reactions.put(reaction.content(), reaction));
+        var result = Optional.ofNullable(reactions.put(reaction.content(), reaction));
+        markUpdated();
+        return result;
     }
 
     public Optional<NewsletterReaction> removeReaction(String code) {
-        return Optional.ofNullable(reactions.remove(code));
+        var result = Optional.ofNullable(reactions.remove(code));
+        markUpdated();
+        return result;
     }
 
     public void incrementReaction(String code, boolean fromMe) {
         findReaction(code).ifPresentOrElse(reaction -> {
             reaction.setCount(reaction.count() + 1);
             reaction.setFromMe(fromMe);
+            markUpdated();
         }, () -> {
             var reaction = new NewsletterReaction(code, 1, fromMe);
             addReaction(reaction);
@@ -215,6 +222,7 @@ public final class NewsletterMessageInfo implements MessageInfo {
 
             reaction.setCount(reaction.count() - 1);
             reaction.setFromMe(false);
+            markUpdated();
         });
     }
 
@@ -224,6 +232,7 @@ public final class NewsletterMessageInfo implements MessageInfo {
 
     public void setStarred(boolean starred) {
         this.starred = starred;
+        markUpdated();
     }
 
     public MessageReceipt receipt() {
@@ -261,4 +270,11 @@ public final class NewsletterMessageInfo implements MessageInfo {
     public int hashCode() {
         return Objects.hash(id, serverId, timestampSeconds, views, reactions, message, newsletter, status);
     }
+
+    private void markUpdated() {
+        var newsletter = this.newsletter;
+        if (newsletter != null) {
+            newsletter.changes().markMessageUpdated(id);
+        }
+    }
 }
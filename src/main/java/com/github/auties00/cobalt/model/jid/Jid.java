@@ -16,8 +16,26 @@ import static com.github.auties00.cobalt.model.jid.JidConstants.*;
 
 /**
  * A record that represents a WhatsApp JID
+ * <p>
+ * The jids returned by the factory methods of this record are canonicalized by {@link JidInterner},
+ * so the decoders and the store share a single instance of each jid that is seen often.
+ * Jids created through the constructors aren't canonicalized, but they are still equal to the ones returned by the factory methods.
+ * <p>
+ * Users made only of digits, like phone numbers and lids, are also packed into {@link #numericUser()},
+ * so that comparing and hashing the jids of users and groups doesn't touch the characters of their users.
+ *
+ * @param user        the user, can be null
+ * @param server      the server
+ * @param device      the device, as an unsigned byte
+ * @param agent       the agent, as an unsigned byte
+ * @param numericUser the user as a number, or {@link #NO_NUMERIC_USER} if it isn't the canonical decimal representation of a non-negative long
  */
-public record Jid(String user, JidServer server, int device, int agent) implements JidProvider {
+public record Jid(String user, JidServer server, int device, int agent, long numericUser) implements JidProvider {
+    /**
+     * The value of {@link #numericUser()} when the user isn't a number
+     */
+    public static final long NO_NUMERIC_USER = -1;
+
     private static final ConcurrentMap<JidServer, Jid> JID_SERVER_CACHE = new ConcurrentHashMap<>();
     
     private static final Jid LEGACY_USER_SERVER = new Jid(null, JidServer.legacyUser());
@@ -43,12 +61,42 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         Objects.requireNonNull(server, "server cannot be null");
         checkUnsignedByte(device);
         checkUnsignedByte(agent);
+        if (numericUser != packUser(user)) {
+            throw new IllegalArgumentException("numericUser doesn't match user");
+        }
     }
-    
+
+    public Jid(String user, JidServer server, int device, int agent) {
+        this(user, server, device, agent, packUser(user));
+    }
+
     public Jid(String user, JidServer server) {
         this(user, server, 0, 0);
     }
 
+    // A user is packed only if it's the canonical decimal representation of a non-negative long:
+    // users with leading zeros, or that overflow a long, can't be written back as they were read from a number
+    private static long packUser(String user) {
+        if (user == null) {
+            return NO_NUMERIC_USER;
+        }
+
+        var length = user.length();
+        if (length == 0 || length > 1 && user.charAt(0) == '0') {
+            return NO_NUMERIC_USER;
+        }
+
+        var result = 0L;
+        for (var index = 0; index < length; index++) {
+            var digit = user.charAt(index) - '0';
+            if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10) {
+                return NO_NUMERIC_USER;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
     public static Jid legacyUserServer() {
         return Jid.LEGACY_USER_SERVER;
     }
@@ -140,7 +188,9 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (user == null) {
             return of(server);
         } else {
-            return new Jid(user, server, device, agent);
+            checkUnsignedByte(device);
+            checkUnsignedByte(agent);
+            return JidInterner.intern(user, server, device, agent);
         }
     }
 
@@ -148,7 +198,7 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (jid < 0) {
             throw new MalformedJidException("value cannot be negative");
         }
-        return new Jid(String.valueOf(jid), JidServer.user());
+        return JidInterner.intern(String.valueOf(jid), JidServer.user(), 0, 0);
     }
 
     public static Jid of(String jid) {
@@ -246,8 +296,7 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
                 }
             }
         }
-        var user = new String(source, offset, userLength, StandardCharsets.UTF_8);
-        return new Jid(user, server, device, agent);
+        return JidInterner.intern(source, offset, userLength, server, device, agent);
     }
 
     private static void checkUnsignedByte(int i) {
@@ -318,9 +367,29 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
             }
         }
         var user = jid.substring(offset, offset + userLength);
-        return new Jid(user, server, device, agent);
+        return JidInterner.intern(user, server, device, agent);
     }
-    
+
+    // Equal users are packed the same way: if both users are numbers, comparing them is enough
+    @Override
+    public boolean equals(Object other) {
+        return this == other
+               || other instanceof Jid that
+                  && numericUser == that.numericUser
+                  && device == that.device
+                  && agent == that.agent
+                  && server.equals(that.server)
+                  && (numericUser != NO_NUMERIC_USER || Objects.equals(user, that.user));
+    }
+
+    @Override
+    public int hashCode() {
+        var result = numericUser != NO_NUMERIC_USER ? Long.hashCode(numericUser) : Objects.hashCode(user);
+        result = 31 * result + server.hashCode();
+        result = 31 * result + device;
+        return 31 * result + agent;
+    }
+
     @Override
     public String toString() {
         var hasUser = this.hasUser();
@@ -329,10 +398,19 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (!hasUser && !hasAgent && !hasDevice) {
             return this.server().toString();
         }
-        var user = hasUser ? this.user() : "";
-        var agentStr = hasAgent ? "" + AGENT_CHAR + this.agent() : "";
-        var deviceStr = hasDevice ? "" + DEVICE_CHAR + this.device() : "";
-        return user + agentStr + deviceStr + SERVER_CHAR + this.server().toString();
+        var result = new StringBuilder();
+        if (hasUser) {
+            result.append(this.user());
+        }
+        if (hasAgent) {
+            result.append(AGENT_CHAR).append(this.agent());
+        }
+        if (hasDevice) {
+            result.append(DEVICE_CHAR).append(this.device());
+        }
+        return result.append(SERVER_CHAR)
+                .append(this.server())
+                .toString();
     }
 
     @ProtobufSerializer
@@ -347,6 +425,15 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
     public boolean hasUser(String user) {
         return Objects.equals(this.user, user);
     }
+
+    /**
+     * Returns whether the user of this jid is a number
+     *
+     * @return a boolean
+     */
+    public boolean hasNumericUser() {
+        return numericUser != NO_NUMERIC_USER;
+    }
     
     public boolean hasServer(JidServer server) {
         return this.server().equals(server);
@@ -424,28 +511,30 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (Objects.equals(this.server, server)) {
             return this;
         }
-        return new Jid(user, server, device, agent);
+        return JidInterner.intern(user, server, device, agent);
     }
 
     public Jid withAgent(int agent) {
         if (this.agent == agent) {
             return this;
         }
-        return new Jid(user, server, device, agent);
+        checkUnsignedByte(agent);
+        return JidInterner.intern(user, server, device, agent);
     }
 
     public Jid withDevice(int device) {
         if (this.device == device) {
             return this;
         }
-        return new Jid(user, server, device, agent);
+        checkUnsignedByte(device);
+        return JidInterner.intern(user, server, device, agent);
     }
 
     public Jid withoutData() {
         if (!hasDevice() && !hasAgent()) {
             return this;
         }
-        return new Jid(user, server);
+        return JidInterner.intern(user, server, 0, 0);
     }
 
     public Jid toUserJid() {
@@ -0,0 +1,113 @@
+package com.github.auties00.cobalt.model.jid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * A bounded pool that canonicalizes the jids created by the factory methods of {@link Jid}.
+ * <p>
+ * The same jids are decoded over and over: from the attributes of every stanza, and from every message, chat and receipt that is deserialized.
+ * Without a pool, each of them is a new object, and a store ends up holding many copies of the same jid.
+ * This pool is a fixed size table indexed by the hash of a jid, where each slot holds the last jid that hashed to it:
+ * a jid that is already in its slot is returned without allocating a new one, otherwise it's created and replaces the previous one.
+ * As the table never grows, it doesn't need to track which jids are still reachable, like a weak pool would,
+ * and it retains at most {@link #SLOTS} jids.
+ * <p>
+ * The table is read and written without locks: jids are immutable, so a thread can only observe a stale slot,
+ * in which case it creates a jid that is equal, but not identical, to the one in the slot.
+ * Callers must not compare jids by identity.
+ */
+final class JidInterner {
+    private static final int SLOTS = 1 << 16;
+    private static final Jid[] JIDS = new Jid[SLOTS];
+
+    private JidInterner() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Returns the canonical jid with the provided components
+     *
+     * @param user   the user, can be null
+     * @param server the server
+     * @param device the device, as an unsigned byte
+     * @param agent  the agent, as an unsigned byte
+     * @return a non-null jid
+     */
+    static Jid intern(String user, JidServer server, int device, int agent) {
+        Objects.requireNonNull(server, "server cannot be null");
+        var slot = slot(Objects.hashCode(user), server, device, agent);
+        var cached = JIDS[slot];
+        if (cached != null
+                && cached.device() == device
+                && cached.agent() == agent
+                && cached.server().equals(server)
+                && Objects.equals(cached.user(), user)) {
+            return cached;
+        }
+
+        var result = new Jid(user, server, device, agent);
+        JIDS[slot] = result;
+        return result;
+    }
+
+    /**
+     * Returns the canonical jid with the provided components, decoding the user only if it's not in the pool
+     *
+     * @param source     the array that holds the user, encoded as UTF-8
+     * @param userOffset the offset of the user in the array
+     * @param userLength the length of the user in the array
+     * @param server     the server
+     * @param device     the device, as an unsigned byte
+     * @param agent      the agent, as an unsigned byte
+     * @return a non-null jid
+     */
+    static Jid intern(byte[] source, int userOffset, int userLength, JidServer server, int device, int agent) {
+        Objects.requireNonNull(server, "server cannot be null");
+        // Users are almost always ASCII, so each byte is a char and the hash of the string can be computed without decoding it
+        var userHash = 0;
+        for (var i = userOffset; i < userOffset + userLength; i++) {
+            var value = source[i];
+            if (value < 0) {
+                return intern(new String(source, userOffset, userLength, StandardCharsets.UTF_8), server, device, agent);
+            }
+            userHash = 31 * userHash + value;
+        }
+
+        var slot = slot(userHash, server, device, agent);
+        var cached = JIDS[slot];
+        if (cached != null
+                && cached.device() == device
+                && cached.agent() == agent
+                && cached.server().equals(server)
+                && equals(cached.user(), source, userOffset, userLength)) {
+            return cached;
+        }
+
+        var result = new Jid(new String(source, userOffset, userLength, StandardCharsets.US_ASCII), server, device, agent);
+        JIDS[slot] = result;
+        return result;
+    }
+
+    private static boolean equals(String user, byte[] source, int offset, int length) {
+        if (user == null || user.length() != length) {
+            return false;
+        }
+
+        for (var i = 0; i < length; i++) {
+            if (user.charAt(i) != source[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only used to pick a slot: the hash code of a record is unspecified, so it can't be reused here
+    private static int slot(int userHash, JidServer server, int device, int agent) {
+        var hash = userHash;
+        hash = 31 * hash + server.hashCode();
+        hash = 31 * hash + device;
+        hash = 31 * hash + agent;
+        return (hash ^ (hash >>> 16)) & (SLOTS - 1);
+    }
+}
@@ -3,6 +3,7 @@ package com.github.auties00.cobalt.model.newsletter;
 import com.alibaba.fastjson2.JSONObject;
 import com.github.auties00.cobalt.model.info.MessageInfo;
 import com.github.auties00.cobalt.model.info.MessageInfoParent;
+import com.github.auties00.cobalt.model.info.MessageInfoParentChanges;
 import com.github.auties00.cobalt.model.info.NewsletterMessageInfo;
 import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.collections.ConcurrentLinkedHashMap;
@@ -11,6 +12,7 @@ import it.auties.protobuf.annotation.ProtobufProperty;
 import it.auties.protobuf.model.ProtobufType;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 // TODO: Add unreadMessagesCount and timestamp
 @ProtobufMessage
@@ -30,12 +32,15 @@ public final class Newsletter implements MessageInfoParent {
     @ProtobufProperty(index = 5, type = ProtobufType.MESSAGE)
     final Messages messages;
 
+    private final MessageInfoParentChanges changes;
+
     Newsletter(Jid jid, NewsletterState state, NewsletterMetadata metadata, NewsletterViewerMetadata viewerMetadata, Messages messages) {
         this.jid = Objects.requireNonNull(jid, "value cannot be null");
         this.state = state;
         this.metadata = metadata;
         this.viewerMetadata = viewerMetadata;
         this.messages = messages;
+        this.changes = new MessageInfoParentChanges();
     }
 
     public static Optional<Newsletter> ofJson(JSONObject newsletter) {
@@ -73,16 +78,23 @@ public final class Newsletter implements MessageInfoParent {
 
     public void addMessage(NewsletterMessageInfo info) {
         messages.add(info);
+        changes.markMessageUpdated(info.id());
     }
 
     @Override
     public boolean removeMessage(String messageId) {
-        return messages.removeById(messageId);
+        if(!messages.removeById(messageId)) {
+            return false;
+        }
+
+        changes.markMessageRemoved(messageId);
+        return true;
     }
 
     @Override
     public void removeMessages() {
         messages.clear();
+        changes.markRewriteRequired();
     }
 
     @Override
@@ -95,6 +107,16 @@ public final class Newsletter implements MessageInfoParent {
         return messages.getById(messageId);
     }
 
+    /**
+     * Returns the message with the provided server id
+     *
+     * @param serverId the server id of the message
+     * @return a non-null optional
+     */
+    public Optional<NewsletterMessageInfo> getMessageByServerId(int serverId) {
+        return messages.getByServerId(serverId);
+    }
+
     @Override
     public Optional<NewsletterMessageInfo> oldestMessage() {
         try {
@@ -128,10 +150,12 @@ public final class Newsletter implements MessageInfoParent {
 
     public void setState(NewsletterState state) {
         this.state = state;
+        changes.markMetadataUpdated();
     }
 
     public void setMetadata(NewsletterMetadata metadata) {
         this.metadata = metadata;
+        changes.markMetadataUpdated();
     }
 
     public Optional<NewsletterMetadata> metadata() {
@@ -142,6 +166,30 @@ public final class Newsletter implements MessageInfoParent {
         return Optional.ofNullable(viewerMetadata);
     }
 
+    /**
+     * Returns the changes applied to this newsletter since it was last persisted
+     *
+     * @return a non-null tracker
+     */
+    @Override
+    public MessageInfoParentChanges changes() {
+        return changes;
+    }
+
+    /**
+     * Returns a copy of this newsletter that holds the same metadata, but only the provided messages.
+     * Store serializers can encode the result to persist a change without encoding the whole history.
+     *
+     * @param messages the messages that the copy should hold
+     * @return a non-null newsletter
+     */
+    public Newsletter withMessages(Collection<NewsletterMessageInfo> messages) {
+        Objects.requireNonNull(messages, "messages cannot be null");
+        var copiedMessages = new Messages();
+        copiedMessages.addAll(messages);
+        return new Newsletter(jid, state, metadata, viewerMetadata, copiedMessages);
+    }
+
     @Override
     public boolean equals(Object o) {
         return o instanceof Newsletter that &&
@@ -170,17 +218,47 @@ public final class Newsletter implements MessageInfoParent {
 
     static final class Messages implements SequencedCollection<NewsletterMessageInfo> {
         private final ConcurrentLinkedHashMap<String, NewsletterMessageInfo> backing;
+        private final ConcurrentHashMap<Integer, String> serverIds;
 
         public Messages() {
             this.backing = new ConcurrentLinkedHashMap<>();
+            this.serverIds = new ConcurrentHashMap<>();
         }
 
         public Optional<NewsletterMessageInfo> getById(String id) {
             return Optional.ofNullable(backing.get(id));
         }
 
+        public Optional<NewsletterMessageInfo> getByServerId(int serverId) {
+            var id = serverIds.get(serverId);
+            return id == null ? Optional.empty() : Optional.ofNullable(backing.get(id));
+        }
+
         public boolean removeById(String id) {
-            return backing.remove(id) != null;
+            var removed = backing.remove(id);
+            if (removed == null) {
+                return false;
+            }
+
+            unindex(removed);
+            return true;
+        }
+
+        private void index(NewsletterMessageInfo messageInfo) {
+            var previous = backing.put(messageInfo.id(), messageInfo);
+            if (previous != null && previous.serverId() != messageInfo.serverId()) {
+                unindex(previous);
+            }
+
+            if (messageInfo.serverId() > 0) {
+                serverIds.put(messageInfo.serverId(), messageInfo.id());
+            }
+        }
+
+        private void unindex(NewsletterMessageInfo messageInfo) {
+            if (messageInfo.serverId() > 0) {
+                serverIds.remove(messageInfo.serverId(), messageInfo.id());
+            }
         }
 
         @Override
@@ -226,14 +304,14 @@ public final class Newsletter implements MessageInfoParent {
         @Override
         public boolean add(NewsletterMessageInfo messageInfo) {
             Objects.requireNonNull(messageInfo);
-            backing.put(messageInfo.id(), messageInfo);
+            index(messageInfo);
             return true;
         }
 
         @Override
         public boolean remove(Object o) {
             return o instanceof MessageInfo messageInfo
-                   && backing.remove(messageInfo.id()) != null;
+                   && removeById(messageInfo.id());
         }
 
         @Override
@@ -255,7 +333,7 @@ public final class Newsletter implements MessageInfoParent {
         public boolean addAll(Collection<? extends NewsletterMessageInfo> collection) {
             Objects.requireNonNull(collection);
             for(var entry : collection) {
-                backing.put(entry.id(), entry);
+                index(entry);
             }
             return true;
         }
@@ -265,7 +343,7 @@ public final class Newsletter implements MessageInfoParent {
             Objects.requireNonNull(collection);
             var result = true;
             for(var entry : collection) {
-                if (!(entry instanceof MessageInfo messageInfo) || backing.remove(messageInfo.id()) == null) {
+                if (!(entry instanceof MessageInfo messageInfo) || !removeById(messageInfo.id())) {
                     result = false;
                 }
             }
@@ -280,6 +358,7 @@ public final class Newsletter implements MessageInfoParent {
         @Override
         public void clear() {
             backing.clear();
+            serverIds.clear();
         }
     }
 }
\ No newline at end of file
@@ -6,6 +6,8 @@ import it.auties.protobuf.model.ProtobufString;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.DoubleStream;
 import java.util.stream.LongStream;
@@ -22,6 +24,7 @@ import java.util.stream.Stream;
  *   <li>{@link TextNode} - A node containing text children</li>
  *   <li>{@link JidNode} - A node containing a WhatsApp JID reference</li>
  *   <li>{@link BytesNode} - A node containing binary data</li>
+ *   <li>{@link BufferNode} - A node containing a view of binary data, as decoded by {@link NodeSliceDecoder}</li>
  *   <li>{@link ContainerNode} - A node containing child nodes</li>
  * </ul>
  *
@@ -341,6 +344,17 @@ public sealed interface Node {
      */
     Optional<byte[]> toContentBytes();
 
+    /**
+     * Converts the content of this node to a read-only buffer, if possible.
+     * Unlike {@link #toContentBytes()}, this method doesn't copy the content of a {@link BufferNode}.
+     *
+     * @return an {@code Optional} containing the content as a read-only buffer if possible, otherwise an empty {@code Optional}
+     */
+    default Optional<ByteBuffer> toContentBuffer() {
+        return toContentBytes()
+                .map(content -> ByteBuffer.wrap(content).asReadOnlyBuffer());
+    }
+
     default Stream<byte[]> streamContentBytes() {
         return toContentBytes()
                 .stream();
@@ -742,6 +756,7 @@ public sealed interface Node {
                 case BytesNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription) 
                         && Objects.equals(attributes, thatAttributes) 
                         && hasContent(thatContent);
+                case BufferNode bufferNode -> bufferNode.equals(this);
                 case null, default -> false;
             };
         }
@@ -848,6 +863,7 @@ public sealed interface Node {
                 case BytesNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription) 
                         && Objects.equals(attributes, thatAttributes) 
                         && hasContent(thatContent);
+                case BufferNode bufferNode -> bufferNode.equals(this);
                 case null, default -> false;
             };
         }
@@ -962,6 +978,7 @@ public sealed interface Node {
                 case BytesNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription) 
                         && Objects.equals(attributes, thatAttributes) 
                         && hasContent(thatContent);
+                case BufferNode bufferNode -> bufferNode.equals(this);
                 case null, default -> false;
             };
         }
@@ -997,6 +1014,164 @@ public sealed interface Node {
         }
     }
 
+    /**
+     * Represents a node containing a view of binary data.
+     * This is the binary node produced by {@link NodeSliceDecoder}: its content references the frame it was decoded from,
+     * so the frame is kept alive for as long as the node is reachable.
+     * It's equal to a {@link BytesNode} with the same content.
+     *
+     * @param description the node's description
+     * @param attributes the node's attributes
+     * @param content the binary content of the node as a ByteBuffer
+     */
+    record BufferNode(String description, SequencedMap<String, NodeAttribute> attributes, ByteBuffer content) implements Node {
+        public BufferNode {
+            Objects.requireNonNull(description, "description cannot be null");
+            Objects.requireNonNull(attributes, "attributes cannot be null");
+            Objects.requireNonNull(content, "content cannot be null");
+            // Direct buffers are usually pooled, so their content is copied before they are reused
+            if (content.isDirect()) {
+                var copy = ByteBuffer.allocate(content.remaining());
+                copy.put(content.duplicate());
+                content = copy.flip();
+            }
+            content = content.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public SequencedMap<String, NodeAttribute> attributes() {
+            return Collections.unmodifiableSequencedMap(attributes);
+        }
+
+        /**
+         * Returns a read-only view of the content of this node
+         *
+         * @return a non-null buffer
+         */
+        @Override
+        public ByteBuffer content() {
+            return content.duplicate();
+        }
+
+        @Override
+        public Optional<ByteBuffer> toContentBuffer() {
+            return Optional.of(content.duplicate());
+        }
+
+        @Override
+        public Optional<byte[]> toContentBytes() {
+            return Optional.of(contentAsBytes());
+        }
+
+        @Override
+        public Optional<InputStream> toContentStream() {
+            return Optional.of(new ByteBufferInputStream(content));
+        }
+
+        @Override
+        public Optional<Jid> toContentJid() {
+            try {
+                var result = Jid.of(contentAsString());
+                return Optional.of(result);
+            } catch (MalformedJidException exception) {
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public Optional<String> toContentString() {
+            return Optional.of(contentAsString());
+        }
+
+        @Override
+        public boolean hasContent() {
+            return true;
+        }
+
+        @Override
+        public boolean hasContent(String content) {
+            return Objects.equals(contentAsString(), content);
+        }
+
+        @Override
+        public boolean hasContent(Jid content) {
+            return content != null && Objects.equals(contentAsString(), content.toString());
+        }
+
+        @Override
+        public boolean hasContent(byte[] content) {
+            return content != null && this.content.equals(ByteBuffer.wrap(content));
+        }
+
+        @Override
+        public SequencedCollection<Node> children() {
+            return List.of();
+        }
+
+        // The content is read-only, so its array can't be accessed
+        private byte[] contentAsBytes() {
+            var result = new byte[content.remaining()];
+            content.get(content.position(), result);
+            return result;
+        }
+
+        private String contentAsString() {
+            return StandardCharsets.UTF_8.decode(content.duplicate()).toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return switch (o) {
+                case TextNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription)
+                        && Objects.equals(attributes, thatAttributes)
+                        && hasContent(thatContent);
+                case JidNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription)
+                        && Objects.equals(attributes, thatAttributes)
+                        && hasContent(thatContent);
+                case BytesNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription)
+                        && Objects.equals(attributes, thatAttributes)
+                        && hasContent(thatContent);
+                case BufferNode(var thatDescription, var thatAttributes, var thatContent) -> Objects.equals(description, thatDescription)
+                        && Objects.equals(attributes, thatAttributes)
+                        && content.equals(thatContent);
+                case null, default -> false;
+            };
+        }
+
+        // Same as Arrays.hashCode over the content, so that equal BytesNode and BufferNode instances have the same hash
+        @Override
+        public int hashCode() {
+            var contentHash = 1;
+            for (var index = content.position(); index < content.limit(); index++) {
+                contentHash = 31 * contentHash + content.get(index);
+            }
+            return Objects.hash(description, attributes, contentHash);
+        }
+
+        @Override
+        public String toString() {
+            var result = new StringBuilder();
+            result.append("Node[description=");
+            result.append(description());
+
+            if(!attributes.isEmpty()) {
+                result.append(", attributes=");
+                result.append(attributes);
+            }
+
+            result.append(", content=");
+            if(hasDescription("result") || hasDescription("query") || hasDescription("body")) {
+                result.append(contentAsString());
+            }else {
+                result.append(Arrays.toString(contentAsBytes()));
+            }
+
+            result.append("]");
+
+            return result.toString();
+        }
+    }
+
     /**
      * Represents a node containing a collection of child nodes.
      * This creates a hierarchical structure similar to XML, allowing complex
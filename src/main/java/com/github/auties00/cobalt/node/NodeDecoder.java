@@ -48,13 +48,13 @@ public final class NodeDecoder implements AutoCloseable {
      * Alphabet used for decoding nibble-encoded strings (4-bit per character).
      * Contains digits, hyphen, period, and special characters.
      */
-    private static final char[] NIBBLE_ALPHABET = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '.', '�', '�', '�', '�'};
+    static final char[] NIBBLE_ALPHABET = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '.', '�', '�', '�', '�'};
 
     /**
      * Alphabet used for decoding hexadecimal-encoded strings (4-bit per character).
      * Contains standard hexadecimal digits 0-9 and A-F.
      */
-    private static final char[] HEX_ALPHABET = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    static final char[] HEX_ALPHABET = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
 
     /**
      * Maximum size of the temporary buffer used for decompression operations.
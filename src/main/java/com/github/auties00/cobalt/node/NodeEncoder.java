@@ -4,13 +4,10 @@ import com.github.auties00.cobalt.exception.MalformedNodeException;
 import com.github.auties00.cobalt.model.jid.Jid;
 
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.SequencedCollection;
 import java.util.SequencedMap;
 
 import static com.github.auties00.cobalt.node.NodeTags.*;
-import static com.github.auties00.cobalt.node.NodeTokens.*;
 
 /**
  * A utility class responsible for encoding {@link Node} objects into binary format
@@ -19,7 +16,7 @@ import static com.github.auties00.cobalt.node.NodeTokens.*;
  * This encoder implements WhatsApp's proprietary binary protocol that uses token-based
  * compression to reduce message size. The encoding process involves:
  * <ul>
- *   <li>Converting strings to dictionary tokens when possible (using single-byte or multi-dictionary lookup)</li>
+ *   <li>Converting strings to dictionary tokens when possible (using a single perfect hash lookup across all dictionaries)</li>
  *   <li>Encoding binary data with length prefixes</li>
  *   <li>Efficiently serializing node trees with attributes and children</li>
  *   <li>Supporting various children types: text, binary buffers, JIDs, streams, and child nodes</li>
@@ -35,10 +32,12 @@ import static com.github.auties00.cobalt.node.NodeTokens.*;
  * <p>
  * This class is thread-safe as all methods are static and operate on provided parameters
  * without shared mutable state.
+ * {@link NodeFrameEncoder} uses the same writers to encode a node in a single pass, without sizing it first.
  *
  * @see Node
  * @see NodeDecoder
  * @see NodeTokens
+ * @see NodeFrameEncoder
  * @see NodeTags
  */
 public final class NodeEncoder {
@@ -57,6 +56,11 @@ public final class NodeEncoder {
      */
     private static final int INT_20_MAX_VALUE = 1048576;
 
+    /**
+     * Maximum length, in chars, of a string whose UTF-8 encoding always fits in 255 bytes.
+     */
+    private static final int MAX_SHORT_STRING_LENGTH = (UNSIGNED_BYTE_MAX_VALUE - 1) / 3;
+
     /**
      * Private constructor to prevent instantiation of this utility class.
      *
@@ -132,29 +136,9 @@ public final class NodeEncoder {
             return 2;
         }
 
-        var singleByteTokenIndex = SINGLE_BYTE_TOKENS.indexOf(input);
-        if (singleByteTokenIndex != -1) {
-            return 1;
-        }
-
-        var dictionary0TokenIndex = DICTIONARY_0_TOKENS.indexOf(input);
-        if (dictionary0TokenIndex != -1) {
-            return 2;
-        }
-
-        var dictionary1TokenIndex = DICTIONARY_1_TOKENS.indexOf(input);
-        if (dictionary1TokenIndex != -1) {
-            return 2;
-        }
-
-        var dictionary2TokenIndex = DICTIONARY_2_TOKENS.indexOf(input);
-        if (dictionary2TokenIndex != -1) {
-            return 2;
-        }
-
-        var dictionary3TokenIndex = DICTIONARY_3_TOKENS.indexOf(input);
-        if (dictionary3TokenIndex != -1) {
-            return 2;
+        var token = NodeTokenIndex.lookup(input);
+        if (token != NodeTokenIndex.NOT_FOUND) {
+            return NodeTokenIndex.isDoubleByte(token) ? 2 : 1;
         }
 
         var length = calculateUtf8Length(input);
@@ -228,6 +212,7 @@ public final class NodeEncoder {
     private static int contentLength(Node node){
         return switch (node) {
             case Node.BytesNode(var _, var _, var bytes) -> bytesLength(bytes);
+            case Node.BufferNode(var _, var _, var buffer) -> calculateLength(buffer.remaining());
             case Node.ContainerNode(var _, var _, var children) -> childrenLength(children);
             case Node.EmptyNode _ -> 0;
             case Node.JidNode(var _, var _, var jid) -> jidLength(jid);
@@ -356,7 +341,7 @@ public final class NodeEncoder {
      * @return the new offset after writing
      * @throws IllegalArgumentException if the size exceeds the maximum supported value
      */
-    private static int writeList(int size, byte[] output, int offset) {
+    static int writeList(int size, byte[] output, int offset) {
         if (size < UNSIGNED_BYTE_MAX_VALUE) {
             return writeList8((byte) size, output, offset);
         }else if (size < UNSIGNED_SHORT_MAX_VALUE) {
@@ -410,59 +395,72 @@ public final class NodeEncoder {
      * @param output the output byte array
      * @param offset the current offset in the output array
      * @return the new offset after writing
-     * @throws RuntimeException if UTF-8 encoding fails
+     * @throws IllegalArgumentException if the string contains an unpaired surrogate
      */
-    private static int writeString(String input, byte[] output, int offset){
+    static int writeString(String input, byte[] output, int offset){
         if (input.isEmpty()) {
             output[offset++] = BINARY_8;
             output[offset++] = LIST_EMPTY;
             return offset;
         }
 
-        var singleByteTokenIndex = SINGLE_BYTE_TOKENS.indexOf(input);
-        if (singleByteTokenIndex != -1) {
-            output[offset++] = (byte) singleByteTokenIndex;
-            return offset;
-        }
-
-        var dictionary0TokenIndex = DICTIONARY_0_TOKENS.indexOf(input);
-        if (dictionary0TokenIndex != -1) {
-            output[offset++] = DICTIONARY_0;
-            output[offset++] = (byte) dictionary0TokenIndex;
-            return offset;
-        }
-
-        var dictionary1TokenIndex = DICTIONARY_1_TOKENS.indexOf(input);
-        if (dictionary1TokenIndex != -1) {
-            output[offset++] = DICTIONARY_1;
-            output[offset++] = (byte) dictionary1TokenIndex;
-            return offset;
-        }
-
-        var dictionary2TokenIndex = DICTIONARY_2_TOKENS.indexOf(input);
-        if (dictionary2TokenIndex != -1) {
-            output[offset++] = DICTIONARY_2;
-            output[offset++] = (byte) dictionary2TokenIndex;
+        var token = NodeTokenIndex.lookup(input);
+        if (token != NodeTokenIndex.NOT_FOUND) {
+            if (NodeTokenIndex.isDoubleByte(token)) {
+                output[offset++] = (byte) (token >> 8);
+            }
+            output[offset++] = (byte) token;
             return offset;
         }
 
-        var dictionary3TokenIndex = DICTIONARY_3_TOKENS.indexOf(input);
-        if (dictionary3TokenIndex != -1) {
-            output[offset++] = DICTIONARY_3;
-            output[offset++] = (byte) dictionary3TokenIndex;
-            return offset;
+        // The length of a short string fits in a byte whatever its content, so it's written after the string
+        if (input.length() <= MAX_SHORT_STRING_LENGTH) {
+            output[offset] = BINARY_8;
+            var end = writeUtf8(input, output, offset + 2);
+            output[offset + 1] = (byte) (end - offset - 2);
+            return end;
         }
 
         var length = calculateUtf8Length(input);
         offset = writeBinary(length, output, offset);
-        var encoder = StandardCharsets.UTF_8.newEncoder();
-        var inputBuffer = CharBuffer.wrap(input);
-        var outputBuffer = ByteBuffer.wrap(output, offset, output.length - offset);
-        var result = encoder.encode(inputBuffer, outputBuffer, true);
-        if(result.isError()) {
-            throw new RuntimeException("Cannot encode value: " + result);
+        return writeUtf8(input, output, offset);
+    }
+
+    /**
+     * Writes a string as UTF-8, without a length prefix.
+     *
+     * @param input the string to write
+     * @param output the output byte array
+     * @param offset the current offset in the output array
+     * @return the new offset after writing
+     * @throws IllegalArgumentException if the string contains an unpaired surrogate
+     */
+    private static int writeUtf8(String input, byte[] output, int offset) {
+        var length = input.length();
+        for (var i = 0; i < length; i++) {
+            var ch = input.charAt(i);
+            if (ch <= 0x7F) {
+                output[offset++] = (byte) ch;
+            } else if (ch <= 0x7FF) {
+                output[offset++] = (byte) (0xC0 | (ch >> 6));
+                output[offset++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                if (!Character.isHighSurrogate(ch) || i + 1 >= length || !Character.isLowSurrogate(input.charAt(i + 1))) {
+                    throw new IllegalArgumentException("Cannot encode value: unpaired surrogate at index " + i);
+                }
+
+                var codePoint = Character.toCodePoint(ch, input.charAt(++i));
+                output[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                output[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                output[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                output[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                output[offset++] = (byte) (0xE0 | (ch >> 12));
+                output[offset++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                output[offset++] = (byte) (0x80 | (ch & 0x3F));
+            }
         }
-        return offset + length;
+        return offset;
     }
 
     /**
@@ -554,7 +552,7 @@ public final class NodeEncoder {
      * @param offset the current offset in the output array
      * @return the new offset after writing
      */
-    private static int writeAttribute(NodeAttribute attribute, byte[] output, int offset) {
+    static int writeAttribute(NodeAttribute attribute, byte[] output, int offset) {
         return switch (attribute) {
             case NodeAttribute.BytesAttribute(var buffer) -> writeBytes(buffer, output, offset);
             case NodeAttribute.JidAttribute(var jid) -> writeJid(jid, output, offset);
@@ -574,6 +572,7 @@ public final class NodeEncoder {
         return switch (content) {
             case Node.EmptyNode _ -> offset;
             case Node.BytesNode(var _, var _, var buffer) -> writeBytes(buffer, output, offset);
+            case Node.BufferNode(var _, var _, var buffer) -> writeBytes(buffer, output, offset);
             case Node.ContainerNode(var _, var _, var children) -> writeChildren(children, output, offset);
             case Node.JidNode(var _, var _, var jid) -> writeJid(jid, output, offset);
             case Node.TextNode(var _, var _, var text) -> writeString(text, output, offset);
@@ -604,13 +603,28 @@ public final class NodeEncoder {
      * @param offset the current offset in the output array
      * @return the new offset after writing
      */
-    private static int writeBytes(byte[] buffer, byte[] output, int offset){
+    static int writeBytes(byte[] buffer, byte[] output, int offset){
         var length = buffer.length;
         offset = writeBinary(length, output, offset);
         System.arraycopy(buffer, 0, output, offset, length);
         return offset + length;
     }
 
+    /**
+     * Writes the remaining bytes of a buffer with a length prefix, without changing its position.
+     *
+     * @param buffer the buffer to write
+     * @param output the output byte array
+     * @param offset the current offset in the output array
+     * @return the new offset after writing
+     */
+    static int writeBytes(ByteBuffer buffer, byte[] output, int offset){
+        var length = buffer.remaining();
+        offset = writeBinary(length, output, offset);
+        buffer.get(buffer.position(), output, offset, length);
+        return offset + length;
+    }
+
     /**
      * Writes a WhatsApp JID.
      * <p>
@@ -625,7 +639,7 @@ public final class NodeEncoder {
      * @param offset the current offset in the output array
      * @return the new offset after writing
      */
-    private static int writeJid(Jid jid, byte[] output, int offset){
+    static int writeJid(Jid jid, byte[] output, int offset){
         if (jid.hasAgent() || jid.hasDevice()) {
             output[offset++] = AD_JID;
             output[offset++] = (byte) jid.agent();
@@ -0,0 +1,199 @@
+package com.github.auties00.cobalt.node;
+
+import com.github.auties00.cobalt.model.jid.Jid;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * An encoder that serializes {@link Node} objects into frames in a single pass.
+ * <p>
+ * {@link NodeEncoder#sizeOf(Node)} walks the whole tree to size the output before {@link NodeEncoder#encode(Node, byte[], int, int)} walks it again,
+ * which doubles the cost of stanzas with thousands of children, like the fan-out of a group message.
+ * This encoder walks the tree once: before each part of a node is written, it makes sure that the buffer has room for the longest encoding of that part,
+ * and replaces the buffer with one twice as large when it doesn't.
+ * Buffers are acquired from, and returned to, the allocator the encoder was created with, so they can be pooled by the connection that owns the encoder.
+ * The first buffer of a frame is as large as the previous frame, so that most frames are encoded without growing it.
+ * <p>
+ * The bytes written are the same as the ones written by {@link NodeEncoder}.
+ * This class is not thread safe: frames must be encoded one at a time.
+ *
+ * @see NodeEncoder
+ */
+public final class NodeFrameEncoder {
+    /**
+     * The length of the first buffer acquired by an encoder.
+     */
+    private static final int MIN_BUFFER_LENGTH = 1024;
+
+    /**
+     * The maximum length of the first buffer of a frame, so that a single large frame doesn't inflate the following ones.
+     */
+    private static final int MAX_INITIAL_BUFFER_LENGTH = 64 * 1024;
+
+    /**
+     * The maximum number of bytes used to encode a list size or a binary length prefix.
+     */
+    private static final int MAX_PREFIX_LENGTH = 5;
+
+    /**
+     * The maximum number of bytes used to encode a char as UTF-8.
+     */
+    private static final int MAX_UTF8_BYTES_PER_CHAR = 3;
+
+    private final IntFunction<ByteBuffer> allocator;
+    private final Consumer<ByteBuffer> releaser;
+    private ByteBuffer buffer;
+    private byte[] output;
+    private int position;
+    private int lastLength;
+
+    /**
+     * Constructs an encoder that allocates a new buffer for every frame
+     */
+    public NodeFrameEncoder() {
+        this(ByteBuffer::allocate, _ -> {});
+    }
+
+    /**
+     * Constructs an encoder that acquires and releases its buffers using the provided functions
+     *
+     * @param allocator a function that returns a heap buffer, whose array offset is zero, with room for at least the requested number of bytes
+     * @param releaser  a function that takes back a buffer that the encoder outgrew
+     */
+    public NodeFrameEncoder(IntFunction<ByteBuffer> allocator, Consumer<ByteBuffer> releaser) {
+        this.allocator = Objects.requireNonNull(allocator, "allocator cannot be null");
+        this.releaser = Objects.requireNonNull(releaser, "releaser cannot be null");
+        this.lastLength = MIN_BUFFER_LENGTH;
+    }
+
+    /**
+     * Encodes a node into a frame.
+     * <p>
+     * The returned buffer has a position of zero, and a limit right after the trailer:
+     * the encoded node starts at {@code header} and is {@code limit - header - trailer} bytes long.
+     * The header and the trailer are left for the caller to fill.
+     * The caller owns the returned buffer, and should release it when the frame was written.
+     *
+     * @param node    the node to encode
+     * @param header  the number of bytes to leave before the encoded node
+     * @param trailer the number of bytes to leave after the encoded node
+     * @return a non-null heap buffer
+     * @throws IllegalArgumentException if the header or the trailer are negative, or if the node is too large to encode
+     */
+    public ByteBuffer encode(Node node, int header, int trailer) {
+        Objects.requireNonNull(node, "node cannot be null");
+        if (header < 0) {
+            throw new IllegalArgumentException("header cannot be negative");
+        }
+
+        if (trailer < 0) {
+            throw new IllegalArgumentException("trailer cannot be negative");
+        }
+
+        acquire(Math.max(header + lastLength + trailer, MIN_BUFFER_LENGTH));
+        try {
+            this.position = header;
+            ensureCapacity(1);
+            output[position++] = 0;
+            writeNode(node);
+            ensureCapacity(trailer);
+            var length = position + trailer;
+            this.lastLength = Math.min(length - header - trailer, MAX_INITIAL_BUFFER_LENGTH);
+            return buffer.clear()
+                    .limit(length);
+        } catch (Throwable throwable) {
+            releaser.accept(buffer);
+            throw throwable;
+        } finally {
+            this.buffer = null;
+            this.output = null;
+        }
+    }
+
+    private void acquire(int length) {
+        var result = allocator.apply(length);
+        if (!result.hasArray() || result.arrayOffset() != 0 || result.capacity() < length) {
+            throw new IllegalStateException("The allocator must return a heap buffer, with an array offset of zero, of at least " + length + " bytes");
+        }
+
+        this.buffer = result;
+        this.output = result.array();
+    }
+
+    // The length is a long so that the upper bound of a large string doesn't overflow
+    private void ensureCapacity(long length) {
+        var required = position + length;
+        if (required <= output.length) {
+            return;
+        }
+
+        if (required > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot encode node: overflow");
+        }
+
+        var oldBuffer = buffer;
+        var oldOutput = output;
+        acquire((int) Math.min(Math.max(required, (long) oldOutput.length * 2), Integer.MAX_VALUE));
+        System.arraycopy(oldOutput, 0, output, 0, position);
+        releaser.accept(oldBuffer);
+    }
+
+    private void writeNode(Node node) {
+        ensureCapacity(MAX_PREFIX_LENGTH);
+        position = NodeEncoder.writeList(node.size(), output, position);
+        writeString(node.description());
+        for (var entry : node.attributes().entrySet()) {
+            writeString(entry.getKey());
+            var attribute = entry.getValue();
+            ensureCapacity(maxAttributeLength(attribute));
+            position = NodeEncoder.writeAttribute(attribute, output, position);
+        }
+        switch (node) {
+            case Node.EmptyNode _ -> {}
+            case Node.BytesNode(var _, var _, var bytes) -> {
+                ensureCapacity(MAX_PREFIX_LENGTH + bytes.length);
+                position = NodeEncoder.writeBytes(bytes, output, position);
+            }
+            case Node.BufferNode(var _, var _, var bytes) -> {
+                ensureCapacity(MAX_PREFIX_LENGTH + bytes.remaining());
+                position = NodeEncoder.writeBytes(bytes, output, position);
+            }
+            case Node.ContainerNode(var _, var _, var children) -> {
+                ensureCapacity(MAX_PREFIX_LENGTH);
+                position = NodeEncoder.writeList(children.size(), output, position);
+                for (var child : children) {
+                    writeNode(child);
+                }
+            }
+            case Node.JidNode(var _, var _, var jid) -> {
+                ensureCapacity(maxJidLength(jid));
+                position = NodeEncoder.writeJid(jid, output, position);
+            }
+            case Node.TextNode(var _, var _, var text) -> writeString(text);
+        }
+    }
+
+    private void writeString(String input) {
+        ensureCapacity(maxStringLength(input));
+        position = NodeEncoder.writeString(input, output, position);
+    }
+
+    private static long maxStringLength(String input) {
+        return input == null ? 0 : MAX_PREFIX_LENGTH + (long) input.length() * MAX_UTF8_BYTES_PER_CHAR;
+    }
+
+    private static long maxJidLength(Jid jid) {
+        return 3 + maxStringLength(jid.user()) + maxStringLength(jid.server().address());
+    }
+
+    private static long maxAttributeLength(NodeAttribute attribute) {
+        return switch (attribute) {
+            case NodeAttribute.BytesAttribute(var bytes) -> MAX_PREFIX_LENGTH + bytes.length;
+            case NodeAttribute.TextAttribute(var literal) -> maxStringLength(literal);
+            case NodeAttribute.JidAttribute(var jid) -> maxJidLength(jid);
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.auties00.cobalt.node;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * The attributes of a node decoded by {@link NodeSliceDecoder}, which are parsed from the frame the first time they are accessed.
+ * <p>
+ * This map is unmodifiable and thread safe: if more threads access it at the same time before it was parsed,
+ * each of them might parse it, but they all observe the same attributes.
+ */
+final class NodeSliceAttributes extends AbstractMap<String, NodeAttribute> implements SequencedMap<String, NodeAttribute> {
+    private static final NodeSliceAttributes EMPTY = new NodeSliceAttributes(null, 0, 0, 0);
+
+    private final byte[] frame;
+    private final int offset;
+    private final int limit;
+    private final int count;
+    private volatile SequencedMap<String, NodeAttribute> parsed;
+
+    private NodeSliceAttributes(byte[] frame, int offset, int limit, int count) {
+        this.frame = frame;
+        this.offset = offset;
+        this.limit = limit;
+        this.count = count;
+    }
+
+    /**
+     * Returns the attributes encoded in a range of a frame
+     *
+     * @param frame  the frame
+     * @param offset the offset of the first attribute in the frame
+     * @param limit  the offset of the first byte after the last attribute in the frame
+     * @param count  the number of attributes
+     * @return a non-null map
+     */
+    static NodeSliceAttributes of(byte[] frame, int offset, int limit, int count) {
+        return count == 0 ? EMPTY : new NodeSliceAttributes(frame, offset, limit, count);
+    }
+
+    private SequencedMap<String, NodeAttribute> parsed() {
+        var result = parsed;
+        if (result != null) {
+            return result;
+        }
+
+        if (count == 0) {
+            result = Collections.unmodifiableSequencedMap(new LinkedHashMap<>());
+        } else {
+            try {
+                result = Collections.unmodifiableSequencedMap(NodeSliceDecoder.readAttributes(frame, offset, limit, count));
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot decode attributes", exception);
+            }
+        }
+        this.parsed = result;
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return count == 0 ? 0 : parsed().size();
+    }
+
+    // Known without parsing the attributes, as the node header counts them
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public NodeAttribute get(Object key) {
+        return count == 0 ? null : parsed().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return count != 0 && parsed().containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, NodeAttribute>> entrySet() {
+        return parsed().entrySet();
+    }
+
+    @Override
+    public SequencedMap<String, NodeAttribute> reversed() {
+        return parsed().reversed();
+    }
+}
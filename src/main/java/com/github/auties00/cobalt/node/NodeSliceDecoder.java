@@ -0,0 +1,397 @@
+package com.github.auties00.cobalt.node;
+
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.github.auties00.cobalt.node.NodeDecoder.HEX_ALPHABET;
+import static com.github.auties00.cobalt.node.NodeDecoder.NIBBLE_ALPHABET;
+import static com.github.auties00.cobalt.node.NodeTags.*;
+import static com.github.auties00.cobalt.node.NodeTokens.*;
+
+/**
+ * A decoder for deserializing WhatsApp protocol nodes that are backed by the frame they were read from.
+ * <p>
+ * {@link NodeDecoder} copies every binary payload into a new array and parses the attributes of every node into a map,
+ * even though most of that work is thrown away: the payloads of {@code enc} nodes are only handed to the Signal ciphers,
+ * and most attributes of the children of receipts are never read.
+ * This decoder reads the same binary format, but:
+ * <ul>
+ *     <li>binary content is exposed as a {@link Node.BufferNode}, a read-only view of the frame</li>
+ *     <li>attributes are skipped while the node is decoded, and are parsed the first time they are accessed</li>
+ *     <li>strings that are not tokens are decoded as UTF-8, directly from the frame</li>
+ * </ul>
+ * <p>
+ * The nodes reference the frame for as long as they are reachable, so it must not be modified or reused after it's decoded,
+ * unless {@link #isSourceRetained()} returns false: compressed frames are inflated into a new array.
+ * <p>
+ * Usage example:
+ * <pre>{@code
+ * try (var decoder = new NodeSliceDecoder(ByteBuffer.wrap(encodedData))) {
+ *     Node node = decoder.decode();
+ * }
+ * }</pre>
+ *
+ * @see NodeDecoder
+ * @see Node.BufferNode
+ */
+public final class NodeSliceDecoder implements AutoCloseable {
+    /**
+     * The minimum length of the array a compressed frame is inflated into.
+     */
+    private static final int MIN_INFLATED_LENGTH = 1024;
+
+    /**
+     * The frame the nodes are decoded from.
+     */
+    private final byte[] frame;
+
+    /**
+     * The offset, in the frame, of the first byte after the encoded nodes.
+     */
+    private final int limit;
+
+    /**
+     * Whether the frame is the array of the source.
+     */
+    private final boolean sourceRetained;
+
+    /**
+     * The offset, in the frame, of the next byte to read.
+     */
+    private int position;
+
+    /**
+     * Constructs a new NodeSliceDecoder with the provided ByteBuffer.
+     * <p>
+     * The source is consumed by this constructor: if it's compressed, it's inflated into a new array,
+     * otherwise the nodes are decoded from its array, if it has an accessible one, or from a copy.
+     *
+     * @param source the ByteBuffer containing the encoded node data
+     * @throws IOException if the source is compressed and cannot be inflated
+     */
+    public NodeSliceDecoder(ByteBuffer source) throws IOException {
+        Objects.requireNonNull(source, "source cannot be null");
+        var flags = source.get() & 0xFF;
+        if ((flags & 2) != 0) {
+            this.frame = inflate(source);
+            this.position = 0;
+            this.limit = frame.length;
+            this.sourceRetained = false;
+        } else if (source.hasArray()) {
+            this.frame = source.array();
+            this.position = source.arrayOffset() + source.position();
+            this.limit = source.arrayOffset() + source.limit();
+            this.sourceRetained = true;
+            source.position(source.limit());
+        } else {
+            this.frame = new byte[source.remaining()];
+            source.get(frame);
+            this.position = 0;
+            this.limit = frame.length;
+            this.sourceRetained = false;
+        }
+    }
+
+    private NodeSliceDecoder(byte[] frame, int position, int limit) {
+        this.frame = frame;
+        this.position = position;
+        this.limit = limit;
+        this.sourceRetained = false;
+    }
+
+    // Compressed frames are rare and small, so there is no point in inflating them incrementally
+    private static byte[] inflate(ByteBuffer source) throws IOException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(source);
+            var result = new byte[Math.max(source.remaining() * 4, MIN_INFLATED_LENGTH)];
+            var length = 0;
+            while (!inflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+
+                var inflated = inflater.inflate(result, length, result.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Unexpected end of compressed data");
+                }
+
+                length += inflated;
+            }
+            return length == result.length ? result : Arrays.copyOf(result, length);
+        } catch (DataFormatException exception) {
+            throw new IOException("Decompression error", exception);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Parses the attributes encoded in a range of a frame
+     *
+     * @param frame  the frame
+     * @param offset the offset of the first attribute in the frame
+     * @param limit  the offset of the first byte after the last attribute in the frame
+     * @param count  the number of attributes
+     * @return a sequenced map of attribute keys to {@link NodeAttribute} values
+     * @throws IOException if the attributes are malformed
+     */
+    static SequencedMap<String, NodeAttribute> readAttributes(byte[] frame, int offset, int limit, int count) throws IOException {
+        var decoder = new NodeSliceDecoder(frame, offset, limit);
+        var attributes = new LinkedHashMap<String, NodeAttribute>();
+        for (var index = 0; index < count; index++) {
+            var key = decoder.readString();
+            var value = decoder.readAttribute();
+            attributes.put(key, value);
+        }
+        return attributes;
+    }
+
+    /**
+     * Decodes a node from the frame.
+     *
+     * @return the decoded {@link Node}
+     * @throws IOException if the frame is malformed
+     */
+    public Node decode() throws IOException {
+        return readNode();
+    }
+
+    /**
+     * Checks if there is more data available to be processed.
+     *
+     * @return true if more data is available to read, false otherwise
+     */
+    public boolean hasData() {
+        return position < limit;
+    }
+
+    /**
+     * Returns whether the decoded nodes reference the array of the source.
+     * If they do, the source must not be modified or reused while they are reachable.
+     *
+     * @return a boolean
+     */
+    public boolean isSourceRetained() {
+        return sourceRetained;
+    }
+
+    private int read() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected end of data");
+        }
+
+        return frame[position++] & 0xFF;
+    }
+
+    // Returns the offset of the first skipped byte
+    private int skip(int length) throws IOException {
+        if (length < 0 || limit - position < length) {
+            throw new IOException("Insufficient data available");
+        }
+
+        var offset = position;
+        position += length;
+        return offset;
+    }
+
+    private Node readNode() throws IOException {
+        var size = readNodeSize();
+        if (size == 0) {
+            throw new IOException("Unexpected empty node");
+        }
+
+        var description = readString();
+        var attrs = skipAttributes((size - 1) >> 1);
+
+        if ((size & 1) == 1) {
+            return new Node.EmptyNode(description, attrs);
+        }
+
+        var tag = (byte) read();
+        return switch (tag) {
+            case LIST_EMPTY -> new Node.EmptyNode(description, attrs);
+            case AD_JID -> new Node.JidNode(description, attrs, readAdJid());
+            case LIST_8 -> new Node.ContainerNode(description, attrs, readList(read()));
+            case LIST_16 -> new Node.ContainerNode(description, attrs, readList((read() << 8) | read()));
+            case JID_PAIR -> new Node.JidNode(description, attrs, readJidPair());
+            case HEX_8 -> new Node.TextNode(description, attrs, readPacked(HEX_ALPHABET));
+            case BINARY_8 -> new Node.BufferNode(description, attrs, readSlice(read()));
+            case BINARY_20 -> new Node.BufferNode(description, attrs, readSlice(readInt20()));
+            case BINARY_32 -> new Node.BufferNode(description, attrs, readSlice(readInt32()));
+            case NIBBLE_8 -> new Node.TextNode(description, attrs, readPacked(NIBBLE_ALPHABET));
+            case DICTIONARY_0 -> new Node.TextNode(description, attrs, DICTIONARY_0_TOKENS.get(read()));
+            case DICTIONARY_1 -> new Node.TextNode(description, attrs, DICTIONARY_1_TOKENS.get(read()));
+            case DICTIONARY_2 -> new Node.TextNode(description, attrs, DICTIONARY_2_TOKENS.get(read()));
+            case DICTIONARY_3 -> new Node.TextNode(description, attrs, DICTIONARY_3_TOKENS.get(read()));
+            default -> new Node.TextNode(description, attrs, SINGLE_BYTE_TOKENS.get(tag & 0xFF));
+        };
+    }
+
+    private int readNodeSize() throws IOException {
+        var token = (byte) read();
+        return switch (token) {
+            case LIST_8 -> read();
+            case LIST_16 -> (read() << 8) | read();
+            default -> throw new IllegalStateException("Unexpected value: " + token);
+        };
+    }
+
+    private int readInt20() throws IOException {
+        return (read() << 16)
+               | (read() << 8)
+               | read();
+    }
+
+    private int readInt32() throws IOException {
+        return (read() << 24)
+               | (read() << 16)
+               | (read() << 8)
+               | read();
+    }
+
+    private ByteBuffer readSlice(int length) throws IOException {
+        var offset = skip(length);
+        return ByteBuffer.wrap(frame, offset, length).asReadOnlyBuffer();
+    }
+
+    private String readString() throws IOException {
+        var tag = (byte) read();
+        return switch (tag) {
+            case LIST_EMPTY -> null;
+            case HEX_8 -> readPacked(HEX_ALPHABET);
+            case NIBBLE_8 -> readPacked(NIBBLE_ALPHABET);
+            case BINARY_8 -> readUtf8(read());
+            case BINARY_20 -> readUtf8(readInt20());
+            case BINARY_32 -> readUtf8(readInt32());
+            case DICTIONARY_0 -> DICTIONARY_0_TOKENS.get(read());
+            case DICTIONARY_1 -> DICTIONARY_1_TOKENS.get(read());
+            case DICTIONARY_2 -> DICTIONARY_2_TOKENS.get(read());
+            case DICTIONARY_3 -> DICTIONARY_3_TOKENS.get(read());
+            default -> SINGLE_BYTE_TOKENS.get(tag & 0xFF);
+        };
+    }
+
+    private String readUtf8(int length) throws IOException {
+        var offset = skip(length);
+        return new String(frame, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        var offset = skip(length);
+        return Arrays.copyOfRange(frame, offset, offset + length);
+    }
+
+    private NodeAttribute readAttribute() throws IOException {
+        var tag = (byte) read();
+        return switch (tag) {
+            case LIST_EMPTY -> null;
+            case AD_JID -> new NodeAttribute.JidAttribute(readAdJid());
+            case LIST_8 -> throw new IllegalStateException("Unexpected LIST_8 tag");
+            case LIST_16 -> throw new IllegalStateException("Unexpected LIST_16 tag");
+            case JID_PAIR -> new NodeAttribute.JidAttribute(readJidPair());
+            case HEX_8 -> new NodeAttribute.TextAttribute(readPacked(HEX_ALPHABET));
+            case BINARY_8 -> new NodeAttribute.BytesAttribute(readBytes(read()));
+            case BINARY_20 -> new NodeAttribute.BytesAttribute(readBytes(readInt20()));
+            case BINARY_32 -> new NodeAttribute.BytesAttribute(readBytes(readInt32()));
+            case NIBBLE_8 -> new NodeAttribute.TextAttribute(readPacked(NIBBLE_ALPHABET));
+            case DICTIONARY_0 -> new NodeAttribute.TextAttribute(DICTIONARY_0_TOKENS.get(read()));
+            case DICTIONARY_1 -> new NodeAttribute.TextAttribute(DICTIONARY_1_TOKENS.get(read()));
+            case DICTIONARY_2 -> new NodeAttribute.TextAttribute(DICTIONARY_2_TOKENS.get(read()));
+            case DICTIONARY_3 -> new NodeAttribute.TextAttribute(DICTIONARY_3_TOKENS.get(read()));
+            default -> new NodeAttribute.TextAttribute(SINGLE_BYTE_TOKENS.get(tag & 0xFF));
+        };
+    }
+
+    // Only finds where the attributes end: they are parsed by NodeSliceAttributes when they are first accessed
+    private SequencedMap<String, NodeAttribute> skipAttributes(int count) throws IOException {
+        var offset = position;
+        for (var index = 0; index < count; index++) {
+            skipString((byte) read());
+            skipAttribute();
+        }
+        return NodeSliceAttributes.of(frame, offset, position, count);
+    }
+
+    private void skipAttribute() throws IOException {
+        var tag = (byte) read();
+        switch (tag) {
+            case AD_JID -> {
+                skip(2);
+                skipString((byte) read());
+            }
+            case JID_PAIR -> {
+                skipString((byte) read());
+                skipString((byte) read());
+            }
+            case LIST_8 -> throw new IllegalStateException("Unexpected LIST_8 tag");
+            case LIST_16 -> throw new IllegalStateException("Unexpected LIST_16 tag");
+            default -> skipString(tag);
+        }
+    }
+
+    private void skipString(byte tag) throws IOException {
+        switch (tag) {
+            case HEX_8, NIBBLE_8 -> skip(read() & 127);
+            case BINARY_8 -> skip(read());
+            case BINARY_20 -> skip(readInt20());
+            case BINARY_32 -> skip(readInt32());
+            case DICTIONARY_0, DICTIONARY_1, DICTIONARY_2, DICTIONARY_3 -> skip(1);
+            default -> {
+                // Empty or single byte token
+            }
+        }
+    }
+
+    private SequencedCollection<Node> readList(int size) throws IOException {
+        var results = new ArrayList<Node>(size);
+        for (var index = 0; index < size; index++) {
+            results.add(readNode());
+        }
+        return results;
+    }
+
+    // Two characters are packed in each byte: see NodeDecoder
+    private String readPacked(char[] alphabet) throws IOException {
+        var token = read();
+        var start = token >>> 7;
+        var end = token & 127;
+        var string = new char[2 * end - start];
+        for (var index = 0; index < string.length - 1; index += 2) {
+            token = read();
+            string[index] = alphabet[token >>> 4];
+            string[index + 1] = alphabet[15 & token];
+        }
+        if (start != 0) {
+            token = read();
+            string[string.length - 1] = alphabet[token >>> 4];
+        }
+        return String.valueOf(string);
+    }
+
+    private Jid readJidPair() throws IOException {
+        var user = readString();
+        var server = JidServer.of(Objects.requireNonNull(readString(), "Malformed value pair: no server"));
+        return user == null ? Jid.of(server) : Jid.of(user, server);
+    }
+
+    private Jid readAdJid() throws IOException {
+        var agent = read();
+        var device = read();
+        var user = readString();
+        var server = agent == 0 ? JidServer.user() : JidServer.lid();
+        return Jid.of(user, server, device, agent);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release: compressed frames are inflated when the decoder is created
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.auties00.cobalt.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static com.github.auties00.cobalt.node.NodeTags.*;
+import static com.github.auties00.cobalt.node.NodeTokens.*;
+
+/**
+ * A perfect hash table of the tokens of every dictionary in {@link NodeTokens}, used by the encoders to tokenize strings.
+ * <p>
+ * Looking up a string in each dictionary, in order, costs up to five hash lookups for every string that isn't a token.
+ * This table is built once with the hash and displace algorithm:
+ * tokens are grouped in buckets by their hash, and each bucket is assigned a seed that maps its tokens to free slots,
+ * so a lookup only hashes the string twice and compares it with a single token.
+ * When a string is a token of more than one dictionary, the table keeps the encoding the encoders used to prefer:
+ * single byte tokens first, then the dictionaries in order.
+ */
+final class NodeTokenIndex {
+    /**
+     * The value returned by {@link #lookup(String)} when a string is not a token
+     */
+    static final int NOT_FOUND = -1;
+
+    // The slots are at most half full, so that a seed is found quickly for every bucket
+    private static final int SLOTS_PER_TOKEN = 2;
+    private static final int MAX_SEED = 1 << 20;
+
+    private static final String[] TOKENS;
+    private static final int[] CODES;
+    private static final int[] SEEDS;
+    private static final int SLOT_MASK;
+    private static final int BUCKET_MASK;
+
+    static {
+        var codes = new LinkedHashMap<String, Integer>();
+        addTokens(codes, SINGLE_BYTE_TOKENS, 0);
+        addTokens(codes, DICTIONARY_0_TOKENS, DICTIONARY_0 & 0xFF);
+        addTokens(codes, DICTIONARY_1_TOKENS, DICTIONARY_1 & 0xFF);
+        addTokens(codes, DICTIONARY_2_TOKENS, DICTIONARY_2 & 0xFF);
+        addTokens(codes, DICTIONARY_3_TOKENS, DICTIONARY_3 & 0xFF);
+
+        var slots = Integer.highestOneBit(codes.size() * SLOTS_PER_TOKEN - 1) << 1;
+        var buckets = slots / (SLOTS_PER_TOKEN * 2);
+        TOKENS = new String[slots];
+        CODES = new int[slots];
+        SEEDS = new int[buckets];
+        SLOT_MASK = slots - 1;
+        BUCKET_MASK = buckets - 1;
+
+        var bucketTokens = new ArrayList<List<String>>(buckets);
+        for (var bucket = 0; bucket < buckets; bucket++) {
+            bucketTokens.add(new ArrayList<>());
+        }
+        for (var token : codes.keySet()) {
+            bucketTokens.get(hash(token.hashCode(), 0) & BUCKET_MASK).add(token);
+        }
+
+        // The largest buckets are the hardest to place, so they are placed while most slots are still free
+        var order = new Integer[buckets];
+        Arrays.setAll(order, index -> index);
+        Arrays.sort(order, Comparator.comparingInt((Integer bucket) -> bucketTokens.get(bucket).size()).reversed());
+        for (var bucket : order) {
+            var tokens = bucketTokens.get(bucket);
+            if (!tokens.isEmpty()) {
+                SEEDS[bucket] = place(tokens, codes);
+            }
+        }
+    }
+
+    private NodeTokenIndex() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    private static void addTokens(LinkedHashMap<String, Integer> codes, NodeTokens dictionary, int tag) {
+        for (var index = 0; ; index++) {
+            var token = dictionary.get(index);
+            if (token == null) {
+                return;
+            }
+
+            // The empty string is always encoded as an empty binary
+            if (!token.isEmpty()) {
+                codes.putIfAbsent(token, tag == 0 ? index : tag << 8 | index);
+            }
+        }
+    }
+
+    private static int place(List<String> tokens, LinkedHashMap<String, Integer> codes) {
+        var slots = new int[tokens.size()];
+        for (var seed = 1; seed < MAX_SEED; seed++) {
+            if (tryPlace(tokens, seed, slots)) {
+                for (var index = 0; index < slots.length; index++) {
+                    var token = tokens.get(index);
+                    TOKENS[slots[index]] = token;
+                    CODES[slots[index]] = codes.get(token);
+                }
+                return seed;
+            }
+        }
+        throw new IllegalStateException("Cannot build token index: no seed found for " + tokens);
+    }
+
+    private static boolean tryPlace(List<String> tokens, int seed, int[] slots) {
+        for (var index = 0; index < slots.length; index++) {
+            var slot = hash(tokens.get(index).hashCode(), seed) & SLOT_MASK;
+            if (TOKENS[slot] != null) {
+                return false;
+            }
+
+            for (var previous = 0; previous < index; previous++) {
+                if (slots[previous] == slot) {
+                    return false;
+                }
+            }
+
+            slots[index] = slot;
+        }
+        return true;
+    }
+
+    private static int hash(int hash, int seed) {
+        hash = (hash ^ seed) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns how a string is tokenized.
+     * <p>
+     * A single byte token is returned as its index, which is never greater than {@code 0xFF},
+     * while a double byte token is returned as its dictionary tag followed by its index.
+     *
+     * @param value the string to tokenize
+     * @return the token, or {@link #NOT_FOUND} if the string is not a token
+     */
+    static int lookup(String value) {
+        var hash = value.hashCode();
+        var slot = hash(hash, SEEDS[hash(hash, 0) & BUCKET_MASK]) & SLOT_MASK;
+        var token = TOKENS[slot];
+        return token != null && token.equals(value) ? CODES[slot] : NOT_FOUND;
+    }
+
+    /**
+     * Returns whether a token returned by {@link #lookup(String)} is encoded as two bytes
+     *
+     * @param token the token
+     * @return a boolean
+     */
+    static boolean isDoubleByte(int token) {
+        return token > 0xFF;
+    }
+}
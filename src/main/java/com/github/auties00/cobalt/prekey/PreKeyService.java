@@ -0,0 +1,229 @@
+package com.github.auties00.cobalt.prekey;
+
+import com.github.auties00.cobalt.client.WhatsAppClient;
+import com.github.auties00.cobalt.client.WhatsAppClientErrorHandler;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+import com.github.auties00.cobalt.util.SecureBytes;
+import com.github.auties00.libsignal.key.SignalIdentityPublicKey;
+import com.github.auties00.libsignal.key.SignalPreKeyPair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that keeps a pool of one-time pre-keys ready to be uploaded.
+ * <p>
+ * Generating a pre-key requires a Curve25519 key pair, so generating the hundreds of pre-keys WhatsApp asks for
+ * is too slow to be done on the thread that handles the {@code encrypt} notification.
+ * This service generates pre-keys ahead of time on a low priority thread, and stores them in the
+ * {@link com.github.auties00.cobalt.store.WhatsAppStore} until they are needed, so that they survive restarts.
+ * When WhatsApp asks for new pre-keys, they are taken from the pool and uploaded on the calling thread:
+ * the missing ones, if any, are generated on that thread.
+ * <p>
+ * The size of the pool is bounded by {@link com.github.auties00.cobalt.client.WhatsAppClientConfig#preKeyPoolPolicy()}.
+ */
+public final class PreKeyService {
+    /**
+     * Minimum number of pre-keys uploaded at once.
+     */
+    private static final int MIN_UPLOAD_COUNT = 5;
+
+    /**
+     * Number of pre-keys generated before they are added to the pool.
+     * <p>
+     * Keeps the generation lock short, so that an upload doesn't wait for the whole pool to be refilled.
+     */
+    private static final int GENERATION_BATCH_SIZE = 16;
+
+    private static final byte[] SIGNAL_KEY_TYPE = {SignalIdentityPublicKey.type()};
+
+    /**
+     * Low priority thread shared by all clients that generates the pre-keys of the pools.
+     */
+    private static final ExecutorService GENERATOR = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+            .name("prekey-generator")
+            .priority(Thread.MIN_PRIORITY)
+            .daemon()
+            .factory());
+
+    /**
+     * The WhatsApp client instance for error handling and store access.
+     */
+    private final WhatsAppClient whatsapp;
+
+    /**
+     * Lock that guards the assignment of pre-key ids, so that concurrent generations never reuse an id.
+     */
+    private final ReentrantLock generationLock;
+
+    /**
+     * Lock that serializes uploads, so that the server receives the pre-keys in the order of their ids.
+     */
+    private final ReentrantLock uploadLock;
+
+    /**
+     * Whether a refill of the pool was submitted, but hasn't completed yet.
+     */
+    private final AtomicBoolean refilling;
+
+    public PreKeyService(WhatsAppClient whatsapp) {
+        this.whatsapp = Objects.requireNonNull(whatsapp, "whatsapp cannot be null");
+        this.generationLock = new ReentrantLock();
+        this.uploadLock = new ReentrantLock();
+        this.refilling = new AtomicBoolean(false);
+    }
+
+    /**
+     * Refills the pool in the background if fewer than {@link com.github.auties00.cobalt.client.PreKeyPoolPolicy#lowWaterMark()}
+     * pre-keys are ready.
+     * <p>
+     * This method never blocks.
+     */
+    public void refill() {
+        var policy = whatsapp.config().preKeyPoolPolicy();
+        if (whatsapp.store().pendingPreKeysCount() >= policy.lowWaterMark()) {
+            return;
+        }
+
+        if (!refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        GENERATOR.execute(this::runRefill);
+    }
+
+    private void runRefill() {
+        try {
+            while (true) {
+                var missing = whatsapp.config().preKeyPoolPolicy().capacity() - whatsapp.store().pendingPreKeysCount();
+                if (missing <= 0) {
+                    break;
+                }
+
+                generate(Math.min(missing, GENERATION_BATCH_SIZE), true);
+            }
+        } catch (Throwable throwable) {
+            whatsapp.handleFailure(WhatsAppClientErrorHandler.Location.CRYPTOGRAPHY, throwable);
+        } finally {
+            refilling.set(false);
+        }
+    }
+
+    /**
+     * Uploads pre-keys to WhatsApp, and waits for the upload to complete.
+     * <p>
+     * The upload requested at login must complete before the session is used,
+     * as incoming sessions can only be decrypted with pre-keys that were uploaded.
+     * The pre-keys are taken from the pool, and the pool is refilled in the background afterward if needed.
+     *
+     * @param count the number of pre-keys requested by WhatsApp
+     */
+    public void upload(long count) {
+        var uploadCount = Math.clamp(count, MIN_UPLOAD_COUNT, Integer.MAX_VALUE);
+        uploadLock.lock();
+        try {
+            var preKeys = whatsapp.store().pollPendingPreKeys(uploadCount);
+            if (preKeys.size() < uploadCount) {
+                preKeys.addAll(generate(uploadCount - preKeys.size(), false));
+            }
+
+            // Pre-keys are stored before they are uploaded, so that a session started right after the upload can always be decrypted
+            for (var preKey : preKeys) {
+                whatsapp.store().addPreKey(preKey);
+            }
+
+            whatsapp.sendNode(createUploadRequest(preKeys));
+        } catch (Throwable throwable) {
+            whatsapp.handleFailure(WhatsAppClientErrorHandler.Location.CRYPTOGRAPHY, throwable);
+        } finally {
+            uploadLock.unlock();
+            refill();
+        }
+    }
+
+    private List<SignalPreKeyPair> generate(int count, boolean pool) {
+        generationLock.lock();
+        try {
+            // The last id is persisted by the store, so ids of pre-keys that were already used are never reassigned after a restart
+            var id = whatsapp.store().lastPreKeyId();
+            var result = new ArrayList<SignalPreKeyPair>(count);
+            for (var i = 0; i < count; i++) {
+                result.add(SignalPreKeyPair.random(++id));
+            }
+            whatsapp.store().setLastPreKeyId(id);
+            if (pool) {
+                for (var preKey : result) {
+                    whatsapp.store().addPendingPreKey(preKey);
+                }
+            }
+            return result;
+        } finally {
+            generationLock.unlock();
+        }
+    }
+
+    private NodeBuilder createUploadRequest(List<SignalPreKeyPair> preKeys) {
+        var store = whatsapp.store();
+        var listBody = new ArrayList<Node>(preKeys.size());
+        for (var preKeyPair : preKeys) {
+            var id = new NodeBuilder()
+                    .description("id")
+                    .content(SecureBytes.intToBytes(preKeyPair.id(), 3))
+                    .build();
+            var value = new NodeBuilder()
+                    .description("value")
+                    .content(preKeyPair.publicKey().toEncodedPoint())
+                    .build();
+            var preKeyNode = new NodeBuilder()
+                    .description("key")
+                    .content(id, value)
+                    .build();
+            listBody.add(preKeyNode);
+        }
+        var registration = new NodeBuilder()
+                .description("registration")
+                .content(SecureBytes.intToBytes(store.registrationId(), 4))
+                .build();
+        var type = new NodeBuilder()
+                .description("type")
+                .content(SIGNAL_KEY_TYPE)
+                .build();
+        var identity = new NodeBuilder()
+                .description("identity")
+                .content(store.identityKeyPair().publicKey().toEncodedPoint())
+                .build();
+        var list = new NodeBuilder()
+                .description("list")
+                .content(listBody)
+                .build();
+        var skeyId = new NodeBuilder()
+                .description("id")
+                .content(SecureBytes.intToBytes(store.signedKeyPair().id(), 3))
+                .build();
+        var skeyValue = new NodeBuilder()
+                .description("value")
+                .content(store.signedKeyPair().publicKey().toEncodedPoint())
+                .build();
+        var skeySignature = new NodeBuilder()
+                .description("signature")
+                .content(store.signedKeyPair().signature())
+                .build();
+        var skey = new NodeBuilder()
+                .description("skey")
+                .content(skeyId, skeyValue, skeySignature)
+                .build();
+        return new NodeBuilder()
+                .description("iq")
+                .attribute("to", JidServer.user())
+                .attribute("type", "set")
+                .attribute("xmlns", "encrypt")
+                .content(registration, type, identity, list, skey);
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.auties00.cobalt.socket;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of heap buffers used to read and write the frames of a connection.
+ * <p>
+ * Buffers are grouped in power of two size classes, from 1 KiB to 64 KiB, and each class retains at most 256 KiB.
+ * Larger buffers are rare, so they are allocated on demand and left to the garbage collector.
+ * Only the buffers handed out by a pool, and not released yet, are taken back by it:
+ * releasing a buffer that the caller allocated, or releasing the same buffer twice, has no effect.
+ * This class is thread safe: buffers can be acquired and released from any thread.
+ */
+final class SocketBufferPool {
+    private static final int MIN_SIZE_CLASS = 10;
+    private static final int MAX_SIZE_CLASS = 16;
+    private static final int MAX_RETAINED_BYTES_PER_CLASS = 256 * 1024;
+    private static final int MAX_RETAINED_BUFFERS_PER_CLASS = 32;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] buffers;
+
+    // The arrays of the buffers that were handed out and not released yet, which byte arrays compare by identity
+    // The keys are weak, so that a buffer that is never released, like a frame retained by a decoded node, can still be collected
+    private final Map<byte[], Boolean> acquired;
+
+    @SuppressWarnings("unchecked")
+    SocketBufferPool() {
+        this.buffers = new ArrayBlockingQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (var sizeClass = MIN_SIZE_CLASS; sizeClass <= MAX_SIZE_CLASS; sizeClass++) {
+            var retained = Math.min(MAX_RETAINED_BUFFERS_PER_CLASS, MAX_RETAINED_BYTES_PER_CLASS >> sizeClass);
+            buffers[sizeClass - MIN_SIZE_CLASS] = new ArrayBlockingQueue<>(retained);
+        }
+        this.acquired = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    /**
+     * Returns a heap buffer whose position is zero and whose limit is the requested length
+     *
+     * @param length the length of the buffer
+     * @return a non-null buffer, backed by an array whose offset is zero
+     */
+    ByteBuffer acquire(int length) {
+        var sizeClass = sizeClass(length);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            return ByteBuffer.allocate(length);
+        }
+
+        var buffer = buffers[sizeClass - MIN_SIZE_CLASS].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << sizeClass);
+        }
+
+        acquired.put(buffer.array(), Boolean.TRUE);
+        return buffer.clear()
+                .limit(length);
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * Buffers that were not acquired from this pool, or that were already released, are ignored.
+     * The buffer must not be used after this call.
+     *
+     * @param buffer the buffer to release, can be null
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isReadOnly() || !buffer.hasArray() || buffer.arrayOffset() != 0) {
+            return;
+        }
+
+        // A view of a pooled buffer, like a slice, could have a smaller capacity than its array
+        var array = buffer.array();
+        if (buffer.capacity() != array.length || acquired.remove(array) == null) {
+            return;
+        }
+
+        var sizeClass = Integer.numberOfTrailingZeros(array.length);
+        buffers[sizeClass - MIN_SIZE_CLASS].offer(buffer);
+    }
+
+    private static int sizeClass(int length) {
+        return length <= 1 << MIN_SIZE_CLASS ? MIN_SIZE_CLASS : Integer.SIZE - Integer.numberOfLeadingZeros(length - 1);
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.auties00.cobalt.socket;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * The AES-GCM cipher state of one direction of a secured connection.
+ * <p>
+ * The same {@link Cipher} is reinitialized for every frame with an IV derived from the frame counter,
+ * instead of looking up a new instance each time.
+ * This class is not thread safe: frames must be sealed, or opened, one at a time and in order.
+ */
+final class SocketCipher {
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    static final int TAG_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+
+    private final Cipher cipher;
+    private final int mode;
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private long counter;
+
+    private SocketCipher(int mode, SecretKeySpec key) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance(ALGORITHM);
+        this.mode = mode;
+        this.key = Objects.requireNonNull(key, "key cannot be null");
+        this.iv = new byte[IV_LENGTH];
+    }
+
+    /**
+     * Creates a cipher that seals outgoing frames
+     *
+     * @param key the write key negotiated during the handshake
+     * @return a non-null cipher
+     * @throws GeneralSecurityException if AES-GCM is not available
+     */
+    static SocketCipher ofWrite(SecretKeySpec key) throws GeneralSecurityException {
+        return new SocketCipher(Cipher.ENCRYPT_MODE, key);
+    }
+
+    /**
+     * Creates a cipher that opens incoming frames
+     *
+     * @param key the read key negotiated during the handshake
+     * @return a non-null cipher
+     * @throws GeneralSecurityException if AES-GCM is not available
+     */
+    static SocketCipher ofRead(SecretKeySpec key) throws GeneralSecurityException {
+        return new SocketCipher(Cipher.DECRYPT_MODE, key);
+    }
+
+    /**
+     * Returns the length of a sealed frame
+     *
+     * @param plaintextLength the length of the plaintext
+     * @return the length of the ciphertext
+     */
+    static int sealedLength(int plaintextLength) {
+        return plaintextLength + TAG_LENGTH;
+    }
+
+    /**
+     * Seals a frame in place
+     *
+     * @param buffer the array that holds the plaintext, which must have room for the authentication tag after it
+     * @param offset the offset of the plaintext
+     * @param length the length of the plaintext
+     * @return the length of the ciphertext
+     * @throws GeneralSecurityException if the frame cannot be sealed
+     */
+    int seal(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        init();
+        return cipher.doFinal(buffer, offset, length, buffer, offset);
+    }
+
+    /**
+     * Opens a frame in place: when this method returns, the buffer holds the plaintext between its position and its limit
+     *
+     * @param buffer the ciphertext, between its position and its limit
+     * @throws GeneralSecurityException if the frame cannot be opened, for example because it was tampered with
+     */
+    void open(ByteBuffer buffer) throws GeneralSecurityException {
+        init();
+        var start = buffer.position();
+        var output = buffer.duplicate();
+        cipher.doFinal(buffer, output);
+        buffer.limit(output.position());
+        buffer.position(start);
+    }
+
+    private void init() throws GeneralSecurityException {
+        var counter = this.counter++;
+        iv[4] = (byte) (counter >> 56);
+        iv[5] = (byte) (counter >> 48);
+        iv[6] = (byte) (counter >> 40);
+        iv[7] = (byte) (counter >> 32);
+        iv[8] = (byte) (counter >> 24);
+        iv[9] = (byte) (counter >> 16);
+        iv[10] = (byte) (counter >> 8);
+        iv[11] = (byte) (counter);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+    }
+}
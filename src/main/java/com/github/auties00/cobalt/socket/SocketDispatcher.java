@@ -0,0 +1,190 @@
+package com.github.auties00.cobalt.socket;
+
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks in serial lanes on a bounded number of virtual threads.
+ * <p>
+ * Tasks submitted to the same lane run one at a time, in the order they were submitted,
+ * while tasks submitted to different lanes can run concurrently.
+ * At most {@link com.github.auties00.cobalt.client.NodeDispatchPolicy#concurrency()} lanes run at the same time:
+ * workers are started on demand, and stop after being idle for a while or when the concurrency is lowered.
+ * <p>
+ * {@link #execute(String, Runnable)} never blocks, as the thread that reads inbound nodes must keep resolving the responses that the tasks wait for.
+ * Instead, the dispatcher is saturated when {@link com.github.auties00.cobalt.client.NodeDispatchPolicy#maxQueuedNodes()} tasks are queued across all lanes, until the backlog drops to half of that:
+ * the owner of the dispatcher is notified of both transitions, so that it can stop reading new nodes in the meantime.
+ * The policy is read from the configuration every time it's used, so a new policy applies to the next task.
+ */
+public final class SocketDispatcher {
+    private static final int LANE_BATCH_SIZE = 64;
+    private static final long WORKER_IDLE_TIMEOUT_SECONDS = 30;
+
+    private final WhatsAppClientConfig config;
+    private final Runnable onSaturationChanged;
+    private final ConcurrentMap<String, Lane> lanes;
+    private final LinkedBlockingQueue<Lane> readyLanes;
+    private final AtomicInteger queuedTasks;
+    private final AtomicBoolean saturated;
+    private final AtomicInteger workers;
+
+    /**
+     * Constructs a dispatcher
+     *
+     * @param config              the configuration that holds the dispatch policy
+     * @param onSaturationChanged called after the dispatcher became saturated, or stopped being saturated, which should be read using {@link #isSaturated()}
+     */
+    public SocketDispatcher(WhatsAppClientConfig config, Runnable onSaturationChanged) {
+        this.config = Objects.requireNonNull(config, "config cannot be null");
+        this.onSaturationChanged = Objects.requireNonNull(onSaturationChanged, "onSaturationChanged cannot be null");
+        this.lanes = new ConcurrentHashMap<>();
+        this.readyLanes = new LinkedBlockingQueue<>();
+        this.queuedTasks = new AtomicInteger();
+        this.saturated = new AtomicBoolean(false);
+        this.workers = new AtomicInteger();
+    }
+
+    /**
+     * Returns whether too many tasks are queued
+     *
+     * @return a boolean
+     */
+    public boolean isSaturated() {
+        return saturated.get();
+    }
+
+    /**
+     * Queues a task at the end of a lane
+     *
+     * @param key  the key of the lane
+     * @param task the task to run
+     */
+    public void execute(String key, Runnable task) {
+        // The callback can observe a newer state than the one that triggered it, so it always reads the current one
+        if (queuedTasks.incrementAndGet() >= config.nodeDispatchPolicy().maxQueuedNodes() && saturated.compareAndSet(false, true)) {
+            onSaturationChanged.run();
+        }
+
+        lanes.compute(key, (_, lane) -> {
+            if (lane == null) {
+                lane = new Lane(key);
+            }
+
+            lane.tasks.add(task);
+            if (lane.scheduled.compareAndSet(false, true)) {
+                readyLanes.add(lane);
+                startWorkerIfNeeded();
+            }
+
+            return lane;
+        });
+    }
+
+    private void startWorkerIfNeeded() {
+        while (true) {
+            var count = workers.get();
+            if (count >= config.nodeDispatchPolicy().concurrency()) {
+                return;
+            }
+
+            if (workers.compareAndSet(count, count + 1)) {
+                Thread.ofVirtual()
+                        .name("socket-dispatcher")
+                        .start(this::runWorker);
+                return;
+            }
+        }
+    }
+
+    private void runWorker() {
+        var retired = false;
+        try {
+            while (true) {
+                if (retireIfNeeded()) {
+                    retired = true;
+                    break;
+                }
+
+                var lane = readyLanes.poll(WORKER_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (lane == null) {
+                    break;
+                }
+
+                drain(lane);
+            }
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!retired) {
+                workers.decrementAndGet();
+            }
+            // A lane could have been scheduled while this worker was stopping
+            if (!readyLanes.isEmpty()) {
+                startWorkerIfNeeded();
+            }
+        }
+    }
+
+    // Stops a worker if the concurrency was lowered below the number of running workers
+    private boolean retireIfNeeded() {
+        while (true) {
+            var count = workers.get();
+            if (count <= config.nodeDispatchPolicy().concurrency()) {
+                return false;
+            }
+
+            if (workers.compareAndSet(count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void drain(Lane lane) {
+        for (var i = 0; i < LANE_BATCH_SIZE; i++) {
+            var task = lane.tasks.poll();
+            if (task == null) {
+                break;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                var thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler()
+                        .uncaughtException(thread, throwable);
+            } finally {
+                if (queuedTasks.decrementAndGet() <= config.nodeDispatchPolicy().maxQueuedNodes() / 2 && saturated.compareAndSet(true, false)) {
+                    onSaturationChanged.run();
+                }
+            }
+        }
+
+        // Lanes are rescheduled after a batch, so that a busy lane can't starve the others
+        lanes.compute(lane.key, (_, current) -> {
+            if (!lane.tasks.isEmpty()) {
+                readyLanes.add(lane);
+                return current;
+            }
+
+            lane.scheduled.set(false);
+            return current == lane ? null : current;
+        });
+    }
+
+    private static final class Lane {
+        private final String key;
+        private final Queue<Runnable> tasks;
+        private final AtomicBoolean scheduled;
+
+        private Lane(String key) {
+            this.key = key;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.scheduled = new AtomicBoolean(false);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.auties00.cobalt.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of event loops that service the connections of {@link SocketSession}s.
+ * <p>
+ * Each loop owns a selector and the thread that services it, so the reads, writes and handshakes of the connections of a group
+ * are spread across {@link #size()} threads instead of going through a single one.
+ * A new connection is assigned to the loop that services the fewest connections, and stays on it until it's closed.
+ * The thread of a loop is started when its first connection is opened, and exits when its last connection is closed.
+ * <p>
+ * All clients use the {@link #shared()} group unless they are configured otherwise.
+ * Groups are meant to be long-lived: the selectors of a group are opened when it's created, and are never closed.
+ * This class is thread safe.
+ */
+public final class SocketEventLoopGroup {
+    private static final SocketEventLoopGroup SHARED = new SocketEventLoopGroup(Runtime.getRuntime().availableProcessors());
+
+    private final SocketSession.EventLoop[] loops;
+    private final AtomicInteger nextLoop;
+
+    /**
+     * Constructs a new group with the provided number of loops
+     *
+     * @param size the number of loops, must be positive
+     * @throws IllegalArgumentException if size is not positive
+     */
+    public SocketEventLoopGroup(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        this.loops = new SocketSession.EventLoop[size];
+        for (var index = 0; index < size; index++) {
+            loops[index] = new SocketSession.EventLoop(index);
+        }
+        this.nextLoop = new AtomicInteger();
+    }
+
+    /**
+     * Returns the group used by clients that are not configured otherwise, which has a loop for each available processor
+     *
+     * @return a non-null group
+     */
+    public static SocketEventLoopGroup shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the number of loops in this group
+     *
+     * @return a positive number
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of each loop in this group, in order
+     *
+     * @return a non-null, unmodifiable list
+     */
+    public List<SocketEventLoopStats> stats() {
+        var results = new ArrayList<SocketEventLoopStats>(loops.length);
+        for (var loop : loops) {
+            results.add(loop.stats());
+        }
+        return List.copyOf(results);
+    }
+
+    // The search starts from a different loop each time, so that loops with the same number of connections are used in turn
+    SocketSession.EventLoop next() {
+        var start = Math.floorMod(nextLoop.getAndIncrement(), loops.length);
+        var result = loops[start];
+        var resultConnections = result.connections();
+        for (var offset = 1; offset < loops.length && resultConnections > 0; offset++) {
+            var candidate = loops[(start + offset) % loops.length];
+            var candidateConnections = candidate.connections();
+            if (candidateConnections < resultConnections) {
+                result = candidate;
+                resultConnections = candidateConnections;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.auties00.cobalt.socket;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the statistics of a loop of a {@link SocketEventLoopGroup}.
+ * <p>
+ * The counters are cumulative since the loop was created, so the rate of an event is the difference between two snapshots.
+ * A loop whose {@link #busyTime()} grows almost as fast as the wall clock is saturated,
+ * and its connections would benefit from a group with more loops.
+ *
+ * @param index        the index of the loop in its group
+ * @param connections  the number of connections currently serviced by the loop
+ * @param selects      the number of times the loop woke up from its selector
+ * @param handledKeys  the number of ready connections the loop handled
+ * @param bytesRead    the number of bytes the loop read from its connections
+ * @param bytesWritten the number of bytes the loop wrote to its connections
+ * @param busyTime     the time the loop spent handling ready connections, instead of waiting for them
+ */
+public record SocketEventLoopStats(int index, int connections, long selects, long handledKeys, long bytesRead, long bytesWritten, Duration busyTime) {
+
+}
@@ -0,0 +1,249 @@
+package com.github.auties00.cobalt.socket;
+
+import com.github.auties00.cobalt.client.ReceiptBatchPolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.exception.SessionClosedException;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.SequencedMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds the acks and receipts for received messages for a short window, so that they can be sent together.
+ * <p>
+ * Receipts that share their recipient, participant and type are merged into a single receipt:
+ * the first message id is the id of the receipt, and the others are listed as {@code list/item} children.
+ * Acks can't be merged, but they are handed to the socket together so that they are written in as few writes as possible.
+ * Pending nodes are sent when the window elapses, when {@link ReceiptBatchPolicy#maxPending()} nodes are pending or when {@link #flush()} is called.
+ * The policy is read from the configuration every time a node is queued, so a new policy applies to the next node.
+ * <p>
+ * Nodes are handed to the sender in the order they were queued: a batch is only taken while no other batch is being sent.
+ */
+public final class SocketReceiptBatcher {
+    private static final ScheduledThreadPoolExecutor FLUSH_SCHEDULER;
+
+    static {
+        FLUSH_SCHEDULER = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                .name("socket-receipt-flush")
+                .daemon()
+                .factory());
+        FLUSH_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final WhatsAppClientConfig config;
+    private final Consumer<List<Node>> sender;
+    private final Consumer<Throwable> failureHandler;
+    private final ReentrantLock lock;
+    private final ReentrantLock sendLock;
+    private List<Node> pendingAcks;
+    private SequencedMap<ReceiptKey, List<String>> pendingReceipts;
+    private int pendingCount;
+    private ScheduledFuture<?> flushTask;
+
+    public SocketReceiptBatcher(WhatsAppClientConfig config, Consumer<List<Node>> sender, Consumer<Throwable> failureHandler) {
+        this.config = Objects.requireNonNull(config, "config cannot be null");
+        this.sender = Objects.requireNonNull(sender, "sender cannot be null");
+        this.failureHandler = Objects.requireNonNull(failureHandler, "failureHandler cannot be null");
+        this.lock = new ReentrantLock();
+        this.sendLock = new ReentrantLock();
+        this.pendingAcks = new ArrayList<>();
+        this.pendingReceipts = new LinkedHashMap<>();
+    }
+
+    /**
+     * Queues an ack
+     *
+     * @param ack the ack to send
+     */
+    public void ack(Node ack) {
+        Objects.requireNonNull(ack, "ack cannot be null");
+        var policy = config.receiptBatchPolicy();
+        if (policy.isDisabled()) {
+            // The policy could have been disabled while nodes were pending
+            sendNow(List.of(ack));
+            return;
+        }
+
+        boolean full;
+        lock.lock();
+        try {
+            pendingAcks.add(ack);
+            full = onPending(policy);
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues a receipt for a message
+     *
+     * @param id          the id of the message
+     * @param to          the jid the receipt is sent to, or null
+     * @param participant the participant that sent the message, or null
+     * @param recipient   the recipient of the message, or null
+     * @param type        the type of the receipt, or null for a delivery receipt
+     */
+    public void receipt(String id, Jid to, Jid participant, Jid recipient, String type) {
+        Objects.requireNonNull(id, "id cannot be null");
+        var key = new ReceiptKey(to, participant, recipient, type);
+        var policy = config.receiptBatchPolicy();
+        if (policy.isDisabled()) {
+            sendNow(List.of(key.toNode(List.of(id))));
+            return;
+        }
+
+        boolean full;
+        lock.lock();
+        try {
+            pendingReceipts.computeIfAbsent(key, _ -> new ArrayList<>())
+                    .add(id);
+            full = onPending(policy);
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    private boolean onPending(ReceiptBatchPolicy policy) {
+        pendingCount++;
+        if (flushTask == null) {
+            this.flushTask = FLUSH_SCHEDULER.schedule(this::flushSafely, policy.window().toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return pendingCount >= policy.maxPending();
+    }
+
+    // Runs on the scheduler, so failures are reported to the failure handler instead of being thrown
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (SessionClosedException _) {
+            // The socket was closed: the server will deliver the messages again
+        } catch (Throwable throwable) {
+            failureHandler.accept(throwable);
+        }
+    }
+
+    // The nodes that are still pending were queued first, so they are sent before the new ones
+    private void sendNow(List<Node> nodes) {
+        sendLock.lock();
+        try {
+            flush();
+            sender.accept(nodes);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the pending acks, then the pending receipts
+     */
+    public void flush() {
+        // The send lock is held from when the pending nodes are taken until they are sent,
+        // so that a batch that was taken later, like by a full batch while the window elapses, can't be sent first.
+        // The lock that guards the pending nodes is released before sending, so nodes can still be queued meanwhile
+        sendLock.lock();
+        try {
+            List<Node> acks;
+            SequencedMap<ReceiptKey, List<String>> receipts;
+            lock.lock();
+            try {
+                if (pendingCount == 0) {
+                    return;
+                }
+
+                acks = pendingAcks;
+                receipts = pendingReceipts;
+                this.pendingAcks = new ArrayList<>();
+                this.pendingReceipts = new LinkedHashMap<>();
+                this.pendingCount = 0;
+                if (flushTask != null) {
+                    flushTask.cancel(false);
+                    this.flushTask = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            var nodes = new ArrayList<Node>(acks.size() + receipts.size());
+            nodes.addAll(acks);
+            receipts.forEach((key, ids) -> nodes.add(key.toNode(ids)));
+            sender.accept(nodes);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Discards the pending acks and receipts
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            pendingAcks.clear();
+            pendingReceipts.clear();
+            this.pendingCount = 0;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                this.flushTask = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record ReceiptKey(Jid to, Jid participant, Jid recipient, String type) {
+        private Node toNode(List<String> ids) {
+            var receiptBuilder = new NodeBuilder()
+                    .description("receipt")
+                    .attribute("id", ids.getFirst());
+            if (type != null) {
+                receiptBuilder.attribute("type", type);
+            }
+
+            if (to != null) {
+                receiptBuilder.attribute("to", to);
+            }
+
+            if (participant != null) {
+                receiptBuilder.attribute("participant", participant);
+            }
+
+            if (recipient != null) {
+                receiptBuilder.attribute("recipient", recipient);
+            }
+
+            if (ids.size() > 1) {
+                var items = new ArrayList<Node>(ids.size() - 1);
+                for (var i = 1; i < ids.size(); i++) {
+                    var item = new NodeBuilder()
+                            .description("item")
+                            .attribute("id", ids.get(i))
+                            .build();
+                    items.add(item);
+                }
+                var list = new NodeBuilder()
+                        .description("list")
+                        .content(items)
+                        .build();
+                receiptBuilder.content(list);
+            }
+
+            return receiptBuilder.build();
+        }
+    }
+}
@@ -4,53 +4,109 @@ import com.github.auties00.cobalt.exception.NodeTimeoutException;
 import com.github.auties00.cobalt.node.Node;
 
 import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.*;
 import java.util.function.Function;
 
 public final class SocketRequest {
     private static final Duration TIMEOUT = Duration.ofSeconds(60);
+    private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER;
+
+    static {
+        TIMEOUT_SCHEDULER = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                .name("socket-request-timeout")
+                .daemon()
+                .factory());
+        TIMEOUT_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
 
     private final Node body;
     private final Function<Node, Boolean> filter;
-    private volatile Node response;
+    private final CompletableFuture<Node> future;
 
     public SocketRequest(Node body, Function<Node, Boolean> filter) {
-        this.body = body;
+        this(body, filter, null);
+    }
+
+    public SocketRequest(Node body, Function<Node, Boolean> filter, Duration timeout) {
+        this.body = Objects.requireNonNull(body, "body cannot be null");
         this.filter = filter;
+        this.future = new CompletableFuture<>();
+        var timeoutTask = TIMEOUT_SCHEDULER.schedule(
+                () -> future.completeExceptionally(new NodeTimeoutException(body)),
+                Objects.requireNonNullElse(timeout, TIMEOUT).toNanos(),
+                TimeUnit.NANOSECONDS
+        );
+        future.whenComplete((_, _) -> timeoutTask.cancel(false));
+    }
+
+    public Node body() {
+        return body;
+    }
+
+    public CompletableFuture<Node> future() {
+        return future;
     }
 
     public boolean complete(Node response) {
-        var acceptable = response == null
-                || filter == null
+        Objects.requireNonNull(response, "response cannot be null");
+        var acceptable = filter == null
                 || filter.apply(response);
         if (acceptable) {
-            synchronized (this) {
-                this.response = response;
-                notifyAll();
-            }
+            future.complete(response);
         }
         return acceptable;
     }
 
+    public void completeExceptionally(Throwable throwable) {
+        future.completeExceptionally(throwable);
+    }
+
+    /**
+     * Waits for the response to this request
+     *
+     * @return the response
+     * @throws NodeTimeoutException if no response arrives before the request times out
+     * @throws com.github.auties00.cobalt.exception.SessionClosedException if the session is closed before a response arrives
+     */
     public Node waitForResponse() {
-        return waitForResponse(TIMEOUT);
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new NodeTimeoutException(body);
+        } catch (ExecutionException exception) {
+            throw unwrap(exception);
+        }
     }
 
+    /**
+     * Waits at most {@code timeout} for the response to this request
+     *
+     * @param timeout the maximum time to wait, the request's own timeout still applies if it's shorter
+     * @return the response
+     * @throws NodeTimeoutException if no response arrives in time
+     * @throws com.github.auties00.cobalt.exception.SessionClosedException if the session is closed before a response arrives
+     */
     public Node waitForResponse(Duration timeout) {
-        if (response == null) {
-            synchronized (this) {
-                if (response == null) {
-                    try {
-                        wait(timeout.toMillis());
-                        if (response == null) {
-                            throw new NodeTimeoutException(body);
-                        }
-                    } catch (InterruptedException exception) {
-                        Thread.currentThread().interrupt();
-                        throw new NodeTimeoutException(body);
-                    }
-                }
-            }
+        Objects.requireNonNull(timeout, "timeout cannot be null");
+        try {
+            return future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new NodeTimeoutException(body);
+        } catch (TimeoutException exception) {
+            throw new NodeTimeoutException(body);
+        } catch (ExecutionException exception) {
+            throw unwrap(exception);
         }
-        return response;
+    }
+
+    private static RuntimeException unwrap(ExecutionException exception) {
+        return switch (exception.getCause()) {
+            case RuntimeException runtimeException -> runtimeException;
+            case Error error -> throw error;
+            case null, default -> new IllegalStateException("Cannot send node", exception.getCause());
+        };
     }
 }
@@ -3,14 +3,12 @@ package com.github.auties00.cobalt.socket;
 import com.github.auties00.cobalt.exception.SessionClosedException;
 import com.github.auties00.cobalt.model.auth.*;
 import com.github.auties00.cobalt.node.Node;
-import com.github.auties00.cobalt.node.NodeEncoder;
+import com.github.auties00.cobalt.node.NodeFrameEncoder;
 import com.github.auties00.curve25519.Curve25519;
 import com.github.auties00.libsignal.key.SignalIdentityKeyPair;
 import it.auties.protobuf.stream.ProtobufInputStream;
 import it.auties.protobuf.stream.ProtobufOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -22,17 +20,27 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public abstract sealed class SocketSession {
     private static final String HOST_NAME = "g.whatsapp.net";
     private static final int PORT = 443;
     private static final int MAX_MESSAGE_LENGTH = 1048576;
     private static final int DEFAULT_READ_TIMEOUT = 10_000;
+    private static final int MAX_INBOUND_FRAMES = 256;
+    private static final int MAX_WRITE_BATCH = 64;
 
     private static final int HEADER_LENGTH = Integer.BYTES + Short.BYTES;
 
@@ -48,68 +56,116 @@ public abstract sealed class SocketSession {
         return offset;
     }
 
-    private static GCMParameterSpec createGcmIv(long counter) {
-        var iv = new byte[12];
-        iv[4] = (byte) (counter >> 56);
-        iv[5] = (byte) (counter >> 48);
-        iv[6] = (byte) (counter >> 40);
-        iv[7] = (byte) (counter >> 32);
-        iv[8] = (byte) (counter >> 24);
-        iv[9] = (byte) (counter >> 16);
-        iv[10] = (byte) (counter >> 8);
-        iv[11] = (byte) (counter);
-        return new GCMParameterSpec(128, iv);
-    }
-
     SocketChannel channel;
+    // The loop that services the channel, chosen when the connection is opened
+    volatile EventLoop eventLoop;
+    // The state of the current connection, kept after it's closed so that closing it again is a no-op
+    private volatile ConnectionContext connectionContext;
     private final SignalIdentityKeyPair noiseKeyPair;
     private final byte[] handshakePrologue;
     private final ClientPayload handshakePayload;
+    private final SocketEventLoopGroup eventLoopGroup;
 
-    protected SocketSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload) {
+    protected SocketSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, SocketEventLoopGroup eventLoopGroup) {
         this.noiseKeyPair = noiseKeyPair;
         this.handshakePrologue = handshakePrologue;
         this.handshakePayload = handshakePayload;
+        this.eventLoopGroup = eventLoopGroup;
     }
 
     public static SocketSession of(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, URI proxy) {
+        return of(noiseKeyPair, handshakePrologue, handshakePayload, proxy, SocketEventLoopGroup.shared());
+    }
+
+    public static SocketSession of(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, URI proxy, SocketEventLoopGroup eventLoopGroup) {
         Objects.requireNonNull(noiseKeyPair, "noiseKeyPair cannot be null");
         Objects.requireNonNull(handshakePrologue, "handshakePrologue cannot be null");
+        Objects.requireNonNull(eventLoopGroup, "eventLoopGroup cannot be null");
         if(proxy == null) {
-            return new DirectSession(noiseKeyPair, handshakePrologue, handshakePayload);
+            return new DirectSession(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup);
         }
 
         var scheme = proxy.getScheme();
         Objects.requireNonNull(scheme, "Malformed proxy: scheme cannot be null");
         return switch (scheme.toLowerCase()) {
-            case "http", "https" -> new ProxiedHttpSession(noiseKeyPair, handshakePrologue, handshakePayload, proxy);
-            case "socks5", "socks5h" -> new ProxiedSocksSession(noiseKeyPair, handshakePrologue, handshakePayload, proxy);
+            case "http", "https" -> new ProxiedHttpSession(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup, proxy);
+            case "socks5", "socks5h" -> new ProxiedSocksSession(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup, proxy);
             default -> throw new IllegalArgumentException("Malformed proxy: unknown scheme " + scheme);
         };
     }
 
-    public abstract void connect(Consumer<ByteBuffer> onMessage);
+    /**
+     * A callback that handles the decrypted frames received from WhatsApp.
+     */
+    @FunctionalInterface
+    public interface FrameHandler {
+        /**
+         * Handles a decrypted frame.
+         * <p>
+         * The frame can be recycled by the socket after this method returns, unless it's retained:
+         * a handler that keeps references to the frame, or to views of it, after it returns must return true.
+         *
+         * @param frame the decrypted frame
+         * @return whether the frame was retained by this handler
+         */
+        boolean onFrame(ByteBuffer frame);
+
+        /**
+         * Handles a failure that makes the connection unusable, like a frame that fails authentication.
+         * <p>
+         * The socket stops reading frames before this method is called, but doesn't close the session:
+         * the handler is expected to disconnect it.
+         *
+         * @param cause the failure
+         */
+        default void onFailure(Throwable cause) {
 
-    private ConnectionContext openConnection(InetSocketAddress endpoint, boolean tunnelled, Consumer<ByteBuffer> onMessage) {
+        }
+    }
+
+    public abstract void connect(FrameHandler onMessage);
+
+    private ConnectionContext openConnection(InetSocketAddress endpoint, boolean tunnelled, FrameHandler onMessage) {
         if(isConnected()) {
             throw new IllegalStateException("Socket is already connected");
         }
 
+        EventLoop loop = null;
+        ConnectionContext ctx = null;
         try {
             this.channel = SocketChannel.open();
             channel.configureBlocking(false);
-            var ctx = new ConnectionContext(tunnelled, handshakePrologue, handshakePayload, noiseKeyPair, onMessage);
+            loop = eventLoopGroup.next();
+            ctx = new ConnectionContext(tunnelled, handshakePrologue, handshakePayload, noiseKeyPair, onMessage);
+            this.eventLoop = loop;
+            this.connectionContext = ctx;
             if (channel.connect(endpoint)) {
-                CentralSelector.INSTANCE.register(channel, SelectionKey.OP_READ, ctx);
+                loop.register(channel, SelectionKey.OP_READ, ctx);
             } else {
-                CentralSelector.INSTANCE.register(channel, SelectionKey.OP_CONNECT, ctx);
+                loop.register(channel, SelectionKey.OP_CONNECT, ctx);
                 synchronized (ctx.connectionLock) {
-                    ctx.connectionLock.wait();
+                    while (!channel.isConnected() && !ctx.closed.get()) {
+                        ctx.connectionLock.wait();
+                    }
+                }
+                if (!channel.isConnected()) {
+                    throw new IOException("Connection refused");
                 }
             }
             ctx.connected = true;
             return ctx;
         }catch (Throwable exception) {
+            // The connection is counted out of its loop even if it never connected
+            if (ctx != null) {
+                loop.unregister(channel, ctx);
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException _) {
+
+            }
             throw new RuntimeException("Cannot connect to socket", exception);
         }
     }
@@ -136,11 +192,12 @@ public abstract sealed class SocketSession {
     }
 
     public void disconnect() {
-        if(!isConnected()) {
+        var ctx = connectionContext;
+        if(ctx == null) {
             return;
         }
 
-        CentralSelector.INSTANCE.unregister(channel);
+        eventLoop.unregister(channel, ctx);
         try {
             if(channel != null) {
                 channel.close();
@@ -151,27 +208,57 @@ public abstract sealed class SocketSession {
     }
 
     public synchronized void sendNode(Node node) {
-        var ctx = CentralSelector.INSTANCE.getContext(channel);
+        var ctx = context();
         if(ctx == null || !ctx.connected || !ctx.secured) {
             throw new SessionClosedException();
         }
 
+        var frame = sealFrame(ctx, node);
         try {
-            var writeCipher = Cipher.getInstance("AES/GCM/NoPadding");
-            writeCipher.init(
-                    Cipher.ENCRYPT_MODE,
-                    ctx.writeKey,
-                    createGcmIv(ctx.writeCounter++)
-            );
-            var plaintextLength = NodeEncoder.sizeOf(node);
-            var ciphertextLength = writeCipher.getOutputSize(plaintextLength);
-            var ciphertext = new byte[HEADER_LENGTH + ciphertextLength];
-            var offset = writeRequestHeader(ciphertextLength, ciphertext, 0);
-            NodeEncoder.encode(node, ciphertext, offset, plaintextLength);
-            writeCipher.doFinal(ciphertext, offset, plaintextLength, ciphertext, offset);
-            sendBinary(ByteBuffer.wrap(ciphertext));
+            sendBinary(frame);
+        }catch (Throwable throwable) {
+            ctx.bufferPool.release(frame);
+            throw throwable;
+        }
+    }
+
+    // Frames are queued together, so that the selector can write them with a single gathering write
+    public synchronized void sendNodes(Collection<? extends Node> nodes) {
+        var ctx = context();
+        if(ctx == null || !ctx.connected || !ctx.secured) {
+            throw new SessionClosedException();
+        }
+
+        var frames = new ArrayList<ByteBuffer>(nodes.size());
+        try {
+            for(var node : nodes) {
+                frames.add(sealFrame(ctx, node));
+            }
+            if(!eventLoop.addWrites(channel, frames)) {
+                throw new IllegalStateException("Socket is not connected");
+            }
+        }catch (Throwable throwable) {
+            for(var frame : frames) {
+                ctx.bufferPool.release(frame);
+            }
+            throw throwable;
+        }
+    }
+
+    // The node is encoded after the room left for the header and sealed in place, so the frame is written in a single pass and never copied
+    private ByteBuffer sealFrame(ConnectionContext ctx, Node node) {
+        var frame = ctx.nodeEncoder.encode(node, HEADER_LENGTH, SocketCipher.TAG_LENGTH);
+        try {
+            var plaintextLength = frame.limit() - HEADER_LENGTH - SocketCipher.TAG_LENGTH;
+            var offset = writeRequestHeader(SocketCipher.sealedLength(plaintextLength), frame.array(), 0);
+            ctx.writeCipher.seal(frame.array(), offset, plaintextLength);
+            return frame;
         }catch (GeneralSecurityException exception) {
+            ctx.bufferPool.release(frame);
             throw new InternalError("Failed to encrypt node", exception);
+        }catch (Throwable throwable) {
+            ctx.bufferPool.release(frame);
+            throw throwable;
         }
     }
 
@@ -180,23 +267,45 @@ public abstract sealed class SocketSession {
             throw new IllegalStateException("Socket is not connected");
         }
 
-        if(!CentralSelector.INSTANCE.addWrite(channel, buffer)) {
+        if(!eventLoop.addWrite(channel, buffer)) {
             throw new IllegalStateException("Failed to send binary");
         }
     }
 
+    /**
+     * Stops or resumes reading frames from the socket.
+     * <p>
+     * The frames that were already read are still passed to the frame handler while reads are held,
+     * so that the owner of the session can use this method to apply backpressure without blocking the thread that handles frames.
+     *
+     * @param held whether reads should be held
+     */
+    public void setReadsHeld(boolean held) {
+        var ctx = context();
+        var loop = eventLoop;
+        if(ctx == null || loop == null || ctx.readsHeld == held) {
+            return;
+        }
+
+        loop.setReadsHeld(channel, ctx, held);
+    }
+
     public boolean isConnected() {
-        var ctx = CentralSelector.INSTANCE.getContext(channel);
+        var ctx = context();
         return ctx != null && ctx.connected;
     }
 
+    private ConnectionContext context() {
+        return connectionContext;
+    }
+
     private int readPlainBinary(ByteBuffer buffer, boolean fully) throws IOException {
         if (!isConnected()) {
             throw new IllegalStateException("Socket is not connected");
         }
 
         var read = new PendingRead(buffer, fully);
-        if(!CentralSelector.INSTANCE.addRead(channel, read)) {
+        if(!eventLoop.addRead(channel, read)) {
             throw new IllegalStateException("Failed to read binary");
         }
 
@@ -217,12 +326,12 @@ public abstract sealed class SocketSession {
 
     private static final class DirectSession extends SocketSession {
 
-        DirectSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload) {
-            super(noiseKeyPair, handshakePrologue, handshakePayload);
+        DirectSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, SocketEventLoopGroup eventLoopGroup) {
+            super(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup);
         }
 
         @Override
-        public void connect(Consumer<ByteBuffer> onMessage) {
+        public void connect(FrameHandler onMessage) {
             var endpoint = new InetSocketAddress(HOST_NAME, PORT); // Don't resolve this statically
             var ctx = super.openConnection(endpoint, true, onMessage);
             super.startHandshake(ctx);
@@ -239,14 +348,14 @@ public abstract sealed class SocketSession {
 
         private final URI proxy;
 
-        ProxiedHttpSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, URI proxy) {
-            super(noiseKeyPair, handshakePrologue, handshakePayload);
+        ProxiedHttpSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, SocketEventLoopGroup eventLoopGroup, URI proxy) {
+            super(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup);
             this.proxy = proxy;
         }
 
 
         @Override
-        public void connect(Consumer<ByteBuffer> onMessage) {
+        public void connect(FrameHandler onMessage) {
             var host = proxy.getHost();
             var port = proxy.getPort();
             if(port == -1) {
@@ -265,7 +374,7 @@ public abstract sealed class SocketSession {
             try {
                 sendAuthenticationRequest();
                 handleAuthenticationResponse();
-                if(!CentralSelector.INSTANCE.markReady(channel)) {
+                if(!eventLoop.markReady(channel)) {
                     throw new IllegalStateException("Failed to authenticate with proxy: rejected");
                 }
             }catch (IOException exception) {
@@ -425,14 +534,14 @@ public abstract sealed class SocketSession {
 
         private final URI proxy;
 
-        ProxiedSocksSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, URI proxy) {
-            super(noiseKeyPair, handshakePrologue, handshakePayload);
+        ProxiedSocksSession(SignalIdentityKeyPair noiseKeyPair, byte[] handshakePrologue, ClientPayload handshakePayload, SocketEventLoopGroup eventLoopGroup, URI proxy) {
+            super(noiseKeyPair, handshakePrologue, handshakePayload, eventLoopGroup);
             this.proxy = proxy;
         }
 
 
         @Override
-        public void connect(Consumer<ByteBuffer> onMessage) {
+        public void connect(FrameHandler onMessage) {
             var proxyHost = proxy.getHost();
             var proxyPort = proxy.getPort() == -1 ? 1080 : proxy.getPort();
             var ctx = super.openConnection(new InetSocketAddress(proxyHost, proxyPort), false, onMessage);
@@ -444,7 +553,7 @@ public abstract sealed class SocketSession {
             try {
                 sendAuthenticationRequest();
                 handleAuthenticationResponse();
-                if(!CentralSelector.INSTANCE.markReady(channel)) {
+                if(!eventLoop.markReady(channel)) {
                     throw new IllegalStateException("Failed to authenticate with proxy: rejected");
                 }
             }catch (IOException exception) {
@@ -560,53 +669,88 @@ public abstract sealed class SocketSession {
         }
     }
 
-    private static final class CentralSelector implements Runnable{
-        private static final CentralSelector INSTANCE = new CentralSelector();
+    // A selector, and the thread that services it, shared by the connections that a SocketEventLoopGroup assigned to it
+    // The thread is a platform thread, as a virtual thread blocked in select would hold its carrier, and exits when the loop has no connections
+    // The thread must never block on anything but select: handshakes and frames are handed to other threads
+    static final class EventLoop implements Runnable{
+        private final int index;
 
         private final Selector selector;
 
         private volatile Thread selectorThread;
 
-        private CentralSelector() {
+        // Statistics, exposed through SocketEventLoopStats
+        private final AtomicInteger connections;
+        private final LongAdder selects;
+        private final LongAdder handledKeys;
+        private final LongAdder totalBytesRead;
+        private final LongAdder totalBytesWritten;
+        private final LongAdder busyNanos;
+
+        EventLoop(int index) {
+            this.index = index;
             try {
                 selector = Selector.open();
             } catch (IOException e) {
                 throw new RuntimeException("Cannot open selector", e);
             }
+            this.connections = new AtomicInteger();
+            this.selects = new LongAdder();
+            this.handledKeys = new LongAdder();
+            this.totalBytesRead = new LongAdder();
+            this.totalBytesWritten = new LongAdder();
+            this.busyNanos = new LongAdder();
+        }
+
+        int connections() {
+            return connections.get();
+        }
+
+        SocketEventLoopStats stats() {
+            return new SocketEventLoopStats(
+                    index,
+                    connections.get(),
+                    selects.sum(),
+                    handledKeys.sum(),
+                    totalBytesRead.sum(),
+                    totalBytesWritten.sum(),
+                    Duration.ofNanos(busyNanos.sum())
+            );
         }
 
         @SuppressWarnings("MagicConstant")
         public synchronized void register(SocketChannel channel, int ops, ConnectionContext context) throws IOException {
+            // Counted before registering, as the connection is counted out by unregister even if registering fails
+            connections.incrementAndGet();
             channel.register(selector, ops, context);
             if (selectorThread == null || !selectorThread.isAlive()) {
-                selectorThread = Thread.startVirtualThread(this);
+                selectorThread = Thread.ofPlatform()
+                        .name("socket-selector-" + index)
+                        .daemon()
+                        .start(this);
             }
             selector.wakeup();
         }
 
-        private void unregister(SocketChannel channel) {
-            var key = channel.keyFor(selector);
-            if (key == null) {
-                return;
+        // Can be called more than once, and whatever the state of the key, but counts the connection out exactly once
+        private synchronized void unregister(SocketChannel channel, ConnectionContext ctx) {
+            if (ctx.closed.compareAndSet(false, true)) {
+                connections.decrementAndGet();
             }
 
-            var ctx = (ConnectionContext) key.attachment();
             ctx.connected = false;
-            key.cancel();
-            selector.wakeup();
-        }
-
-        public ConnectionContext getContext(SocketChannel channel) {
-            if(channel == null) {
-                return null;
+            var inboundThread = ctx.inboundThread;
+            if(inboundThread != null && inboundThread != Thread.currentThread()) {
+                inboundThread.interrupt();
+            }
+            synchronized (ctx.connectionLock) {
+                ctx.connectionLock.notifyAll();
             }
-
             var key = channel.keyFor(selector);
-            if(key == null) {
-                return null;
+            if (key != null) {
+                key.cancel();
             }
-
-            return (ConnectionContext) key.attachment();
+            selector.wakeup();
         }
 
         public boolean addRead(SocketChannel channel, PendingRead read) {
@@ -645,18 +789,34 @@ public abstract sealed class SocketSession {
             return true;
         }
 
+        public boolean addWrites(SocketChannel channel, Collection<ByteBuffer> buffers) {
+            var key = channel.keyFor(selector);
+            if (key == null) {
+                return false;
+            }
+            var ctx = (ConnectionContext) key.attachment();
+            ctx.pendingWrites.addAll(buffers);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            selector.wakeup();
+            return true;
+        }
+
         @Override
         public void run() {
             try {
                 while (selector.isOpen()) {
                     var readyChannels = selector.select();
+                    selects.increment();
                     if (readyChannels > 0) {
+                        var start = System.nanoTime();
                         var iterator = selector.selectedKeys().iterator();
                         while (iterator.hasNext()) {
                             var key = iterator.next();
                             iterator.remove();
                             handleKey(key);
                         }
+                        handledKeys.add(readyChannels);
+                        busyNanos.add(System.nanoTime() - start);
                     }
                     if (selector.keys().isEmpty()) {
                         synchronized (this) {
@@ -681,6 +841,7 @@ public abstract sealed class SocketSession {
             var channel = (SocketChannel) key.channel();
             try {
                 if (key.isConnectable()) {
+                    // Throws if the connection was refused, in which case the connecting thread is woken up by unregister
                     if (channel.finishConnect()) {
                         key.interestOps(SelectionKey.OP_READ);
                         synchronized (ctx.connectionLock) {
@@ -701,7 +862,9 @@ public abstract sealed class SocketSession {
                     }
                 }
             }catch (IOException _) {
-
+                if (!ctx.connected) {
+                    unregister(channel, ctx);
+                }
             }
         }
 
@@ -723,6 +886,7 @@ public abstract sealed class SocketSession {
                 }
 
                 pendingRead.length += bytesRead;
+                totalBytesRead.add(bytesRead);
                 if(!pendingRead.fullRead || !pendingRead.buffer.hasRemaining()) {
                     if(pendingRead.fullRead) {
                         pendingRead.buffer.flip();
@@ -741,6 +905,7 @@ public abstract sealed class SocketSession {
                         return false;
                     }
 
+                    totalBytesRead.add(bytesRead);
                     if (ctx.messageLengthBuffer.hasRemaining()) {
                         return true;
                     }
@@ -753,7 +918,7 @@ public abstract sealed class SocketSession {
                         return false;
                     }
 
-                    ctx.messageBuffer = ByteBuffer.allocate(length);
+                    ctx.messageBuffer = ctx.bufferPool.acquire(length);
                     return true;
                 } else {
                     var bytesRead = channel.read(ctx.messageBuffer);
@@ -761,6 +926,7 @@ public abstract sealed class SocketSession {
                         return false;
                     }
 
+                    totalBytesRead.add(bytesRead);
                     if (ctx.messageBuffer.hasRemaining()) {
                         return true;
                     }
@@ -770,41 +936,46 @@ public abstract sealed class SocketSession {
                     var buffer = ctx.messageBuffer;
                     ctx.messageBuffer = null;
 
-                    var secured = ctx.secured;
-                    var readKey = ctx.readKey;
-                    var readCounter = ctx.readCounter++;
+                    if(!ctx.secured) {
+                        Thread.startVirtualThread(() -> {
+                            try {
+                                finishHandshake(channel, ctx, buffer);
+                            }finally {
+                                ctx.bufferPool.release(buffer);
+                            }
+                        });
+                        return true;
+                    }
+
+                    // Frames are opened here, in the order they were received, so the read cipher is never used concurrently
+                    try {
+                        ctx.readCipher.open(buffer);
+                    }catch (GeneralSecurityException exception) {
+                        // The frame can't be skipped: it was either tampered with, or the cipher's counter is out of sync with the server's
+                        ctx.bufferPool.release(buffer);
+                        fail(key, ctx, exception);
+                        return false;
+                    }
 
-                    Thread.startVirtualThread(() -> {
-                        if(secured) {
-                            var output = decryptRead(readKey, readCounter, buffer);
-                            ctx.onMessage.accept(output);
-                        }else {
-                            finishHandshake(channel, ctx, buffer);
-                        }
-                    });
+                    // Frames are handed to the inbound thread in order: if it falls behind, reads are paused until it catches up
+                    // Reads are paused before the queue overflows, so a frame that doesn't fit means that the stream lost a frame
+                    if(!ctx.inboundFrames.offer(buffer)) {
+                        ctx.bufferPool.release(buffer);
+                        fail(key, ctx, new IllegalStateException("Inbound frame queue overflow"));
+                        return false;
+                    }
 
+                    if(ctx.inboundFrames.remainingCapacity() == 0 && ctx.readsPaused.compareAndSet(false, true)) {
+                        updateReadInterest(key, ctx);
+                        if(ctx.inboundFrames.size() <= MAX_INBOUND_FRAMES / 2 && ctx.readsPaused.compareAndSet(true, false)) {
+                            updateReadInterest(key, ctx);
+                        }
+                    }
                     return true;
                 }
             }
         }
 
-        private ByteBuffer decryptRead(SecretKeySpec readKey, long readCounter, ByteBuffer buffer) {
-            try {
-                var output = buffer.duplicate();
-                var readCipher = Cipher.getInstance("AES/GCM/NoPadding");
-                readCipher.init(
-                        Cipher.DECRYPT_MODE,
-                        readKey,
-                        createGcmIv(readCounter)
-                );
-                readCipher.doFinal(buffer, output);
-                output.flip();
-                return output;
-            }catch (GeneralSecurityException exception) {
-                throw new RuntimeException(exception);
-            }
-        }
-
         public void finishHandshake(SocketChannel channel, ConnectionContext ctx, ByteBuffer serverHelloPayload) {
             var ephemeralKeyPair = ctx.handshakeEphemeralKeyPair;
             if(ephemeralKeyPair == null) {
@@ -835,16 +1006,17 @@ public abstract sealed class SocketSession {
                 var message = new byte[HEADER_LENGTH + requestLength];
                 var offset = writeRequestHeader(requestLength, message, 0);
                 HandshakeMessageSpec.encode(clientHandshake, ProtobufOutputStream.toBytes(message, offset));
-                addWrite(channel, ByteBuffer.wrap(message));
                 var keys = handshake.finish();
 
-                ctx.writeCounter = 0;
-                ctx.writeKey = new SecretKeySpec(keys, 0, 32, "AES");
-
-                ctx.readCounter = 0;
-                ctx.readKey = new SecretKeySpec(keys, 32, 32, "AES");
-
+                // The ciphers are ready before the client finish is sent, so the first frame sent by the server can be opened
+                ctx.writeCipher = SocketCipher.ofWrite(new SecretKeySpec(keys, 0, 32, "AES"));
+                ctx.readCipher = SocketCipher.ofRead(new SecretKeySpec(keys, 32, 32, "AES"));
+                ctx.inboundThread = Thread.ofVirtual()
+                        .name("socket-inbound")
+                        .start(() -> processInbound(channel, ctx));
                 ctx.secured = true;
+
+                addWrite(channel, ByteBuffer.wrap(message));
             }catch (GeneralSecurityException exception) {
                 throw new RuntimeException("Cannot finish handshake", exception);
             }finally {
@@ -854,15 +1026,104 @@ public abstract sealed class SocketSession {
             }
         }
 
+        private void processInbound(SocketChannel channel, ConnectionContext ctx) {
+            try {
+                while (ctx.connected) {
+                    var buffer = ctx.inboundFrames.take();
+                    resumeReadsIfNeeded(channel, ctx);
+                    var retained = false;
+                    try {
+                        // Unless it's retained, the buffer is only valid until the callback returns
+                        retained = ctx.onMessage.onFrame(buffer);
+                    }finally {
+                        if(!retained) {
+                            ctx.bufferPool.release(buffer);
+                        }
+                    }
+                }
+            }catch (InterruptedException _) {
+                // The connection was closed
+            }finally {
+                ByteBuffer buffer;
+                while ((buffer = ctx.inboundFrames.poll()) != null) {
+                    ctx.bufferPool.release(buffer);
+                }
+            }
+        }
+
+        // Stops reading from a connection that can't be trusted anymore, and hands the failure to the owner of the session
+        private void fail(SelectionKey key, ConnectionContext ctx, Throwable cause) {
+            if(!ctx.failed.compareAndSet(false, true)) {
+                return;
+            }
+
+            updateReadInterest(key, ctx);
+            Thread.startVirtualThread(() -> ctx.onMessage.onFailure(cause));
+        }
+
+        private void resumeReadsIfNeeded(SocketChannel channel, ConnectionContext ctx) {
+            if(!ctx.readsPaused.get() || ctx.inboundFrames.size() > MAX_INBOUND_FRAMES / 2) {
+                return;
+            }
+
+            var key = channel.keyFor(selector);
+            if(key == null || !ctx.readsPaused.compareAndSet(true, false)) {
+                return;
+            }
+
+            updateReadInterest(key, ctx);
+        }
+
+        void setReadsHeld(SocketChannel channel, ConnectionContext ctx, boolean held) {
+            ctx.readsHeld = held;
+            var key = channel.keyFor(selector);
+            if(key != null && ctx.secured) {
+                updateReadInterest(key, ctx);
+            }
+        }
+
+        // Frames are read unless the connection failed, the inbound thread fell behind, or the owner of the session held reads
+        // Every change to OP_READ of a secured connection goes through here, so that a change made by one thread isn't undone by another
+        private void updateReadInterest(SelectionKey key, ConnectionContext ctx) {
+            synchronized (ctx.readInterestLock) {
+                if(!key.isValid()) {
+                    return;
+                }
+
+                var ops = key.interestOps();
+                if(ctx.failed.get() || ctx.readsPaused.get() || ctx.readsHeld) {
+                    key.interestOps(ops & ~SelectionKey.OP_READ);
+                }else {
+                    key.interestOps(ops | SelectionKey.OP_READ);
+                }
+            }
+            selector.wakeup();
+        }
+
         private boolean processWrite(SocketChannel channel, ConnectionContext ctx) throws IOException {
             var queue = ctx.pendingWrites;
+            var batch = ctx.writeBatch;
             while (!queue.isEmpty()) {
-                var buf = queue.peek();
-                channel.write(buf);
-                if (buf.hasRemaining()) {
+                // Queued frames are written with a single gathering write, instead of a write per frame
+                var count = 0;
+                for (var buf : queue) {
+                    batch[count++] = buf;
+                    if (count == batch.length) {
+                        break;
+                    }
+                }
+
+                totalBytesWritten.add(channel.write(batch, 0, count));
+                var written = 0;
+                while (written < count && !batch[written].hasRemaining()) {
+                    queue.poll();
+                    ctx.bufferPool.release(batch[written]);
+                    written++;
+                }
+                Arrays.fill(batch, 0, count, null);
+                if (written < count) {
                     break;
                 }
-                queue.poll();
             }
 
             return queue.isEmpty();
@@ -873,7 +1134,13 @@ public abstract sealed class SocketSession {
     // Open connection -> Open tunnel (proxy) -> Handshake -> Connected
     private static final class ConnectionContext {
         // Flag to indicate whether the connection is connected
-        private boolean connected;
+        private volatile boolean connected;
+
+        // Flag to indicate whether the connection was counted out of its loop, which only happens once
+        private final AtomicBoolean closed;
+
+        // Flag to indicate whether the connection failed, after which no more frames are read
+        private final AtomicBoolean failed;
 
         // Lock to synchronize the connect method
         private final Object connectionLock;
@@ -897,20 +1164,23 @@ public abstract sealed class SocketSession {
         // The noise key pair used for the handshake
         private final SignalIdentityKeyPair handshakeNoiseKeyPair;
 
-        // The read key used to decrypt messages
-        private SecretKeySpec readKey;
+        // The cipher used to decrypt messages
+        // Only used by the selector thread
+        private SocketCipher readCipher;
 
-        // The GCM counter to decrypt messages
-        private long readCounter;
+        // The cipher used to encrypt the connection
+        // Only used while holding the session's lock
+        private SocketCipher writeCipher;
 
-        // The write key used to encrypt the connection
-        private SecretKeySpec writeKey;
+        // Flag to indicate whether the connection has finished the handshake
+        private volatile boolean secured;
 
-        // The GCM counter to encrypt the connection
-        private long writeCounter;
+        // The buffers used to read and write WhatsApp messages
+        private final SocketBufferPool bufferPool;
 
-        // Flag to indicate whether the connection has finished the handshake
-        private boolean secured;
+        // Encodes outgoing nodes into buffers acquired from bufferPool
+        // Only used by sendNode and sendNodes, which are synchronized
+        private final NodeFrameEncoder nodeEncoder;
 
         // List of buffers to read, used while ready = false
         private final Queue<PendingRead> pendingReads;
@@ -918,6 +1188,10 @@ public abstract sealed class SocketSession {
         // List of buffers to write, always used
         private final Queue<ByteBuffer> pendingWrites;
 
+        // The frames passed to the current gathering write
+        // Only used by the selector thread
+        private final ByteBuffer[] writeBatch;
+
         // Buffer used to read the length of the current WhatsApp message
         // Only used when ready = true
         private final ByteBuffer messageLengthBuffer;
@@ -928,18 +1202,42 @@ public abstract sealed class SocketSession {
 
         // Callback for a WhatsApp message
         // Only used when ready = true
-        private final Consumer<ByteBuffer> onMessage;
+        private final FrameHandler onMessage;
+
+        // Decrypted frames waiting to be passed to onMessage, in the order they were received
+        private final BlockingQueue<ByteBuffer> inboundFrames;
+
+        // The thread that passes decrypted frames to onMessage
+        // Started after the handshake is done
+        private volatile Thread inboundThread;
+
+        // Flag to indicate whether reads were paused because inboundFrames is full
+        private final AtomicBoolean readsPaused;
+
+        // Flag to indicate whether reads were held by the owner of the session, see SocketSession.setReadsHeld
+        private volatile boolean readsHeld;
+
+        // Lock held while OP_READ is changed after the handshake
+        private final Object readInterestLock;
 
-        private ConnectionContext(boolean tunnelled, byte[] handshakePrologue, ClientPayload handshakePayload, SignalIdentityKeyPair handshakeNoiseKeyPair, Consumer<ByteBuffer> onMessage) {
+        private ConnectionContext(boolean tunnelled, byte[] handshakePrologue, ClientPayload handshakePayload, SignalIdentityKeyPair handshakeNoiseKeyPair, FrameHandler onMessage) {
             this.handshakePrologue = handshakePrologue;
             this.handshakeNoiseKeyPair = handshakeNoiseKeyPair;
             this.handshakePayload = handshakePayload;
             this.connectionLock = new Object();
+            this.closed = new AtomicBoolean(false);
+            this.failed = new AtomicBoolean(false);
             this.tunnelled = tunnelled;
             this.onMessage = onMessage;
             this.pendingReads = new ConcurrentLinkedQueue<>();
             this.pendingWrites = new ConcurrentLinkedQueue<>();
+            this.writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
             this.messageLengthBuffer = ByteBuffer.allocate(3);
+            this.bufferPool = new SocketBufferPool();
+            this.nodeEncoder = new NodeFrameEncoder(bufferPool::acquire, bufferPool::release);
+            this.inboundFrames = new ArrayBlockingQueue<>(MAX_INBOUND_FRAMES);
+            this.readsPaused = new AtomicBoolean(false);
+            this.readInterestLock = new Object();
         }
     }
 
@@ -5,6 +5,7 @@ import com.github.auties00.cobalt.client.WhatsAppClientVerificationHandler;
 import com.github.auties00.cobalt.device.DeviceService;
 import com.github.auties00.cobalt.message.MessageReceiverService;
 import com.github.auties00.cobalt.migration.LidMigrationService;
+import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.node.Node;
 import com.github.auties00.cobalt.socket.call.CallAckStreamNodeHandler;
 import com.github.auties00.cobalt.socket.call.CallStreamNodeHandler;
@@ -22,13 +23,18 @@ import com.github.auties00.cobalt.socket.state.*;
 import java.util.*;
 
 public final class SocketStream {
+    private static final String LISTENERS_LANE = "listener:global";
+
     private final Map<String, SequencedCollection<Handler>> handlers;
+    private final SocketDispatcher dispatcher;
 
-    public SocketStream(WhatsAppClient whatsapp, DeviceService deviceService, MessageReceiverService messageReceiverService, LidMigrationService lidMigrationService, WhatsAppClientVerificationHandler.Web webVerificationHandler) {
+    public SocketStream(WhatsAppClient whatsapp, DeviceService deviceService, MessageReceiverService messageReceiverService, LidMigrationService lidMigrationService, WhatsAppClientVerificationHandler.Web webVerificationHandler, Runnable onSaturationChanged) {
         var pairingCode = webVerificationHandler instanceof WhatsAppClientVerificationHandler.Web.PairingCode
                 ? new SocketPhonePairing()
                 : null;
 
+        this.dispatcher = new SocketDispatcher(whatsapp.config(), onSaturationChanged);
+
         var result = new HashMap<String, SequencedCollection<Handler>>();
 
         // Common handlers
@@ -41,7 +47,7 @@ public final class SocketStream {
         addHandler(result, new MessageStreamNodeHandler(whatsapp, messageReceiverService, lidMigrationService));
         addHandler(result, new MessageAckStreamNodeHandler(whatsapp));
         addHandler(result, new MessageReceiptStreamNodeHandler(whatsapp, deviceService));
-        addHandler(result, new NotificationStreamNodeHandler(whatsapp, pairingCode, lidMigrationService));
+        addHandler(result, new NotificationStreamNodeHandler(whatsapp, deviceService, pairingCode, lidMigrationService));
         addHandler(result, new PresenceStreamNodeHandler(whatsapp));
         addHandler(result, new EndStreamNodeHandler(whatsapp));
         addHandler(result, new UpdateIdentityStreamNodeHandler(whatsapp));
@@ -72,20 +78,88 @@ public final class SocketStream {
     }
 
     private void addHandler(Map<String, SequencedCollection<Handler>> result, Handler handler) {
+        handler.dispatcher = dispatcher;
         for (var description : handler.descriptions()) {
             result.computeIfAbsent(description, _ -> new ArrayList<>()).add(handler);
         }
     }
     
+    /**
+     * Dispatches a node to the handlers registered for its description
+     * <p>
+     * Nodes sent by the same user or group are handled one at a time, in the order they were received.
+     * Nodes sent by a server are ordered per handler instead, so that a slow handler doesn't delay the others.
+     * This method never blocks: if too many nodes are waiting to be handled, the stream becomes saturated, see {@link #isSaturated()}.
+     *
+     * @param node the node to dispatch
+     */
     public void digest(Node node) {
         var handlers = this.handlers.get(node.description());
-        if(handlers != null) {
+        if(handlers == null) {
+            return;
+        }
+
+        var from = node.getAttributeAsJid("from")
+                .filter(Jid::hasUser)
+                .orElse(null);
+        if(from != null) {
+            dispatcher.execute(from.toUserJid().toString(), () -> {
+                for(var handler : handlers) {
+                    handler.handle(node);
+                }
+            });
+        }else {
             for(var handler : handlers) {
-                Thread.startVirtualThread(() -> handler.handle(node));
+                dispatcher.execute(handler.laneKey, () -> handler.handle(node));
             }
         }
     }
 
+    /**
+     * Runs a task after the tasks previously dispatched to the same lane
+     *
+     * @param lane the key of the lane
+     * @param task the task to run
+     */
+    public void dispatch(String lane, Runnable task) {
+        dispatcher.execute(lane, task);
+    }
+
+    /**
+     * Runs a task after the tasks previously dispatched to the lane of a chat,
+     * so that listeners are notified in the same order as the events of that chat happened
+     *
+     * @param chat the chat the task belongs to
+     * @param task the task to run
+     */
+    public void dispatch(Jid chat, Runnable task) {
+        dispatcher.execute(listenersLane(chat), task);
+    }
+
+    /**
+     * Runs a task after the tasks previously dispatched to the lane of the events that don't belong to a chat
+     *
+     * @param task the task to run
+     */
+    public void dispatch(Runnable task) {
+        dispatcher.execute(LISTENERS_LANE, task);
+    }
+
+    // The device and agent are dropped, so that every event of a chat is queued on the same lane
+    private static String listenersLane(Jid chat) {
+        return "listener:" + chat.withoutData();
+    }
+
+    /**
+     * Returns whether too many nodes are waiting to be handled, see {@link com.github.auties00.cobalt.client.NodeDispatchPolicy}.
+     * The callback passed to the constructor is called every time this value changes.
+     *
+     * @return a boolean
+     */
+    public boolean isSaturated() {
+        return dispatcher.isSaturated();
+    }
+
     public void reset() {
         for (var entry : handlers.entrySet()) {
             for(var handler : entry.getValue()) {
@@ -97,14 +171,45 @@ public final class SocketStream {
     public abstract static class Handler {
         protected final WhatsAppClient whatsapp;
         protected final Set<String> descriptions;
+        private final String laneKey;
+        private SocketDispatcher dispatcher;
 
         public Handler(WhatsAppClient whatsapp, String... descriptions) {
             this.whatsapp = whatsapp;
             this.descriptions = Set.of(descriptions);
+            this.laneKey = getClass().getName();
         }
 
         public abstract void handle(Node node);
 
+        /**
+         * Runs a task after the tasks previously dispatched to the lane of a chat,
+         * so that listeners are notified in the same order as the nodes of that chat were received
+         *
+         * @param chat the chat the task belongs to
+         * @param task the task to run
+         */
+        protected void dispatch(Jid chat, Runnable task) {
+            dispatch(listenersLane(chat), task);
+        }
+
+        /**
+         * Runs a task after the tasks previously dispatched to the lane of the events that don't belong to a chat
+         *
+         * @param task the task to run
+         */
+        protected void dispatch(Runnable task) {
+            dispatch(LISTENERS_LANE, task);
+        }
+
+        private void dispatch(String lane, Runnable task) {
+            if(dispatcher != null) {
+                dispatcher.execute(lane, task);
+            }else {
+                Thread.startVirtualThread(task);
+            }
+        }
+
         public Set<String> descriptions() {
             return descriptions;
         }
@@ -46,7 +46,7 @@ public final class CallStreamNodeHandler extends SocketStream.Handler {
                 .build();
         whatsapp.store().addCall(call);
         for(var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onCall(whatsapp, call));
+            dispatch(call.chatJid(), () -> listener.onCall(whatsapp, call));
         }
     }
 
@@ -0,0 +1,249 @@
+package com.github.auties00.cobalt.socket.message;
+
+import com.github.auties00.cobalt.model.chat.Chat;
+import com.github.auties00.cobalt.model.chat.ChatSpec;
+import com.github.auties00.cobalt.model.chat.GroupPastParticipants;
+import com.github.auties00.cobalt.model.chat.GroupPastParticipantsSpec;
+import com.github.auties00.cobalt.model.info.ChatMessageInfo;
+import com.github.auties00.cobalt.model.info.ChatMessageInfoSpec;
+import com.github.auties00.cobalt.model.sync.*;
+import it.auties.protobuf.stream.ProtobufInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decodes a {@link HistorySync} one entry at a time.
+ * <p>
+ * {@link HistorySyncSpec#decode(ProtobufInputStream)} materializes every conversation of a chunk before returning,
+ * which, for the bootstrap chunks, means holding thousands of chats in memory at once.
+ * This decoder walks the top level fields of the message instead, and decodes each conversation, status, push name,
+ * past participants and lid mapping on its own, handing it to a {@link Listener} before reading the next one.
+ * Fields that the listener doesn't need, like the global settings, are skipped without being decoded.
+ * <p>
+ * WhatsApp writes the sync type first, so entries are normally handed to the listener as soon as they are read:
+ * if an entry comes before the sync type, it is held until the sync type is read.
+ */
+final class HistorySyncDecoder {
+    private static final int SYNC_TYPE_INDEX = 1;
+    private static final int CONVERSATIONS_INDEX = 2;
+    private static final int STATUS_V3_MESSAGES_INDEX = 3;
+    private static final int CHUNK_ORDER_INDEX = 5;
+    private static final int PROGRESS_INDEX = 6;
+    private static final int PUSH_NAMES_INDEX = 7;
+    private static final int PAST_PARTICIPANTS_INDEX = 12;
+    private static final int PHONE_NUMBER_TO_LID_MAPPINGS_INDEX = 15;
+
+    private static final int WIRE_TYPE_VAR_INT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_TYPE_FIXED32 = 5;
+
+    private final InputStream input;
+    private final Listener listener;
+    private final List<Runnable> pendingEntries;
+    private HistorySync.Type syncType;
+    private int chunkOrder;
+    private Integer progress;
+
+    private HistorySyncDecoder(InputStream input, Listener listener) {
+        this.input = Objects.requireNonNull(input, "input cannot be null");
+        this.listener = Objects.requireNonNull(listener, "listener cannot be null");
+        this.pendingEntries = new ArrayList<>();
+    }
+
+    /**
+     * Decodes a history sync, handing its entries to a listener as they are read
+     *
+     * @param input    the serialized history sync, which is not closed by this method
+     * @param listener the listener that handles the entries
+     * @return the fields of the history sync that describe the chunk
+     * @throws IOException if the history sync cannot be read or is malformed
+     */
+    static Chunk decode(InputStream input, Listener listener) throws IOException {
+        return new HistorySyncDecoder(input, listener).decode();
+    }
+
+    private Chunk decode() throws IOException {
+        long key;
+        while ((key = readTag()) != -1) {
+            var index = (int) (key >>> 3);
+            var wireType = (int) (key & 7);
+            switch (index) {
+                case SYNC_TYPE_INDEX -> {
+                    checkWireType(index, wireType, WIRE_TYPE_VAR_INT);
+                    onSyncType(readVarInt());
+                }
+                case CHUNK_ORDER_INDEX -> {
+                    checkWireType(index, wireType, WIRE_TYPE_VAR_INT);
+                    this.chunkOrder = (int) readVarInt();
+                }
+                case PROGRESS_INDEX -> {
+                    checkWireType(index, wireType, WIRE_TYPE_VAR_INT);
+                    this.progress = (int) readVarInt();
+                }
+                case CONVERSATIONS_INDEX -> {
+                    var conversation = ChatSpec.decode(readMessage(index, wireType));
+                    onEntry(() -> listener.onConversation(conversation));
+                }
+                case STATUS_V3_MESSAGES_INDEX -> {
+                    var status = ChatMessageInfoSpec.decode(readMessage(index, wireType));
+                    onEntry(() -> listener.onStatus(status));
+                }
+                case PUSH_NAMES_INDEX -> {
+                    var pushName = PushNameSpec.decode(readMessage(index, wireType));
+                    onEntry(() -> listener.onPushName(pushName));
+                }
+                case PAST_PARTICIPANTS_INDEX -> {
+                    var pastParticipants = GroupPastParticipantsSpec.decode(readMessage(index, wireType));
+                    onEntry(() -> listener.onPastParticipants(pastParticipants));
+                }
+                case PHONE_NUMBER_TO_LID_MAPPINGS_INDEX -> {
+                    var mapping = PhoneNumberToLidMappingSpec.decode(readMessage(index, wireType));
+                    onEntry(() -> listener.onLidMapping(mapping));
+                }
+                default -> skip(wireType);
+            }
+        }
+
+        if (syncType == null) {
+            throw new IOException("Missing mandatory field: syncType");
+        }
+
+        return new Chunk(syncType, chunkOrder, progress);
+    }
+
+    private void onSyncType(long value) throws IOException {
+        if (syncType != null) {
+            return;
+        }
+
+        for (var type : HistorySync.Type.values()) {
+            if (type.index() == value) {
+                this.syncType = type;
+                listener.onSyncType(type);
+                for (var entry : pendingEntries) {
+                    entry.run();
+                }
+                pendingEntries.clear();
+                return;
+            }
+        }
+
+        throw new IOException("Unknown history sync type: " + value);
+    }
+
+    private void onEntry(Runnable entry) {
+        if (syncType != null) {
+            entry.run();
+        } else {
+            pendingEntries.add(entry);
+        }
+    }
+
+    private ProtobufInputStream readMessage(int index, int wireType) throws IOException {
+        checkWireType(index, wireType, WIRE_TYPE_LENGTH_DELIMITED);
+        var length = readLength();
+        var message = input.readNBytes(length);
+        if (message.length != length) {
+            throw new EOFException("Truncated field " + index);
+        }
+
+        return ProtobufInputStream.fromBytes(message, 0, length);
+    }
+
+    private void skip(int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_TYPE_VAR_INT -> readVarInt();
+            case WIRE_TYPE_FIXED64 -> input.skipNBytes(Long.BYTES);
+            case WIRE_TYPE_LENGTH_DELIMITED -> input.skipNBytes(readLength());
+            case WIRE_TYPE_FIXED32 -> input.skipNBytes(Integer.BYTES);
+            default -> throw new IOException("Unsupported wire type: " + wireType);
+        }
+    }
+
+    private static void checkWireType(int index, int actual, int expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected wire type " + actual + " for field " + index);
+        }
+    }
+
+    private long readTag() throws IOException {
+        var first = input.read();
+        if (first == -1) {
+            return -1;
+        }
+
+        return readVarInt(first);
+    }
+
+    private int readLength() throws IOException {
+        var length = readVarInt();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid field length: " + length);
+        }
+
+        return (int) length;
+    }
+
+    private long readVarInt() throws IOException {
+        var first = input.read();
+        if (first == -1) {
+            throw new EOFException("Truncated var int");
+        }
+
+        return readVarInt(first);
+    }
+
+    private long readVarInt(int first) throws IOException {
+        var result = (long) (first & 0x7F);
+        var current = first;
+        for (var shift = 7; (current & 0x80) != 0; shift += 7) {
+            if (shift >= Long.SIZE) {
+                throw new IOException("Malformed var int");
+            }
+
+            current = input.read();
+            if (current == -1) {
+                throw new EOFException("Truncated var int");
+            }
+
+            result |= (long) (current & 0x7F) << shift;
+        }
+
+        return result;
+    }
+
+    /**
+     * The fields of a history sync that describe the chunk, rather than its entries
+     *
+     * @param syncType   the type of the history sync
+     * @param chunkOrder the order of the chunk
+     * @param progress   the progress of the sync, or null
+     */
+    record Chunk(HistorySync.Type syncType, int chunkOrder, Integer progress) {
+
+    }
+
+    /**
+     * Handles the entries of a history sync.
+     * {@link #onSyncType(HistorySync.Type)} is always called before any other method.
+     */
+    interface Listener {
+        void onSyncType(HistorySync.Type syncType);
+
+        void onConversation(Chat conversation);
+
+        void onStatus(ChatMessageInfo status);
+
+        void onPushName(PushName pushName);
+
+        void onPastParticipants(GroupPastParticipants pastParticipants);
+
+        void onLidMapping(PhoneNumberToLidMapping mapping);
+    }
+}
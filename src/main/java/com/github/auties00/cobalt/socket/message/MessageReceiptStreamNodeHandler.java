@@ -73,7 +73,9 @@ public final class MessageReceiptStreamNodeHandler extends SocketStream.Handler
                 message.receipt().addDeliveredJid(target);
             }
             if(chat.jid().hasServer(JidServer.groupOrCommunity())) {
-                var metadata = whatsapp.queryGroupOrCommunityMetadata(chat.jid());
+                var metadata = whatsapp.store()
+                        .findGroupOrCommunityMetadata(chat.jid())
+                        .orElseGet(() -> whatsapp.queryGroupOrCommunityMetadata(chat.jid()));
                 var jids = status == MessageStatus.READ ? message.receipt().readJids() : message.receipt().deliveredJids();
                 if (participant == null || metadata.participants().size() == jids.size()) {
                     switch (status) {
@@ -82,8 +84,9 @@ public final class MessageReceiptStreamNodeHandler extends SocketStream.Handler
                     }
                 }
             }
+            message.markUpdated();
             for(var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onMessageStatus(whatsapp, message));
+                dispatch(chat.jid(), () -> listener.onMessageStatus(whatsapp, message));
             }
         });
         if(node.hasAttribute("type", "retry")) {
@@ -98,7 +101,7 @@ public final class MessageReceiptStreamNodeHandler extends SocketStream.Handler
                 .orElse(MessageStatus.DELIVERED);
         message.setStatus(status);
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onMessageStatus(whatsapp, message));
+            dispatch(message.parentJid(), () -> listener.onMessageStatus(whatsapp, message));
         }
         // Newsletter messages don't support retry (they're plaintext)
     }
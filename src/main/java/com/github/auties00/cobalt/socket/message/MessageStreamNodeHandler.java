@@ -8,6 +8,7 @@ import com.github.auties00.cobalt.migration.LidMigrationService;
 import com.github.auties00.cobalt.model.action.ContactActionBuilder;
 import com.github.auties00.cobalt.model.chat.Chat;
 import com.github.auties00.cobalt.model.chat.ChatEphemeralTimer;
+import com.github.auties00.cobalt.model.chat.GroupPastParticipants;
 import com.github.auties00.cobalt.model.contact.Contact;
 import com.github.auties00.cobalt.model.contact.ContactStatus;
 import com.github.auties00.cobalt.model.info.ChatMessageInfo;
@@ -26,8 +27,10 @@ import it.auties.protobuf.stream.ProtobufInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -82,6 +85,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
             var chat = chatMessageInfo.chat()
                     .orElseGet(() -> whatsapp.store().addNewChat(chatMessageInfo.chatJid()));
             chat.addMessage(chatMessageInfo);
+            whatsapp.store().applyMessageRetention(chat, whatsapp.config().messageRetentionPolicy());
             if (chatMessageInfo.timestampSeconds().orElse(0L) > whatsapp.store().initializationTimeStamp()) {
                 if (chat.archived() && whatsapp.store().unarchiveChats()) {
                     chat.setArchived(false);
@@ -99,7 +103,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
                             var provider = contact.orElse(sender);
                             chat.addPresence(sender, ContactStatus.AVAILABLE);
                             for (var listener : whatsapp.store().listeners()) {
-                                Thread.startVirtualThread(() -> listener.onContactPresence(whatsapp, chatMessageInfo.chatJid(), provider.jid()));
+                                dispatch(chatMessageInfo.chatJid(), () -> listener.onContactPresence(whatsapp, chatMessageInfo.chatJid(), provider.jid()));
                             }
                         });
                 if (!chatMessageInfo.ignore() && !chatMessageInfo.fromMe()) {
@@ -117,11 +121,11 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
     private void notifyListeners(MessageInfo messageInfo) {
         if(messageInfo instanceof ChatMessageInfo chatInfo && chatInfo.chatJid().equals(Jid.statusBroadcastAccount())) {
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onNewStatus(whatsapp, chatInfo));
+                dispatch(chatInfo.chatJid(), () -> listener.onNewStatus(whatsapp, chatInfo));
             }
         }else {
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onNewMessage(whatsapp, messageInfo));
+                dispatch(messageInfo.parentJid(), () -> listener.onNewMessage(whatsapp, messageInfo));
             }
 
             var quotedMessageInfo = messageInfo.quotedMessage()
@@ -131,7 +135,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
             }
 
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onMessageReply(whatsapp, messageInfo, quotedMessageInfo));
+                dispatch(messageInfo.parentJid(), () -> listener.onMessageReply(whatsapp, messageInfo, quotedMessageInfo));
             }
         }
     }
@@ -268,7 +272,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
                 .timestampSeconds(timestampSeconds)
                 .build();
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onWebAppStateSetting(whatsapp, setting));
+            dispatch(info.chatJid(), () -> listener.onWebAppStateSetting(whatsapp, setting));
         }
     }
 
@@ -290,8 +294,11 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
     private void onHistorySyncNotification(ChatMessageInfo info, ProtocolMessage protocolMessage) {
         scheduleHistorySyncTimeout();
         try {
-            var historySync = downloadHistorySync(protocolMessage);
-            onHistoryNotification(historySync);
+            var notification = findHistorySyncNotification(protocolMessage);
+            if (notification != null) {
+                var chunk = downloadHistorySyncNotification(notification);
+                onHistoryNotification(chunk);
+            }
         } catch (Throwable throwable) {
             whatsapp.handleFailure(HISTORY_SYNC, throwable);
         } finally {
@@ -299,7 +306,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
         }
     }
 
-    private HistorySync downloadHistorySync(ProtocolMessage protocolMessage) {
+    private HistorySyncNotification findHistorySyncNotification(ProtocolMessage protocolMessage) {
         if (historySyncTypes.containsAll(REQUIRED_HISTORY_SYNC_TYPES) &&
              (whatsapp.store().webHistoryPolicy().isEmpty() || whatsapp.store().webHistoryPolicy().get().isZero())) {
             return null;
@@ -308,23 +315,31 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
         protocolMessage.historySyncNotification()
                 .ifPresent(historySyncNotification -> historySyncTypes.add(historySyncNotification.syncType()));
         return protocolMessage.historySyncNotification()
-                .map(this::downloadHistorySyncNotification)
                 .orElse(null);
     }
 
-    private HistorySync downloadHistorySyncNotification(HistorySyncNotification notification) {
+    // The history sync is decoded while it's being downloaded, so only one conversation at a time is held in memory
+    // The sync is only reported as finished if the whole chunk was decoded: a failed or truncated download doesn't mark anything as synced
+    private HistorySyncDecoder.Chunk downloadHistorySyncNotification(HistorySyncNotification notification) {
+        var handler = new HistorySyncHandler();
+        HistorySyncDecoder.Chunk chunk;
         try {
             var initialPayload = notification.initialHistBootstrapInlinePayload();
             if (initialPayload.isPresent()) {
                 var initialPayloadStream = new InflaterInputStream(new InputStream() {
                     @Override
                     public int read() {
-                        return initialPayload.get().get() & 0xFF;
+                        return initialPayload.get().hasRemaining() ? initialPayload.get().get() & 0xFF : -1;
                     }
 
                     @Override
                     public int read(byte[] b, int off, int len) {
-                        var length = Math.min(len, available());
+                        var available = available();
+                        if (available == 0) {
+                            return len == 0 ? 0 : -1;
+                        }
+
+                        var length = Math.min(len, available);
                         initialPayload.get().get(b, off, length);
                         return length;
                     }
@@ -334,44 +349,42 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
                         return initialPayload.get().remaining();
                     }
                 });
-                try(var mediaStream = ProtobufInputStream.fromStream(initialPayloadStream)) {
-                    return HistorySyncSpec.decode(mediaStream);
+                try(initialPayloadStream) {
+                    chunk = HistorySyncDecoder.decode(initialPayloadStream, handler);
                 }
             }else {
                 var mediaConnection = whatsapp.store()
                         .waitForMediaConnection();
-                try(var mediaStream = ProtobufInputStream.fromStream(mediaConnection.download(notification))) {
-                    return HistorySyncSpec.decode(mediaStream);
+                try(var mediaStream = mediaConnection.download(notification)) {
+                    chunk = HistorySyncDecoder.decode(mediaStream, handler);
                 }
             }
         } catch (Throwable throwable) {
             throw new MediaDownloadException("Cannot download history sync", throwable);
         }
-    }
 
-    private void onHistoryNotification(HistorySync history) {
-        if (history == null) {
-            return;
-        }
+        handler.finish();
+        return chunk;
+    }
 
-        handleHistorySync(history);
-        if (history.progress() == null) {
+    private void onHistoryNotification(HistorySyncDecoder.Chunk chunk) {
+        if (chunk.progress() == null) {
             return;
         }
 
-        var recent = history.syncType() == HistorySync.Type.RECENT;
+        var recent = chunk.syncType() == HistorySync.Type.RECENT;
         if (recent) {
-            recentHistorySyncTracker.commit(history.chunkOrder(), history.progress() == 100);
+            recentHistorySyncTracker.commit(chunk.chunkOrder(), chunk.progress() == 100);
             if (recentHistorySyncTracker.isDone()) {
                 for (var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onWebHistorySyncProgress(whatsapp, history.progress(), true));
+                    dispatch(() -> listener.onWebHistorySyncProgress(whatsapp, chunk.progress(), true));
                 }
             }
         } else {
-            fullHistorySyncTracker.commit(history.chunkOrder(), history.progress() == 100);
+            fullHistorySyncTracker.commit(chunk.chunkOrder(), chunk.progress() == 100);
             if (fullHistorySyncTracker.isDone()) {
                 for (var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onWebHistorySyncProgress(whatsapp, history.progress(), false));
+                    dispatch(() -> listener.onWebHistorySyncProgress(whatsapp, chunk.progress(), false));
                 }
             }
         }
@@ -381,45 +394,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
         info.chat().ifPresent(chat -> chat.removeMessage(message.id()));
         message.setRevokeTimestampSeconds(Clock.nowSeconds());
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onMessageDeleted(whatsapp, message, true));
-        }
-    }
-
-    private void handleHistorySync(HistorySync history) {
-        switch (history.syncType()) {
-            case INITIAL_STATUS_V3 -> handleInitialStatus(history);
-            case PUSH_NAME -> handlePushNames(history);
-            case INITIAL_BOOTSTRAP -> handleInitialBootstrap(history);
-            case FULL -> handleChatsSync(history, false);
-            case RECENT -> handleChatsSync(history, true);
-            case NON_BLOCKING_DATA -> handleNonBlockingData(history);
-            case ON_DEMAND -> {} // No specific handling needed
-        }
-    }
-
-    private void handleInitialStatus(HistorySync history) {
-        for (var messageInfo : history.statusV3Messages()) {
-            whatsapp.store().addStatus(messageInfo);
-        }
-        whatsapp.store()
-                .setSyncedStatus(true);
-        var status = whatsapp.store()
-                .status();
-        for(var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onStatus(whatsapp, status));
-        }
-    }
-
-    private void handlePushNames(HistorySync history) {
-        for (var pushName : history.pushNames()) {
-            handNewPushName(pushName);
-        }
-        whatsapp.store()
-                .setSyncedContacts(true);
-        var contacts = whatsapp.store()
-                .contacts();
-        for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onContacts(whatsapp, contacts));
+            dispatch(message.parentJid(), () -> listener.onMessageDeleted(whatsapp, message, true));
         }
     }
 
@@ -439,50 +414,19 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
                 .fromMe(true)
                 .build();
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onWebAppStateAction(whatsapp, action, index));
+            dispatch(jid, () -> listener.onWebAppStateAction(whatsapp, action, index));
         }
     }
 
     private Contact createNewContact(Jid jid) {
         var contact = whatsapp.store().addNewContact(jid);
         for(var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onNewContact(whatsapp, contact));
+            dispatch(jid, () -> listener.onNewContact(whatsapp, contact));
         }
         return contact;
     }
 
-    private void handleInitialBootstrap(HistorySync history) {
-        var historyPolicy = whatsapp.store().webHistoryPolicy();
-        if (historyPolicy.isEmpty() || !historyPolicy.get().isZero()) {
-            var jids = history.conversations()
-                    .stream()
-                    .map(Chat::jid)
-                    .toList();
-            historyCache.addAll(jids);
-        }
-
-        handleConversations(history);
-        whatsapp.store()
-                .setSyncedChats(true);
-        var chats = whatsapp.store().chats();
-        for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onChats(whatsapp, chats));
-        }
-        lidMigrationService.triggerMigration();
-    }
-
-    private void handleChatsSync(HistorySync history, boolean recent) {
-        var historyPolicy = whatsapp.store().webHistoryPolicy();
-        if (historyPolicy.isPresent() && historyPolicy.get().isZero()) {
-            return;
-        }
-
-        handleConversations(history);
-        handleConversationsNotifications(history, recent);
-        scheduleHistorySyncTimeout();
-    }
-
-    private void handleConversationsNotifications(HistorySync history, boolean recent) {
+    private void handleConversationsNotifications(Set<Jid> conversations, boolean recent) {
         var toRemove = new HashSet<Jid>();
         for (var cachedJid : historyCache) {
             var chat = whatsapp.store()
@@ -492,7 +436,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
                 continue;
             }
 
-            var done = !recent && !history.conversations().contains(chat);
+            var done = !recent && !conversations.contains(chat.jid());
             if (done) {
                 chat.setEndOfHistoryTransfer(true);
                 chat.setEndOfHistoryTransferType(Chat.EndOfHistoryTransferType.COMPLETE_AND_NO_MORE_MESSAGE_REMAIN_ON_PRIMARY);
@@ -500,7 +444,7 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
             }
 
             for(var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onWebHistorySyncMessages(whatsapp, chat, done));
+                dispatch(chat.jid(), () -> listener.onWebHistorySyncMessages(whatsapp, chat, done));
             }
         }
 
@@ -526,35 +470,140 @@ public final class MessageStreamNodeHandler extends SocketStream.Handler {
             }
 
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onWebHistorySyncMessages(whatsapp, chat, true));
+                dispatch(chat.jid(), () -> listener.onWebHistorySyncMessages(whatsapp, chat, true));
             }
         }
 
         historyCache.clear();
     }
 
-    private void handleConversations(HistorySync history) {
-        for (var chat : history.conversations()) {
-            messageReceiverService.validateMessages(chat);
-            whatsapp.store().addChat(chat);
-        }
+    private void handleConversation(Chat chat) {
+        messageReceiverService.validateMessages(chat);
+        whatsapp.store().addChat(chat);
+        whatsapp.store().applyMessageRetention(chat, whatsapp.config().messageRetentionPolicy());
     }
 
-    private void handleNonBlockingData(HistorySync history) {
-        handlePastParticipants(history);
-        handleLidMappings(history);
-    }
+    // Applies the entries of a history sync to the store as they are decoded
+    private final class HistorySyncHandler implements HistorySyncDecoder.Listener {
+        private final Set<Jid> conversations;
+        private final List<PhoneNumberToLidMapping> lidMappings;
+        private HistorySync.Type syncType;
+        private boolean skipConversations;
+        private boolean cacheConversations;
+
+        private HistorySyncHandler() {
+            this.conversations = new HashSet<>();
+            this.lidMappings = new ArrayList<>();
+        }
+
+        @Override
+        public void onSyncType(HistorySync.Type syncType) {
+            this.syncType = syncType;
+            var historyPolicy = whatsapp.store().webHistoryPolicy();
+            var noHistory = historyPolicy.isPresent() && historyPolicy.get().isZero();
+            this.skipConversations = noHistory && (syncType == HistorySync.Type.FULL || syncType == HistorySync.Type.RECENT);
+            this.cacheConversations = !noHistory && syncType == HistorySync.Type.INITIAL_BOOTSTRAP;
+        }
+
+        @Override
+        public void onConversation(Chat conversation) {
+            switch (syncType) {
+                case INITIAL_BOOTSTRAP, FULL, RECENT -> {
+                    if (skipConversations) {
+                        return;
+                    }
+
+                    if (cacheConversations) {
+                        historyCache.add(conversation.jid());
+                    }
+
+                    handleConversation(conversation);
+                    if (syncType != HistorySync.Type.INITIAL_BOOTSTRAP) {
+                        conversations.add(conversation.jid());
+                    }
+                }
+                default -> {} // Conversations are only expected in chat syncs
+            }
+        }
+
+        @Override
+        public void onStatus(ChatMessageInfo status) {
+            if (syncType == HistorySync.Type.INITIAL_STATUS_V3) {
+                whatsapp.store().addStatus(status);
+            }
+        }
+
+        @Override
+        public void onPushName(PushName pushName) {
+            if (syncType == HistorySync.Type.PUSH_NAME) {
+                handNewPushName(pushName);
+            }
+        }
+
+        @Override
+        public void onPastParticipants(GroupPastParticipants pastParticipants) {
+            if (syncType != HistorySync.Type.NON_BLOCKING_DATA) {
+                return;
+            }
 
-    private void handlePastParticipants(HistorySync history) {
-        for (var pastParticipants : history.pastParticipants()) {
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onWebHistorySyncPastParticipants(whatsapp, pastParticipants.groupJid(), pastParticipants.pastParticipants()));
+                dispatch(pastParticipants.groupJid(), () -> listener.onWebHistorySyncPastParticipants(whatsapp, pastParticipants.groupJid(), pastParticipants.pastParticipants()));
             }
         }
-    }
 
-    private void handleLidMappings(HistorySync history) {
-        lidMigrationService.handleHistorySync(history);
+        @Override
+        public void onLidMapping(PhoneNumberToLidMapping mapping) {
+            if (syncType == HistorySync.Type.NON_BLOCKING_DATA) {
+                lidMappings.add(mapping);
+            }
+        }
+
+        // Called only after the whole chunk was decoded
+        private void finish() {
+            if (syncType == null) {
+                return;
+            }
+
+            switch (syncType) {
+                case INITIAL_STATUS_V3 -> {
+                    whatsapp.store()
+                            .setSyncedStatus(true);
+                    var status = whatsapp.store()
+                            .status();
+                    for(var listener : whatsapp.store().listeners()) {
+                        dispatch(() -> listener.onStatus(whatsapp, status));
+                    }
+                }
+                case PUSH_NAME -> {
+                    whatsapp.store()
+                            .setSyncedContacts(true);
+                    var contacts = whatsapp.store()
+                            .contacts();
+                    for (var listener : whatsapp.store().listeners()) {
+                        dispatch(() -> listener.onContacts(whatsapp, contacts));
+                    }
+                }
+                case INITIAL_BOOTSTRAP -> {
+                    whatsapp.store()
+                            .setSyncedChats(true);
+                    var chats = whatsapp.store().chats();
+                    for (var listener : whatsapp.store().listeners()) {
+                        dispatch(() -> listener.onChats(whatsapp, chats));
+                    }
+                    lidMigrationService.triggerMigration();
+                }
+                case FULL, RECENT -> {
+                    if (skipConversations) {
+                        return;
+                    }
+
+                    handleConversationsNotifications(conversations, syncType == HistorySync.Type.RECENT);
+                    scheduleHistorySyncTimeout();
+                }
+                case NON_BLOCKING_DATA -> lidMigrationService.handleLidMappings(lidMappings);
+                case ON_DEMAND -> {} // No specific handling needed
+            }
+        }
     }
 
     @Override
@@ -1,9 +1,12 @@
 package com.github.auties00.cobalt.socket.notification;
 
 import com.github.auties00.cobalt.client.WhatsAppClient;
+import com.github.auties00.cobalt.device.DeviceService;
 import com.github.auties00.cobalt.migration.LidMigrationService;
 import com.github.auties00.cobalt.model.chat.Chat;
 import com.github.auties00.cobalt.model.chat.ChatEphemeralTimer;
+import com.github.auties00.cobalt.model.chat.ChatParticipant;
+import com.github.auties00.cobalt.model.chat.ChatRole;
 import com.github.auties00.cobalt.model.info.ChatMessageInfoBuilder;
 import com.github.auties00.cobalt.model.info.MessageInfoStubType;
 import com.github.auties00.cobalt.model.info.NewsletterMessageInfo;
@@ -39,17 +42,22 @@ import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.time.chrono.ChronoZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public final class NotificationStreamNodeHandler extends SocketStream.Handler {
     private static final int DEFAULT_NEWSLETTER_MESSAGES = 100;
 
+    private final DeviceService deviceService;
     private final SocketPhonePairing pairingCode;
     private final LidMigrationService lidMigrationService;
-    public NotificationStreamNodeHandler(WhatsAppClient whatsapp, SocketPhonePairing pairingCode, LidMigrationService lidMigrationService) {
+    public NotificationStreamNodeHandler(WhatsAppClient whatsapp, DeviceService deviceService, SocketPhonePairing pairingCode, LidMigrationService lidMigrationService) {
         super(whatsapp, "notification");
+        this.deviceService = deviceService;
         this.pairingCode = pairingCode;
         this.lidMigrationService = lidMigrationService;
     }
@@ -63,6 +71,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
                 case "server_sync" -> handleServerSyncNotification(node);
                 case "account_sync" -> handleAccountSyncNotification(node);
                 case "encrypt" -> handleEncryptNotification(node);
+                case "devices" -> handleDevicesNotification(node);
                 case "picture" -> handlePictureNotification(node);
                 case "registration" -> handleRegistrationNotification(node);
                 case "link_code_companion_reg" -> handleCompanionRegistration(node);
@@ -314,7 +323,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
         }
 
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onRegistrationCode(whatsapp, code.getAsLong()));
+            dispatch(() -> listener.onRegistrationCode(whatsapp, code.getAsLong()));
         }
     }
 
@@ -332,11 +341,11 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
         if(whatsapp.store().findContactByJid(fromJid).isEmpty()) {
             var contact = whatsapp.store().addNewContact(fromJid);
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onNewContact(whatsapp, contact));
+                dispatch(contact.jid(), () -> listener.onNewContact(whatsapp, contact));
             }
         }
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onProfilePictureChanged(whatsapp, fromJid));
+            dispatch(fromJid, () -> listener.onProfilePictureChanged(whatsapp, fromJid));
         }
     }
 
@@ -353,6 +362,88 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
                 .orElse(null);
         var stubType = MessageInfoStubType.getStubType(notificationType, bodyType);
         addMessageForGroupStubType(timestamp, fromChat, participantJid, stubType, node);
+        for (var change : node.children()) {
+            updateGroupMetadata(fromJid, participantJid, timestamp, change);
+        }
+    }
+
+    // Applies a change to the cached metadata, so that it doesn't need to be queried again
+    // Changes that can't be applied invalidate the cached metadata instead
+    private void updateGroupMetadata(Jid groupJid, Jid authorJid, long timestamp, Node change) {
+        var metadata = whatsapp.store()
+                .findGroupOrCommunityMetadata(groupJid)
+                .orElse(null);
+        if (metadata == null) {
+            return;
+        }
+
+        var updated = switch (change.description()) {
+            case "add" -> {
+                var participants = new LinkedHashSet<>(metadata.participants());
+                change.streamChildren("participant")
+                        .flatMap(participant -> participant.streamAttributeAsJid("jid"))
+                        .forEachOrdered(jid -> {
+                            participants.removeIf(participant -> participant.jid().equals(jid));
+                            participants.add(metadata.isCommunity() ? ChatParticipant.ofCommunity(jid) : ChatParticipant.ofGroup(jid, ChatRole.USER));
+                        });
+                yield metadata.withParticipants(participants);
+            }
+            case "remove", "leave" -> {
+                var removed = change.streamChildren("participant")
+                        .flatMap(participant -> participant.streamAttributeAsJid("jid"))
+                        .collect(Collectors.toUnmodifiableSet());
+                if (removed.stream().anyMatch(this::isSelf)) {
+                    yield null;
+                }
+
+                var participants = new LinkedHashSet<>(metadata.participants());
+                participants.removeIf(participant -> removed.contains(participant.jid()));
+                yield metadata.withParticipants(participants);
+            }
+            case "promote", "demote" -> {
+                // Community participants don't hold a role, so the new admins are only known by querying the metadata again
+                if (metadata.isCommunity()) {
+                    yield null;
+                }
+
+                var role = change.hasDescription("promote") ? ChatRole.ADMIN : ChatRole.USER;
+                var changed = change.streamChildren("participant")
+                        .flatMap(participant -> participant.streamAttributeAsJid("jid"))
+                        .collect(Collectors.toCollection(HashSet::new));
+                var participants = new LinkedHashSet<ChatParticipant>();
+                for (var participant : metadata.participants()) {
+                    participants.add(changed.remove(participant.jid()) ? ChatParticipant.ofGroup(participant.jid(), role) : participant);
+                }
+
+                // A participant that isn't cached means that the cached metadata is already stale
+                yield changed.isEmpty() ? metadata.withParticipants(participants) : null;
+            }
+            case "subject" -> {
+                var subject = change.getAttributeAsString("subject", metadata.subject());
+                var subjectAuthor = change.getAttributeAsJid("s_o", authorJid);
+                var subjectTimestamp = change.getAttributeAsLong("s_t", timestamp);
+                yield metadata.withSubject(subject, subjectAuthor, subjectTimestamp);
+            }
+            case "description" -> {
+                var descriptionId = change.getAttributeAsString("id", null);
+                var description = change.getChild("body")
+                        .flatMap(Node::toContentString)
+                        .orElse(null);
+                yield metadata.withDescription(description, descriptionId);
+            }
+            default -> null;
+        };
+        if (updated == null) {
+            whatsapp.store().removeGroupOrCommunityMetadata(groupJid);
+        } else if (updated != metadata) {
+            whatsapp.store().addGroupOrCommunityMetadata(updated);
+        }
+    }
+
+    private boolean isSelf(Jid jid) {
+        var userJid = jid.toUserJid();
+        return whatsapp.store().jid().map(Jid::toUserJid).filter(userJid::equals).isPresent()
+               || whatsapp.store().lid().map(Jid::toUserJid).filter(userJid::equals).isPresent();
     }
 
     private void addMessageForGroupStubType(long timestamp, Chat chat, Jid sender, MessageInfoStubType stubType, Node metadata) {
@@ -371,8 +462,9 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
                 .senderJid(sender)
                 .build();
         chat.addMessage(message);
+        whatsapp.store().applyMessageRetention(chat, whatsapp.config().messageRetentionPolicy());
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onNewMessage(whatsapp, message));
+            dispatch(chat.jid(), () -> listener.onNewMessage(whatsapp, message));
         }
     }
 
@@ -386,6 +478,16 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
         whatsapp.sendPreKeys(keysCount);
     }
 
+    private void handleDevicesNotification(Node node) {
+        var userJid = node.getAttributeAsJid("from")
+                .orElse(null);
+        if (userJid == null) {
+            return;
+        }
+
+        deviceService.invalidateDevices(userJid);
+    }
+
     private void handleAccountSyncNotification(Node node) {
         var child = node.getChild();
         if (child.isEmpty()) {
@@ -429,7 +531,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
         whatsapp.store()
                 .setProfilePicture(result.orElse(null));
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onProfilePictureChanged(whatsapp, user.withoutData()));
+            dispatch(user, () -> listener.onProfilePictureChanged(whatsapp, user.withoutData()));
         }
     }
 
@@ -455,7 +557,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
         whatsapp.store()
                 .setAbout(newAbout);
         for (var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onAboutChanged(whatsapp, oldAbout, newAbout));
+            dispatch(() -> listener.onAboutChanged(whatsapp, oldAbout, newAbout));
         }
     }
 
@@ -470,7 +572,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
                     .findContactByJid(value.get())
                     .ifPresent(contact -> contact.setBlocked(entry.hasAttribute("action", "block")));
             for (var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onContactBlocked(whatsapp, value.get()));
+                dispatch(value.get(), () -> listener.onContactBlocked(whatsapp, value.get()));
             }
         });
     }
@@ -500,7 +602,7 @@ public final class NotificationStreamNodeHandler extends SocketStream.Handler {
             whatsapp.store()
                     .addPrivacySetting(newEntry);
             for(var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onPrivacySettingChanged(whatsapp, newEntry));
+                dispatch(() -> listener.onPrivacySettingChanged(whatsapp, newEntry));
             }
         });
     }
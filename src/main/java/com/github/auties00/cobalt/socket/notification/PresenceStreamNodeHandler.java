@@ -27,7 +27,7 @@ public final class PresenceStreamNodeHandler extends SocketStream.Handler {
                         contact.setLastSeen(ZonedDateTime.now());
                     });
             for(var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onContactPresence(whatsapp, resolvedChatJid, resolvedChatJid));
+                dispatch(resolvedChatJid, () -> listener.onContactPresence(whatsapp, resolvedChatJid, resolvedChatJid));
             }
         } else {
             var resolvedParticipantJid = resolveLidToPhone(participantJid.get());
@@ -41,7 +41,7 @@ public final class PresenceStreamNodeHandler extends SocketStream.Handler {
                     .findChatByJid(resolvedChatJid)
                     .ifPresent(chat -> chat.addPresence(resolvedParticipantJid, status));
             for(var listener : whatsapp.store().listeners()) {
-                Thread.startVirtualThread(() -> listener.onContactPresence(whatsapp, resolvedChatJid, resolvedParticipantJid));
+                dispatch(resolvedChatJid, () -> listener.onContactPresence(whatsapp, resolvedChatJid, resolvedParticipantJid));
             }
         }
     }
@@ -20,25 +20,25 @@ public final class WebNotifyStoreStreamNodeHandler extends SocketStream.Handler
             if(whatsapp.store().syncedChats()) {
                 var chats = whatsapp.store().chats();
                 for(var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onChats(whatsapp, chats));
+                    dispatch(() -> listener.onChats(whatsapp, chats));
                 }
             }
             if(whatsapp.store().syncedContacts()) {
                 var contacts = whatsapp.store().contacts();
                 for(var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onContacts(whatsapp, contacts));
+                    dispatch(() -> listener.onContacts(whatsapp, contacts));
                 }
             }
             if(whatsapp.store().syncedNewsletters()) {
                 var newsletters = whatsapp.store().newsletters();
                 for(var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onNewsletters(whatsapp, newsletters));
+                    dispatch(() -> listener.onNewsletters(whatsapp, newsletters));
                 }
             }
             if(whatsapp.store().syncedStatus()) {
                 var status = whatsapp.store().status();
                 for(var listener : whatsapp.store().listeners()) {
-                    Thread.startVirtualThread(() -> listener.onStatus(whatsapp, status));
+                    dispatch(() -> listener.onStatus(whatsapp, status));
                 }
             }
         } catch (Exception exception) {
@@ -19,7 +19,7 @@ public final class WebOnInitialInfoStreamNodeHandler extends SocketStream.Handle
         }
 
         for(var listener : whatsapp.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onLoggedIn(whatsapp));
+            dispatch(() -> listener.onLoggedIn(whatsapp));
         }
     }
 }
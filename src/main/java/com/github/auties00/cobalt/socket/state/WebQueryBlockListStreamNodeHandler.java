@@ -23,7 +23,7 @@ public final class WebQueryBlockListStreamNodeHandler extends SocketStream.Handl
                 .orElseGet(() -> {
                     var newContact = whatsapp.store().addNewContact(entry);
                     for(var listener : whatsapp.store().listeners()) {
-                        Thread.startVirtualThread(() -> listener.onNewContact(whatsapp, newContact));
+                        dispatch(entry, () -> listener.onNewContact(whatsapp, newContact));
                     }
                     return newContact;
                 })
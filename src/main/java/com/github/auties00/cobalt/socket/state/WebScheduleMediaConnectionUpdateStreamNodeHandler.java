@@ -2,8 +2,10 @@ package com.github.auties00.cobalt.socket.state;
 
 import com.github.auties00.cobalt.client.WhatsAppClient;
 import com.github.auties00.cobalt.exception.SessionClosedException;
+import com.github.auties00.cobalt.media.MediaCache;
 import com.github.auties00.cobalt.media.MediaConnection;
 import com.github.auties00.cobalt.media.MediaHost;
+import com.github.auties00.cobalt.media.MediaTransport;
 import com.github.auties00.cobalt.model.jid.JidServer;
 import com.github.auties00.cobalt.model.media.MediaPath;
 import com.github.auties00.cobalt.node.Node;
@@ -19,10 +21,15 @@ import static com.github.auties00.cobalt.client.WhatsAppClientErrorHandler.Locat
 
 public final class WebScheduleMediaConnectionUpdateStreamNodeHandler extends SocketStream.Handler {
     private static final int DEFAULT_MEDIA_CONNECTION_TTL = 300;
+    private final MediaTransport mediaTransport;
+    private final MediaCache mediaCache;
     private volatile boolean active;
 
     public WebScheduleMediaConnectionUpdateStreamNodeHandler(WhatsAppClient whatsapp) {
         super(whatsapp, "success");
+        // Shared by every media connection of the client, so that they outlive the refreshes of the media connection
+        this.mediaTransport = new MediaTransport();
+        this.mediaCache = new MediaCache(whatsapp.config());
     }
 
     @Override
@@ -57,7 +64,7 @@ public final class WebScheduleMediaConnectionUpdateStreamNodeHandler extends Soc
             var hosts = mediaConn.streamChildren("host")
                     .map(this::parseHost)
                     .toList();
-            mediaConnection = new MediaConnection(auth, ttl, maxBuckets, timestamp, hosts);
+            mediaConnection = new MediaConnection(auth, ttl, maxBuckets, timestamp, hosts, mediaTransport, mediaCache);
             whatsapp.store()
                     .setMediaConnection(mediaConnection);
         } catch (SessionClosedException e) {
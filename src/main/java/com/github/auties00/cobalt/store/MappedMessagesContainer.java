@@ -0,0 +1,86 @@
+package com.github.auties00.cobalt.store;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An encoded chat or newsletter whose messages were indexed, but not decoded.
+ * <p>
+ * The metadata, that is every top level field except the messages, is copied so that it can be decoded eagerly,
+ * while every message is exposed as a slice of the source buffer that can be decoded on demand.
+ * When the source buffer is memory-mapped, messages don't occupy any heap until they are decoded.
+ *
+ * @param metadata the encoded fields of the container, excluding its messages
+ * @param messages the slices of the source buffer that hold the encoded messages, in order
+ */
+record MappedMessagesContainer(byte[] metadata, List<ByteBuffer> messages) {
+    private static final int WIRE_TYPE_VAR_INT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_TYPE_FIXED32 = 5;
+
+    /**
+     * Indexes the messages of an encoded container
+     *
+     * @param buffer        the encoded container, positioned at its first field
+     * @param messagesIndex the index of the repeated field that holds the messages
+     * @return a non-null container
+     * @throws IllegalArgumentException if the buffer is not a valid protobuf message
+     */
+    static MappedMessagesContainer of(ByteBuffer buffer, int messagesIndex) {
+        var metadata = new ByteArrayOutputStream();
+        var messages = new ArrayList<ByteBuffer>();
+        while (buffer.hasRemaining()) {
+            var fieldStart = buffer.position();
+            var tag = readVarInt(buffer);
+            var index = (int) (tag >>> 3);
+            var wireType = (int) (tag & 7);
+            switch (wireType) {
+                case WIRE_TYPE_VAR_INT -> readVarInt(buffer);
+                case WIRE_TYPE_FIXED64 -> skip(buffer, Long.BYTES);
+                case WIRE_TYPE_LENGTH_DELIMITED -> {
+                    var length = (int) readVarInt(buffer);
+                    if (index == messagesIndex) {
+                        messages.add(buffer.slice(buffer.position(), length).asReadOnlyBuffer());
+                    }
+                    skip(buffer, length);
+                }
+                case WIRE_TYPE_FIXED32 -> skip(buffer, Integer.BYTES);
+                default -> throw new IllegalArgumentException("Unsupported wire type: " + wireType);
+            }
+
+            if (index != messagesIndex) {
+                var field = new byte[buffer.position() - fieldStart];
+                buffer.get(fieldStart, field);
+                metadata.writeBytes(field);
+            }
+        }
+        return new MappedMessagesContainer(metadata.toByteArray(), messages);
+    }
+
+    private static long readVarInt(ByteBuffer buffer) {
+        var result = 0L;
+        for (var shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated var int");
+            }
+
+            var value = buffer.get();
+            result |= (long) (value & 0x7F) << shift;
+            if ((value & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed var int");
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated field");
+        }
+
+        buffer.position(buffer.position() + length);
+    }
+}
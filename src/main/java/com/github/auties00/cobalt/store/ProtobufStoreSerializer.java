@@ -3,24 +3,33 @@ package com.github.auties00.cobalt.store;
 import com.github.auties00.cobalt.client.WhatsAppClientType;
 import com.github.auties00.cobalt.model.chat.Chat;
 import com.github.auties00.cobalt.model.chat.ChatSpec;
+import com.github.auties00.cobalt.model.info.ChatMessageInfo;
 import com.github.auties00.cobalt.model.info.ContextInfo;
 import com.github.auties00.cobalt.model.info.MessageInfo;
+import com.github.auties00.cobalt.model.info.MessageInfoParent;
+import com.github.auties00.cobalt.model.info.NewsletterMessageInfo;
 import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.model.message.model.ContextualMessage;
 import com.github.auties00.cobalt.model.newsletter.Newsletter;
 import com.github.auties00.cobalt.model.newsletter.NewsletterSpec;
+import com.github.auties00.cobalt.model.sync.HistorySyncMessage;
+import com.github.auties00.cobalt.model.sync.HistorySyncMessageSpec;
 import it.auties.protobuf.stream.ProtobufInputStream;
-import it.auties.protobuf.stream.ProtobufOutputStream;
 
-import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -30,26 +39,46 @@ import static java.util.concurrent.Executors.newVirtualThreadPerTaskExecutor;
 final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
     private static final String CHAT_PREFIX = "chat_";
     private static final String NEWSLETTER_PREFIX = "newsletter_";
-    private static final Path DEFAULT_SERIALIZER_PATH = Path.of(System.getProperty("user.home") + "/.cobalt/");
+    private static final String SNAPSHOT_SUFFIX = ".proto";
+    private static final String SEGMENTS_SUFFIX = ".log";
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final int CHAT_MESSAGES_INDEX = 2;
+    static final Path DEFAULT_SERIALIZER_PATH = Path.of(System.getProperty("user.home") + "/.cobalt/");
 
 
     private final Path baseDirectory;
     private final ConcurrentMap<UUID, Integer> storesHashCodes;
     private final ConcurrentMap<UUID, Thread> storesAttributions;
-    private final ConcurrentMap<StoreJidPair, Integer> jidsHashCodes;
-    private final ReentrantKeyedLock storeLock;
+    private final ReentrantKeyedLock<UUID> storeLock;
+    private final ReentrantKeyedLock<StoreJidPair> containersLock;
+    private final Set<StoreJidPair> pendingCompactions;
+    private final ConcurrentMap<StoreJidPair, MessagesMapping> messagesMappings;
+    private final boolean mapMessages;
+    private final Duration messagesIdleTime;
 
     ProtobufStoreSerializer() {
-        this(DEFAULT_SERIALIZER_PATH);
+        this(DEFAULT_SERIALIZER_PATH, false, null);
     }
 
     ProtobufStoreSerializer(Path baseDirectory) {
+        this(baseDirectory, false, null);
+    }
+
+    // A null idle time keeps the messages of a chat in memory once they are loaded
+    ProtobufStoreSerializer(Path baseDirectory, boolean mapMessages, Duration messagesIdleTime) {
         Objects.requireNonNull(baseDirectory, "baseDirectory cannot be null");
+        if (messagesIdleTime != null && !mapMessages) {
+            throw new IllegalArgumentException("messagesIdleTime requires mapped messages");
+        }
         this.baseDirectory = baseDirectory;
+        this.mapMessages = mapMessages;
+        this.messagesIdleTime = messagesIdleTime;
         this.storesHashCodes = new ConcurrentHashMap<>();
         this.storesAttributions = new ConcurrentHashMap<>();
-        this.jidsHashCodes = new ConcurrentHashMap<>();
-        this.storeLock = new ReentrantKeyedLock();
+        this.storeLock = new ReentrantKeyedLock<>();
+        this.containersLock = new ReentrantKeyedLock<>();
+        this.pendingCompactions = ConcurrentHashMap.newKeySet();
+        this.messagesMappings = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -112,22 +141,36 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
         Objects.requireNonNull(store, "store cannot be null");
         try {
             storeLock.lock(store.uuid());
-            var oldHashCode = storesHashCodes.getOrDefault(store.uuid(), -1);
-            var newHashCode = store.hashCode();
-            if (oldHashCode == newHashCode) {
-                return;
-            }
-
-            storesHashCodes.put(store.uuid(), newHashCode);
             try (var executor = newVirtualThreadPerTaskExecutor()) {
-                executor.submit(() -> encodeStore(store, getSessionFile(store, "store" + ".proto")));
-                store.chats()
-                        .forEach(chat -> executor.submit(() -> serializeChat(store, chat)));
-                store.newsletters()
-                        .forEach(newsletter -> executor.submit(() -> serializeNewsletter(store, newsletter)));
-                var phoneNumber = store.phoneNumber();
-                if (phoneNumber.isPresent()) {
-                    executor.submit(() -> linkPhoneNumber(store.clientType(), store.uuid(), phoneNumber.getAsLong()));
+                var oldHashCode = storesHashCodes.getOrDefault(store.uuid(), -1);
+                var newHashCode = store.serializedHashCode();
+                if (oldHashCode != newHashCode) {
+                    storesHashCodes.put(store.uuid(), newHashCode);
+                    executor.submit(() -> encodeStore(store, getSessionFile(store, "store" + ".proto")));
+                    var phoneNumber = store.phoneNumber();
+                    if (phoneNumber.isPresent()) {
+                        executor.submit(() -> linkPhoneNumber(store.clientType(), store.uuid(), phoneNumber.getAsLong()));
+                    }
+                }
+
+                // Only chats and newsletters that recorded a change are touched: no message is walked otherwise
+                for (var chat : store.chats()) {
+                    if (chat.changes().hasChanges()) {
+                        executor.submit(() -> serializeChat(store, chat));
+                    } else if (messagesIdleTime != null && chat.hasLoadedMessages()) {
+                        executor.submit(() -> unloadMessages(store, chat));
+                    }
+                }
+                for (var newsletter : store.newsletters()) {
+                    if (newsletter.changes().hasChanges()) {
+                        executor.submit(() -> serializeNewsletter(store, newsletter));
+                    }
+                }
+                for (var chatJid : store.drainRemovedChats()) {
+                    executor.submit(() -> deleteMessagesContainer(store, chatJid, CHAT_PREFIX));
+                }
+                for (var newsletterJid : store.drainRemovedNewsletters()) {
+                    executor.submit(() -> deleteMessagesContainer(store, newsletterJid, NEWSLETTER_PREFIX));
                 }
             }
         } finally {
@@ -137,11 +180,7 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
 
     private void encodeStore(WhatsAppStore store, Path path) {
         try {
-            var tempFile = Files.createTempFile(path.getFileName().toString(), ".tmp");
-            try (var stream = Files.newOutputStream(tempFile)) {
-                WhatsAppStoreSpec.encode(store, ProtobufOutputStream.toStream(stream));
-            }
-            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+            writeSnapshot(path, WhatsAppStoreSpec.encode(store));
         } catch (IOException exception) {
             throw new UncheckedIOException(exception);
         }
@@ -151,51 +190,156 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
         Objects.requireNonNull(store, "store cannot be null");
         Objects.requireNonNull(chat, "chat cannot be null");
 
-        var outputFile = getMessagesContainerPathIfUpdated(store, chat.jid(), chat.hashCode(), CHAT_PREFIX);
-        if (outputFile == null) {
-            return;
-        }
+        serializeMessagesContainer(store, chat, CHAT_PREFIX, ChatSpec::encode, (value, messageIds) -> {
+            var messages = messageIds.stream()
+                    .map(value::getMessageById)
+                    .flatMap(Optional::stream)
+                    .toList();
+            return value.withMessages(messages);
+        });
+    }
+
+    private void serializeNewsletter(WhatsAppStore store, Newsletter newsletter) {
+        Objects.requireNonNull(store, "store cannot be null");
+        Objects.requireNonNull(newsletter, "newsletter cannot be null");
 
+        serializeMessagesContainer(store, newsletter, NEWSLETTER_PREFIX, NewsletterSpec::encode, (value, messageIds) -> {
+            var messages = messageIds.stream()
+                    .map(value::getMessageById)
+                    .flatMap(Optional::stream)
+                    .toList();
+            return value.withMessages(messages);
+        });
+    }
+
+    // A chat or newsletter is persisted as a snapshot file, that holds the full container as of the last compaction,
+    // and a segments file, where every save appends the ids of the messages that were removed,
+    // followed by a copy of the container's metadata along with the messages that changed.
+    // A full rewrite, which also compacts the segments, only happens if every message was removed or the segments grew too large.
+    private <T extends MessageInfoParent> void serializeMessagesContainer(WhatsAppStore store, T container, String filePrefix, Function<T, byte[]> encoder, BiFunction<T, SequencedSet<String>, T> deltaFactory) {
+        var identifier = new StoreJidPair(store.uuid(), container.toJid());
+        var snapshotFile = getMessagesContainerPath(store, container.toJid(), filePrefix, SNAPSHOT_SUFFIX);
+        var segmentsFile = getMessagesContainerPath(store, container.toJid(), filePrefix, SEGMENTS_SUFFIX);
         try {
-            var tempFile = Files.createTempFile(outputFile.getFileName().toString(), ".tmp");
-            try (var stream = Files.newOutputStream(tempFile)) {
-                ChatSpec.encode(chat, ProtobufOutputStream.toStream(stream));
+            containersLock.lock(identifier);
+            var changes = container.changes().drain();
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            if (changes.rewriteRequired() || Files.notExists(snapshotFile)) {
+                var encoded = encoder.apply(container);
+                releaseMessagesMapping(identifier);
+                writeSnapshot(snapshotFile, encoded);
+                Files.deleteIfExists(segmentsFile);
+                return;
+            }
+
+            if (!changes.removedMessageIds().isEmpty()) {
+                appendRemovalSegment(segmentsFile, changes.removedMessageIds());
+            }
+            if (changes.metadataUpdated() || !changes.updatedMessageIds().isEmpty()) {
+                var delta = deltaFactory.apply(container, changes.updatedMessageIds());
+                appendSegment(segmentsFile, encoder.apply(delta));
+            }
+            if (Files.size(segmentsFile) > Math.max(MIN_COMPACTION_SIZE, Files.size(snapshotFile))) {
+                scheduleCompaction(identifier, container, () -> serializeMessagesContainer(store, container, filePrefix, encoder, deltaFactory));
             }
-            Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
         } catch (Throwable throwable) {
-            handleSerializeError(outputFile, throwable);
+            // Nothing was persisted reliably: rewrite the container from scratch on the next save
+            container.changes().markRewriteRequired();
+            handleSerializeError(snapshotFile, throwable);
+        } finally {
+            containersLock.unlock(identifier);
         }
     }
 
-    private void serializeNewsletter(WhatsAppStore store, Newsletter newsletter) {
-        Objects.requireNonNull(store, "store cannot be null");
-        Objects.requireNonNull(newsletter, "newsletter cannot be null");
-
-        var outputFile = getMessagesContainerPathIfUpdated(store, newsletter.jid(), newsletter.hashCode(), NEWSLETTER_PREFIX);
-        if (outputFile == null) {
+    private void scheduleCompaction(StoreJidPair identifier, MessageInfoParent container, Runnable compaction) {
+        if (!pendingCompactions.add(identifier)) {
             return;
         }
 
-        try {
-            var tempFile = Files.createTempFile(outputFile.getFileName().toString(), ".tmp");
-            try (var stream = Files.newOutputStream(tempFile)) {
-                NewsletterSpec.encode(newsletter, ProtobufOutputStream.toStream(stream));
+        Thread.startVirtualThread(() -> {
+            try {
+                container.changes().markRewriteRequired();
+                compaction.run();
+            } finally {
+                pendingCompactions.remove(identifier);
             }
-            Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
-        } catch (Throwable throwable) {
-            handleSerializeError(outputFile, throwable);
+        });
+    }
+
+    private void writeSnapshot(Path path, byte[] encoded) throws IOException {
+        var tempFile = Files.createTempFile(path.getFileName().toString(), ".tmp");
+        Files.write(tempFile, encoded);
+        Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Every segment is prefixed by its length: a negative length marks a segment that lists the ids of removed messages
+    private void appendSegment(Path path, byte[] encoded) throws IOException {
+        appendSegment(path, encoded.length, encoded);
+    }
+
+    private void appendRemovalSegment(Path path, SequencedSet<String> messageIds) throws IOException {
+        var encoded = String.join("\n", messageIds).getBytes(StandardCharsets.UTF_8);
+        if (encoded.length != 0) {
+            appendSegment(path, -encoded.length, encoded);
+        }
+    }
+
+    private void appendSegment(Path path, int header, byte[] encoded) throws IOException {
+        try (var stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)))) {
+            stream.writeInt(header);
+            stream.write(encoded);
+        }
+    }
+
+    private List<Segment> readSegments(Path path) {
+        if (Files.notExists(path)) {
+            return List.of();
+        }
+
+        var results = new ArrayList<Segment>();
+        try (var stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                var header = stream.readInt();
+                if (header == Integer.MIN_VALUE) {
+                    break;
+                }
+
+                var length = Math.abs(header);
+                var encoded = stream.readNBytes(length);
+                if (encoded.length != length) {
+                    // The last segment was only partially written: discard it
+                    break;
+                }
+
+                results.add(new Segment(ByteBuffer.wrap(encoded), header < 0));
+            }
+        } catch (EOFException ignored) {
+            // Reached the end of the segments
+        } catch (IOException exception) {
+            handleSerializeError(path, exception);
         }
+        return results;
     }
 
-    private Path getMessagesContainerPathIfUpdated(WhatsAppStore store, Jid jid, int hashCode, String filePrefix) {
+    private void deleteMessagesContainer(WhatsAppStore store, Jid jid, String filePrefix) {
         var identifier = new StoreJidPair(store.uuid(), jid);
-        var oldHashCode = jidsHashCodes.getOrDefault(identifier, -1);
-        if (oldHashCode == hashCode) {
-            return null;
+        try {
+            containersLock.lock(identifier);
+            releaseMessagesMapping(identifier);
+            Files.deleteIfExists(getMessagesContainerPath(store, jid, filePrefix, SNAPSHOT_SUFFIX));
+            Files.deleteIfExists(getMessagesContainerPath(store, jid, filePrefix, SEGMENTS_SUFFIX));
+        } catch (IOException exception) {
+            handleSerializeError(getMessagesContainerPath(store, jid, filePrefix, SNAPSHOT_SUFFIX), exception);
+        } finally {
+            containersLock.unlock(identifier);
         }
+    }
 
-        jidsHashCodes.put(identifier, hashCode);
-        var fileName = filePrefix + jid.user() + ".proto";
+    private Path getMessagesContainerPath(WhatsAppStore store, Jid jid, String filePrefix, String fileSuffix) {
+        var fileName = filePrefix + jid.user() + fileSuffix;
         return getSessionFile(store, fileName);
     }
 
@@ -238,7 +382,7 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
         try (var stream = Files.newInputStream(path)) {
             var store = WhatsAppStoreSpec.decode(ProtobufInputStream.fromStream(stream));
             startAttribute(store);
-            storesHashCodes.put(store.uuid(), store.hashCode());
+            storesHashCodes.put(store.uuid(), store.serializedHashCode());
             return Optional.of(store);
         } catch (IOException exception) {
             return Optional.empty();
@@ -263,8 +407,16 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
     private void deserializeChatOrNewsletter(WhatsAppStore store, Path path) {
         try {
             var fileName = path.getFileName().toString();
+            if (!fileName.endsWith(SNAPSHOT_SUFFIX)) {
+                return;
+            }
+
             if (fileName.startsWith(CHAT_PREFIX)) {
-                deserializeChat(store, path);
+                if (mapMessages) {
+                    deserializeMappedChat(store, path);
+                } else {
+                    deserializeChat(store, path);
+                }
             } else if (fileName.startsWith(NEWSLETTER_PREFIX)) {
                 deserializeNewsletter(store, path);
             }
@@ -274,51 +426,298 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
     }
 
     private void deserializeChat(WhatsAppStore store, Path chatFile) {
+        var segmentsFile = getSegmentsPath(chatFile);
         try (var stream = Files.newInputStream(chatFile)) {
-            var chat = ChatSpec.decode(ProtobufInputStream.fromStream(stream));
-            var storeJidPair = new StoreJidPair(store.uuid(), chat.jid());
-            jidsHashCodes.put(storeJidPair, chat.hashCode());
+            var snapshot = ChatSpec.decode(ProtobufInputStream.fromStream(stream));
+            var segments = readSegments(segmentsFile);
+            var chat = replayChatSegments(snapshot, segments);
             for (var message : chat.messages()) {
                 message.setChat(chat);
                 store.findContactByJid(message.senderJid())
                         .ifPresent(message::setSender);
             }
+            // The chat now matches what is on disk: compact the segments, if any, on the next save
+            chat.changes().drain();
+            if (!segments.isEmpty()) {
+                chat.changes().markRewriteRequired();
+            }
             store.addChat(chat);
         } catch (IOException exception) {
             try {
                 Files.deleteIfExists(chatFile);
+                Files.deleteIfExists(segmentsFile);
             } catch (IOException ignored) {
 
             }
             var chatName = chatFile.getFileName().toString()
                     .replaceFirst(CHAT_PREFIX, "")
-                    .replace(".proto", "");
+                    .replace(SNAPSHOT_SUFFIX, "");
             store.addNewChat(Jid.of(chatName));
         }
     }
 
+    // Only the metadata of the chat is decoded: the files are mapped again, and the messages decoded, on first access
+    private void deserializeMappedChat(WhatsAppStore store, Path chatFile) {
+        var segmentsFile = getSegmentsPath(chatFile);
+        try {
+            byte[] metadata;
+            boolean hasSegments;
+            try (var mapping = mapMessages(chatFile, segmentsFile)) {
+                metadata = mapping.metadata();
+                hasSegments = mapping.hasSegments();
+            }
+            var chat = ChatSpec.decode(metadata);
+            chat.setMessagesLoader(() -> loadMappedMessages(store, chat, chatFile, segmentsFile));
+            // Like an eager load, compact the segments, if any, on the next save
+            chat.changes().drain();
+            if (hasSegments) {
+                chat.changes().markRewriteRequired();
+            }
+            store.addChat(chat);
+        } catch (IOException | IllegalArgumentException exception) {
+            try {
+                Files.deleteIfExists(chatFile);
+                Files.deleteIfExists(segmentsFile);
+            } catch (IOException ignored) {
+
+            }
+            var chatName = chatFile.getFileName().toString()
+                    .replaceFirst(CHAT_PREFIX, "")
+                    .replace(SNAPSHOT_SUFFIX, "");
+            store.addNewChat(Jid.of(chatName));
+        }
+    }
+
+    // The messages of a chat that weren't accessed for a while were just saved, so they can be dropped from memory and loaded again from its files.
+    // Files are only appended to while the messages are unloaded: a removal, or a rewrite, loads them first
+    private void unloadMessages(WhatsAppStore store, Chat chat) {
+        var identifier = new StoreJidPair(store.uuid(), chat.jid());
+        var snapshotFile = getMessagesContainerPath(store, chat.jid(), CHAT_PREFIX, SNAPSHOT_SUFFIX);
+        var segmentsFile = getMessagesContainerPath(store, chat.jid(), CHAT_PREFIX, SEGMENTS_SUFFIX);
+        try {
+            containersLock.lock(identifier);
+            if (Files.exists(snapshotFile)) {
+                chat.unloadMessages(() -> loadMappedMessages(store, chat, snapshotFile, segmentsFile), messagesIdleTime);
+            }
+        } finally {
+            containersLock.unlock(identifier);
+        }
+    }
+
+    // The files are only mapped while the messages are decoded: the mapping is registered so that,
+    // if the chat is deleted in the meantime, the deletion waits for it to be closed
+    private Collection<HistorySyncMessage> loadMappedMessages(WhatsAppStore store, Chat chat, Path snapshotFile, Path segmentsFile) {
+        var identifier = new StoreJidPair(store.uuid(), chat.jid());
+        MessagesMapping mapping;
+        try {
+            mapping = mapMessages(snapshotFile, segmentsFile);
+        } catch (NoSuchFileException exception) {
+            // The chat was deleted
+            return List.of();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot load the messages of " + chat.jid(), exception);
+        }
+
+        messagesMappings.put(identifier, mapping);
+        try {
+            return mapping.decode(batches -> decodeMappedMessages(store, chat, batches));
+        } finally {
+            messagesMappings.remove(identifier, mapping);
+            mapping.close();
+        }
+    }
+
+    private Collection<HistorySyncMessage> decodeMappedMessages(WhatsAppStore store, Chat chat, List<MappedMessages> batches) {
+        var results = new LinkedHashMap<String, HistorySyncMessage>();
+        for (var batch : batches) {
+            for (var messageId : batch.removedMessageIds()) {
+                results.remove(messageId);
+            }
+            for (var message : batch.messages()) {
+                var historySyncMessage = HistorySyncMessageSpec.decode(ProtobufInputStream.fromBuffer(message.duplicate()));
+                var messageInfo = historySyncMessage.messageInfo();
+                if (messageInfo != null) {
+                    messageInfo.setChat(chat);
+                    store.findContactByJid(messageInfo.senderJid())
+                            .ifPresent(messageInfo::setSender);
+                    attributeStoreContextualMessage(store, messageInfo);
+                    results.put(messageInfo.id(), historySyncMessage);
+                }
+            }
+        }
+        return results.values();
+    }
+
+    // Must be called while holding the lock of the chat, before its files are deleted or replaced
+    private void releaseMessagesMapping(StoreJidPair identifier) {
+        var mapping = messagesMappings.remove(identifier);
+        if (mapping != null) {
+            mapping.close();
+        }
+    }
+
+    // The snapshot and the segments are mapped in a single arena, so that they are unmapped together, and deterministically, when it's closed
+    private MessagesMapping mapMessages(Path snapshotFile, Path segmentsFile) throws IOException {
+        var arena = Arena.ofShared();
+        try {
+            var snapshot = MappedMessagesContainer.of(map(snapshotFile, arena), CHAT_MESSAGES_INDEX);
+            var metadata = snapshot.metadata();
+            var batches = new ArrayList<MappedMessages>();
+            batches.add(new MappedMessages(snapshot.messages(), List.of()));
+            for (var segment : mapSegments(segmentsFile, arena)) {
+                if (segment.removal()) {
+                    batches.add(new MappedMessages(List.of(), segment.removedMessageIds()));
+                    continue;
+                }
+
+                MappedMessagesContainer container;
+                try {
+                    container = MappedMessagesContainer.of(segment.data(), CHAT_MESSAGES_INDEX);
+                } catch (IllegalArgumentException exception) {
+                    break;
+                }
+                metadata = container.metadata();
+                batches.add(new MappedMessages(container.messages(), List.of()));
+            }
+            return new MessagesMapping(arena, metadata, batches);
+        } catch (Throwable throwable) {
+            arena.close();
+            throw throwable;
+        }
+    }
+
+    private ByteBuffer map(Path path, Arena arena) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena)
+                    .asByteBuffer();
+        }
+    }
+
+    private List<Segment> mapSegments(Path path, Arena arena) throws IOException {
+        if (Files.notExists(path)) {
+            return List.of();
+        }
+
+        var buffer = map(path, arena);
+        var results = new ArrayList<Segment>();
+        while (buffer.remaining() >= Integer.BYTES) {
+            var header = buffer.getInt();
+            var length = Math.abs(header);
+            if (header == Integer.MIN_VALUE || length > buffer.remaining()) {
+                // The last segment was only partially written: discard it
+                break;
+            }
+
+            results.add(new Segment(buffer.slice(buffer.position(), length), header < 0));
+            buffer.position(buffer.position() + length);
+        }
+        return results;
+    }
+
+    // The metadata of the most recent segment wins, while messages are added and removed in order on top of the snapshot
+    private Chat replayChatSegments(Chat snapshot, List<Segment> segments) {
+        if (segments.isEmpty()) {
+            return snapshot;
+        }
+
+        var metadata = snapshot;
+        var messages = new LinkedHashMap<String, ChatMessageInfo>();
+        for (var message : snapshot.messages()) {
+            messages.put(message.id(), message);
+        }
+        for (var segment : segments) {
+            if (segment.removal()) {
+                segment.removedMessageIds().forEach(messages::remove);
+                continue;
+            }
+
+            Chat delta;
+            try {
+                delta = ChatSpec.decode(ProtobufInputStream.fromBuffer(segment.data()));
+            } catch (Throwable throwable) {
+                break;
+            }
+            metadata = delta;
+            for (var message : delta.messages()) {
+                messages.put(message.id(), message);
+            }
+        }
+
+        var result = metadata.withMessages(List.of());
+        for (var message : messages.values()) {
+            result.addMessage(message);
+        }
+        return result;
+    }
+
     private void deserializeNewsletter(WhatsAppStore store, Path newsletterFile) {
+        var segmentsFile = getSegmentsPath(newsletterFile);
         try (var stream = Files.newInputStream(newsletterFile)) {
-            var newsletter = NewsletterSpec.decode(ProtobufInputStream.fromStream(stream));
-            var storeJidPair = new StoreJidPair(store.uuid(), newsletter.jid());
-            jidsHashCodes.put(storeJidPair, newsletter.hashCode());
+            var snapshot = NewsletterSpec.decode(ProtobufInputStream.fromStream(stream));
+            var segments = readSegments(segmentsFile);
+            var newsletter = replayNewsletterSegments(snapshot, segments);
             for (var message : newsletter.messages()) {
                 message.setNewsletter(newsletter);
             }
+            newsletter.changes().drain();
+            if (!segments.isEmpty()) {
+                newsletter.changes().markRewriteRequired();
+            }
             store.addNewsletter(newsletter);
         } catch (IOException exception) {
             try {
                 Files.deleteIfExists(newsletterFile);
+                Files.deleteIfExists(segmentsFile);
             } catch (IOException ignored) {
 
             }
             var newsletterName = newsletterFile.getFileName().toString()
-                    .replaceFirst(CHAT_PREFIX, "")
-                    .replace(".proto", "");
+                    .replaceFirst(NEWSLETTER_PREFIX, "")
+                    .replace(SNAPSHOT_SUFFIX, "");
             store.addNewNewsletter(Jid.of(newsletterName));
         }
     }
 
+    private Newsletter replayNewsletterSegments(Newsletter snapshot, List<Segment> segments) {
+        if (segments.isEmpty()) {
+            return snapshot;
+        }
+
+        var metadata = snapshot;
+        var messages = new LinkedHashMap<String, NewsletterMessageInfo>();
+        for (var message : snapshot.messages()) {
+            messages.put(message.id(), message);
+        }
+        for (var segment : segments) {
+            if (segment.removal()) {
+                segment.removedMessageIds().forEach(messages::remove);
+                continue;
+            }
+
+            Newsletter delta;
+            try {
+                delta = NewsletterSpec.decode(ProtobufInputStream.fromBuffer(segment.data()));
+            } catch (Throwable throwable) {
+                break;
+            }
+            metadata = delta;
+            for (var message : delta.messages()) {
+                messages.put(message.id(), message);
+            }
+        }
+
+        var result = metadata.withMessages(List.of());
+        for (var message : messages.values()) {
+            result.addMessage(message);
+        }
+        return result;
+    }
+
+    private Path getSegmentsPath(Path snapshotFile) {
+        var fileName = snapshotFile.getFileName().toString();
+        return snapshotFile.resolveSibling(fileName.substring(0, fileName.length() - SNAPSHOT_SUFFIX.length()) + SEGMENTS_SUFFIX);
+    }
+
     @Override
     public void finishDeserialize(WhatsAppStore store) {
         Objects.requireNonNull(store, "store cannot be null");
@@ -340,6 +739,7 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
     private void attributeStoreContextualMessages(WhatsAppStore store) {
         store.chats()
                 .parallelStream()
+                .filter(Chat::hasLoadedMessages)
                 .map(Chat::messages)
                 .flatMap(Collection::parallelStream)
                 .forEach(message -> attributeStoreContextualMessage(store, message));
@@ -366,6 +766,12 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
         Objects.requireNonNull(type, "type cannot be null");
         Objects.requireNonNull(uuid, "uuid cannot be null");
 
+        for (var entry : messagesMappings.entrySet()) {
+            if (entry.getKey().storeId().equals(uuid) && messagesMappings.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+            }
+        }
+
         try {
             var folderPath = getSessionDirectory(type, uuid.toString());
             delete(folderPath);
@@ -442,14 +848,65 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
 
     }
 
-    private final static class ReentrantKeyedLock {
-        private final ConcurrentMap<UUID, ReentrantLock> locks;
+    private record Segment(ByteBuffer data, boolean removal) {
+        private List<String> removedMessageIds() {
+            return List.of(StandardCharsets.UTF_8.decode(data.duplicate()).toString().split("\n"));
+        }
+    }
+
+    private record MappedMessages(List<ByteBuffer> messages, List<String> removedMessageIds) {
+
+    }
+
+    // The buffers of the batches are only valid until the mapping is closed:
+    // decoding and closing are serialized, so that the files are never unmapped while they are read
+    private static final class MessagesMapping implements AutoCloseable {
+        private final Arena arena;
+        private final byte[] metadata;
+        private final List<MappedMessages> batches;
+        private boolean closed;
+
+        private MessagesMapping(Arena arena, byte[] metadata, List<MappedMessages> batches) {
+            this.arena = arena;
+            this.metadata = metadata;
+            this.batches = batches;
+        }
+
+        private byte[] metadata() {
+            return metadata;
+        }
+
+        // The first batch holds the messages of the snapshot
+        private boolean hasSegments() {
+            return batches.size() > 1;
+        }
+
+        // A mapping is only closed before it's decoded if the chat was deleted, so there are no messages to load
+        private synchronized Collection<HistorySyncMessage> decode(Function<List<MappedMessages>, Collection<HistorySyncMessage>> decoder) {
+            if (closed) {
+                return List.of();
+            }
+
+            return decoder.apply(batches);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                arena.close();
+            }
+        }
+    }
+
+    private final static class ReentrantKeyedLock<K> {
+        private final ConcurrentMap<K, ReentrantLock> locks;
 
         private ReentrantKeyedLock() {
             this.locks = new ConcurrentHashMap<>();
         }
 
-        private void lock(UUID key) {
+        private void lock(K key) {
             var lockWrapper = locks.compute(
                     key,
                     (ignored, value) -> requireNonNullElseGet(value, () -> new ReentrantLock(true))
@@ -457,7 +914,7 @@ final class ProtobufStoreSerializer implements WhatsappStoreSerializer {
             lockWrapper.lock();
         }
 
-        private void unlock(UUID key) {
+        private void unlock(K key) {
             var lockWrapper = locks.get(key);
             if (lockWrapper == null || !lockWrapper.isHeldByCurrentThread()) {
                 throw new IllegalStateException("The lock for the key %s doesn't exist or is not held by the current thread".formatted(key));
@@ -1,6 +1,8 @@
 
 package com.github.auties00.cobalt.store;
 
+import com.github.auties00.cobalt.client.MessageRetentionPolicy;
+import com.github.auties00.cobalt.client.PreKeyPoolPolicy;
 import com.github.auties00.cobalt.client.WhatsAppClient;
 import com.github.auties00.cobalt.client.WhatsAppClientListener;
 import com.github.auties00.cobalt.client.WhatsAppClientType;
@@ -53,6 +55,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentHashMap.KeySetView;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WhatsappStore manages all session-scoped data and state for WhatsApp client connections.
@@ -90,6 +94,7 @@ import java.util.concurrent.ConcurrentMap;
 public final class WhatsAppStore implements SignalProtocolStore {
     private static final WhatsappStoreSerializer DEFAULT_DESERIALIZER = WhatsappStoreSerializer.discarding();
     private static final String DEFAULT_NAME = "User";
+    private static final int MESSAGE_RETENTION_SWEEP_INTERVAL = 1024;
 
     // =====================================================
     // SECTION: Core Identity & Configuration
@@ -621,12 +626,13 @@ public final class WhatsAppStore implements SignalProtocolStore {
      * once when a new session is initiated. When supply runs low, new batches are
      * generated and uploaded to ensure users can always initiate encrypted sessions.
      * <p>
-     * LinkedHashMap preserves insertion order important for key rotation and management.
+     * Pre-keys are added by the pre-key service while the store may be serialized, so a concurrent map is used:
+     * it's sorted by id, which is the order pre-keys are generated in.
      *
      * @see SignalPreKeyPair
      */
     @ProtobufProperty(index = 48, type = ProtobufType.MAP, mapKeyType = ProtobufType.INT32, mapValueType = ProtobufType.MESSAGE)
-    final LinkedHashMap<Integer, SignalPreKeyPair> preKeys;
+    final ConcurrentSkipListMap<Integer, SignalPreKeyPair> preKeys;
 
     // =====================================================
     // SECTION: Device Identifiers (Mobile)
@@ -793,6 +799,26 @@ public final class WhatsAppStore implements SignalProtocolStore {
     @ProtobufProperty(index = 65, type = ProtobufType.MESSAGE)
     Version companionVersion;
 
+    /**
+     * One-time pre-keys that were generated ahead of time, but haven't been uploaded yet.
+     * <p>
+     * Pre-keys are moved to {@link #preKeys} when they are uploaded to WhatsApp.
+     * They are serialized so that the keys generated in the background aren't lost when the client is restarted.
+     *
+     * @see PreKeyPoolPolicy
+     */
+    @ProtobufProperty(index = 66, type = ProtobufType.MAP, mapKeyType = ProtobufType.INT32, mapValueType = ProtobufType.MESSAGE)
+    final ConcurrentMap<Integer, SignalPreKeyPair> pendingPreKeys;
+
+    /**
+     * The highest id that was assigned to a pre-key.
+     * <p>
+     * Pre-keys are removed when they are used, so the highest id in {@link #preKeys} could be lower than an id that was already uploaded:
+     * this id is serialized so that ids are never reused, even after the client is restarted.
+     */
+    @ProtobufProperty(index = 67, type = ProtobufType.INT32)
+    volatile int lastPreKeyId;
+
     // =====================================================
     // SECTION: Runtime State (Non-Serialized)
     // =====================================================
@@ -888,6 +914,25 @@ public final class WhatsAppStore implements SignalProtocolStore {
      */
     private final ConcurrentMap<Jid, SequencedCollection<Jid>> deviceLists;
 
+    /**
+     * Chats removed since the store was last persisted.
+     * <p>
+     * Not serialized - drained by the serializer to delete the files of removed chats.
+     */
+    private final KeySetView<Jid, Boolean> removedChats;
+
+    /**
+     * Newsletters removed since the store was last persisted.
+     * <p>
+     * Not serialized - drained by the serializer to delete the files of removed newsletters.
+     */
+    private final KeySetView<Jid, Boolean> removedNewsletters;
+
+    /**
+     * Number of messages retained since the last sweep across all chats
+     */
+    private final AtomicLong messagesSinceRetentionSweep;
+
     // =====================================================
     // SECTION: Constructor & Factory Methods
     // =====================================================
@@ -942,7 +987,7 @@ public final class WhatsAppStore implements SignalProtocolStore {
             SignalIdentityKeyPair companionKeyPair,
             SignedDeviceIdentity companionIdentity,
             SignalSignedKeyPair signedKeyPair,
-            LinkedHashMap<Integer, SignalPreKeyPair> preKeys,
+            ConcurrentSkipListMap<Integer, SignalPreKeyPair> preKeys,
             UUID fdid,
             byte[] deviceId,
             UUID advertisingId,
@@ -959,7 +1004,9 @@ public final class WhatsAppStore implements SignalProtocolStore {
             ConcurrentMap<String, QuickReply> quickReplies,
             ConcurrentMap<Integer, Label> labels,
             Version clientVersion,
-            Version companionVersion
+            Version companionVersion,
+            ConcurrentMap<Integer, SignalPreKeyPair> pendingPreKeys,
+            int lastPreKeyId
     ) {
         this.uuid = Objects.requireNonNull(uuid, "uuid cannot be null");
         this.phoneNumber = phoneNumber; 
@@ -1035,11 +1082,24 @@ public final class WhatsAppStore implements SignalProtocolStore {
         this.clientVersion = clientVersion;
         this.clientVersionLock = new Object();
         this.companionVersion = companionVersion;
+        this.pendingPreKeys = Objects.requireNonNull(pendingPreKeys, "pendingPreKeys cannot be null");
+        // Stores serialized before the last id was persisted only know about the ids of the keys they hold
+        var highestPreKeyId = lastPreKeyId;
+        for (var id : preKeys.keySet()) {
+            highestPreKeyId = Math.max(highestPreKeyId, id);
+        }
+        for (var id : pendingPreKeys.keySet()) {
+            highestPreKeyId = Math.max(highestPreKeyId, id);
+        }
+        this.lastPreKeyId = highestPreKeyId;
         this.webAppStatePendingMutations = new ConcurrentHashMap<>();
         this.webAppStateCollections = new ConcurrentHashMap<>();
         this.serializable = true;
         this.groupOrCommunityMetadata = new ConcurrentHashMap<>();
         this.deviceLists = new ConcurrentHashMap<>();
+        this.removedChats = ConcurrentHashMap.newKeySet();
+        this.removedNewsletters = ConcurrentHashMap.newKeySet();
+        this.messagesSinceRetentionSweep = new AtomicLong();
     }
 
     // =====================================================
@@ -1364,10 +1424,20 @@ public final class WhatsAppStore implements SignalProtocolStore {
      * @return a non-null optional
      */
     public Optional<NewsletterMessageInfo> findMessageById(Newsletter newsletter, String id) {
-        return newsletter == null || id == null ? Optional.empty() : newsletter.messages()
-                .parallelStream()
-                .filter(entry -> Objects.equals(id, entry.id()) || Objects.equals(id, String.valueOf(entry.serverId())))
-                .findFirst();
+        if (newsletter == null || id == null) {
+            return Optional.empty();
+        }
+
+        var result = newsletter.getMessageById(id);
+        if (result.isPresent()) {
+            return result;
+        }
+
+        try {
+            return newsletter.getMessageByServerId(Integer.parseInt(id));
+        } catch (NumberFormatException _) {
+            return Optional.empty();
+        }
     }
 
 
@@ -1379,10 +1449,7 @@ public final class WhatsAppStore implements SignalProtocolStore {
      * @return a non-null optional
      */
     public Optional<ChatMessageInfo> findMessageById(Chat chat, String id) {
-        return chat == null || id == null ? Optional.empty() : chat.messages()
-                .parallelStream()
-                .filter(message -> Objects.equals(message.key().id(), id))
-                .findAny();
+        return chat == null || id == null ? Optional.empty() : chat.getMessageById(id);
     }
 
     /**
@@ -1442,28 +1509,147 @@ public final class WhatsAppStore implements SignalProtocolStore {
         if(chatJid == null) {
             return Optional.empty();
         } else {
-            var targetJid = jid.toJid();
+            var targetJid = chatJid.toJid();
+            Optional<Chat> result;
             if(targetJid.hasUserServer()) {
                 var jidChat = chats.remove(targetJid);
                 if(jidChat != null) {
-                    return Optional.of(jidChat);
+                    result = Optional.of(jidChat);
                 } else {
-                    return findLidByPhone(targetJid)
+                    result = findLidByPhone(targetJid)
                             .map(chats::remove);
                 }
             } else if(targetJid.hasLidServer()) {
                 var lidChat = chats.remove(targetJid);
                 if(lidChat != null) {
-                    return Optional.of(lidChat);
+                    result = Optional.of(lidChat);
                 } else {
-                    return findPhoneByLid(targetJid)
+                    result = findPhoneByLid(targetJid)
                             .map(chats::remove);
                 }
             } else {
                 var chat = chats.remove(targetJid);
-                return Optional.ofNullable(chat);
+                result = Optional.ofNullable(chat);
+            }
+            result.ifPresent(chat -> removedChats.add(chat.jid()));
+            return result;
+        }
+    }
+
+    /**
+     * Evicts the messages of a chat that exceed a {@link MessageRetentionPolicy}.
+     * <p>
+     * The limit per chat and the age cutoff are enforced immediately for the provided chat,
+     * while every chat is checked against the global limit and the age cutoff periodically.
+     * Chats whose messages weren't loaded yet are not considered, as they don't occupy any memory.
+     * Should be called after a message is added to a chat.
+     *
+     * @param chat   the chat whose messages should be checked, may be null
+     * @param policy the policy to enforce
+     */
+    public void applyMessageRetention(Chat chat, MessageRetentionPolicy policy) {
+        Objects.requireNonNull(policy, "policy cannot be null");
+        if (chat == null || policy.isUnbounded()) {
+            return;
+        }
+
+        trimMessages(chat, policy);
+        if ((policy.maxMessages() > 0 || policy.maxAge() != null) && claimRetentionSweep()) {
+            sweepMessages(policy);
+        }
+    }
+
+    // The counter is reset by the same atomic update that reaches the interval, so exactly one caller claims each sweep
+    private boolean claimRetentionSweep() {
+        while (true) {
+            var current = messagesSinceRetentionSweep.get();
+            var next = current + 1 >= MESSAGE_RETENTION_SWEEP_INTERVAL ? 0 : current + 1;
+            if (messagesSinceRetentionSweep.compareAndSet(current, next)) {
+                return next == 0;
+            }
+        }
+    }
+
+    private void trimMessages(Chat chat, MessageRetentionPolicy policy) {
+        if (!chat.hasLoadedMessages()) {
+            return;
+        }
+
+        var messages = chat.messages();
+        var excess = policy.maxMessagesPerChat() > 0 ? messages.size() - policy.maxMessagesPerChat() : 0;
+        var cutoff = policy.maxAge() != null ? Clock.nowSeconds() - policy.maxAge().toSeconds() : Long.MIN_VALUE;
+        var evicted = new ArrayList<ChatMessageInfo>();
+        for (var message : messages) {
+            if (evicted.size() >= excess && message.timestampSeconds().orElse(Long.MAX_VALUE) >= cutoff) {
+                break;
+            }
+
+            evicted.add(message);
+        }
+        evictMessages(chat, evicted, policy);
+    }
+
+    // Evicts the globally oldest messages by merging the chats, each ordered from its oldest message, on their timestamps
+    private void sweepMessages(MessageRetentionPolicy policy) {
+        var loadedChats = chats.values()
+                .stream()
+                .filter(Chat::hasLoadedMessages)
+                .toList();
+        for (var chat : loadedChats) {
+            trimMessages(chat, policy);
+        }
+
+        if (policy.maxMessages() <= 0) {
+            return;
+        }
+
+        var excess = -policy.maxMessages();
+        for (var chat : loadedChats) {
+            excess += chat.messages().size();
+        }
+        if (excess <= 0) {
+            return;
+        }
+
+        var candidates = new PriorityQueue<MessageRetentionCandidate>(Comparator.comparingLong(MessageRetentionCandidate::timestampSeconds));
+        for (var chat : loadedChats) {
+            var iterator = chat.messages().iterator();
+            if (iterator.hasNext()) {
+                candidates.add(new MessageRetentionCandidate(chat, iterator, iterator.next()));
+            }
+        }
+        var evicted = new HashMap<Chat, List<ChatMessageInfo>>();
+        while (excess-- > 0 && !candidates.isEmpty()) {
+            var candidate = candidates.poll();
+            evicted.computeIfAbsent(candidate.chat(), _ -> new ArrayList<>())
+                    .add(candidate.message());
+            if (candidate.iterator().hasNext()) {
+                candidates.add(new MessageRetentionCandidate(candidate.chat(), candidate.iterator(), candidate.iterator().next()));
             }
         }
+        evicted.forEach((chat, messages) -> evictMessages(chat, messages, policy));
+    }
+
+    private void evictMessages(Chat chat, List<ChatMessageInfo> messages, MessageRetentionPolicy policy) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        // Only the ids of the evicted messages are persisted on the next save, the chat isn't rewritten
+        for (var message : messages) {
+            chat.removeMessage(message.id());
+        }
+        var evictionListener = policy.evictionListener();
+        if (evictionListener != null) {
+            evictionListener.onMessagesEvicted(chat, Collections.unmodifiableList(messages));
+        }
+    }
+
+    private record MessageRetentionCandidate(Chat chat, Iterator<ChatMessageInfo> iterator, ChatMessageInfo message) {
+        private long timestampSeconds() {
+            return message.timestampSeconds()
+                    .orElse(Long.MAX_VALUE);
+        }
     }
 
     public ChatMessageInfo addStatus(ChatMessageInfo messageInfo) {
@@ -1573,9 +1759,44 @@ public final class WhatsAppStore implements SignalProtocolStore {
      * @return Optional containing the removed newsletter if it existed, empty otherwise
      */
     public Optional<Newsletter> removeNewsletter(JidProvider newsletterJid) {
-        return newsletterJid == null
-                ? Optional.empty()
-                : Optional.ofNullable(newsletters.remove(newsletterJid.toJid()));
+        if(newsletterJid == null) {
+            return Optional.empty();
+        }
+
+        var result = Optional.ofNullable(newsletters.remove(newsletterJid.toJid()));
+        result.ifPresent(newsletter -> removedNewsletters.add(newsletter.jid()));
+        return result;
+    }
+
+    /**
+     * Returns the JIDs of the chats removed since the last call to this method and resets them
+     *
+     * @return a non-null collection
+     */
+    Collection<Jid> drainRemovedChats() {
+        return drain(removedChats);
+    }
+
+    /**
+     * Returns the JIDs of the newsletters removed since the last call to this method and resets them
+     *
+     * @return a non-null collection
+     */
+    Collection<Jid> drainRemovedNewsletters() {
+        return drain(removedNewsletters);
+    }
+
+    private Collection<Jid> drain(KeySetView<Jid, Boolean> removed) {
+        var result = new ArrayList<Jid>();
+        var iterator = removed.iterator();
+        while (iterator.hasNext()) {
+            var jid = iterator.next();
+            iterator.remove();
+            if(!chats.containsKey(jid) && !newsletters.containsKey(jid)) {
+                result.add(jid);
+            }
+        }
+        return result;
     }
 
     // =====================================================
@@ -2451,12 +2672,13 @@ public final class WhatsAppStore implements SignalProtocolStore {
     }
 
     /**
-     * Returns all registered pre-keys in the order they were added.
+     * Returns all registered pre-keys in the order they were generated.
+     * The returned collection is an unmodifiable view that reflects later changes.
      *
      * @return a non-null sequenced collection of pre-key pairs
      */
     public SequencedCollection<SignalPreKeyPair> preKeys() {
-        return preKeys.sequencedValues();
+        return Collections.unmodifiableSequencedCollection(preKeys.sequencedValues());
     }
 
     /**
@@ -2478,7 +2700,11 @@ public final class WhatsAppStore implements SignalProtocolStore {
      * @return an Optional containing the pre-key if found, empty otherwise
      */
     public Optional<SignalPreKeyPair> findPreKeyById(Integer id) {
-        return id == null ? Optional.empty() : Optional.ofNullable(preKeys.get(id));
+        if (id == null) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(preKeys.get(id));
     }
 
     /**
@@ -2509,6 +2735,75 @@ public final class WhatsAppStore implements SignalProtocolStore {
         return preKeys.remove(id) != null;
     }
 
+    /**
+     * Returns the number of pre-keys that were generated ahead of time, but haven't been uploaded yet.
+     *
+     * @return a non-negative number
+     */
+    public int pendingPreKeysCount() {
+        return pendingPreKeys.size();
+    }
+
+    /**
+     * Adds a pre-key that was generated ahead of time, but hasn't been uploaded yet.
+     *
+     * @param preKey the pre-key to add, must not be null
+     * @throws NullPointerException if preKey is null
+     */
+    public void addPendingPreKey(SignalPreKeyPair preKey) {
+        Objects.requireNonNull(preKey, "preKey cannot be null");
+        pendingPreKeys.put(preKey.id(), preKey);
+    }
+
+    /**
+     * Removes up to {@code count} pre-keys that were generated ahead of time, in the order they were generated.
+     * <p>
+     * The removed pre-keys should be added back with {@link #addPreKey(SignalPreKeyPair)} when they are uploaded.
+     *
+     * @param count the maximum number of pre-keys to remove
+     * @return a non-null list of the removed pre-keys
+     */
+    public List<SignalPreKeyPair> pollPendingPreKeys(int count) {
+        var ids = pendingPreKeys.keySet()
+                .stream()
+                .sorted()
+                .limit(count)
+                .toList();
+        var result = new ArrayList<SignalPreKeyPair>(ids.size());
+        for (var id : ids) {
+            var preKey = pendingPreKeys.remove(id);
+            if (preKey != null) {
+                result.add(preKey);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the highest id that was assigned to a pre-key, even if the pre-key was already used and removed.
+     *
+     * @return the highest id, or zero if no pre-key was ever generated
+     */
+    public int lastPreKeyId() {
+        return lastPreKeyId;
+    }
+
+    /**
+     * Sets the highest id that was assigned to a pre-key.
+     * <p>
+     * Should be called by the pre-key generator after assigning new ids, so that they are never reused.
+     *
+     * @param lastPreKeyId the highest id, must not be lower than the current one
+     * @throws IllegalArgumentException if the id is lower than the current one
+     */
+    public void setLastPreKeyId(int lastPreKeyId) {
+        if (lastPreKeyId < this.lastPreKeyId) {
+            throw new IllegalArgumentException("lastPreKeyId cannot decrease");
+        }
+
+        this.lastPreKeyId = lastPreKeyId;
+    }
+
     /**
      * Finds the signed pre-key by its ID.
      * <p>
@@ -2966,6 +3261,7 @@ public final class WhatsAppStore implements SignalProtocolStore {
                && Objects.equals(companionIdentity, that.companionIdentity)
                && Objects.equals(signedKeyPair, that.signedKeyPair)
                && Objects.equals(preKeys, that.preKeys)
+               && Objects.equals(pendingPreKeys, that.pendingPreKeys)
                && Objects.equals(fdid, that.fdid)
                && Objects.deepEquals(deviceId, that.deviceId)
                && Objects.equals(advertisingId, that.advertisingId)
@@ -2979,6 +3275,32 @@ public final class WhatsAppStore implements SignalProtocolStore {
                && Objects.equals(mediaConnection, that.mediaConnection);
     }
 
+    /**
+     * Returns a hash code computed only on the fields that are persisted in the store file.
+     * <p>
+     * Unlike {@link #hashCode()}, chats and newsletters are not considered: they are persisted
+     * separately and track their own changes through {@link Chat#changes()} and {@link Newsletter#changes()},
+     * so this method doesn't need to walk every message to detect whether the store file should be rewritten.
+     *
+     * @return a hash code
+     */
+    int serializedHashCode() {
+        return Objects.hash(uuid, phoneNumber, clientType,
+                initializationTimeStamp, proxy, device, releaseChannel,
+                online, locale, name, verifiedName, profilePicture,
+                about, jid, lid, businessAddress, businessLongitude, businessLatitude,
+                businessDescription, businessWebsite, businessEmail, businessCategory,
+                contacts, calls, privacySettings, properties,
+                unarchiveChats, twentyFourHourFormat, newChatsEphemeralTimer, webHistoryPolicy,
+                automaticPresenceUpdates, automaticMessageReceipts, checkPatchMacs, syncedChats,
+                syncedContacts, syncedNewsletters, syncedStatus, syncedWebAppState, syncedBusinessCertificate,
+                registrationId, noiseKeyPair, identityKeyPair, companionKeyPair, companionIdentity,
+                signedKeyPair, preKeys, fdid, Arrays.hashCode(deviceId), advertisingId, Arrays.hashCode(identityId),
+                Arrays.hashCode(backupToken), senderKeys, appStateKeys, sessions, hashStates, registered,
+                showSecurityNotifications, recentStickers, favouriteStickers, quickReplies, labels,
+                clientVersion, companionVersion, pendingPreKeys, lastPreKeyId);
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(uuid, phoneNumber, clientType, serializer, serializable,
@@ -2992,7 +3314,7 @@ public final class WhatsAppStore implements SignalProtocolStore {
                 syncedContacts, syncedNewsletters, syncedStatus, syncedWebAppState, syncedBusinessCertificate,
                 registrationId, noiseKeyPair, identityKeyPair, companionKeyPair, companionIdentity,
                 signedKeyPair, preKeys, fdid, Arrays.hashCode(deviceId), advertisingId, Arrays.hashCode(identityId), 
-                Arrays.hashCode(backupToken), senderKeys, appStateKeys, sessions, hashStates, registered, listeners, mediaConnection);
+                Arrays.hashCode(backupToken), senderKeys, appStateKeys, sessions, hashStates, registered, listeners, mediaConnection, pendingPreKeys);
     }
 
     @Override
@@ -3017,12 +3339,17 @@ public final class WhatsAppStore implements SignalProtocolStore {
     }
 
     public Optional<ChatMessageInfo> findChatMessageByKey(ChatMessageKey key) {
-        var chat = chats.get(key.chatJid());
-        if(chat == null) {
+        if(key == null) {
             return Optional.empty();
         }
 
-        return chat.getMessageById(key.id());
+        var chat = chats.get(key.chatJid());
+        if(chat != null) {
+            return chat.getMessageById(key.id());
+        }
+
+        return findChatByJid(key.chatJid())
+                .flatMap(result -> result.getMessageById(key.id()));
     }
 
     public boolean showSecurityNotifications() {
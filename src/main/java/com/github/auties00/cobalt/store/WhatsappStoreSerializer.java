@@ -4,6 +4,7 @@ package com.github.auties00.cobalt.store;
 import com.github.auties00.cobalt.client.WhatsAppClientType;
 
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
 
 /**
@@ -45,6 +46,9 @@ public interface WhatsappStoreSerializer {
      * Sessions are stored as Protocol Buffer files in the default location, typically
      * {@code $HOME/.whatsapp/} on Unix-like systems or {@code %USERPROFILE%\.whatsapp\}
      * on Windows.
+     * <p>
+     * Saves are incremental: chats and newsletters are only written if they changed, and messages added
+     * or updated since the last save are appended to a per-chat segments file that is compacted in the background.
      *
      * @return a new protobuf-based serializer using the default storage directory
      */
@@ -66,6 +70,59 @@ public interface WhatsappStoreSerializer {
         return new ProtobufStoreSerializer(baseDirectory);
     }
 
+    /**
+     * Creates a protobuf-based serializer that persists sessions to the default directory
+     * and loads the history of chats lazily.
+     * <p>
+     * Sessions are stored using the same format as {@link #toProtobuf()}, but, when a session is deserialized,
+     * chat files are memory-mapped: only the metadata of each chat is decoded eagerly, while its messages
+     * are decoded the first time any of them is accessed.
+     * This keeps the heap usage proportional to the chats that are actually used, instead of to the whole history.
+     * <p>
+     * The granularity is the chat: accessing a chat decodes all of its messages, not only the ones that are read.
+     * No index is persisted, so every chat file is still scanned at startup to find where its messages are.
+     * Newsletters are not mapped, and are deserialized like {@link #toProtobuf()} does.
+     * Once the messages of a chat are loaded, they are kept in memory: see {@link #toMappedProtobuf(Path, Duration)} to release them.
+     *
+     * @return a new protobuf-based serializer using the default storage directory
+     */
+    static WhatsappStoreSerializer toMappedProtobuf() {
+        return new ProtobufStoreSerializer(ProtobufStoreSerializer.DEFAULT_SERIALIZER_PATH, true, null);
+    }
+
+    /**
+     * Creates a protobuf-based serializer that persists sessions to a specified directory
+     * and loads the history of chats lazily.
+     *
+     * @param baseDirectory the directory where session files should be stored; must be writable
+     * @return a new protobuf-based serializer using the specified storage directory
+     * @see #toMappedProtobuf()
+     */
+    static WhatsappStoreSerializer toMappedProtobuf(Path baseDirectory) {
+        return new ProtobufStoreSerializer(baseDirectory, true, null);
+    }
+
+    /**
+     * Creates a protobuf-based serializer that persists sessions to a specified directory,
+     * loads the history of chats lazily and drops it from memory when it's no longer used.
+     * <p>
+     * When the store is serialized, the messages of a chat whose changes were all persisted, and that weren't accessed
+     * for at least {@code messagesIdleTime}, are dropped from memory and loaded again from disk the next time they are accessed.
+     * <p>
+     * <b>Warning:</b> a message that was obtained before its chat was unloaded is no longer tracked by the chat.
+     * Changes made to that instance afterwards, like a new status, are not persisted, and are lost when the chat is loaded again:
+     * callers that hold messages for longer than {@code messagesIdleTime} must look them up again, for example by id, before changing them.
+     *
+     * @param baseDirectory    the directory where session files should be stored; must be writable
+     * @param messagesIdleTime the minimum time since the messages of a chat were last accessed before they are dropped from memory
+     * @return a new protobuf-based serializer using the specified storage directory
+     * @see #toMappedProtobuf(Path)
+     */
+    static WhatsappStoreSerializer toMappedProtobuf(Path baseDirectory, Duration messagesIdleTime) {
+        Objects.requireNonNull(messagesIdleTime, "messagesIdleTime cannot be null");
+        return new ProtobufStoreSerializer(baseDirectory, true, messagesIdleTime);
+    }
+
     /**
      * Retrieves an existing session from persistent storage using one or more identifiers.
      * <p>
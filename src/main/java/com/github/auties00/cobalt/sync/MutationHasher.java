@@ -0,0 +1,54 @@
+package com.github.auties00.cobalt.sync;
+
+import com.github.auties00.cobalt.model.sync.RecordSync;
+import com.github.auties00.cobalt.sync.crypto.MutationLTHash;
+import com.github.auties00.cobalt.util.SecureBytes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the LT-Hash of the mutations of a sync response while they are read.
+ * <p>
+ * The mutations are hashed from their index and value macs, so they don't need to be decrypted or kept after they are hashed.
+ * The hash of a response removes the REMOVE mutations first, and then adds the SET mutations, both in the order they were received:
+ * REMOVE mutations are applied to the hash as soon as they are read,
+ * while the macs of SET mutations are held until every mutation was read.
+ */
+final class MutationHasher {
+    private final MutationLTHash.Accumulator accumulator;
+    private final List<byte[]> additions;
+
+    MutationHasher(byte[] currentHash) {
+        this.accumulator = MutationLTHash.accumulator(currentHash);
+        this.additions = new ArrayList<>();
+    }
+
+    /**
+     * Hashes a mutation
+     *
+     * @param operation the operation of the mutation
+     * @param indexMac  the mac of the index of the mutation
+     * @param valueMac  the mac of the value of the mutation
+     */
+    void accept(RecordSync.Operation operation, byte[] indexMac, byte[] valueMac) {
+        if (operation == RecordSync.Operation.SET) {
+            additions.add(SecureBytes.concat(indexMac, valueMac));
+        } else {
+            accumulator.remove(indexMac, valueMac);
+        }
+    }
+
+    /**
+     * Returns the hash of the mutations that were hashed
+     *
+     * @return a new hash state
+     */
+    byte[] toHash() {
+        for (var addition : additions) {
+            accumulator.add(addition);
+        }
+        additions.clear();
+        return accumulator.toHash();
+    }
+}
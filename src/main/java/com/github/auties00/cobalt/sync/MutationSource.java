@@ -0,0 +1,141 @@
+package com.github.auties00.cobalt.sync;
+
+import com.github.auties00.cobalt.exception.WebAppStateRetryableSyncException;
+import com.github.auties00.cobalt.model.sync.ExternalBlobReference;
+import com.github.auties00.cobalt.model.sync.MutationSync;
+import com.github.auties00.cobalt.model.sync.PatchSync;
+import com.github.auties00.cobalt.sync.exchange.MutationSyncResponse;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads the mutations of a sync response in bounded batches.
+ * <p>
+ * The mutations of a response are read in the order WhatsApp sent them: the records of the snapshot first,
+ * then, for each patch, its inline mutations followed by the ones in its external blob.
+ * Only one batch of mutations is held in memory at a time.
+ * <p>
+ * A source can be read more than once, which is needed as the mutations of a response are first hashed,
+ * and then decrypted and applied.
+ * To avoid downloading them twice, the external blobs are staged in temporary files the first time they are read,
+ * which are deleted when the source is closed: their records are still encrypted with the mutation keys.
+ */
+public final class MutationSource implements Closeable {
+    private final MutationSyncResponse response;
+    private final Function<ExternalBlobReference, InputStream> downloader;
+    private final Map<PatchSync, Path> stagedBlobs;
+
+    public MutationSource(MutationSyncResponse response, Function<ExternalBlobReference, InputStream> downloader) {
+        this.response = Objects.requireNonNull(response, "response cannot be null");
+        this.downloader = Objects.requireNonNull(downloader, "downloader cannot be null");
+        this.stagedBlobs = new IdentityHashMap<>();
+    }
+
+    /**
+     * Reads every mutation of the response, handing them to a consumer in batches
+     *
+     * @param batchSize the maximum number of mutations in a batch
+     * @param consumer  the consumer of the batches
+     * @return the number of mutations that were read
+     * @throws WebAppStateRetryableSyncException if an external blob cannot be downloaded or decoded
+     */
+    public int forEach(int batchSize, Consumer<List<MutationSync>> consumer) {
+        var batcher = new Batcher(batchSize, consumer);
+        var snapshot = response.snapshot();
+        if (snapshot != null && snapshot.records() != null) {
+            for (var record : snapshot.records()) {
+                batcher.accept(new MutationSync(record.operation(), record));
+            }
+        }
+
+        for (var patch : response.patches()) {
+            if (patch.mutations() != null) {
+                for (var mutation : patch.mutations()) {
+                    batcher.accept(mutation);
+                }
+            }
+
+            if (patch.hasExternalMutations()) {
+                readExternalMutations(patch, batcher);
+            }
+        }
+
+        return batcher.finish();
+    }
+
+    private void readExternalMutations(PatchSync patch, Batcher batcher) {
+        try (var input = openExternalMutations(patch)) {
+            MutationsSyncDecoder.decode(input, batcher::accept);
+        } catch (IOException exception) {
+            throw new WebAppStateRetryableSyncException("Failed to decode external mutations", exception);
+        }
+    }
+
+    private InputStream openExternalMutations(PatchSync patch) throws IOException {
+        var staged = stagedBlobs.get(patch);
+        if (staged != null) {
+            return new BufferedInputStream(Files.newInputStream(staged));
+        }
+
+        var download = downloader.apply(patch.externalMutations());
+        var file = Files.createTempFile("mutations", ".tmp");
+        stagedBlobs.put(patch, file);
+        try (download) {
+            Files.copy(download, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new BufferedInputStream(Files.newInputStream(file));
+    }
+
+    @Override
+    public void close() {
+        for (var file : stagedBlobs.values()) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException _) {
+                // Nothing to do
+            }
+        }
+        stagedBlobs.clear();
+    }
+
+    private static final class Batcher {
+        private final int batchSize;
+        private final Consumer<List<MutationSync>> consumer;
+        private List<MutationSync> batch;
+        private int count;
+
+        private Batcher(int batchSize, Consumer<List<MutationSync>> consumer) {
+            this.batchSize = batchSize;
+            this.consumer = consumer;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        private void accept(MutationSync mutation) {
+            batch.add(mutation);
+            count++;
+            if (batch.size() >= batchSize) {
+                var full = batch;
+                this.batch = new ArrayList<>(batchSize);
+                consumer.accept(full);
+            }
+        }
+
+        private int finish() {
+            if (!batch.isEmpty()) {
+                var last = batch;
+                this.batch = new ArrayList<>(0);
+                consumer.accept(last);
+            }
+            return count;
+        }
+    }
+}
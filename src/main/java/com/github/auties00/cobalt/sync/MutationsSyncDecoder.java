@@ -0,0 +1,140 @@
+package com.github.auties00.cobalt.sync;
+
+import com.github.auties00.cobalt.model.sync.MutationSync;
+import com.github.auties00.cobalt.model.sync.MutationSyncSpec;
+import com.github.auties00.cobalt.model.sync.MutationsSync;
+import com.github.auties00.cobalt.model.sync.MutationsSyncSpec;
+import it.auties.protobuf.stream.ProtobufInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Decodes a {@link MutationsSync} one mutation at a time.
+ * <p>
+ * {@link MutationsSyncSpec#decode(ProtobufInputStream)} materializes every mutation of an external blob before returning,
+ * which, for large collections, means holding tens of thousands of records in memory at once.
+ * This decoder walks the top level fields of the message instead, and decodes each mutation on its own,
+ * handing it to a {@link Listener} before reading the next one.
+ */
+public final class MutationsSyncDecoder {
+    private static final int MUTATIONS_INDEX = 1;
+
+    private static final int WIRE_TYPE_VAR_INT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_TYPE_FIXED32 = 5;
+
+    private final InputStream input;
+    private final Listener listener;
+
+    private MutationsSyncDecoder(InputStream input, Listener listener) {
+        this.input = Objects.requireNonNull(input, "input cannot be null");
+        this.listener = Objects.requireNonNull(listener, "listener cannot be null");
+    }
+
+    /**
+     * Decodes a list of mutations, handing them to a listener as they are read
+     *
+     * @param input    the serialized mutations, which are not closed by this method
+     * @param listener the listener that handles the mutations
+     * @throws IOException if the mutations cannot be read or are malformed
+     */
+    public static void decode(InputStream input, Listener listener) throws IOException {
+        new MutationsSyncDecoder(input, listener).decode();
+    }
+
+    private void decode() throws IOException {
+        long key;
+        while ((key = readTag()) != -1) {
+            var index = (int) (key >>> 3);
+            var wireType = (int) (key & 7);
+            if (index == MUTATIONS_INDEX) {
+                var mutation = MutationSyncSpec.decode(readMessage(index, wireType));
+                listener.onMutation(mutation);
+            } else {
+                skip(wireType);
+            }
+        }
+    }
+
+    private ProtobufInputStream readMessage(int index, int wireType) throws IOException {
+        if (wireType != WIRE_TYPE_LENGTH_DELIMITED) {
+            throw new IOException("Unexpected wire type " + wireType + " for field " + index);
+        }
+
+        var length = readLength();
+        var message = input.readNBytes(length);
+        if (message.length != length) {
+            throw new EOFException("Truncated field " + index);
+        }
+
+        return ProtobufInputStream.fromBytes(message, 0, length);
+    }
+
+    private void skip(int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_TYPE_VAR_INT -> readVarInt();
+            case WIRE_TYPE_FIXED64 -> input.skipNBytes(Long.BYTES);
+            case WIRE_TYPE_LENGTH_DELIMITED -> input.skipNBytes(readLength());
+            case WIRE_TYPE_FIXED32 -> input.skipNBytes(Integer.BYTES);
+            default -> throw new IOException("Unsupported wire type: " + wireType);
+        }
+    }
+
+    private long readTag() throws IOException {
+        var first = input.read();
+        if (first == -1) {
+            return -1;
+        }
+
+        return readVarInt(first);
+    }
+
+    private int readLength() throws IOException {
+        var length = readVarInt();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid field length: " + length);
+        }
+
+        return (int) length;
+    }
+
+    private long readVarInt() throws IOException {
+        var first = input.read();
+        if (first == -1) {
+            throw new EOFException("Truncated var int");
+        }
+
+        return readVarInt(first);
+    }
+
+    private long readVarInt(int first) throws IOException {
+        var result = (long) (first & 0x7F);
+        var current = first;
+        for (var shift = 7; (current & 0x80) != 0; shift += 7) {
+            if (shift >= Long.SIZE) {
+                throw new IOException("Malformed var int");
+            }
+
+            current = input.read();
+            if (current == -1) {
+                throw new EOFException("Truncated var int");
+            }
+
+            result |= (long) (current & 0x7F) << shift;
+        }
+
+        return result;
+    }
+
+    /**
+     * Handles the mutations of a {@link MutationsSync}
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onMutation(MutationSync mutation);
+    }
+}
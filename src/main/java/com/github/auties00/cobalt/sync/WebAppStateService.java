@@ -9,16 +9,17 @@ import com.github.auties00.cobalt.store.WhatsAppStore;
 import com.github.auties00.cobalt.sync.crypto.DecryptedMutation;
 import com.github.auties00.cobalt.sync.crypto.MutationIntegrityVerifier;
 import com.github.auties00.cobalt.sync.crypto.MutationKeys;
+import com.github.auties00.cobalt.sync.crypto.MutationKeysCache;
 import com.github.auties00.cobalt.sync.crypto.MutationLTHash;
 import com.github.auties00.cobalt.sync.exchange.MutationRequestBuilder;
 import com.github.auties00.cobalt.sync.exchange.MutationResponseParser;
 import com.github.auties00.cobalt.sync.exchange.MutationSyncResponse;
-import com.github.auties00.cobalt.util.SecureBytes;
-import it.auties.protobuf.stream.ProtobufInputStream;
 
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -41,6 +42,18 @@ import static com.github.auties00.cobalt.client.WhatsAppClientErrorHandler.Locat
  * </ul>
  */
 public final class WebAppStateService {
+    /**
+     * The number of mutations decrypted by each virtual thread when a large batch is decrypted in parallel.
+     */
+    private static final int DECRYPTION_CHUNK_SIZE = 256;
+
+    /**
+     * The maximum number of mutations of a sync response that are read and decrypted at once.
+     */
+    private static final int MUTATIONS_BATCH_SIZE = 1024;
+
+    private static final int VALUE_MAC_LENGTH = 32;
+
     private final WhatsAppClient whatsapp;
     private final WhatsAppStore store;
     private final MutationRequestBuilder requestBuilder;
@@ -119,20 +132,17 @@ public final class WebAppStateService {
     }
 
     private void syncCollection(PatchType patchType) {
-        var remoteMutations = new ArrayList<DecryptedMutation.Trusted>();
-        while(store.findWebAppState(patchType).state() != CollectionState.UP_TO_DATE) {
-            // 1. Get the sync response
-            var syncResponse = sendSyncRequest(patchType);
-            if(syncResponse.isEmpty()) {
-                break;
-            }
+        try (var keysCache = new MutationKeysCache(store)) {
+            while (store.findWebAppState(patchType).state() != CollectionState.UP_TO_DATE) {
+                // 1. Get the sync response
+                var syncResponse = sendSyncRequest(patchType);
+                if (syncResponse.isEmpty()) {
+                    break;
+                }
 
-            // 2. Process the result
-            var results = handleSyncResponse(syncResponse.get());
-            remoteMutations.addAll(results);
-        }
-        if(!remoteMutations.isEmpty()) {
-            applyMutations(patchType, remoteMutations);
+                // 2. Process the result
+                handleSyncResponse(syncResponse.get(), keysCache);
+            }
         }
     }
 
@@ -160,71 +170,47 @@ public final class WebAppStateService {
         }
     }
 
-    private SequencedCollection<DecryptedMutation.Trusted> handleSyncResponse(MutationSyncResponse syncResponse) {
-        try {
-            // 1. Get all mutations from patches or snapshot
-            var mutations = getOrDownloadMutations(syncResponse);
-            if (mutations.isEmpty()) {
+    private void handleSyncResponse(MutationSyncResponse syncResponse, MutationKeysCache keysCache) {
+        var collectionName = syncResponse.collectionName();
+        // The mutations are read twice: to hash them, and then to decrypt and apply them.
+        // Holding the decrypted mutations between the two passes instead would keep the whole response in memory.
+        var verifyIntegrity = integrityVerifier.isVerificationRequired(syncResponse);
+        try (var mutations = new MutationSource(syncResponse, this::downloadExternalMutation)) {
+            var pendingByIndex = findPendingMutations(collectionName);
+            var hasher = new MutationHasher(findCurrentHash(collectionName));
+
+            // 1. Stream the mutations from the snapshot or the patches, hashing them
+            var count = mutations.forEach(MUTATIONS_BATCH_SIZE, batch -> hashMutations(batch, keysCache, hasher));
+            if (count == 0) {
                 // No updates - mark as up-to-date
-                store.markWebAppStateUpToDate(syncResponse.collectionName());
-                return List.of();
+                store.markWebAppStateUpToDate(collectionName);
+                return;
             }
 
-            // 2. Decrypt mutations
-            var untrusted = decryptMutations(mutations);
+            // 2. Compute new LT-Hash
+            var newHash = hasher.toHash();
 
-            // 3. Compute new LT-Hash
-            var newHash = computeNewLTHash(syncResponse.collectionName(), untrusted);
-
-            // 4. Verify integrity (if snapshot/patch MAC provided)
-            integrityVerifier.verifyIntegrity(syncResponse, newHash);
+            // 3. Verify integrity (if snapshot/patch MAC provided), then apply the mutations one batch at a time.
+            // Every value MAC was checked while hashing, so no batch is applied unless all of them are authentic.
+            if (verifyIntegrity) {
+                integrityVerifier.verifyIntegrity(syncResponse, newHash, keysCache);
+            }
+            mutations.forEach(MUTATIONS_BATCH_SIZE, batch -> applyMutations(collectionName, decryptMutations(batch, keysCache), pendingByIndex));
 
-            // 5. Update collection version and hash
-            updateCollectionState(syncResponse.collectionName(), syncResponse.version(), newHash);
+            // 4. Update collection version and hash
+            updateCollectionState(collectionName, syncResponse.version(), newHash);
 
-            // 6. Check if more data available
+            // 5. Check if more data available
             if (syncResponse.hasMore()) {
-                store.markWebAppStatePending(syncResponse.collectionName());
+                store.markWebAppStatePending(collectionName);
             } else {
-                store.markWebAppStateUpToDate(syncResponse.collectionName());
+                store.markWebAppStateUpToDate(collectionName);
             }
-
-            // Return result
-            return untrusted.stream()
-                    .map(entry -> new DecryptedMutation.Trusted(entry.index(), entry.value(), entry.operation(), entry.timestamp()))
-                    .toList();
         } catch (Exception e) {
-            handleSyncError(e, syncResponse.collectionName());
-            return List.of();
+            handleSyncError(e, collectionName);
         }
     }
 
-    private SequencedCollection<MutationSync> getOrDownloadMutations(MutationSyncResponse response) {
-        var result = new ArrayList<MutationSync>();
-        if(response.snapshot() != null) {
-            for (var record : response.snapshot().records()) {
-                var sync = new MutationSync(record.operation(), record);
-                result.add(sync);
-            }
-        }
-
-        for (var patch : response.patches()) {
-            if (patch.mutations() != null) {
-                result.addAll(patch.mutations());
-            }
-
-            if (patch.hasExternalMutations()) {
-                var downloadedData = downloadExternalMutation(patch.externalMutations());
-                var externalMutations = decodeExternalMutation(downloadedData);
-                if (externalMutations.mutations() != null) {
-                    result.addAll(externalMutations.mutations());
-                }
-            }
-        }
-
-        return Collections.unmodifiableList(result);
-    }
-
     private InputStream downloadExternalMutation(ExternalBlobReference externalRef) {
         try {
             return whatsapp.store()
@@ -235,58 +221,121 @@ public final class WebAppStateService {
         }
     }
 
-    private MutationsSync decodeExternalMutation(InputStream downloadedData) {
-        try(var protobufStream = ProtobufInputStream.fromStream(downloadedData)) {
-            return MutationsSyncSpec.decode(protobufStream);
-        }catch (Throwable throwable) {
-            throw new WebAppStateRetryableSyncException("Failed to decode external mutations", throwable);
+    private Optional<MutationKeys> findMutationKeys(MutationSync mutation, MutationKeysCache keysCache) {
+        var record = mutation.record();
+        if (record == null || record.index() == null || record.value() == null) {
+            return Optional.empty();
+        }
+
+        // Get encryption key id
+        var keyId = record.keyId();
+        if (keyId == null || keyId.id() == null) {
+            return Optional.empty();
+        }
+
+        // Derive keys, or reuse the ones derived earlier in this sync
+        var keys = keysCache.find(keyId.id());
+        if (keys.isEmpty() && store.findWebAppStateKeyById(keyId.id()).isEmpty()) {
+            throw new WebAppStateMissingKeyException(keyId.id());
         }
-    }
 
-    private SequencedCollection<DecryptedMutation.Untrusted> decryptMutations(SequencedCollection<MutationSync> mutations) {
-        var decrypted = new ArrayList<DecryptedMutation.Untrusted>(mutations.size());
+        return keys;
+    }
 
+    private void hashMutations(List<MutationSync> mutations, MutationKeysCache keysCache, MutationHasher hasher) {
         for (var mutation : mutations) {
-            var record = mutation.record();
-            if (record == null || record.index() == null || record.value() == null) {
+            // Only the mutations that can be decrypted are part of the hash
+            var keys = findMutationKeys(mutation, keysCache);
+            if (keys.isEmpty()) {
                 continue;
             }
 
-            // Get encryption key id
-            var keyId = record.keyId();
-            if (keyId == null || keyId.id() == null) {
-                continue;
+            var record = mutation.record();
+            var indexMac = record.index().blob();
+            var encryptedValue = record.value().blob();
+            if (indexMac == null || encryptedValue == null || encryptedValue.length < VALUE_MAC_LENGTH) {
+                throw new WebAppStateRetryableSyncException("Failed to decrypt mutation", new IllegalArgumentException("Malformed mutation record"));
             }
 
-            // Get encryption key
-            var syncKey = whatsapp.store()
-                    .findWebAppStateKeyById(keyId.id())
-                    .orElseThrow(() -> new WebAppStateMissingKeyException(keyId.id()));
-            var keyData = syncKey.keyData();
-            if (keyData == null || keyData.keyData() == null) {
-                continue;
+            // The value MAC is checked here, before any batch is applied, so that a tampered mutation can't leave the collection partially applied
+            try {
+                DecryptedMutation.Untrusted.checkValueMac(encryptedValue, keys.get(), mutation.operation());
+            } catch (Exception e) {
+                throw new WebAppStateRetryableSyncException("Failed to decrypt mutation", e);
+            }
+
+            var valueMac = Arrays.copyOfRange(encryptedValue, encryptedValue.length - VALUE_MAC_LENGTH, encryptedValue.length);
+            hasher.accept(mutation.operation(), indexMac, valueMac);
+        }
+    }
+
+    private SequencedCollection<DecryptedMutation.Untrusted> decryptMutations(List<MutationSync> mutations, MutationKeysCache keysCache) {
+        // Resolve the keys of every mutation first, so that a missing key is reported before any work is done
+        var pending = new ArrayList<PendingDecryption>(mutations.size());
+        for (var mutation : mutations) {
+            var keys = findMutationKeys(mutation, keysCache);
+            if (keys.isPresent()) {
+                pending.add(new PendingDecryption(mutation, keys.get()));
             }
+        }
+
+        // Small batches are decrypted on the calling thread, as forking isn't worth it
+        if (pending.size() <= DECRYPTION_CHUNK_SIZE) {
+            return Collections.unmodifiableSequencedCollection(decryptChunk(pending));
+        }
 
-            // Derive keys and decrypt
-            try (var keys = MutationKeys.ofSyncKey(keyData.keyData())) {
+        // Large batches, like snapshots, are decrypted in chunks on virtual threads.
+        // The chunks are joined in order, as the LT-Hash and the mutations must be applied in the order they were received.
+        var decrypted = new ArrayList<DecryptedMutation.Untrusted>(pending.size());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var chunks = new ArrayList<Future<List<DecryptedMutation.Untrusted>>>();
+            for (var offset = 0; offset < pending.size(); offset += DECRYPTION_CHUNK_SIZE) {
+                var chunk = pending.subList(offset, Math.min(offset + DECRYPTION_CHUNK_SIZE, pending.size()));
+                chunks.add(executor.submit(() -> decryptChunk(chunk)));
+            }
+
+            for (var chunk : chunks) {
+                decrypted.addAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebAppStateRetryableSyncException("Interrupted while decrypting mutations", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof WebAppStateRetryableSyncException retryable) {
+                throw retryable;
+            }
+            throw new WebAppStateRetryableSyncException("Failed to decrypt mutation", e.getCause());
+        }
+
+        return Collections.unmodifiableSequencedCollection(decrypted);
+    }
+
+    private List<DecryptedMutation.Untrusted> decryptChunk(List<PendingDecryption> chunk) {
+        var decrypted = new ArrayList<DecryptedMutation.Untrusted>(chunk.size());
+        for (var entry : chunk) {
+            var record = entry.mutation().record();
+            try {
                 var decryptedMutation = DecryptedMutation.Untrusted.of(
                         record.value().blob(),
                         record.index().blob(),
-                        keys,
-                        mutation.operation()
+                        entry.keys(),
+                        entry.mutation().operation()
                 );
                 decrypted.add(decryptedMutation);
             }catch (Exception e) {
                 throw new WebAppStateRetryableSyncException("Failed to decrypt mutation", e);
             }
         }
+        return decrypted;
+    }
+
+    private record PendingDecryption(MutationSync mutation, MutationKeys keys) {
 
-        return Collections.unmodifiableSequencedCollection(decrypted);
     }
 
-    private void applyMutations(PatchType collectionName, SequencedCollection<DecryptedMutation.Trusted> remoteMutations) {
+    private void applyMutations(PatchType collectionName, SequencedCollection<DecryptedMutation.Untrusted> remoteMutations, Map<String, DecryptedMutation.Trusted> pendingByIndex) {
         // Step 1: Resolve conflicts with pending local mutations
-        var mutationsToApply = resolveConflicts(remoteMutations, collectionName);
+        var mutationsToApply = resolveConflicts(remoteMutations, pendingByIndex);
 
         // Step 2: Group mutations by action type
         var mutationsByAction = new HashMap<String, List<DecryptedMutation.Trusted>>();
@@ -328,14 +377,16 @@ public final class WebAppStateService {
         }
     }
 
-    private SequencedCollection<DecryptedMutation.Trusted> resolveConflicts(SequencedCollection<DecryptedMutation.Trusted> remoteMutations, PatchType collectionName) {
+    private Map<String, DecryptedMutation.Trusted> findPendingMutations(PatchType collectionName) {
         // Create index for quick lookup of pending mutations
-        var pendingByIndex = whatsapp.store()
+        return whatsapp.store()
                 .findPendingMutations(collectionName)
                 .stream()
                 .map(PendingMutation::mutation)
                 .collect(Collectors.toUnmodifiableMap(DecryptedMutation.Trusted::index, Function.identity()));
+    }
 
+    private SequencedCollection<DecryptedMutation.Trusted> resolveConflicts(SequencedCollection<DecryptedMutation.Untrusted> remoteMutations, Map<String, DecryptedMutation.Trusted> pendingByIndex) {
         var results = new ArrayList<DecryptedMutation.Trusted>(remoteMutations.size());
         for (var remoteMutation : remoteMutations) {
             // Get the index of the remote mutation
@@ -344,7 +395,7 @@ public final class WebAppStateService {
             // Check if we have a pending local mutation with the same index
             var localMutation = pendingByIndex.get(remoteIndex);
             if(localMutation == null || remoteMutation.timestamp() >= localMutation.timestamp()) {
-                results.add(remoteMutation);
+                results.add(new DecryptedMutation.Trusted(remoteMutation.index(), remoteMutation.value(), remoteMutation.operation(), remoteMutation.timestamp()));
             }else {
                 results.add(localMutation);
             }
@@ -352,30 +403,10 @@ public final class WebAppStateService {
         return Collections.unmodifiableSequencedCollection(results);
     }
 
-    private byte[] computeNewLTHash(PatchType patchType, SequencedCollection<DecryptedMutation.Untrusted> mutations) {
-        // Get current hash
+    private byte[] findCurrentHash(PatchType patchType) {
         var currentHashState = whatsapp.store().findWebAppHashStateByName(patchType)
                 .orElseGet(() -> new AppStateSyncHash(patchType));
-
-        var currentHash = currentHashState.hash() != null ? currentHashState.hash() : MutationLTHash.EMPTY_HASH;
-
-        // Separate SET and REMOVE operations
-        var toAdd = new ArrayList<byte[]>();
-        var toRemove = new ArrayList<byte[]>();
-
-        for (var mutation : mutations) {
-            var indexMac = mutation.indexMac();
-            var valueMac = mutation.valueMac();
-            var mutationHash = SecureBytes.concat(indexMac, valueMac);
-            if (mutation.operation() == RecordSync.Operation.SET) {
-                toAdd.add(mutationHash);
-            } else {
-                toRemove.add(mutationHash);
-            }
-        }
-
-        // Compute new hash
-        return MutationLTHash.subtractThenAdd(currentHash, toAdd, toRemove);
+        return currentHashState.hash() != null ? currentHashState.hash() : MutationLTHash.EMPTY_HASH;
     }
 
     private void updateCollectionState(PatchType collectionName, long version, byte[] ltHash) {
@@ -39,26 +39,11 @@ public sealed interface DecryptedMutation {
                 MutationKeys keys,
                 RecordSync.Operation operation
         ) throws GeneralSecurityException {
-            if (encryptedValue.length < IV_LENGTH + MAC_LENGTH) {
-                throw new IllegalArgumentException("Encrypted value too short");
-            }
+            // 1. Verify and extract value MAC
+            var mac = verifyValueMac(encryptedValue, keys, operation);
+            var valueMac = Arrays.copyOfRange(encryptedValue, encryptedValue.length - MAC_LENGTH, encryptedValue.length);
 
-            // 1. Extract value MAC
-            var valueMac = Arrays.copyOfRange(encryptedValue, encryptedValue.length - 32, encryptedValue.length);
-
-            // 2. Verify value MAC
-            var mac = Mac.getInstance("HmacSHA256");
-            mac.init(keys.valueMacKey());
-            mac.update(operation.content());
-            mac.update(VERSION);
-            mac.update(encryptedValue, 0, IV_LENGTH);
-            mac.update(encryptedValue, IV_LENGTH, encryptedValue.length - IV_LENGTH - MAC_LENGTH);
-            var expectedMac = mac.doFinal();
-            if (!MessageDigest.isEqual(valueMac, expectedMac)) {
-                throw new WebAppStateFatalSyncException("Value MAC mismatch");
-            }
-
-            // 3. Decrypt payload with AES-256-CBC and decode protobuf
+            // 2. Decrypt payload with AES-256-CBC and decode protobuf
             var cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
             var ivSpec = new IvParameterSpec(encryptedValue, 0, IV_LENGTH);
             cipher.init(Cipher.DECRYPT_MODE, keys.valueEncryptionKey(), ivSpec);
@@ -66,14 +51,14 @@ public sealed interface DecryptedMutation {
             var plaintextStream = new CipherInputStream(ciphertextStream, cipher);
             var actionData = ActionDataSyncSpec.decode(ProtobufInputStream.fromStream(plaintextStream));
 
-            // 4. Verify index MAC
+            // 3. Verify index MAC
             mac.init(keys.indexKey());
             var expectedIndexMac = mac.doFinal(actionData.index());
             if (!MessageDigest.isEqual(indexMac, expectedIndexMac)) {
                 throw new WebAppStateFatalSyncException("Index MAC mismatch");
             }
 
-            // 5. Build mutation
+            // 4. Build mutation
             return new Untrusted(
                     new String(actionData.index(), StandardCharsets.UTF_8),
                     indexMac,
@@ -83,6 +68,40 @@ public sealed interface DecryptedMutation {
                     actionData.value().timestamp()
             );
         }
+
+        /**
+         * Verifies the MAC of an encrypted value, without decrypting it
+         *
+         * @param encryptedValue the encrypted value, followed by its MAC
+         * @param keys           the keys the value was encrypted with
+         * @param operation      the operation of the mutation
+         * @throws IllegalArgumentException    if the value is too short
+         * @throws WebAppStateFatalSyncException if the MAC doesn't match
+         * @throws GeneralSecurityException    if the MAC cannot be computed
+         */
+        public static void checkValueMac(byte[] encryptedValue, MutationKeys keys, RecordSync.Operation operation) throws GeneralSecurityException {
+            verifyValueMac(encryptedValue, keys, operation);
+        }
+
+        // Returns the MAC that verified the value, so that it can be reused to verify the index
+        private static Mac verifyValueMac(byte[] encryptedValue, MutationKeys keys, RecordSync.Operation operation) throws GeneralSecurityException {
+            if (encryptedValue.length < IV_LENGTH + MAC_LENGTH) {
+                throw new IllegalArgumentException("Encrypted value too short");
+            }
+
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(keys.valueMacKey());
+            mac.update(operation.content());
+            mac.update(VERSION);
+            mac.update(encryptedValue, 0, IV_LENGTH);
+            mac.update(encryptedValue, IV_LENGTH, encryptedValue.length - IV_LENGTH - MAC_LENGTH);
+            var valueMac = Arrays.copyOfRange(encryptedValue, encryptedValue.length - MAC_LENGTH, encryptedValue.length);
+            var expectedMac = mac.doFinal();
+            if (!MessageDigest.isEqual(valueMac, expectedMac)) {
+                throw new WebAppStateFatalSyncException("Value MAC mismatch");
+            }
+            return mac;
+        }
     }
 
     record Trusted(
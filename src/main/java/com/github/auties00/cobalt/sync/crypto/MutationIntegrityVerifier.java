@@ -18,21 +18,45 @@ public final class MutationIntegrityVerifier {
         this.store = store;
     }
 
+    public boolean isVerificationRequired(MutationSyncResponse response) {
+        if (!store.checkPatchMacs()) {
+            return false;
+        }
+
+        if (response.isSnapshot() && response.snapshot().mac() != null) {
+            return true;
+        }
+
+        for (var patch : response.patches()) {
+            if (patch.patchMac() != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public void verifyIntegrity(MutationSyncResponse response, byte[] expectedHash) {
+        try (var keysCache = new MutationKeysCache(store)) {
+            verifyIntegrity(response, expectedHash, keysCache);
+        }
+    }
+
+    public void verifyIntegrity(MutationSyncResponse response, byte[] expectedHash, MutationKeysCache keysCache) {
         if (!store.checkPatchMacs()) {
             return;
         }
 
         if (response.isSnapshot()) {
-            verifySnapshotMac(response, expectedHash);
+            verifySnapshotMac(response, expectedHash, keysCache);
         }
 
         for (var patch : response.patches()) {
-            verifyPatchMac(response.collectionName(), patch, expectedHash);
+            verifyPatchMac(response.collectionName(), patch, expectedHash, keysCache);
         }
     }
 
-    private void verifySnapshotMac(MutationSyncResponse response, byte[] expectedHash) {
+    private void verifySnapshotMac(MutationSyncResponse response, byte[] expectedHash, MutationKeysCache keysCache) {
         var snapshot = response.snapshot();
         if (snapshot == null || snapshot.mac() == null) {
             return;  // No MAC to verify
@@ -43,25 +67,17 @@ public final class MutationIntegrityVerifier {
             throw new InternalError("Snapshot missing key ID");
         }
 
-        // Get sync key
-        var syncKey = store.findWebAppStateKeyById(keyId.id())
+        // Get the keys derived from the sync key
+        var keys = keysCache.find(keyId.id())
                 .orElseThrow(() -> new InternalError("Unknown sync key for snapshot"));
 
-        var keyData = syncKey.keyData();
-        if (keyData == null || keyData.keyData() == null) {
-            throw new InternalError("Sync key has no data");
-        }
-
-        // Derive keys to get snapshot MAC key
-        try (var keys = MutationKeys.ofSyncKey(keyData.keyData())) {
-            var expectedMac = computeMac(response.collectionName(), response.version(), expectedHash, keys.snapshotMacKey());
-            if (!MessageDigest.isEqual(snapshot.mac(), expectedMac)) {
-                throw new WebAppStateFatalSyncException("Snapshot MAC mismatch");
-            }
+        var expectedMac = computeMac(response.collectionName(), response.version(), expectedHash, keys.snapshotMacKey());
+        if (!MessageDigest.isEqual(snapshot.mac(), expectedMac)) {
+            throw new WebAppStateFatalSyncException("Snapshot MAC mismatch");
         }
     }
 
-    private void verifyPatchMac(PatchType type, PatchSync patch, byte[] expectedHash) {
+    private void verifyPatchMac(PatchType type, PatchSync patch, byte[] expectedHash, MutationKeysCache keysCache) {
         if (patch.patchMac() == null) {
             return;  // No MAC to verify
         }
@@ -71,21 +87,13 @@ public final class MutationIntegrityVerifier {
             throw new InternalError("Patch missing key ID");
         }
 
-        // Get sync key
-        var syncKey = store.findWebAppStateKeyById(keyId.id())
+        // Get the keys derived from the sync key
+        var keys = keysCache.find(keyId.id())
                 .orElseThrow(() -> new InternalError("Unknown sync key for patch"));
 
-        var keyData = syncKey.keyData();
-        if (keyData == null || keyData.keyData() == null) {
-            throw new InternalError("Sync key has no data");
-        }
-
-        // Derive keys to get patch MAC key
-        try (var keys = MutationKeys.ofSyncKey(keyData.keyData())) {
-            var expectedMac = computeMac(type, patch.encodedVersion(), expectedHash, keys.patchMacKey());
-            if (!MessageDigest.isEqual(patch.patchMac(), expectedMac)) {
-                throw new WebAppStateFatalSyncException("Patch MAC mismatch");
-            }
+        var expectedMac = computeMac(type, patch.encodedVersion(), expectedHash, keys.patchMacKey());
+        if (!MessageDigest.isEqual(patch.patchMac(), expectedMac)) {
+            throw new WebAppStateFatalSyncException("Patch MAC mismatch");
         }
     }
 
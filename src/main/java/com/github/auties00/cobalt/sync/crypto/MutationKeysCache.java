@@ -0,0 +1,74 @@
+package com.github.auties00.cobalt.sync.crypto;
+
+import com.github.auties00.cobalt.store.WhatsAppStore;
+
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Caches the keys derived from the app state sync keys for the duration of a sync.
+ * <p>
+ * Every mutation, snapshot and patch names the sync key it was encrypted with, and most of them use the same one,
+ * so the keys are derived only once per sync key instead of once per mutation.
+ * The derived keys are destroyed when the cache is closed.
+ */
+public final class MutationKeysCache implements AutoCloseable {
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final WhatsAppStore store;
+    private final HashMap<String, MutationKeys> keys;
+    private boolean closed;
+
+    public MutationKeysCache(WhatsAppStore store) {
+        this.store = Objects.requireNonNull(store, "store cannot be null");
+        this.keys = new HashMap<>();
+    }
+
+    /**
+     * Returns the keys derived from a sync key, deriving them if they aren't cached
+     *
+     * @param keyId the id of the sync key
+     * @return the derived keys, or an empty optional if the sync key is unknown or has no data
+     */
+    public synchronized Optional<MutationKeys> find(byte[] keyId) {
+        Objects.requireNonNull(keyId, "keyId cannot be null");
+        if (closed) {
+            throw new IllegalStateException("Cache is closed");
+        }
+
+        var id = HEX.formatHex(keyId);
+        var cached = keys.get(id);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+
+        var syncKey = store.findWebAppStateKeyById(keyId);
+        if (syncKey.isEmpty()) {
+            return Optional.empty();
+        }
+
+        var keyData = syncKey.get().keyData();
+        if (keyData == null || keyData.keyData() == null) {
+            return Optional.empty();
+        }
+
+        var derived = MutationKeys.ofSyncKey(keyData.keyData());
+        keys.put(id, derived);
+        return Optional.of(derived);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        this.closed = true;
+        for (var derived : keys.values()) {
+            derived.close();
+        }
+        keys.clear();
+    }
+}
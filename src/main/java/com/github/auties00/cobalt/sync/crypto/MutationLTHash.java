@@ -34,6 +34,8 @@ public final class MutationLTHash {
      */
     public static final byte[] EMPTY_HASH = new byte[HASH_LENGTH];
 
+    private static final byte[] EMPTY_ELEMENT = new byte[0];
+
     private MutationLTHash() {
         // Utility class
     }
@@ -135,19 +137,41 @@ public final class MutationLTHash {
             throw new NullPointerException("toRemove list cannot be null");
         }
 
-        var result = currentHash;
+        var accumulator = accumulator(currentHash);
 
         // Remove all elements
         for (var element : toRemove) {
-            result = remove(result, element);
+            accumulator.remove(element);
         }
 
         // Add all elements
         for (var element : toAdd) {
-            result = add(result, element);
+            accumulator.add(element);
         }
 
-        return result;
+        return accumulator.toHash();
+    }
+
+    /**
+     * Creates a mutable accumulator that starts from the given hash state.
+     *
+     * <p>The accumulator applies additions and removals in place, so that batches,
+     * like the records of a snapshot, don't allocate a new hash state for every element.
+     * The result is the same as applying {@link #add(byte[], byte[])} and {@link #remove(byte[], byte[])} in the same order.
+     *
+     * @param currentHash the current hash state (must be {@link #HASH_LENGTH} bytes)
+     * @return a new accumulator
+     * @throws NullPointerException if currentHash is null
+     */
+    public static Accumulator accumulator(byte[] currentHash) {
+        if (currentHash == null) {
+            throw new NullPointerException("Current hash cannot be null");
+        }
+        if (currentHash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Current hash must be " + HASH_LENGTH + " bytes");
+        }
+
+        return new Accumulator(currentHash);
     }
 
     /**
@@ -161,4 +185,133 @@ public final class MutationLTHash {
                 ? null
                 : hash.clone();
     }
+
+    /**
+     * A mutable LT-Hash state that applies additions and removals in place.
+     *
+     * <p>Each position of the state is kept in a 16-bit lane, and each element is applied
+     * in runs of its own length instead of indexing it modulo its length for every position,
+     * so that the loops are simple enough to be vectorized by the JIT.
+     * Every step is still reduced modulo {@link #FIELD_SIZE}, as the representative that is stored depends on it,
+     * but without a division.
+     *
+     * <p>An accumulator isn't thread safe.
+     */
+    public static final class Accumulator {
+        private static final int REDUCTION_SHIFT = 16;
+        private static final int REDUCTION_MASK = (1 << REDUCTION_SHIFT) - 1;
+        private static final int REDUCTION_MULTIPLIER = 517; // ceil(2^16 / FIELD_SIZE)
+
+        private final short[] lanes;
+
+        private Accumulator(byte[] currentHash) {
+            this.lanes = new short[HASH_LENGTH];
+            for (var i = 0; i < HASH_LENGTH; i++) {
+                lanes[i] = currentHash[i];
+            }
+        }
+
+        /**
+         * Adds an element to this hash state.
+         *
+         * @param element the element to add
+         * @return this accumulator
+         * @throws NullPointerException if element is null
+         */
+        public Accumulator add(byte[] element) {
+            return add(element, EMPTY_ELEMENT);
+        }
+
+        /**
+         * Adds an element, made of two concatenated parts, to this hash state, without concatenating them.
+         *
+         * @param first the first part of the element
+         * @param second the second part of the element
+         * @return this accumulator
+         * @throws NullPointerException if either part is null
+         */
+        public Accumulator add(byte[] first, byte[] second) {
+            checkElement(first, second);
+            var position = 0;
+            while (position < HASH_LENGTH) {
+                position = addRun(first, position);
+                position = addRun(second, position);
+            }
+            return this;
+        }
+
+        /**
+         * Removes an element from this hash state.
+         *
+         * @param element the element to remove
+         * @return this accumulator
+         * @throws NullPointerException if element is null
+         */
+        public Accumulator remove(byte[] element) {
+            return remove(element, EMPTY_ELEMENT);
+        }
+
+        /**
+         * Removes an element, made of two concatenated parts, from this hash state, without concatenating them.
+         *
+         * @param first the first part of the element
+         * @param second the second part of the element
+         * @return this accumulator
+         * @throws NullPointerException if either part is null
+         */
+        public Accumulator remove(byte[] first, byte[] second) {
+            checkElement(first, second);
+            var position = 0;
+            while (position < HASH_LENGTH) {
+                position = removeRun(first, position);
+                position = removeRun(second, position);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the current hash state.
+         *
+         * @return a new array of {@link #HASH_LENGTH} bytes
+         */
+        public byte[] toHash() {
+            var result = new byte[HASH_LENGTH];
+            for (var i = 0; i < HASH_LENGTH; i++) {
+                result[i] = (byte) lanes[i];
+            }
+            return result;
+        }
+
+        private int addRun(byte[] part, int position) {
+            var end = Math.min(position + part.length, HASH_LENGTH);
+            for (int i = position, j = 0; i < end; i++, j++) {
+                lanes[i] = (short) reduce(lanes[i] + part[j]);
+            }
+            return end;
+        }
+
+        private int removeRun(byte[] part, int position) {
+            var end = Math.min(position + part.length, HASH_LENGTH);
+            for (int i = position, j = 0; i < end; i++, j++) {
+                lanes[i] = (short) reduce(lanes[i] - part[j] + FIELD_SIZE);
+            }
+            return end;
+        }
+
+        // Same as value % FIELD_SIZE for |value| <= 512, but computed with a multiplication and a shift instead of a division.
+        // The quotient is rounded towards zero, like the % operator, by adding 2^16 - 1 to negative values before shifting.
+        private static int reduce(int value) {
+            var quotient = (value * REDUCTION_MULTIPLIER + ((value >> 31) & REDUCTION_MASK)) >> REDUCTION_SHIFT;
+            return value - quotient * FIELD_SIZE;
+        }
+
+        private static void checkElement(byte[] first, byte[] second) {
+            if (first == null || second == null) {
+                throw new NullPointerException("Element cannot be null");
+            }
+            if (first.length == 0 && second.length == 0) {
+                throw new IllegalArgumentException("Element cannot be empty");
+            }
+        }
+    }
 }
@@ -34,9 +34,7 @@ public final class LocaleSettingHandler implements WebAppStateActionHandler {
         client.store()
                 .setLocale(newLocale);
 
-        for(var listener : client.store().listeners()) {
-            Thread.startVirtualThread(() -> listener.onLocaleChanged(client, oldLocale, newLocale));
-        }
+        client.notifyListeners(listener -> listener.onLocaleChanged(client, oldLocale, newLocale));
 
         return true;
     }
@@ -0,0 +1,55 @@
+package com.github.auties00.cobalt.usync;
+
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+
+/**
+ * The protocols that can be asked for in a usync query.
+ * Each protocol adds a child, with the same description, to every user of the response.
+ */
+public enum UsyncProtocol {
+    /**
+     * Whether a phone number has a WhatsApp account.
+     * Users queried only for this protocol are looked up by phone number instead of by jid.
+     */
+    CONTACT("contact"),
+
+    /**
+     * The devices of a user
+     */
+    DEVICES("devices"),
+
+    /**
+     * The lid of a user
+     */
+    LID("lid"),
+
+    /**
+     * The about of a user
+     */
+    STATUS("status");
+
+    private final String description;
+
+    UsyncProtocol(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Returns the description of the child of a user that holds the result of this protocol
+     *
+     * @return a non-null string
+     */
+    public String description() {
+        return description;
+    }
+
+    Node toQueryNode() {
+        var builder = new NodeBuilder()
+                .description(description);
+        if (this == DEVICES) {
+            builder.attribute("version", "2");
+        }
+        return builder.build();
+    }
+}
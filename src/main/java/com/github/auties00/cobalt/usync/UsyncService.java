@@ -0,0 +1,289 @@
+package com.github.auties00.cobalt.usync;
+
+import com.github.auties00.cobalt.client.UsyncBatchPolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+import com.github.auties00.cobalt.util.SecureBytes;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Sends usync queries, merging the ones that are made at the same time.
+ * <p>
+ * Device list lookups, contact lookups and the other usync users used to send their own query, with a single protocol and a few users,
+ * so that sending messages to many users at the same time produced many tiny round trips.
+ * Queries with the same context that are made within {@link UsyncBatchPolicy#window()} are merged instead:
+ * the merged query asks for every protocol any of them needs, for every user any of them asked about,
+ * and each caller receives the users it asked about once the response arrives.
+ * A merged query is sent as soon as it lists {@link UsyncBatchPolicy#maxUsers()} users,
+ * and a query that lists more users than that is split into more queries, which are sent in parallel.
+ * The policy is read from the configuration every time a query is made, so a new policy applies to the next query.
+ */
+public final class UsyncService {
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(60);
+    // The responses of a batch are already bound by RESPONSE_TIMEOUT: waiting a bit longer only guards callers against a batch that is never completed
+    private static final Duration AWAIT_GRACE = Duration.ofSeconds(5);
+    private static final ScheduledThreadPoolExecutor FLUSH_SCHEDULER;
+
+    static {
+        FLUSH_SCHEDULER = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                .name("usync-flush")
+                .daemon()
+                .factory());
+        FLUSH_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final WhatsAppClientConfig config;
+    private final BiFunction<NodeBuilder, Duration, CompletableFuture<Node>> sender;
+    private final ReentrantLock lock;
+    private final Map<String, Batch> pendingBatches;
+
+    /**
+     * Creates a usync service
+     *
+     * @param config the configuration that holds the {@link UsyncBatchPolicy}
+     * @param sender the function that sends a query with a response timeout, and returns the future of its response
+     */
+    public UsyncService(WhatsAppClientConfig config, BiFunction<NodeBuilder, Duration, CompletableFuture<Node>> sender) {
+        this.config = Objects.requireNonNull(config, "config cannot be null");
+        this.sender = Objects.requireNonNull(sender, "sender cannot be null");
+        this.lock = new ReentrantLock();
+        this.pendingBatches = new HashMap<>();
+    }
+
+    /**
+     * Queries protocols for users, merging the query with the ones made at the same time with the same context
+     *
+     * @param context   the context of the query, for example {@code message} or {@code interactive}
+     * @param protocols the protocols to ask for, must not be empty
+     * @param users     the users to ask about
+     * @return the users of the response that were asked about, each with a child for every protocol of the merged query
+     */
+    public List<Node> query(String context, Set<UsyncProtocol> protocols, Collection<? extends Jid> users) {
+        Objects.requireNonNull(context, "context cannot be null");
+        Objects.requireNonNull(protocols, "protocols cannot be null");
+        Objects.requireNonNull(users, "users cannot be null");
+        if (protocols.isEmpty()) {
+            throw new IllegalArgumentException("protocols cannot be empty");
+        }
+
+        var requested = new LinkedHashSet<Jid>();
+        for (var user : users) {
+            if (user != null) {
+                requested.add(user.toUserJid());
+            }
+        }
+        if (requested.isEmpty()) {
+            return List.of();
+        }
+
+        var policy = config.usyncBatchPolicy();
+        if (policy.isDisabled()) {
+            var batch = new Batch(context);
+            batch.add(protocols, requested);
+            flush(batch);
+            return batch.await(requested, RESPONSE_TIMEOUT.plus(AWAIT_GRACE));
+        }
+
+        Batch batch;
+        boolean full;
+        lock.lock();
+        try {
+            batch = pendingBatches.computeIfAbsent(context, Batch::new);
+            batch.add(protocols, requested);
+            if (batch.flushTask == null) {
+                var scheduled = batch;
+                batch.flushTask = FLUSH_SCHEDULER.schedule(() -> flush(scheduled), policy.window().toNanos(), TimeUnit.NANOSECONDS);
+            }
+            full = batch.users.size() >= policy.maxUsers();
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            flush(batch);
+        }
+
+        return batch.await(requested, policy.window().plus(RESPONSE_TIMEOUT).plus(AWAIT_GRACE));
+    }
+
+    // Doesn't block: the responses are handled by the socket
+    private void flush(Batch batch) {
+        lock.lock();
+        try {
+            if (batch.flushed) {
+                return;
+            }
+
+            batch.flushed = true;
+            pendingBatches.remove(batch.context, batch);
+            if (batch.flushTask != null) {
+                batch.flushTask.cancel(false);
+                batch.flushTask = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            var userNodes = new ArrayList<Node>(batch.users.size());
+            batch.users.forEach((user, protocols) -> buildUserNode(user, protocols).ifPresent(userNodes::add));
+            var responses = new ArrayList<CompletableFuture<Node>>();
+            var maxUsers = config.usyncBatchPolicy().maxUsers();
+            for (var offset = 0; offset < userNodes.size(); offset += maxUsers) {
+                var chunk = List.copyOf(userNodes.subList(offset, Math.min(offset + maxUsers, userNodes.size())));
+                responses.add(sender.apply(buildQuery(batch.context, batch.protocols, chunk), RESPONSE_TIMEOUT));
+            }
+
+            // Every caller of the batch waits on its result, so it must be completed even if a response can't be parsed
+            CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).whenComplete((_, error) -> {
+                // allOf wraps the failure of a response, so that callers would see a CompletionException instead of, for example, a NodeTimeoutException
+                if (error != null) {
+                    batch.result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+
+                try {
+                    var results = new HashMap<Jid, Node>();
+                    for (var response : responses) {
+                        var node = response.join();
+                        if (node == null) {
+                            throw new IllegalStateException("Missing usync response");
+                        }
+
+                        node.streamChildren("usync")
+                                .flatMap(usync -> usync.streamChild("list"))
+                                .flatMap(list -> list.streamChildren("user"))
+                                .forEach(user -> user.getAttributeAsJid("jid")
+                                        .ifPresent(jid -> results.put(jid.toUserJid(), user)));
+                    }
+                    batch.result.complete(results);
+                } catch (Throwable throwable) {
+                    batch.result.completeExceptionally(throwable);
+                }
+            });
+        } catch (Throwable throwable) {
+            batch.result.completeExceptionally(throwable);
+        }
+    }
+
+    private NodeBuilder buildQuery(String context, Set<UsyncProtocol> protocols, List<Node> userNodes) {
+        var protocolNodes = protocols.stream()
+                .map(UsyncProtocol::toQueryNode)
+                .toList();
+        var queryNode = new NodeBuilder()
+                .description("query")
+                .content(protocolNodes)
+                .build();
+        var listNode = new NodeBuilder()
+                .description("list")
+                .content(userNodes)
+                .build();
+        var sideListNode = new NodeBuilder()
+                .description("side_list")
+                .build();
+        var syncNode = new NodeBuilder()
+                .description("usync")
+                .attribute("sid", SecureBytes.randomSid())
+                .attribute("mode", "query")
+                .attribute("last", "true")
+                .attribute("index", "0")
+                .attribute("context", context)
+                .content(queryNode, listNode, sideListNode)
+                .build();
+        return new NodeBuilder()
+                .description("iq")
+                .attribute("xmlns", "usync")
+                .attribute("to", JidServer.user())
+                .attribute("type", "get")
+                .content(syncNode);
+    }
+
+    // Users that are only looked up by phone number don't have a jid attribute, as they might not have an account
+    private Optional<Node> buildUserNode(Jid user, EnumSet<UsyncProtocol> protocols) {
+        var byPhoneNumber = protocols.contains(UsyncProtocol.CONTACT);
+        var byJid = protocols.size() > (byPhoneNumber ? 1 : 0);
+        var builder = new NodeBuilder()
+                .description("user");
+        if (byJid) {
+            builder.attribute("jid", user);
+        }
+
+        if (byPhoneNumber) {
+            var phoneNumber = user.hasServer(JidServer.user()) ? user.toPhoneNumber() : Optional.<String>empty();
+            if (phoneNumber.isPresent()) {
+                var contactNode = new NodeBuilder()
+                        .description("contact")
+                        .content(phoneNumber.get())
+                        .build();
+                builder.content(contactNode);
+            } else if (!byJid) {
+                return Optional.empty();
+            }
+        }
+
+        return Optional.of(builder.build());
+    }
+
+    /**
+     * The queries with the same context that are sent together
+     */
+    private static final class Batch {
+        private final String context;
+        private final EnumSet<UsyncProtocol> protocols;
+        private final SequencedMap<Jid, EnumSet<UsyncProtocol>> users;
+        private final CompletableFuture<Map<Jid, Node>> result;
+        private ScheduledFuture<?> flushTask;
+        private boolean flushed;
+
+        private Batch(String context) {
+            this.context = context;
+            this.protocols = EnumSet.noneOf(UsyncProtocol.class);
+            this.users = new LinkedHashMap<>();
+            this.result = new CompletableFuture<>();
+        }
+
+        private void add(Set<UsyncProtocol> protocols, Set<Jid> users) {
+            this.protocols.addAll(protocols);
+            for (var user : users) {
+                this.users.computeIfAbsent(user, _ -> EnumSet.noneOf(UsyncProtocol.class))
+                        .addAll(protocols);
+            }
+        }
+
+        private List<Node> await(Set<Jid> users, Duration timeout) {
+            Map<Jid, Node> results;
+            try {
+                results = result.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException exception) {
+                var error = new IllegalStateException("Timed out while waiting for usync query", exception);
+                result.completeExceptionally(error);
+                throw error;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for usync query", exception);
+            } catch (ExecutionException exception) {
+                switch (exception.getCause()) {
+                    case RuntimeException runtimeException -> throw runtimeException;
+                    case Error error -> throw error;
+                    case null, default -> throw new IllegalStateException("Cannot send usync query", exception.getCause());
+                }
+            }
+
+            var nodes = new ArrayList<Node>(users.size());
+            for (var user : users) {
+                var node = results.get(user);
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+            return Collections.unmodifiableList(nodes);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import com.github.auties00.cobalt.model.jid.Jid;
 import com.github.auties00.cobalt.model.jid.JidServer;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class JidTests {
@@ -143,6 +145,147 @@ public class JidTests {
         assertRoundTrip(Jid.of(JidServer.newsletter()));
     }
 
+    @Test
+    public void testNumericAndNonNumericUsers() {
+        var numeric = Jid.of("393495089819@s.whatsapp.net");
+        assertEquals("393495089819", numeric.user());
+        assertEquals("+393495089819", numeric.toPhoneNumber().orElseThrow());
+        assertEquals(Jid.of(393495089819L), numeric);
+        assertRoundTrip(numeric);
+
+        var nonNumeric = Jid.of("location@broadcast");
+        assertEquals("location", nonNumeric.user());
+        assertTrue(nonNumeric.toPhoneNumber().isEmpty());
+        assertEquals(Jid.locationBroadcast(), nonNumeric);
+        assertRoundTrip(nonNumeric);
+
+        var mixed = Jid.of("39349a5089819@s.whatsapp.net");
+        assertEquals("39349a5089819", mixed.user());
+        assertTrue(mixed.toPhoneNumber().isEmpty());
+        assertNotEquals(numeric, mixed);
+        assertRoundTrip(mixed);
+    }
+
+    @Test
+    public void testLeadingZeros() {
+        var zeros = Jid.of("00393495089819@s.whatsapp.net");
+        assertEquals("00393495089819", zeros.user());
+        assertEquals("00393495089819@s.whatsapp.net", zeros.toString());
+        assertEquals("+00393495089819", zeros.toPhoneNumber().orElseThrow());
+        assertNotEquals(Jid.of("393495089819@s.whatsapp.net"), zeros);
+        assertTrue(zeros.hasUser("00393495089819"));
+        assertFalse(zeros.hasUser("393495089819"));
+        assertEquals(zeros, Jid.of(ProtobufString.lazy("00393495089819@s.whatsapp.net".getBytes())));
+        assertRoundTrip(zeros);
+
+        var zero = Jid.of("0@s.whatsapp.net");
+        assertEquals("0", zero.user());
+        assertEquals(Jid.announcementsAccount(), zero);
+        assertNotEquals(Jid.of("00@s.whatsapp.net"), zero);
+    }
+
+    @Test
+    public void testLongOverflow() {
+        var max = Long.toString(Long.MAX_VALUE);
+        var maxJid = Jid.of(max + "@lid");
+        assertEquals(max, maxJid.user());
+        assertRoundTrip(maxJid);
+
+        var overflowing = "92233720368547758070";
+        var overflowingJid = Jid.of(overflowing + ":3@lid");
+        assertEquals(overflowing, overflowingJid.user());
+        assertEquals(3, overflowingJid.device());
+        assertEquals(overflowing + ":3@lid", overflowingJid.toString());
+        assertEquals("+" + overflowing, overflowingJid.toPhoneNumber().orElseThrow());
+        assertEquals(overflowingJid, Jid.of(ProtobufString.lazy((overflowing + ":3@lid").getBytes())));
+        assertNotEquals(maxJid.withDevice(3), overflowingJid);
+        assertRoundTrip(overflowingJid);
+    }
+
+    @Test
+    public void testUserRoundTrip() {
+        for (var value : new String[]{"393495089819", "0", "007", "123456789012345678901234", "location"}) {
+            var jid = Jid.of(value, JidServer.user());
+            assertEquals(value, jid.user());
+            assertEquals(value + "@s.whatsapp.net", jid.toString());
+            assertEquals(jid, Jid.of(jid.user(), jid.server()));
+            assertEquals(jid, Jid.of(jid.toString()));
+            jid.toPhoneNumber()
+                    .ifPresent(phoneNumber -> assertEquals(jid, Jid.of(phoneNumber, JidServer.user())));
+        }
+    }
+
+    @Test
+    public void testInternedEquality() {
+        var parsed = Jid.of("393495089819:12@s.whatsapp.net");
+        var lazy = Jid.of(ProtobufString.lazy("393495089819:12@s.whatsapp.net".getBytes()));
+        var constructed = new Jid("393495089819", JidServer.user(), 12, 0);
+        assertEquals(constructed, parsed);
+        assertEquals(parsed, constructed);
+        assertEquals(constructed.hashCode(), parsed.hashCode());
+        assertEquals(parsed, lazy);
+        assertEquals(parsed.hashCode(), lazy.hashCode());
+        assertEquals(constructed, Jid.of("393495089819", JidServer.user(), 12, 0));
+        assertEquals(constructed, Jid.of(393495089819L).withDevice(12));
+        assertEquals(new Jid("393495089819", JidServer.user()), parsed.withoutData());
+
+        var leadingZeros = new Jid("0393495089819", JidServer.user());
+        assertEquals(leadingZeros, Jid.of("0393495089819@s.whatsapp.net"));
+        assertEquals(leadingZeros.hashCode(), Jid.of("0393495089819@s.whatsapp.net").hashCode());
+    }
+
+    @Test
+    public void testLazyUsers() {
+        var ascii = "393495089819:12@s.whatsapp.net";
+        assertEquals(Jid.of(ascii), Jid.of(ProtobufString.lazy(ascii.getBytes())));
+        assertEquals(Jid.of(ProtobufString.lazy(ascii.getBytes())), Jid.of(ProtobufString.lazy(ascii.getBytes())));
+        assertNotEquals(Jid.of(ProtobufString.lazy(ascii.getBytes())), Jid.of(ProtobufString.lazy("393495089818:12@s.whatsapp.net".getBytes())));
+
+        // Non-ASCII users are decoded before they are looked up
+        var unicode = "caf\u00e9@broadcast";
+        var lazy = Jid.of(ProtobufString.lazy(unicode.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("caf\u00e9", lazy.user());
+        assertEquals(Jid.of(unicode), lazy);
+    }
+
+    @Test
+    public void testRecordPattern() {
+        Object value = Jid.of("123456789012345:3@lid");
+        if (!(value instanceof Jid(var user, var server, var device, var agent, var numericUser))) {
+            fail("Jid should be deconstructed by a record pattern");
+            return;
+        }
+        assertEquals("123456789012345", user);
+        assertEquals(JidServer.lid(), server);
+        assertEquals(3, device);
+        assertEquals(0, agent);
+        assertEquals(123456789012345L, numericUser);
+    }
+
+    @Test
+    public void testNumericUsers() {
+        var numeric = Jid.of("393495089819:12@s.whatsapp.net");
+        assertTrue(numeric.hasNumericUser());
+        assertEquals(393495089819L, numeric.numericUser());
+        assertEquals(numeric, new Jid("393495089819", JidServer.user(), 12, 0, 393495089819L));
+        assertNotEquals(numeric, Jid.of("393495089818:12@s.whatsapp.net"));
+        assertNotEquals(numeric, Jid.of("393495089819:12@lid"));
+
+        // Users that can't be written back from a number are compared as strings
+        for (var value : new String[]{"0393495089819", "92233720368547758070", "location"}) {
+            var jid = new Jid(value, JidServer.user());
+            assertFalse(jid.hasNumericUser(), value);
+            assertEquals(Jid.NO_NUMERIC_USER, jid.numericUser());
+            assertEquals(jid, Jid.of(value, JidServer.user()));
+            assertEquals(jid.hashCode(), Jid.of(value, JidServer.user()).hashCode());
+        }
+        assertNotEquals(Jid.of("0393495089819", JidServer.user()), Jid.of("393495089819", JidServer.user()));
+        assertFalse(Jid.of(JidServer.user()).hasNumericUser());
+
+        assertThrows(IllegalArgumentException.class, () -> new Jid("393495089819", JidServer.user(), 0, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new Jid("location", JidServer.user(), 0, 0, 1));
+    }
+
     private static void assertRoundTrip(Jid original) {
         var canonical = original.toString();
         var reparsed = Jid.of(canonical);
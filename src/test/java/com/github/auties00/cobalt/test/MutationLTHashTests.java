@@ -0,0 +1,159 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.sync.crypto.MutationLTHash;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MutationLTHashTests {
+    private static final int HASH_LENGTH = MutationLTHash.EMPTY_HASH.length;
+    private static final int ITERATIONS = 500;
+
+    @Test
+    public void testAccumulatorMatchesPerMutation() {
+        var random = new Random(0x17A5);
+        for (var iteration = 0; iteration < ITERATIONS; iteration++) {
+            var initial = iteration % 2 == 0 ? MutationLTHash.EMPTY_HASH : randomBytes(random, HASH_LENGTH);
+            var expected = initial;
+            var accumulator = MutationLTHash.accumulator(initial);
+            var added = new ArrayList<byte[]>();
+            var operations = 1 + random.nextInt(64);
+            for (var operation = 0; operation < operations; operation++) {
+                // Removes either an element that was added before, like an overwritten mutation, or an unknown one
+                if (random.nextInt(3) == 0) {
+                    var element = !added.isEmpty() && random.nextBoolean()
+                            ? added.remove(random.nextInt(added.size()))
+                            : randomElement(random);
+                    expected = MutationLTHash.remove(expected, element);
+                    accumulator.remove(element);
+                } else {
+                    var element = randomElement(random);
+                    added.add(element);
+                    expected = MutationLTHash.add(expected, element);
+                    accumulator.add(element);
+                }
+            }
+            assertArrayEquals(expected, accumulator.toHash(), "Mismatch at iteration " + iteration);
+        }
+    }
+
+    @Test
+    public void testAccumulatorPartsMatchConcatenation() {
+        var random = new Random(0x2B0C);
+        for (var iteration = 0; iteration < ITERATIONS; iteration++) {
+            var initial = randomBytes(random, HASH_LENGTH);
+            var expected = initial;
+            var accumulator = MutationLTHash.accumulator(initial);
+            var operations = 1 + random.nextInt(32);
+            for (var operation = 0; operation < operations; operation++) {
+                // One of the parts can be empty, but not both
+                var first = randomBytes(random, random.nextInt(HASH_LENGTH + 32));
+                var second = randomBytes(random, (first.length == 0 ? 1 : 0) + random.nextInt(48));
+                var element = concat(first, second);
+                if (random.nextBoolean()) {
+                    expected = MutationLTHash.remove(expected, element);
+                    accumulator.remove(first, second);
+                } else {
+                    expected = MutationLTHash.add(expected, element);
+                    accumulator.add(first, second);
+                }
+            }
+            assertArrayEquals(expected, accumulator.toHash(), "Mismatch at iteration " + iteration);
+        }
+    }
+
+    @Test
+    public void testSubtractThenAddMatchesPerMutation() {
+        var random = new Random(0x3D91);
+        for (var iteration = 0; iteration < ITERATIONS; iteration++) {
+            var initial = randomBytes(random, HASH_LENGTH);
+            var toAdd = randomElements(random);
+            var toRemove = randomElements(random);
+            var expected = initial;
+            for (var element : toRemove) {
+                expected = MutationLTHash.remove(expected, element);
+            }
+            for (var element : toAdd) {
+                expected = MutationLTHash.add(expected, element);
+            }
+            assertArrayEquals(expected, MutationLTHash.subtractThenAdd(initial, toAdd, toRemove), "Mismatch at iteration " + iteration);
+        }
+    }
+
+    @Test
+    public void testRemoveRestoresHash() {
+        var random = new Random(0x4E22);
+        var initial = MutationLTHash.EMPTY_HASH;
+        var elements = randomElements(random);
+        var accumulator = MutationLTHash.accumulator(initial);
+        elements.forEach(accumulator::add);
+        elements.reversed().forEach(accumulator::remove);
+        assertArrayEquals(initial, accumulator.toHash());
+    }
+
+    @Test
+    public void testExtremeValues() {
+        var initial = new byte[HASH_LENGTH];
+        for (var i = 0; i < HASH_LENGTH; i++) {
+            initial[i] = (byte) (i % 2 == 0 ? Byte.MIN_VALUE : Byte.MAX_VALUE);
+        }
+        var elements = List.of(filled(Byte.MIN_VALUE), filled(Byte.MAX_VALUE), filled((byte) -1), filled((byte) 126));
+        var expected = initial;
+        var accumulator = MutationLTHash.accumulator(initial);
+        for (var element : elements) {
+            expected = MutationLTHash.remove(expected, element);
+            accumulator.remove(element);
+            expected = MutationLTHash.add(MutationLTHash.add(expected, element), element);
+            accumulator.add(element).add(element);
+        }
+        assertArrayEquals(expected, accumulator.toHash());
+    }
+
+    @Test
+    public void testMalformed() {
+        assertThrows(NullPointerException.class, () -> MutationLTHash.accumulator(null));
+        assertThrows(IllegalArgumentException.class, () -> MutationLTHash.accumulator(new byte[HASH_LENGTH - 1]));
+        var accumulator = MutationLTHash.accumulator(MutationLTHash.EMPTY_HASH);
+        assertThrows(NullPointerException.class, () -> accumulator.add(null));
+        assertThrows(NullPointerException.class, () -> accumulator.remove(new byte[1], null));
+        assertThrows(IllegalArgumentException.class, () -> accumulator.add(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> accumulator.remove(new byte[0], new byte[0]));
+    }
+
+    // Elements are usually the 32 bytes of a value mac, but any non-empty length must work
+    private static byte[] randomElement(Random random) {
+        return randomBytes(random, random.nextInt(4) == 0 ? 1 + random.nextInt(2 * HASH_LENGTH) : 32);
+    }
+
+    private static List<byte[]> randomElements(Random random) {
+        var count = random.nextInt(32);
+        var result = new ArrayList<byte[]>(count);
+        for (var i = 0; i < count; i++) {
+            result.add(randomElement(random));
+        }
+        return result;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        var result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private static byte[] filled(byte value) {
+        var result = new byte[HASH_LENGTH];
+        Arrays.fill(result, value);
+        return result;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        var result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
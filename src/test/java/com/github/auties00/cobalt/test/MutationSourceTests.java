@@ -0,0 +1,94 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.exception.WebAppStateRetryableSyncException;
+import com.github.auties00.cobalt.model.sync.*;
+import com.github.auties00.cobalt.sync.MutationSource;
+import com.github.auties00.cobalt.sync.exchange.MutationSyncResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MutationSourceTests {
+    @Test
+    public void testRereadsWithoutDownloadingAgain() {
+        var downloads = new AtomicInteger();
+        var blob = MutationsSyncSpec.encode(new MutationsSync(List.of(mutation(4), mutation(5))));
+        var response = response(blob);
+        try (var source = new MutationSource(response, _ -> {
+            downloads.incrementAndGet();
+            return new ByteArrayInputStream(blob);
+        })) {
+            // The snapshot comes first, then the inline mutations of the patch, then its external ones
+            var expected = List.of(1, 2, 3, 4, 5);
+            var batches = new ArrayList<List<MutationSync>>();
+            assertEquals(expected.size(), source.forEach(2, batches::add));
+            assertEquals(List.of(2, 2, 1), batches.stream().map(List::size).toList(), "Mutations should be read in bounded batches");
+            assertEquals(expected, ids(batches));
+
+            // The mutations are hashed first, then read again to be applied
+            batches.clear();
+            assertEquals(expected.size(), source.forEach(2, batches::add));
+            assertEquals(expected, ids(batches), "A source should read the same mutations every time");
+            assertEquals(1, downloads.get(), "An external blob should only be downloaded once");
+        }
+    }
+
+    @Test
+    public void testDownloadsAgainAfterClose() {
+        var downloads = new AtomicInteger();
+        var blob = MutationsSyncSpec.encode(new MutationsSync(List.of(mutation(4))));
+        var source = new MutationSource(response(blob), _ -> {
+            downloads.incrementAndGet();
+            return new ByteArrayInputStream(blob);
+        });
+        source.forEach(10, _ -> {});
+        source.close();
+        source.forEach(10, _ -> {});
+        source.close();
+        assertEquals(2, downloads.get(), "Closing a source should discard its staged blobs");
+    }
+
+    @Test
+    public void testReportsFailedDownloads() {
+        Function<ExternalBlobReference, InputStream> downloader = _ -> new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        try (var source = new MutationSource(response(new byte[0]), downloader)) {
+            assertThrows(WebAppStateRetryableSyncException.class, () -> source.forEach(10, _ -> {}));
+        }
+    }
+
+    private static MutationSyncResponse response(byte[] blob) {
+        var snapshot = new SnapshotSync(null, List.of(mutation(1).record(), mutation(2).record()), null, null);
+        var external = new ExternalBlobReference(new byte[32], "/mutations", null, blob.length, null, null);
+        var patch = new PatchSync(null, List.of(mutation(3)), external, null, null, null, null, null);
+        return new MutationSyncResponse(PatchType.REGULAR, 1, false, List.of(patch), snapshot);
+    }
+
+    private static List<Integer> ids(List<List<MutationSync>> batches) {
+        return batches.stream()
+                .flatMap(List::stream)
+                .map(mutation -> (int) mutation.record().index().blob()[0])
+                .toList();
+    }
+
+    private static MutationSync mutation(int id) {
+        var record = new RecordSync(
+                new IndexSync(new byte[]{(byte) id}),
+                new ValueSync(new byte[]{(byte) id, (byte) id}),
+                new KeyId(new byte[]{1})
+        );
+        return new MutationSync(RecordSync.Operation.REMOVE, record);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.model.sync.*;
+import com.github.auties00.cobalt.sync.MutationsSyncDecoder;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MutationsSyncDecoderTests {
+    @Test
+    public void testSkipsUnknownFields() throws IOException {
+        var blob = new ByteArrayOutputStream();
+        // Field 5, var int 150
+        blob.writeBytes(new byte[]{0x28, (byte) 0x96, 0x01});
+        // Field 6, fixed64
+        blob.writeBytes(new byte[]{0x31, 1, 2, 3, 4, 5, 6, 7, 8});
+        blob.writeBytes(MutationsSyncSpec.encode(new MutationsSync(List.of(mutation(1)))));
+        // Field 7, three length delimited bytes
+        blob.writeBytes(new byte[]{0x3A, 3, 9, 9, 9});
+        // Field 8, fixed32
+        blob.writeBytes(new byte[]{0x45, 1, 2, 3, 4});
+        // Repeated fields can be split across concatenated messages
+        blob.writeBytes(MutationsSyncSpec.encode(new MutationsSync(List.of(mutation(2), mutation(3)))));
+        blob.writeBytes(new byte[]{0x28, 0x01});
+
+        var decoded = decode(blob.toByteArray());
+        assertEquals(3, decoded.size());
+        for (var i = 0; i < decoded.size(); i++) {
+            var mutation = decoded.get(i);
+            var id = (byte) (i + 1);
+            assertEquals(RecordSync.Operation.REMOVE, mutation.operation());
+            assertArrayEquals(new byte[]{id}, mutation.record().index().blob());
+            assertArrayEquals(new byte[]{id, id}, mutation.record().value().blob());
+        }
+    }
+
+    @Test
+    public void testDecodesEmptyInput() throws IOException {
+        assertTrue(decode(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void testRejectsMalformedInput() {
+        var mutations = MutationsSyncSpec.encode(new MutationsSync(List.of(mutation(1))));
+        assertThrows(EOFException.class, () -> decode(Arrays.copyOf(mutations, mutations.length - 1)), "A truncated mutation should be rejected");
+        assertThrows(IOException.class, () -> decode(new byte[]{0x08, 0x01}), "Mutations must be length delimited");
+        assertThrows(IOException.class, () -> decode(new byte[]{0x2B}), "Groups aren't supported");
+        assertThrows(EOFException.class, () -> decode(new byte[]{0x28, (byte) 0x96}), "A truncated var int should be rejected");
+    }
+
+    private static List<MutationSync> decode(byte[] blob) throws IOException {
+        var result = new ArrayList<MutationSync>();
+        MutationsSyncDecoder.decode(new ByteArrayInputStream(blob), result::add);
+        return result;
+    }
+
+    private static MutationSync mutation(int id) {
+        var record = new RecordSync(
+                new IndexSync(new byte[]{(byte) id}),
+                new ValueSync(new byte[]{(byte) id, (byte) id}),
+                new KeyId(new byte[]{1})
+        );
+        return new MutationSync(RecordSync.Operation.REMOVE, record);
+    }
+}
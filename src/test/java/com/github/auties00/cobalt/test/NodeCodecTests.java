@@ -0,0 +1,404 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.node.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static com.github.auties00.cobalt.node.NodeTags.*;
+import static com.github.auties00.cobalt.node.NodeTokens.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeCodecTests {
+    @Test
+    public void testFrameEncoderMatchesEncoder() {
+        var encoder = new NodeFrameEncoder();
+        for (var node : sampleNodes()) {
+            var expected = encode(node);
+            for (var padding : new int[]{0, 3, 16}) {
+                var frame = encoder.encode(node, padding, padding * 2);
+                assertEquals(0, frame.position());
+                assertEquals(padding + expected.length + padding * 2, frame.limit(), node.description());
+                var actual = Arrays.copyOfRange(frame.array(), padding, frame.limit() - padding * 2);
+                assertArrayEquals(expected, actual, node.description());
+            }
+        }
+    }
+
+    @Test
+    public void testFrameEncoderGrowsPooledBuffers() {
+        var released = new ArrayList<ByteBuffer>();
+        var encoder = new NodeFrameEncoder(ByteBuffer::allocate, released::add);
+        var node = largeNode();
+        var frame = encoder.encode(node, 3, 16);
+        assertFalse(released.isEmpty(), "A frame larger than the first buffer should release the buffers it outgrew");
+        assertArrayEquals(encode(node), Arrays.copyOfRange(frame.array(), 3, frame.limit() - 16));
+    }
+
+    @Test
+    public void testDecodersRoundTrip() throws IOException {
+        for (var node : sampleNodes()) {
+            var frame = encode(node);
+            var decoded = new NodeDecoder(ByteBuffer.wrap(frame)).decode();
+            var sliced = new NodeSliceDecoder(ByteBuffer.wrap(frame)).decode();
+            assertArrayEquals(frame, encode(decoded), node.description());
+            assertArrayEquals(frame, encode(sliced), node.description());
+            assertSameNode(decoded, sliced);
+        }
+    }
+
+    @Test
+    public void testDecodersRoundTripCompressed() throws IOException {
+        for (var node : sampleNodes()) {
+            var frame = encode(node);
+            var compressed = compress(frame);
+            var decoded = new NodeDecoder(ByteBuffer.wrap(compressed)).decode();
+            var sliceDecoder = new NodeSliceDecoder(ByteBuffer.wrap(compressed));
+            assertFalse(sliceDecoder.isSourceRetained());
+            var sliced = sliceDecoder.decode();
+            assertArrayEquals(frame, encode(decoded), node.description());
+            assertArrayEquals(frame, encode(sliced), node.description());
+            assertSameNode(decoded, sliced);
+        }
+    }
+
+    @Test
+    public void testSliceDecoderSources() throws IOException {
+        var node = messageNode(4);
+        var frame = encode(node);
+
+        var heapDecoder = new NodeSliceDecoder(ByteBuffer.wrap(frame));
+        assertTrue(heapDecoder.isSourceRetained());
+        assertArrayEquals(frame, encode(heapDecoder.decode()));
+        assertFalse(heapDecoder.hasData());
+
+        // A frame that is a slice of a larger array must be decoded from its offset
+        var padded = new byte[frame.length + 10];
+        System.arraycopy(frame, 0, padded, 7, frame.length);
+        var offsetDecoder = new NodeSliceDecoder(ByteBuffer.wrap(padded, 7, frame.length).slice());
+        assertArrayEquals(frame, encode(offsetDecoder.decode()));
+
+        var direct = ByteBuffer.allocateDirect(frame.length)
+                .put(frame)
+                .flip();
+        var directDecoder = new NodeSliceDecoder(direct);
+        assertFalse(directDecoder.isSourceRetained());
+        assertArrayEquals(frame, encode(directDecoder.decode()));
+    }
+
+    @Test
+    public void testSlicedContentIsReadOnly() throws IOException {
+        var text = "caff\u00e8 \u2615 \uD83D\uDE00";
+        var content = text.getBytes(StandardCharsets.UTF_8);
+        var frame = encode(new NodeBuilder()
+                .description("body")
+                .content(content)
+                .build());
+        var sliced = new NodeSliceDecoder(ByteBuffer.wrap(frame)).decode();
+        assertInstanceOf(Node.BufferNode.class, sliced);
+        var buffer = sliced.toContentBuffer().orElseThrow();
+        assertTrue(buffer.isReadOnly(), "A sliced node must not expose the frame it was decoded from");
+        assertTrue(((Node.BufferNode) sliced).content().isReadOnly());
+        assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 0));
+
+        // The content is decoded as UTF-8 regardless of the default charset
+        assertEquals(text, sliced.toContentString().orElseThrow());
+        assertTrue(sliced.hasContent(text));
+        assertTrue(sliced.hasContent(content));
+        assertArrayEquals(content, sliced.toContentBytes().orElseThrow());
+        try (var stream = sliced.toContentStream().orElseThrow()) {
+            assertArrayEquals(content, stream.readAllBytes());
+        }
+        assertArrayEquals(frame, encode(sliced));
+    }
+
+    @Test
+    public void testMalformedFrames() {
+        var frame = encode(messageNode(4));
+        var truncated = Arrays.copyOf(frame, frame.length / 2);
+        assertThrows(IOException.class, () -> new NodeSliceDecoder(ByteBuffer.wrap(truncated)).decode());
+    }
+
+    @Test
+    public void testTokensMatchDictionaries() throws IOException {
+        var dictionaries = List.of(SINGLE_BYTE_TOKENS, DICTIONARY_0_TOKENS, DICTIONARY_1_TOKENS, DICTIONARY_2_TOKENS, DICTIONARY_3_TOKENS);
+        var tokens = 0;
+        for (var dictionary : dictionaries) {
+            for (var index = 0; dictionary.get(index) != null; index++) {
+                var token = dictionary.get(index);
+                var node = new NodeBuilder()
+                        .description(token)
+                        .build();
+                var frame = encode(node);
+                assertArrayEquals(expectedFrame(token), frame, token);
+                assertEquals(token, new NodeDecoder(ByteBuffer.wrap(frame)).decode().description());
+                assertEquals(token, new NodeSliceDecoder(ByteBuffer.wrap(frame)).decode().description());
+                tokens++;
+            }
+        }
+        assertTrue(tokens > 1000);
+    }
+
+    @Test
+    public void testNonTokensAreWrittenAsBinary() throws IOException {
+        var random = new Random(0x5EED);
+        var values = new ArrayList<>(List.of("", "Type", "types", "s.whatsapp.net ", "message-id", "3EB0C431C26A1916E07A"));
+        for (var i = 0; i < 200; i++) {
+            values.add(Long.toString(random.nextLong(), 36));
+        }
+        for (var value : values) {
+            if (isToken(value)) {
+                continue;
+            }
+
+            var node = new NodeBuilder()
+                    .description(value)
+                    .build();
+            var frame = encode(node);
+            assertArrayEquals(expectedFrame(value), frame, value);
+            assertEquals(value, new NodeSliceDecoder(ByteBuffer.wrap(frame)).decode().description());
+        }
+    }
+
+    @Test
+    public void testUtf8MatchesJdk() throws IOException {
+        var values = List.of(
+                "plain ascii text",
+                "àèìòù ñ ß",
+                "中文字符和日本語",
+                "emoji 😀👍🏽",
+                "mixed aé中😀".repeat(20),
+                "x".repeat(84),
+                "x".repeat(85),
+                "é".repeat(200),
+                "中".repeat(100_000)
+        );
+        for (var value : values) {
+            var node = new NodeBuilder()
+                    .description("text")
+                    .content(value)
+                    .build();
+            var frame = encode(node);
+            var expected = value.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(expected, Arrays.copyOfRange(frame, frame.length - expected.length, frame.length));
+            assertEquals(value, new NodeDecoder(ByteBuffer.wrap(frame)).decode().toContentString().orElseThrow());
+            assertEquals(value, new NodeSliceDecoder(ByteBuffer.wrap(frame)).decode().toContentString().orElseThrow());
+        }
+    }
+
+    @Test
+    public void testUnpairedSurrogate() {
+        var node = new NodeBuilder()
+                .description("text")
+                .content("broken \uD83D text")
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> encode(node));
+        assertThrows(IllegalArgumentException.class, () -> new NodeFrameEncoder().encode(node, 0, 0));
+    }
+
+    private static List<Node> sampleNodes() {
+        var random = new Random(0xC0DEC);
+        var nodes = new ArrayList<Node>();
+        nodes.add(new NodeBuilder()
+                .description("iq")
+                .attribute("id", "3EB0C431C26A1916E07A")
+                .attribute("type", "get")
+                .attribute("xmlns", "w:p")
+                .attribute("to", Jid.of(JidServer.user()))
+                .build());
+        nodes.add(new NodeBuilder()
+                .description(DICTIONARY_0_TOKENS.get(3))
+                .attribute(DICTIONARY_3_TOKENS.get(7), DICTIONARY_2_TOKENS.get(11))
+                .attribute("t", 1700000000)
+                .attribute("count", 0)
+                .attribute("enabled", true)
+                .content("")
+                .build());
+        nodes.add(new NodeBuilder()
+                .description("text")
+                .attribute("key", "value".getBytes(StandardCharsets.US_ASCII))
+                .content("a non token text that is longer than a short string, so that its length is written first".repeat(4))
+                .build());
+        nodes.add(new NodeBuilder()
+                .description("jids")
+                .content(
+                        new NodeBuilder().description("user").content(Jid.of("393495089819", JidServer.user())).build(),
+                        new NodeBuilder().description("device").content(Jid.of("393495089819", JidServer.user(), 12, 0)).build(),
+                        new NodeBuilder().description("lid").content(Jid.of("123456789012345", JidServer.lid(), 3, 0)).build(),
+                        new NodeBuilder().description("group").content(Jid.of("120363025246125888", JidServer.groupOrCommunity())).build(),
+                        new NodeBuilder().description("server").content(Jid.of(JidServer.groupOrCommunity())).build(),
+                        new NodeBuilder().description("broadcast").content(Jid.statusBroadcastAccount()).build(),
+                        new NodeBuilder().description("leading").content(Jid.of("0039", JidServer.user())).build()
+                )
+                .build());
+        for (var length : new int[]{1, 255, 256, (1 << 20) - 1, 1 << 20}) {
+            var payload = new byte[length];
+            random.nextBytes(payload);
+            nodes.add(new NodeBuilder()
+                    .description("enc")
+                    .attribute("v", "2")
+                    .attribute("length", length)
+                    .content(payload)
+                    .build());
+        }
+        var children = new ArrayList<Node>();
+        for (var i = 0; i < 300; i++) {
+            children.add(new NodeBuilder()
+                    .description("item")
+                    .attribute("id", "item-" + i)
+                    .build());
+        }
+        nodes.add(new NodeBuilder()
+                .description("list")
+                .content(children)
+                .build());
+        nodes.add(messageNode(1));
+        nodes.add(messageNode(64));
+        return nodes;
+    }
+
+    private static Node largeNode() {
+        var payload = new byte[256 * 1024];
+        new Random(0xB16).nextBytes(payload);
+        return new NodeBuilder()
+                .description("enc")
+                .content(payload)
+                .build();
+    }
+
+    // The stanza of a group message fanned out to many devices, like the one in NodeCodecBenchmark
+    private static Node messageNode(int participants) {
+        var random = new Random(participants);
+        var participantNodes = new ArrayList<Node>(participants);
+        for (var i = 0; i < participants; i++) {
+            var payload = new byte[160];
+            random.nextBytes(payload);
+            var encNode = new NodeBuilder()
+                    .description("enc")
+                    .attribute("v", "2")
+                    .attribute("type", i % 4 == 0 ? "pkmsg" : "msg")
+                    .content(payload)
+                    .build();
+            participantNodes.add(new NodeBuilder()
+                    .description("to")
+                    .attribute("jid", Jid.of(String.valueOf(393400000000L + i / 4), JidServer.user(), i % 4, 0))
+                    .content(encNode)
+                    .build());
+        }
+        return new NodeBuilder()
+                .description("message")
+                .attribute("id", "3EB0C431C26A1916E07A")
+                .attribute("to", Jid.of("120363025246125888", JidServer.groupOrCommunity()))
+                .attribute("type", "text")
+                .content(new NodeBuilder()
+                        .description("participants")
+                        .content(participantNodes)
+                        .build())
+                .build();
+    }
+
+    private static byte[] encode(Node node) {
+        var length = NodeEncoder.sizeOf(node);
+        var output = new byte[length];
+        NodeEncoder.encode(node, output, 0, length);
+        return output;
+    }
+
+    // Tokenizes a string like the encoder did before it used a perfect hash table: single byte tokens first, then the dictionaries in order
+    private static byte[] expectedFrame(String description) {
+        var result = new ArrayList<Byte>(List.of((byte) 0, LIST_8, (byte) 1));
+        if (description.isEmpty()) {
+            result.add(BINARY_8);
+            result.add(LIST_EMPTY);
+            return toArray(result);
+        }
+
+        var singleByteIndex = SINGLE_BYTE_TOKENS.indexOf(description);
+        if (singleByteIndex != -1) {
+            result.add((byte) singleByteIndex);
+            return toArray(result);
+        }
+
+        var dictionaries = List.of(DICTIONARY_0_TOKENS, DICTIONARY_1_TOKENS, DICTIONARY_2_TOKENS, DICTIONARY_3_TOKENS);
+        var tags = List.of(DICTIONARY_0, DICTIONARY_1, DICTIONARY_2, DICTIONARY_3);
+        for (var i = 0; i < dictionaries.size(); i++) {
+            var index = dictionaries.get(i).indexOf(description);
+            if (index != -1) {
+                result.add(tags.get(i));
+                result.add((byte) index);
+                return toArray(result);
+            }
+        }
+
+        var bytes = description.getBytes(StandardCharsets.UTF_8);
+        assertTrue(bytes.length < 256, "Only short strings are expected");
+        result.add(BINARY_8);
+        result.add((byte) bytes.length);
+        for (var value : bytes) {
+            result.add(value);
+        }
+        return toArray(result);
+    }
+
+    private static boolean isToken(String value) {
+        return SINGLE_BYTE_TOKENS.indexOf(value) != -1
+                || DICTIONARY_0_TOKENS.indexOf(value) != -1
+                || DICTIONARY_1_TOKENS.indexOf(value) != -1
+                || DICTIONARY_2_TOKENS.indexOf(value) != -1
+                || DICTIONARY_3_TOKENS.indexOf(value) != -1;
+    }
+
+    private static byte[] toArray(List<Byte> values) {
+        var result = new byte[values.size()];
+        for (var i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static void assertSameNode(Node expected, Node actual) {
+        assertEquals(expected.description(), actual.description());
+        assertEquals(expected.attributes().keySet(), actual.attributes().keySet(), expected.description());
+        for (var entry : expected.attributes().entrySet()) {
+            assertArrayEquals(entry.getValue().toBytes(), actual.attributes().get(entry.getKey()).toBytes(), entry.getKey());
+        }
+        assertArrayEquals(expected.toContentBytes().orElse(null), actual.toContentBytes().orElse(null), expected.description());
+        var expectedChildren = List.copyOf(expected.children());
+        var actualChildren = List.copyOf(actual.children());
+        assertEquals(expectedChildren.size(), actualChildren.size(), expected.description());
+        for (var i = 0; i < expectedChildren.size(); i++) {
+            assertSameNode(expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+
+    // The first byte holds the flags of the frame, so only the rest is compressed
+    private static byte[] compress(byte[] frame) {
+        var deflater = new Deflater();
+        try {
+            deflater.setInput(frame, 1, frame.length - 1);
+            deflater.finish();
+            var result = new byte[frame.length + 64];
+            result[0] = 2;
+            var length = 1;
+            while (!deflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                length += deflater.deflate(result, length, result.length - length);
+            }
+            return Arrays.copyOf(result, length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
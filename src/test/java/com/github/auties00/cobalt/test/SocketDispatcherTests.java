@@ -0,0 +1,76 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.client.NodeDispatchPolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.socket.SocketDispatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocketDispatcherTests {
+    private static final int TASKS = 500;
+
+    @Test
+    public void testKeepsLaneOrderWhileSaturated() throws InterruptedException {
+        var config = new WhatsAppClientConfig()
+                .setNodeDispatchPolicy(new NodeDispatchPolicy(4, 8));
+        var dispatcherReference = new AtomicReference<SocketDispatcher>();
+        var released = new AtomicBoolean(false);
+        var drained = new CountDownLatch(1);
+        var dispatcher = new SocketDispatcher(config, () -> {
+            if (released.get() && !dispatcherReference.get().isSaturated()) {
+                drained.countDown();
+            }
+        });
+        dispatcherReference.set(dispatcher);
+
+        // The first task of the lane blocks it, so that every task queued after it is pending
+        var started = new CountDownLatch(1);
+        var gate = new CountDownLatch(1);
+        dispatcher.execute("chat", () -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        var done = new CountDownLatch(TASKS * 2);
+        var chat = new CopyOnWriteArrayList<Integer>();
+        var other = new CopyOnWriteArrayList<Integer>();
+        for (var i = 0; i < TASKS; i++) {
+            var index = i;
+            dispatcher.execute("chat", () -> {
+                chat.add(index);
+                done.countDown();
+            });
+            dispatcher.execute("other", () -> {
+                other.add(index);
+                done.countDown();
+            });
+        }
+        assertTrue(dispatcher.isSaturated(), "The dispatcher should be saturated while the lane is blocked");
+        assertTrue(chat.isEmpty(), "The tasks of a lane should wait for the ones queued before them");
+
+        released.set(true);
+        gate.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Every queued task should run");
+        var expected = IntStream.range(0, TASKS)
+                .boxed()
+                .toList();
+        assertEquals(expected, List.copyOf(chat), "The tasks of a saturated lane should run in the order they were queued");
+        assertEquals(expected, List.copyOf(other));
+        assertTrue(drained.await(10, TimeUnit.SECONDS), "The dispatcher should stop being saturated once the backlog drains");
+        assertFalse(dispatcher.isSaturated());
+    }
+}
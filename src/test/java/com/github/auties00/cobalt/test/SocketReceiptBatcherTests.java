@@ -0,0 +1,223 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.client.ReceiptBatchPolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.exception.SessionClosedException;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+import com.github.auties00.cobalt.socket.SocketReceiptBatcher;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocketReceiptBatcherTests {
+    private static final Jid GROUP = Jid.of("120363025246125888", JidServer.groupOrCommunity());
+    private static final Jid PARTICIPANT = Jid.of("393495089819", JidServer.user());
+    private static final Jid CONTACT = Jid.of("393495089820", JidServer.user());
+
+    @Test
+    public void testMergesReceipts() {
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofHours(1), 100)), sent::add, SocketReceiptBatcherTests::unexpectedFailure);
+        var ack = new NodeBuilder()
+                .description("ack")
+                .attribute("id", "ack-id")
+                .attribute("class", "message")
+                .build();
+        batcher.receipt("A", GROUP, PARTICIPANT, null, "read");
+        batcher.receipt("D", CONTACT, null, null, "read");
+        batcher.receipt("B", GROUP, PARTICIPANT, null, "read");
+        batcher.ack(ack);
+        batcher.receipt("E", CONTACT, null, null, null);
+        batcher.receipt("C", GROUP, PARTICIPANT, null, "read");
+        assertTrue(sent.isEmpty(), "Nothing should be sent before the window elapses");
+
+        batcher.flush();
+        assertEquals(1, sent.size());
+        var nodes = sent.getFirst();
+        assertEquals(4, nodes.size());
+        assertSame(ack, nodes.getFirst(), "Acks should be sent before receipts");
+
+        var merged = nodes.get(1);
+        assertEquals("receipt", merged.description());
+        assertEquals("A", merged.getRequiredAttributeAsString("id"));
+        assertEquals("read", merged.getRequiredAttributeAsString("type"));
+        assertEquals(GROUP, merged.getRequiredAttributeAsJid("to"));
+        assertEquals(PARTICIPANT, merged.getRequiredAttributeAsJid("participant"));
+        assertFalse(merged.hasAttribute("recipient"));
+        assertEquals(List.of("id", "type", "to", "participant"), List.copyOf(merged.attributes().sequencedKeySet()));
+        var list = merged.getChild().orElseThrow();
+        assertEquals("list", list.description());
+        var items = List.copyOf(list.children());
+        assertEquals(2, items.size());
+        assertEquals("item", items.get(0).description());
+        assertEquals("B", items.get(0).getRequiredAttributeAsString("id"));
+        assertEquals("C", items.get(1).getRequiredAttributeAsString("id"));
+
+        var read = nodes.get(2);
+        assertEquals("D", read.getRequiredAttributeAsString("id"));
+        assertEquals("read", read.getRequiredAttributeAsString("type"));
+        assertEquals(CONTACT, read.getRequiredAttributeAsJid("to"));
+        assertTrue(read.children().isEmpty());
+
+        var delivery = nodes.get(3);
+        assertEquals("E", delivery.getRequiredAttributeAsString("id"));
+        assertFalse(delivery.hasAttribute("type"), "Delivery receipts have no type");
+        assertTrue(delivery.children().isEmpty());
+
+        batcher.flush();
+        assertEquals(1, sent.size(), "Flushing without pending receipts should send nothing");
+    }
+
+    @Test
+    public void testFlushesWhenFull() {
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofHours(1), 3)), sent::add, SocketReceiptBatcherTests::unexpectedFailure);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        batcher.receipt("B", CONTACT, null, null, "read");
+        assertTrue(sent.isEmpty());
+        batcher.receipt("C", CONTACT, null, null, "read");
+        assertEquals(1, sent.size());
+        var nodes = sent.getFirst();
+        assertEquals(1, nodes.size());
+        assertEquals("A", nodes.getFirst().getRequiredAttributeAsString("id"));
+        assertEquals(2, nodes.getFirst().getChild().orElseThrow().children().size());
+    }
+
+    @Test
+    public void testFlushesAfterWindow() throws InterruptedException {
+        var latch = new CountDownLatch(1);
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofMillis(10), 100)), nodes -> {
+            sent.add(nodes);
+            latch.countDown();
+        }, SocketReceiptBatcherTests::unexpectedFailure);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        assertTrue(latch.await(10, TimeUnit.SECONDS), "The pending receipts should be sent when the window elapses");
+        assertEquals(1, sent.size());
+        assertEquals("A", sent.getFirst().getFirst().getRequiredAttributeAsString("id"));
+    }
+
+    @Test
+    public void testSendsBatchesInOrder() throws InterruptedException {
+        var sending = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofMillis(10), 2)), nodes -> {
+            sent.add(nodes);
+            if (sent.size() == 1) {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, SocketReceiptBatcherTests::unexpectedFailure);
+
+        // The window elapses, and the first batch is still being sent when the second one fills up
+        batcher.receipt("A", CONTACT, null, null, "read");
+        assertTrue(sending.await(10, TimeUnit.SECONDS), "The pending receipts should be sent when the window elapses");
+        var filler = Thread.ofVirtual().start(() -> {
+            batcher.receipt("B", CONTACT, null, null, "read");
+            batcher.receipt("C", CONTACT, null, null, "read");
+        });
+        filler.join(Duration.ofMillis(100));
+        assertTrue(filler.isAlive(), "The full batch should wait for the previous one to be sent");
+        assertEquals(1, sent.size());
+
+        release.countDown();
+        filler.join(Duration.ofSeconds(10));
+        assertFalse(filler.isAlive());
+        assertEquals(2, sent.size());
+        assertEquals("A", sent.get(0).getFirst().getRequiredAttributeAsString("id"));
+        assertEquals("B", sent.get(1).getFirst().getRequiredAttributeAsString("id"));
+    }
+
+    @Test
+    public void testDisabledSendsImmediately() {
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(ReceiptBatchPolicy.disabled()), sent::add, SocketReceiptBatcherTests::unexpectedFailure);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        batcher.receipt("B", CONTACT, null, null, "read");
+        assertEquals(2, sent.size());
+        assertEquals("A", sent.get(0).getFirst().getRequiredAttributeAsString("id"));
+        assertEquals("B", sent.get(1).getFirst().getRequiredAttributeAsString("id"));
+        assertTrue(sent.get(0).getFirst().children().isEmpty());
+    }
+
+    @Test
+    public void testPolicyIsReadLive() {
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var config = config(new ReceiptBatchPolicy(Duration.ofHours(1), 100));
+        var batcher = new SocketReceiptBatcher(config, sent::add, SocketReceiptBatcherTests::unexpectedFailure);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        assertTrue(sent.isEmpty());
+        config.setReceiptBatchPolicy(ReceiptBatchPolicy.disabled());
+        batcher.receipt("B", CONTACT, null, null, "read");
+        assertEquals(2, sent.size(), "The pending receipt should be sent before the first one that isn't batched");
+        assertEquals("A", sent.get(0).getFirst().getRequiredAttributeAsString("id"));
+        assertEquals("B", sent.get(1).getFirst().getRequiredAttributeAsString("id"));
+    }
+
+    @Test
+    public void testClearDiscardsPending() {
+        var sent = new CopyOnWriteArrayList<List<Node>>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofHours(1), 100)), sent::add, SocketReceiptBatcherTests::unexpectedFailure);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        batcher.clear();
+        batcher.flush();
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void testReportsSendFailures() throws InterruptedException {
+        var failures = new CopyOnWriteArrayList<Throwable>();
+        var reported = new CountDownLatch(1);
+        var failure = new IllegalStateException("Cannot encode node");
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofMillis(10), 100)), _ -> {
+            throw failure;
+        }, throwable -> {
+            failures.add(throwable);
+            reported.countDown();
+        });
+        batcher.receipt("A", CONTACT, null, null, "read");
+        assertTrue(reported.await(10, TimeUnit.SECONDS), "A failure while sending in the background should be reported");
+        assertEquals(List.of(failure), List.copyOf(failures));
+    }
+
+    @Test
+    public void testIgnoresClosedSession() throws InterruptedException {
+        var failures = new CopyOnWriteArrayList<Throwable>();
+        var attempts = new LinkedBlockingQueue<String>();
+        var batcher = new SocketReceiptBatcher(config(new ReceiptBatchPolicy(Duration.ofMillis(10), 100)), nodes -> {
+            attempts.add(nodes.getFirst().getRequiredAttributeAsString("id"));
+            throw new SessionClosedException();
+        }, failures::add);
+        batcher.receipt("A", CONTACT, null, null, "read");
+        assertEquals("A", attempts.poll(10, TimeUnit.SECONDS));
+
+        // Flushes run on a single thread, so the first one completed once the second one starts
+        batcher.receipt("B", CONTACT, null, null, "read");
+        assertEquals("B", attempts.poll(10, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty(), "A closed session isn't a failure, the server delivers the messages again");
+    }
+
+    private static void unexpectedFailure(Throwable throwable) {
+        fail(throwable);
+    }
+
+    private static WhatsAppClientConfig config(ReceiptBatchPolicy policy) {
+        return new WhatsAppClientConfig()
+                .setReceiptBatchPolicy(policy);
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.client.WhatsAppClientType;
+import com.github.auties00.cobalt.model.chat.Chat;
+import com.github.auties00.cobalt.model.info.ChatMessageInfo;
+import com.github.auties00.cobalt.model.info.ChatMessageInfoBuilder;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidCompanion;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.model.message.model.ChatMessageKeyBuilder;
+import com.github.auties00.cobalt.model.message.model.MessageStatus;
+import com.github.auties00.cobalt.store.WhatsAppStore;
+import com.github.auties00.cobalt.store.WhatsAppStoreBuilder;
+import com.github.auties00.cobalt.store.WhatsappStoreSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StoreSerializerTests {
+    private static final Jid CHAT = Jid.of("393495089819", JidServer.user());
+    private static final long TIMESTAMP = 1_700_000_000L;
+
+    @Test
+    public void testReloadsSegmentsInOrder(@TempDir Path directory) throws IOException {
+        assertReloadsInOrder(directory, WhatsappStoreSerializer::toProtobuf);
+    }
+
+    @Test
+    public void testReloadsMappedSegmentsInOrder(@TempDir Path directory) throws IOException {
+        assertReloadsInOrder(directory, WhatsappStoreSerializer::toMappedProtobuf);
+    }
+
+    @Test
+    public void testCompactsSegmentsInOrder(@TempDir Path directory) throws IOException {
+        assertCompactsInOrder(directory, WhatsappStoreSerializer::toProtobuf);
+    }
+
+    @Test
+    public void testCompactsMappedSegmentsInOrder(@TempDir Path directory) throws IOException {
+        assertCompactsInOrder(directory, WhatsappStoreSerializer::toMappedProtobuf);
+    }
+
+    private static void assertReloadsInOrder(Path directory, Function<Path, WhatsappStoreSerializer> serializerFactory) throws IOException {
+        var expected = saveWithSegments(directory, serializerFactory.apply(directory));
+        var reloaded = reload(directory, serializerFactory.apply(directory), expected.store().uuid());
+        assertMessages(expected.messageIds(), reloaded);
+    }
+
+    // The first reload replays the segments and rewrites them into the snapshot on its next save
+    private static void assertCompactsInOrder(Path directory, Function<Path, WhatsappStoreSerializer> serializerFactory) throws IOException {
+        var expected = saveWithSegments(directory, serializerFactory.apply(directory));
+        var reloaded = reload(directory, serializerFactory.apply(directory), expected.store().uuid());
+        reloaded.serialize();
+        assertTrue(findSegments(directory).isEmpty(), "The segments should be compacted into the snapshot");
+        var compacted = reload(directory, serializerFactory.apply(directory), expected.store().uuid());
+        assertMessages(expected.messageIds(), compacted);
+    }
+
+    // The first save writes the snapshot, and the second one appends the messages added in between to the segments
+    private static Saved saveWithSegments(Path directory, WhatsappStoreSerializer serializer) throws IOException {
+        var store = new WhatsAppStoreBuilder()
+                .uuid(UUID.randomUUID())
+                .clientType(WhatsAppClientType.WEB)
+                .device(JidCompanion.web())
+                .build();
+        store.setSerializable(true);
+        store.setSerializer(serializer);
+        var chat = store.addNewChat(CHAT);
+        var messageIds = new ArrayList<String>();
+        for (var i = 0; i < 4; i++) {
+            messageIds.add(addMessage(chat, i));
+        }
+        store.serialize();
+        assertTrue(findSegments(directory).isEmpty(), "The first save should only write the snapshot");
+
+        // Enough ids that a hash ordered set wouldn't return them in the order they were added
+        for (var i = 4; i < 64; i++) {
+            messageIds.add(addMessage(chat, i));
+        }
+        store.serialize();
+        assertFalse(findSegments(directory).isEmpty(), "The second save should append to the segments");
+        return new Saved(store, messageIds);
+    }
+
+    private static String addMessage(Chat chat, int index) {
+        var key = new ChatMessageKeyBuilder()
+                .id("MESSAGE-%03d".formatted(index))
+                .chatJid(chat.jid())
+                .fromMe(true)
+                .build();
+        var message = new ChatMessageInfoBuilder()
+                .key(key)
+                .timestampSeconds(TIMESTAMP + index)
+                .status(MessageStatus.DELIVERED)
+                .build();
+        chat.addMessage(message);
+        return message.id();
+    }
+
+    private static WhatsAppStore reload(Path directory, WhatsappStoreSerializer serializer, UUID uuid) {
+        var store = serializer.startDeserialize(WhatsAppClientType.WEB, uuid)
+                .orElseThrow(() -> new AssertionError("The store wasn't saved in " + directory));
+        serializer.finishDeserialize(store);
+        store.setSerializable(true);
+        store.setSerializer(serializer);
+        return store;
+    }
+
+    private static void assertMessages(List<String> expected, WhatsAppStore store) {
+        var chat = store.findChatByJid(CHAT)
+                .orElseThrow(() -> new AssertionError("The chat wasn't reloaded"));
+        var actual = chat.messages()
+                .stream()
+                .map(ChatMessageInfo::id)
+                .toList();
+        assertEquals(expected, actual, "The messages should be reloaded in the order they were added");
+        assertEquals(expected.getLast(), chat.newestMessage().map(ChatMessageInfo::id).orElse(null));
+        assertEquals(expected.getFirst(), chat.oldestMessage().map(ChatMessageInfo::id).orElse(null));
+    }
+
+    private static List<Path> findSegments(Path directory) throws IOException {
+        try (var walker = Files.walk(directory)) {
+            return walker.filter(path -> path.getFileName().toString().endsWith(".log"))
+                    .toList();
+        }
+    }
+
+    private record Saved(WhatsAppStore store, List<String> messageIds) {
+
+    }
+}
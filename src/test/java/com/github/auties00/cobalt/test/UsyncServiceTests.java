@@ -0,0 +1,216 @@
+package com.github.auties00.cobalt.test;
+
+import com.github.auties00.cobalt.client.UsyncBatchPolicy;
+import com.github.auties00.cobalt.client.WhatsAppClientConfig;
+import com.github.auties00.cobalt.exception.NodeTimeoutException;
+import com.github.auties00.cobalt.model.jid.Jid;
+import com.github.auties00.cobalt.model.jid.JidServer;
+import com.github.auties00.cobalt.node.Node;
+import com.github.auties00.cobalt.node.NodeBuilder;
+import com.github.auties00.cobalt.usync.UsyncProtocol;
+import com.github.auties00.cobalt.usync.UsyncService;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UsyncServiceTests {
+    private static final Jid FIRST = Jid.of("393495089819", JidServer.user());
+    private static final Jid SECOND = Jid.of("393495089820", JidServer.user());
+    private static final Jid THIRD = Jid.of("393495089821", JidServer.user());
+
+    @Test
+    public void testMergesQueriesInWindow() throws InterruptedException {
+        var sender = new StubSender();
+        var usync = new UsyncService(config(new UsyncBatchPolicy(Duration.ofMillis(500), 500)), sender);
+        var start = new CountDownLatch(1);
+        var devices = new CompletableFuture<List<Node>>();
+        var lids = new CompletableFuture<List<Node>>();
+        var interactive = new CompletableFuture<List<Node>>();
+        var threads = List.of(
+                Thread.ofVirtual().start(() -> query(start, devices, () -> usync.query("message", EnumSet.of(UsyncProtocol.DEVICES), List.of(FIRST, SECOND)))),
+                Thread.ofVirtual().start(() -> query(start, lids, () -> usync.query("message", EnumSet.of(UsyncProtocol.LID), List.of(SECOND, THIRD)))),
+                Thread.ofVirtual().start(() -> query(start, interactive, () -> usync.query("interactive", EnumSet.of(UsyncProtocol.STATUS), List.of(FIRST))))
+        );
+        start.countDown();
+        for (var thread : threads) {
+            assertTrue(thread.join(Duration.ofSeconds(10)));
+        }
+
+        assertEquals(2, sender.queries.size(), "Queries with the same context should be merged, and queries with different contexts shouldn't");
+        var merged = sender.find("message");
+        assertEquals(Set.of("devices", "lid"), descriptions(merged.getRequiredChild("usync").getRequiredChild("query").children()));
+        assertEquals(List.of(FIRST, SECOND, THIRD), jids(merged), "Every user should be listed once, in the order it was asked about");
+
+        // Each caller receives only the users it asked about, with the result of every protocol of the merged query
+        assertEquals(List.of(FIRST, SECOND), jids(devices.join()));
+        assertEquals(List.of(SECOND, THIRD), jids(lids.join()));
+        assertEquals(Set.of("devices", "lid"), descriptions(devices.join().getFirst().children()));
+        assertEquals(List.of(FIRST), jids(interactive.join()));
+        assertEquals(Set.of("status"), descriptions(interactive.join().getFirst().children()));
+    }
+
+    @Test
+    public void testSplitsLargeBatches() {
+        var sender = new StubSender();
+        var usync = new UsyncService(config(new UsyncBatchPolicy(Duration.ofHours(1), 2)), sender);
+        var users = List.of(FIRST, SECOND, THIRD, Jid.of("393495089822", JidServer.user()), Jid.of("393495089823", JidServer.user()));
+
+        // The batch is full as soon as it's created, so it's sent without waiting for the window
+        var result = usync.query("message", EnumSet.of(UsyncProtocol.DEVICES), users);
+        assertEquals(3, sender.queries.size());
+        assertEquals(List.of(FIRST, SECOND), jids(sender.queries.get(0)));
+        assertEquals(List.of(THIRD, users.get(3)), jids(sender.queries.get(1)));
+        assertEquals(List.of(users.get(4)), jids(sender.queries.get(2)));
+        assertEquals(users, jids(result), "The responses of the split queries should be merged back in order");
+    }
+
+    @Test
+    public void testDisabledSendsImmediately() {
+        var sender = new StubSender();
+        var usync = new UsyncService(config(UsyncBatchPolicy.disabled()), sender);
+        var first = usync.query("message", EnumSet.of(UsyncProtocol.DEVICES), List.of(FIRST));
+        var second = usync.query("message", EnumSet.of(UsyncProtocol.DEVICES), List.of(FIRST));
+        assertEquals(2, sender.queries.size());
+        assertEquals(List.of(FIRST), jids(first));
+        assertEquals(List.of(FIRST), jids(second));
+    }
+
+    @Test
+    public void testPropagatesTimeout() {
+        var timeouts = new CopyOnWriteArrayList<Duration>();
+        var usync = new UsyncService(config(new UsyncBatchPolicy(Duration.ofMillis(10), 500)), (query, timeout) -> {
+            timeouts.add(timeout);
+            return CompletableFuture.failedFuture(new NodeTimeoutException(query.build()));
+        });
+        assertThrows(NodeTimeoutException.class, () -> usync.query("message", EnumSet.of(UsyncProtocol.DEVICES), List.of(FIRST)));
+        assertEquals(1, timeouts.size());
+        assertTrue(timeouts.getFirst().isPositive(), "Every query should be sent with a response timeout");
+    }
+
+    @Test
+    public void testContactOnlyUsersAreQueriedByPhoneNumber() {
+        var sender = new StubSender();
+        var usync = new UsyncService(config(UsyncBatchPolicy.disabled()), sender);
+
+        var contacts = usync.query("interactive", EnumSet.of(UsyncProtocol.CONTACT), List.of(FIRST));
+        var byPhoneNumber = users(sender.queries.getFirst()).getFirst();
+        assertFalse(byPhoneNumber.hasAttribute("jid"), "Users queried only for contact should be looked up by phone number");
+        assertEquals(Optional.of("+393495089819"), byPhoneNumber.getRequiredChild("contact").toContentString());
+        assertEquals(List.of(FIRST), jids(contacts));
+
+        usync.query("interactive", EnumSet.of(UsyncProtocol.CONTACT, UsyncProtocol.STATUS), List.of(FIRST));
+        var byJid = users(sender.queries.getLast()).getFirst();
+        assertEquals(FIRST, byJid.getRequiredAttributeAsJid("jid"));
+        assertTrue(byJid.getChild("contact").isPresent());
+
+        // A lid has no phone number, so it can't be looked up by one
+        var lid = Jid.of("123456789012345", JidServer.lid());
+        var queries = sender.queries.size();
+        assertTrue(usync.query("interactive", EnumSet.of(UsyncProtocol.CONTACT), List.of(lid)).isEmpty());
+        assertEquals(queries, sender.queries.size(), "No query should be sent for users that can't be listed");
+    }
+
+    private static void query(CountDownLatch start, CompletableFuture<List<Node>> result, QueryCall call) {
+        try {
+            start.await(10, TimeUnit.SECONDS);
+            result.complete(call.run());
+        } catch (Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+    }
+
+    private static List<Node> users(Node query) {
+        return query.getRequiredChild("usync")
+                .getRequiredChild("list")
+                .streamChildren("user")
+                .toList();
+    }
+
+    private static List<Jid> jids(Node query) {
+        return jids(users(query));
+    }
+
+    private static List<Jid> jids(List<Node> users) {
+        return users.stream()
+                .map(user -> user.getRequiredAttributeAsJid("jid"))
+                .toList();
+    }
+
+    private static Set<String> descriptions(Collection<Node> nodes) {
+        var result = new HashSet<String>();
+        for (var node : nodes) {
+            result.add(node.description());
+        }
+        return result;
+    }
+
+    private static WhatsAppClientConfig config(UsyncBatchPolicy policy) {
+        return new WhatsAppClientConfig()
+                .setUsyncBatchPolicy(policy);
+    }
+
+    @FunctionalInterface
+    private interface QueryCall {
+        List<Node> run();
+    }
+
+    // Answers every query with a user for each listed user, that has an empty child for each protocol of the query
+    private static final class StubSender implements BiFunction<NodeBuilder, Duration, CompletableFuture<Node>> {
+        private final List<Node> queries = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableFuture<Node> apply(NodeBuilder query, Duration timeout) {
+            var node = query.build();
+            queries.add(node);
+            return CompletableFuture.completedFuture(respond(node));
+        }
+
+        private Node find(String context) {
+            return queries.stream()
+                    .filter(query -> query.getRequiredChild("usync").hasAttribute("context", context))
+                    .findFirst()
+                    .orElseThrow();
+        }
+
+        private static Node respond(Node query) {
+            var protocols = query.getRequiredChild("usync")
+                    .getRequiredChild("query")
+                    .children();
+            var users = new ArrayList<Node>();
+            for (var user : users(query)) {
+                var jid = user.getAttributeAsJid("jid")
+                        .orElseGet(() -> Jid.of(user.getRequiredChild("contact").toContentString().orElseThrow().substring(1), JidServer.user()));
+                var results = new ArrayList<Node>();
+                for (var protocol : protocols) {
+                    results.add(new NodeBuilder().description(protocol.description()).build());
+                }
+                users.add(new NodeBuilder()
+                        .description("user")
+                        .attribute("jid", jid)
+                        .content(results)
+                        .build());
+            }
+            var list = new NodeBuilder()
+                    .description("list")
+                    .content(users)
+                    .build();
+            var usync = new NodeBuilder()
+                    .description("usync")
+                    .content(list)
+                    .build();
+            return new NodeBuilder()
+                    .description("iq")
+                    .attribute("type", "result")
+                    .content(usync)
+                    .build();
+        }
+    }
+}